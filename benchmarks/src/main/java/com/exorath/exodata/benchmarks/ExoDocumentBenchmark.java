@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.benchmarks;
+
+import com.exorath.exodata.api.DataAPI;
+import com.exorath.exodata.api.ExoCollection;
+import com.exorath.exodata.api.ExoDocument;
+import com.github.fakemongo.Fongo;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+import org.bson.conversions.Bson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rx.Observable;
+import rx.functions.Func1;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link ExoDocument} operations against Fongo, an in-process MongoDB stand-in.
+ * The numbers don't include a network round trip, they show the overhead of ExoData itself (and Fongo), which is what changes between commits.
+ * <p>
+ * Every invocation runs an operation on concurrency different documents at once and waits for all of them, so one op in the results is one batch of concurrency operations.
+ * Run with the gc profiler to see the allocation rate: java -jar target/benchmarks.jar -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExoDocumentBenchmark {
+    private static final Bson PROJECTION = Projections.include("field0");
+
+    /**
+     * The amount of 32 character string fields in every document.
+     */
+    @Param({"10", "100"})
+    public int fields;
+
+    /**
+     * The amount of operations (on different documents) that are in flight at once.
+     */
+    @Param({"1", "16"})
+    public int concurrency;
+
+    private ExoDocument[] documents;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Fongo fongo = new Fongo("benchmark");
+        DataAPI dataAPI = DataAPI.create(fongo.getMongo());
+        ExoCollection collection = dataAPI.getDatabase("benchmark").toBlocking().first().getCollection("documents").toBlocking().first();
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 32; i++)
+            value.append('x');
+        List<Bson> fieldUpdates = new ArrayList<>();
+        for (int i = 0; i < fields; i++)
+            fieldUpdates.add(Updates.set("field" + i, value.toString()));
+        fieldUpdates.add(Updates.set("counter", 0));
+        fieldUpdates.add(Updates.set("balance", Long.MAX_VALUE / 2));
+        documents = new ExoDocument[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            documents[i] = collection.getDocument("document" + i);
+            documents[i].update(Updates.combine(fieldUpdates), true).toBlocking().first();
+            documents[i].fetch().toBlocking().first();
+        }
+    }
+
+    /**
+     * Empties the pushed lists, so push doesn't get slower as the lists grow.
+     */
+    @Setup(Level.Iteration)
+    public void resetLists() {
+        for (ExoDocument document : documents)
+            document.remove("list").toBlocking().first();
+    }
+
+    @Benchmark
+    public Object fetch() {
+        return all(ExoDocument::fetch);
+    }
+
+    @Benchmark
+    public Object fetchWithProjection() {
+        return all(document -> document.fetch(PROJECTION));
+    }
+
+    @Benchmark
+    public Object inc() {
+        return all(document -> document.inc("counter", 1));
+    }
+
+    @Benchmark
+    public Object incLong() {
+        return all(document -> document.incLong("counter", 1));
+    }
+
+    @Benchmark
+    public Object decIfSufficient() {
+        return all(document -> document.decIfSufficient("balance", 1L));
+    }
+
+    @Benchmark
+    public Object push() {
+        return all(document -> document.push("list", 1));
+    }
+
+    @Benchmark
+    public Object cachedRead() {
+        return all(ExoDocument::getCachedOrFetch);
+    }
+
+    private Object all(Func1<ExoDocument, Observable<?>> operation) {
+        if (documents.length == 1)
+            return operation.call(documents[0]).toBlocking().last();
+        List<Observable<?>> operations = new ArrayList<>(documents.length);
+        for (ExoDocument document : documents)
+            operations.add(operation.call(document));
+        return Observable.merge(operations).toBlocking().last();
+    }
+}
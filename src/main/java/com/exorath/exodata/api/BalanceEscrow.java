@@ -0,0 +1,68 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+import com.mongodb.client.result.UpdateResult;
+import rx.Observable;
+
+/**
+ * Approves spends of a balance locally, from a chunk of the balance that was reserved for this server (a lease), see {@link ExoDocument#escrow(String, long, long, java.util.concurrent.TimeUnit)}.
+ * <p>
+ * A chunk is reserved with a single conditional update, just like {@link ExoDocument#decIfSufficient(String, long)}: the chunk is moved from the balance field to the lease "_leases.&lt;key&gt;.&lt;lease id&gt;" ({amount, expires}) of the same document.
+ * Spends that fit in the reserved amount are approved without IO, they are persisted in the background by decrementing the lease amount. When the reserved amount runs low, another chunk is reserved in the background.
+ * Releasing the escrow moves the unspent amount back to the balance. Note that while a lease is held, the balance field does not contain the reserved amount.
+ * <p>
+ * Leases are renewed every third of the lease duration. If the server dies, the lease expires and is returned to the balance by the next escrow on the document that is short on balance (or by {@link #reclaimExpired()}).
+ * Spends are only approved until 90% of the lease duration passed since the last renewal, so a lease that is about to expire is never spent from (as long as the clocks of the servers are not further apart than 10% of the lease duration).
+ * If the lease was reclaimed anyway, the escrow notices it on the next renewal and reserves a new lease.
+ * Spends that were approved but not persisted yet when a server dies are returned to the balance, persisting happens right after the spend so this window is one round trip.
+ * Persisting is idempotent: a lease holds the sequence number of the last persist, so a persist that failed (fe. its reply was lost) is sent again without subtracting the spends twice.
+ * Failures in the background (persists, top-ups and returns of a lease) are logged.
+ */
+public interface BalanceEscrow {
+
+    /**
+     * @return the balance field this escrow spends from
+     */
+    String getKey();
+
+    /**
+     * @return the reserved amount that can still be spent without IO
+     */
+    long getAvailable();
+
+    /**
+     * Spends the amount. If the reserved amount is sufficient the spend is approved immediately, otherwise a chunk (or just the missing amount if the balance is smaller than a chunk) is reserved first.
+     *
+     * @param amount the amount to spend, which must be positive
+     * @return an observable that emits whether or not the spend was approved (false if the balance is insufficient) and completes, or throws an error
+     */
+    Observable<Boolean> spend(long amount);
+
+    /**
+     * Returns the unspent reserved amount to the balance and removes the lease. Spends are no longer approved afterwards.
+     *
+     * @return an observable that emits the UpdateResult of the return and completes, or throws an error
+     */
+    Observable<UpdateResult> release();
+
+    /**
+     * Returns the leases of other servers on this balance that expired (fe. because the server died) to the balance.
+     *
+     * @return an observable that emits the total amount that was returned and completes, or throws an error
+     */
+    Observable<Long> reclaimExpired();
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+/**
+ * A snapshot of the statistics of a cache of an {@link ExoCollection}, see {@link ExoCollection#getDocumentCacheStats()} and {@link ExoCollection#getOffHeapCacheStats()}.
+ */
+public class CacheStats {
+    private static final CacheStats EMPTY = new CacheStats(0, 0, 0, 0);
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long evictionWeight;
+
+    public CacheStats(long hitCount, long missCount, long evictionCount, long evictionWeight) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.evictionWeight = evictionWeight;
+    }
+
+    /**
+     * @return statistics of a cache that was never used (fe. because it's not enabled)
+     */
+    public static CacheStats empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return the total amount of lookups that found a cached document
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return the total amount of lookups that did not find a cached document
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return the share of lookups that found a cached document, or 1 if there were no lookups
+     */
+    public double getHitRate() {
+        long requests = hitCount + missCount;
+        return requests == 0 ? 1 : (double) hitCount / requests;
+    }
+
+    /**
+     * @return the total amount of documents that were evicted
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return the total weight of the documents that were evicted (their estimated size in bytes)
+     */
+    public long getEvictionWeight() {
+        return evictionWeight;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hitCount=" + hitCount + ", missCount=" + missCount + ", evictionCount=" + evictionCount + ", evictionWeight=" + evictionWeight + '}';
+    }
+}
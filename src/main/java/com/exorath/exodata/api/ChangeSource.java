@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+import com.exorath.exodata.impl.OplogChangeSource;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import rx.Observable;
+
+/**
+ * Sees changes that are made to the documents of a collection, including the changes that were not made through ExoData. See {@link ExoCollection#enableChanges(ChangeSource)}.
+ * <p>
+ * Some sources see every change (fe. the oplog), others only look at the documents that are watched (fe. polling). The collection tells the source which ids and filters are watched,
+ * every call to watch is followed by a call to unwatch with the same argument once nobody listens anymore.
+ */
+public interface ChangeSource {
+
+    /**
+     * Gets all changes this source sees. The collection subscribes once when the source is enabled and unsubscribes when it's disabled.
+     *
+     * @return a hot observable of changes, which should not terminate while subscribed to
+     */
+    Observable<DocumentChange> getChanges();
+
+    /**
+     * Starts watching the document with the given id.
+     *
+     * @param id the _id of the document
+     */
+    default void watch(String id) {
+    }
+
+    default void unwatch(String id) {
+    }
+
+    /**
+     * Starts watching the documents that match the filter.
+     *
+     * @param filter the query the documents match
+     */
+    default void watch(Bson filter) {
+    }
+
+    default void unwatch(Bson filter) {
+    }
+
+    /**
+     * Creates a source that tails the oplog of a replica set. It sees every insert, update, replacement and delete in the namespace, so watching costs nothing.
+     * Updates are in the oplog as $set and $unset of the resulting values (fe. an $inc becomes a $set), so they can be applied to a cached document more than once.
+     * The oplog is only tailed while the source is enabled on a collection. Tailing starts at the end of the oplog and resumes after the last seen entry if the cursor dies.
+     * Failed cursors are logged and resumed. Authorization failures and a missing namespace are emitted as an error of the changes instead, the collection then retries with a backoff.
+     *
+     * @param oplog     the oplog collection, fe. client.getDatabase("local").getCollection("oplog.rs")
+     * @param namespace the full name of the collection (database.collection)
+     * @return a change source that tails the oplog
+     */
+    static ChangeSource oplog(MongoCollection<Document> oplog, String namespace) {
+        return new OplogChangeSource(oplog, namespace);
+    }
+}
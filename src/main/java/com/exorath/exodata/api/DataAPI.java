@@ -16,19 +16,75 @@
 
 package com.exorath.exodata.api;
 
+import com.exorath.exodata.impl.IAsyncDataAPI;
 import com.exorath.exodata.impl.IDataAPI;
 import com.mongodb.MongoClient;
 import rx.Observable;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by toonsev on 8/22/2016.
  */
-public interface DataAPI {
+public interface DataAPI extends AutoCloseable {
 
     Observable<ExoDatabase> getDatabase(String name);
 
+    /**
+     * Gets the sync {@link MongoClient} this DataAPI runs on.
+     *
+     * @return the sync {@link MongoClient}, or null if this DataAPI was created on the async driver (see {@link #createAsync(com.mongodb.async.client.MongoClient)})
+     */
     MongoClient getMongoClient();
 
+    /**
+     * Gets a snapshot of the IO pool of this DataAPI (running and queued operations and the rejection counters).
+     *
+     * @return a snapshot of the IO pool, or null if this DataAPI was created without {@link IOLimits} (it then runs on the shared {@link rx.schedulers.Schedulers#io()} pool, or on the async driver)
+     */
+    IOStats getIOStats();
+
+    /**
+     * Starts measuring the operations of all collections of this DataAPI: latency percentiles, throughput, errors, bytes and the io queue wait versus driver time (see {@link OperationStats}).
+     * While disabled (the default) operations are not wrapped at all. Only operations that are created while metrics are enabled are measured.
+     *
+     * @return this DataAPI
+     */
+    DataAPI enableMetrics();
+
+    /**
+     * Starts measuring operations like {@link #enableMetrics()} and sends a snapshot to the reporter every interval.
+     *
+     * @param reporter the reporter that receives the snapshots
+     * @param interval the time between two reports
+     * @param unit     the unit of the interval
+     * @return this DataAPI
+     */
+    DataAPI enableMetrics(MetricsReporter reporter, long interval, TimeUnit unit);
+
+    /**
+     * Stops measuring operations and reporting, the collected metrics are dropped.
+     *
+     * @return this DataAPI
+     */
+    DataAPI disableMetrics();
+
+    /**
+     * @return a snapshot of the measured operations, or null if metrics are disabled
+     */
+    MetricsSnapshot getMetrics();
+
+    /**
+     * Shuts down the collections that were created through this DataAPI and blocks until that's done: their bulk writes and write-behind increments are flushed,
+     * held leases and escrows are released, sharded counters stop refreshing their totals and change sources and invalidation buses are disabled. Failures are logged.
+     * Updates that are still being coalesced (see {@link ExoDocument#coalesce(long, java.util.concurrent.TimeUnit, int)}) are not waited for, neither are collections created with {@link ExoCollection#create(com.mongodb.client.MongoCollection)}.
+     * <p>
+     * Then the IO pool of this DataAPI is shut down (operations that were already accepted still run, new ones fail with a {@link java.util.concurrent.RejectedExecutionException})
+     * and metrics stop being reported. The MongoClient is closed as well if this DataAPI created it, a client that was passed in is left open.
+     */
+    @Override
+    void close();
+
     static DataAPI create() {
         return new IDataAPI();
     }
@@ -44,4 +100,47 @@ public interface DataAPI {
     static DataAPI create(MongoClient client) {
         return new IDataAPI(client);
     }
+
+    /**
+     * Creates a DataAPI with its own bounded IO pool instead of the shared, unbounded {@link rx.schedulers.Schedulers#io()} pool.
+     * Operations that are rejected by the {@link RejectionPolicy} fail with a {@link java.util.concurrent.RejectedExecutionException}, see {@link #getIOStats()} for the pool's state.
+     *
+     * @param client the MongoDB client
+     * @param limits the limits of the IO pool
+     * @return a DataAPI with a bounded IO pool
+     */
+    static DataAPI create(MongoClient client, IOLimits limits) {
+        return new IDataAPI(client, limits);
+    }
+
+    /**
+     * Creates a DataAPI on the async MongoDB driver, connected to MongoDB on the default port.
+     * All IO is done with the driver's callbacks instead of blocking threads of the {@link rx.schedulers.Schedulers#io()} pool. Observers are notified on the driver's threads.
+     * Note that {@link #getMongoClient()}, {@link ExoDatabase#getMongoDatabase()}, {@link ExoCollection#getMongoCollection()} and {@link ExoDocument#getCollection()} return null on the async driver.
+     *
+     * @return a DataAPI on the async MongoDB driver
+     */
+    static DataAPI createAsync() {
+        return new IAsyncDataAPI();
+    }
+
+    /**
+     * Creates a DataAPI on the async MongoDB driver, see {@link #createAsync()}.
+     *
+     * @param connectionString the MongoDB connection string (fe. mongodb://localhost:27017)
+     * @return a DataAPI on the async MongoDB driver
+     */
+    static DataAPI createAsync(String connectionString) {
+        return new IAsyncDataAPI(connectionString);
+    }
+
+    /**
+     * Creates a DataAPI on the async MongoDB driver, see {@link #createAsync()}.
+     *
+     * @param client the async MongoDB client
+     * @return a DataAPI on the async MongoDB driver
+     */
+    static DataAPI createAsync(com.mongodb.async.client.MongoClient client) {
+        return new IAsyncDataAPI(client);
+    }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+import org.bson.Document;
+
+/**
+ * A change of a document that was seen by a {@link ChangeSource}, fe. an update made by the website of your application.
+ * Depending on the source, a change holds the whole document after the change, the update that was applied, or neither (then only the id is known to have changed).
+ */
+public class DocumentChange {
+    private final Object id;
+    private final Type type;
+    private final Document document;
+    private final Document update;
+
+    /**
+     * @param id       the _id of the changed document
+     * @param type     the type of the change
+     * @param document the whole document after the change, or null if it's not known
+     * @param update   the update that was applied, with only $set and $unset operators, or null if it's not known
+     */
+    public DocumentChange(Object id, Type type, Document document, Document update) {
+        if (id == null || type == null)
+            throw new IllegalArgumentException("id and type may not be null");
+        this.id = id;
+        this.type = type;
+        this.document = document;
+        this.update = update;
+    }
+
+    public Object getId() {
+        return id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the whole document after the change, or null if it's not known (or the document was deleted)
+     */
+    public Document getDocument() {
+        return document;
+    }
+
+    /**
+     * @return the update that was applied (only $set and $unset operators, as they are in the oplog), or null if it's not known
+     */
+    public Document getUpdate() {
+        return update;
+    }
+
+    @Override
+    public String toString() {
+        return "DocumentChange{id=" + id + ", type=" + type + ", document=" + document + ", update=" + update + '}';
+    }
+
+    public enum Type {
+        INSERT, UPDATE, REPLACE, DELETE
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import rx.Observable;
+
+/**
+ * A mutable copy of a document whose changes are sent as one minimal update, see {@link ExoDocument#edit()}.
+ * <p>
+ * Change the document returned by {@link #getDocument()} (including nested documents and lists) in any way. On commit it's compared with the document the edit started from:
+ * <ul>
+ * <li>changed values become a {@code $set} of their path, nested documents are compared field by field (fe. {@code {"$set": {"stats.kills": 10}}})</li>
+ * <li>removed fields become an {@code $unset} of their path</li>
+ * <li>lists of the same length are compared element by element (fe. {@code {"$set": {"items.3.count": 2}}}), lists that only got elements appended become a {@code $push} with {@code $each}, other changed lists are set as a whole</li>
+ * <li>amounts added with {@link #inc(String, Number)} become an {@code $inc}, so increments of other servers are not overwritten</li>
+ * </ul>
+ * So the size of the update depends on the size of the change, not on the size of the document. The _id field can't be changed.
+ */
+public interface DocumentEdit {
+
+    /**
+     * @return the mutable document, changes to it are sent on {@link #commit()}
+     */
+    Document getDocument();
+
+    /**
+     * Increments the field in the document and records it as an {@code $inc}. If the field is changed in the document as well, the final value is sent as a {@code $set} instead.
+     *
+     * @param path   the (dotted) path of the field
+     * @param amount the amount to add (negative amounts decrement the field)
+     * @return this edit
+     */
+    DocumentEdit inc(String path, Number amount);
+
+    /**
+     * Computes the update that {@link #commit()} would send.
+     *
+     * @return the minimal update from the committed state to the current document, or null if nothing changed
+     */
+    Bson getUpdate();
+
+    /**
+     * Sends the changes since the edit started (or since the last successful commit) with a single updateOne.
+     *
+     * @return an observable that emits the UpdateResult and completes (without emitting if nothing changed), or throws an error
+     */
+    Observable<UpdateResult> commit();
+
+    /**
+     * Sends the changes only if the version field still holds the value the edit started with, and increments the version field.
+     * If another edit was committed in the meantime, nothing is changed: the UpdateResult has a matched count of 0.
+     *
+     * @param versionField the field that holds the version of the document, it's incremented by every versioned commit (a missing field counts as version 0)
+     * @return an observable that emits the UpdateResult and completes (without emitting if nothing changed), or throws an error
+     */
+    Observable<UpdateResult> commit(String versionField);
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+import com.mongodb.client.result.UpdateResult;
+import rx.Observable;
+
+/**
+ * Exclusive ownership of a document by one node (fe. the server a player is online on), see {@link ExoCollection#acquireLease(Object, String, long, java.util.concurrent.TimeUnit)}.
+ * <p>
+ * The lease is stored on the document as "_lease" ({owner, token, expires}). Every acquisition increments the token, which acts as a fencing token:
+ * the state of the owner is only persisted with a query on its token, so an owner whose lease was taken over (fe. after a long pause) can't overwrite the state of the new owner.
+ * <p>
+ * While the lease is held, the {@link ExoDocument} of the lease is authoritative: fetches return the state in memory and updates (inc, set, push, pop, remove, decIfSufficient, ...) are applied in memory without IO.
+ * Every third of the lease duration, the difference between the state and what was persisted is sent as one updateOne, together with the renewal of the lease.
+ * Updates that can't be applied in memory (fe. an update with a query or an unsupported operator) persist the state first and are sent to the database.
+ * <p>
+ * A lease is held until 90% of its duration passed since the last renewal (as long as the clocks of the servers are not further apart than 10% of the lease duration).
+ * When the lease expires locally, the state is persisted one last time (with the fencing token) before the ExoDocument goes back to sending every update to the database.
+ * When the lease was taken over, or that last persist keeps failing, the changes that were not persisted yet are discarded. This is logged and {@link #ended()} errors.
+ * A renewal that fails is logged and tried again at the next renewal.
+ * Acquiring the lease again with the same owner persists the state of the current lease first, the new lease starts from it.
+ * <p>
+ * Every persist that changed the document is published on the invalidation bus of the collection (if enabled), so other nodes evict their cached copy.
+ */
+public interface DocumentLease {
+
+    /**
+     * @return the leased document, its operations are in memory while the lease is held
+     */
+    ExoDocument getDocument();
+
+    /**
+     * @return the owner that acquired the lease
+     */
+    String getOwner();
+
+    /**
+     * @return the fencing token of this lease, a later lease on the same document always has a higher token
+     */
+    long getFencingToken();
+
+    /**
+     * @return whether or not this lease is still held, it's not after it was released, taken over or expired
+     */
+    boolean isHeld();
+
+    /**
+     * @return an observable that completes once this lease ended with its state persisted (it was released, expired, or handed over to a new lease of the same owner),
+     * or errors with the cause once it was lost and the changes that were not persisted were discarded (it was taken over, or the last persist of an expired lease failed)
+     */
+    Observable<Void> ended();
+
+    /**
+     * Persists the state now (and renews the lease), instead of waiting for the next renewal.
+     *
+     * @return an observable that emits the UpdateResult and completes, or throws an {@link IllegalStateException} if the lease is no longer held
+     */
+    Observable<UpdateResult> flush();
+
+    /**
+     * Persists the state and removes the lease from the document, the ExoDocument sends every update to the database again.
+     * Updates made while the lease is released wait for it and are sent to the database afterwards. If the release fails while the lease is still held, they're applied to the lease instead.
+     *
+     * @return an observable that emits the UpdateResult and completes, or throws an {@link IllegalStateException} if the lease is no longer held
+     */
+    Observable<UpdateResult> release();
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+import com.mongodb.bulk.BulkWriteError;
+import org.bson.Document;
+
+/**
+ * The write-behind increments of a document that were dropped, because their flush failed with a write error for the document (fe. incrementing a field that is not a number).
+ * See {@link ExoCollection#droppedIncrements()}.
+ */
+public class DroppedIncrements {
+    private final String id;
+    private final Document increments;
+    private final BulkWriteError error;
+
+    /**
+     * @param id         the _id of the document
+     * @param increments the summed increments that were dropped, per field
+     * @param error      the write error of the document
+     */
+    public DroppedIncrements(String id, Document increments, BulkWriteError error) {
+        if (id == null || increments == null || error == null)
+            throw new IllegalArgumentException("id, increments and error may not be null");
+        this.id = id;
+        this.increments = increments;
+        this.error = error;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the summed increments that were dropped, per field
+     */
+    public Document getIncrements() {
+        return increments;
+    }
+
+    public BulkWriteError getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "DroppedIncrements{id=" + id + ", increments=" + increments + ", error=" + error + '}';
+    }
+}
@@ -16,18 +16,90 @@
 
 package com.exorath.exodata.api;
 
+import com.exorath.exodata.impl.AsyncCollectionIO;
 import com.exorath.exodata.impl.IExoCollection;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.MongoCollection;
+import org.bson.Document;
 import org.bson.conversions.Bson;
 import rx.Observable;
 
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by toonsev on 8/22/2016.
  */
 public interface ExoCollection {
 
+    /**
+     * Gets the ExoDocument with the given id. This operation does not do any IO.
+     * If the document cache is enabled (see {@link #enableDocumentCache(long, long, TimeUnit)}) the same ExoDocument is returned as long as it stays cached.
+     *
+     * @param id the unique id of the document
+     * @return the ExoDocument with the given id
+     */
     ExoDocument getDocument(Object id);
 
+    /**
+     * Gets a typed document with the given id, its fetches decode straight into the given class instead of a {@link Document}. This operation does not do any IO.
+     * The typed document shares its writes and cache entry with {@link #getDocument(Object)}, see {@link ExoTypedDocument}.
+     *
+     * @param id   the unique id of the document
+     * @param type the class to decode the document into
+     * @return the typed document with the given id
+     */
+    <T> ExoTypedDocument<T> getDocument(Object id, Class<T> type);
+
+    /**
+     * Gets a counter that is spread over the given amount of documents, so increments from many nodes don't all contend on one document. This operation does not do any IO.
+     * The same counter is returned for the same id and amount of shards. Shards are never merged, so only ever increase the amount of shards of an existing counter.
+     *
+     * @param id     the unique id of the counter, the shards are stored as the documents "&lt;id&gt;#0" up to "&lt;id&gt;#&lt;shards - 1&gt;"
+     * @param shards the amount of documents to spread the increments over
+     * @return the sharded counter with the given id
+     * @see ShardedCounter
+     */
+    ShardedCounter getShardedCounter(Object id, int shards);
+
+    /**
+     * Acquires exclusive ownership of a document, fe. for the server a player is online on. While the lease is held, the operations of the document's ExoDocument
+     * (which {@link #getDocument(Object)} keeps returning) are done in memory and persisted in the background, see {@link DocumentLease}.
+     * The document is created if it does not exist. Acquiring a document that's already leased by the same owner takes over that lease with a new fencing token.
+     *
+     * @param id       the unique id of the document
+     * @param owner    the node that acquires the lease, fe. the name of the server
+     * @param duration how long the lease is valid without being renewed, it's renewed every third of the duration
+     * @param unit     the unit of the duration
+     * @return an observable that emits the lease and completes, completes without emitting if another owner holds the lease, or throws an error
+     */
+    Observable<DocumentLease> acquireLease(Object id, String owner, long duration, TimeUnit unit);
+
+    /**
+     * Fetches many documents at once, see {@link #fetchAll(Collection, Bson, int)}. The ids are read in chunks of 500.
+     *
+     * @param ids        the unique ids of the documents to fetch
+     * @param projection the fields to include in the fetched documents, or null to fetch the whole documents
+     * @return an observable that will emit a fetched ExoDocument for every unique id and complete, or throw an error
+     */
+    Observable<ExoDocument> fetchAll(Collection<?> ids, Bson projection);
+
+    /**
+     * Fetches many documents at once. The ids are read in chunks with a single find({_id: {$in: chunk}}) query per chunk, this is a lot faster than calling {@link ExoDocument#fetch()} on every document.
+     * Like {@link ExoDocument#fetch()}, documents that do not exist yet will be created. This happens with one bulkWrite per chunk, which only contains the missing ids.
+     * With the {@link FetchStrategy#FIND} and {@link FetchStrategy#FIND_SECONDARY} strategies missing documents are not created and not emitted.
+     * <p>
+     * Every emitted ExoDocument has the fetched document cached, so {@link ExoDocument#getCachedOrFetch()} will not do any IO.
+     * Chunks are only read when requested by the subscriber (the observable supports backpressure). Note that the projection must include the '_id' field.
+     *
+     * @param ids        the unique ids of the documents to fetch
+     * @param projection the fields to include in the fetched documents, or null to fetch the whole documents
+     * @param chunkSize  the maximum amount of ids in a single query
+     * @return an observable that will emit a fetched ExoDocument for every unique id and complete, or throw an error
+     */
+    Observable<ExoDocument> fetchAll(Collection<?> ids, Bson projection, int chunkSize);
+
     /**
      * Create an index with the given keys.
      *
@@ -37,9 +109,261 @@ public interface ExoCollection {
      */
     Observable<String> createIndex(Bson bson);
 
+    /**
+     * Enables bulk writes for all documents received from {@link #getDocument(Object)}.
+     * Upserting updates that only query on the document's id (fe. {@link ExoDocument#inc(String, Number)} or {@link ExoDocument#set(String, Object)}) will be gathered and sent as unordered bulkWrites.
+     * Conditional and non-upserting updates (fe. {@link ExoDocument#decIfSufficient(String, int)} or {@link ExoDocument#remove(String)}) are still sent on their own.
+     * A batch holds at most one update per document, so the updates of a document are still applied in order.
+     * <p>
+     * Every update still emits its own UpdateResult. Upserted ids and matched counts are exact, the modified count is not available
+     * (see {@link com.mongodb.client.result.UpdateResult#isModifiedCountAvailable()}) if only some updates of a batch modified their document.
+     *
+     * @param flushSize     the amount of pending updates after which a bulkWrite is sent
+     * @param flushInterval the maximum time an update will be held back
+     * @param unit          the unit of the flushInterval
+     * @param maxInFlight   the maximum amount of bulkWrites that may be in progress at once
+     * @return this collection
+     */
+    ExoCollection enableBulkWrites(int flushSize, long flushInterval, TimeUnit unit, int maxInFlight);
+
+    /**
+     * Disables bulk writes, pending updates will be flushed.
+     *
+     * @return this collection
+     * @see #enableBulkWrites(int, long, TimeUnit, int)
+     */
+    ExoCollection disableBulkWrites();
+
+    /**
+     * Runs the operations of a document one after another, in the order they were subscribed to. Without lanes, every operation is sent on its own IO thread,
+     * so fe. set("state", "A") followed by set("state", "B") may reach MongoDB in the opposite order.
+     * <p>
+     * Document ids are hashed to a fixed amount of lanes. A lane sends the next fetch or update once the previous one completed, operations in different lanes still run in parallel.
+     * More lanes means fewer documents share a lane (and wait for each other). Lanes don't own threads, they hold operations back until it's their turn.
+     * Operations subscribed to before the lanes were enabled (or disabled) are not ordered with the operations after.
+     *
+     * @param lanes the amount of lanes
+     * @return this collection
+     */
+    ExoCollection enableOrderedLanes(int lanes);
+
+    /**
+     * Disables the ordered lanes, operations on the same document may run concurrently again.
+     *
+     * @return this collection
+     * @see #enableOrderedLanes(int)
+     */
+    ExoCollection disableOrderedLanes();
+
+    /**
+     * Enables write-behind increments for all documents received from {@link #getDocument(Object)}. {@link ExoDocument#inc(String, Number)} no longer writes to the database,
+     * the amount is added to a local sum per document and field instead. Every flushInterval the sums are sent as one unordered bulkWrite, with a single $inc per document.
+     * This is meant for high frequency statistics (fe. blocks broken), where thousands of increments become a single write.
+     * <p>
+     * Before an increment is added it's appended to a memory-mapped journal in the journal directory, so increments that were not sent yet survive a crash of the process.
+     * When write-behind is enabled on a directory that still holds journals, those are replayed and sent with the first flush. Every collection needs its own journal directory.
+     * The journal is forced to disk every flushInterval, so a crash of the machine loses at most one interval of increments.
+     * <p>
+     * Increments emit an unacknowledged {@link com.mongodb.client.result.UpdateResult} once journaled. Fetched documents do not contain increments that were not flushed yet.
+     * Deltas are written at least once: a flush that failed on the network is sent again with the next flush, even if MongoDB applied part of it,
+     * and after a crash between a flush and the deletion of its journals those journals are replayed and applied again.
+     * The deltas of documents that fail with a write error (fe. incrementing a field that is not a number) are dropped, the flush still throws that error.
+     * Dropped deltas are logged and emitted by {@link #droppedIncrements()}, failed periodic flushes are logged.
+     * <p>
+     * If write-behind is enabled already, it's disabled first without blocking: its accumulated increments are flushed one last time, and the new write-behind replays the journals
+     * in its directory (and flushes) only once that flush is done. If that flush fails it's logged, the journals that were kept are replayed by the new write-behind if it uses the same directory.
+     *
+     * @param journalDirectory the directory to keep the journals in, it's created if it does not exist
+     * @param flushInterval    the time between two flushes
+     * @param unit             the unit of the flushInterval
+     * @return this collection
+     */
+    ExoCollection enableWriteBehind(File journalDirectory, long flushInterval, TimeUnit unit);
+
+    /**
+     * Disables write-behind increments, the accumulated increments are flushed one last time.
+     *
+     * @return an observable that emits the BulkWriteResult of the last flush and completes (without emitting if there was nothing to flush), or throws an error. The journals are kept if the flush fails.
+     * @see #enableWriteBehind(File, long, TimeUnit)
+     */
+    Observable<BulkWriteResult> disableWriteBehind();
+
+    /**
+     * @return a hot observable of the write-behind increments that were dropped after a write error, see {@link #enableWriteBehind(File, long, TimeUnit)}
+     */
+    Observable<DroppedIncrements> droppedIncrements();
+
+    /**
+     * Sends the accumulated write-behind increments now, instead of waiting for the flush interval.
+     *
+     * @return an observable that emits the BulkWriteResult and completes (without emitting if there was nothing to flush or write-behind is disabled), or throws an error
+     * @see #enableWriteBehind(File, long, TimeUnit)
+     */
+    Observable<BulkWriteResult> flushWriteBehind();
+
+    /**
+     * Enables a source of changes made to the documents of this collection, including changes that were not made through ExoData (fe. by the website of your application).
+     * While enabled, every change the source sees updates or clears the cached document of the ExoDocuments that have it cached: the ones in the document cache
+     * (see {@link #enableDocumentCache(long, long, TimeUnit)}) and the ones that are subscribed to {@link ExoDocument#changes()}.
+     * Enabling another source replaces the current one, observables of the previous source stop emitting.
+     *
+     * @param source the change source, fe. {@link ChangeSource#oplog(MongoCollection, String)}
+     * @return this collection
+     */
+    ExoCollection enableChanges(ChangeSource source);
+
+    /**
+     * Enables a change source that polls the watched documents, for deployments without an oplog (fe. a standalone server). See {@link #enableChanges(ChangeSource)}.
+     * Only the documents that are watched (subscribed to with {@link ExoDocument#changes()} or {@link #changes(Bson)}) are polled, with one query per interval for all of them.
+     * That query only reads the version field (see {@link #versionField(String)}), the documents whose version changed are read with a second query. Without a version field whole documents are compared.
+     *
+     * @param interval the time between two polls
+     * @param unit     the unit of the interval
+     * @return this collection
+     */
+    ExoCollection enablePollingChanges(long interval, TimeUnit unit);
+
+    /**
+     * Disables the change source, observables of the source stop emitting (they don't complete).
+     *
+     * @return this collection
+     * @see #enableChanges(ChangeSource)
+     */
+    ExoCollection disableChanges();
+
+    /**
+     * Gets the changes of the documents that match the filter. The observable is hot: it only emits changes that are seen while subscribed to, and subscribers share a single watch on the change source.
+     * Whether a changed document matches is checked with a query on its id and the filter (unless the filter is empty), so deletes are only emitted with an empty filter.
+     *
+     * @param filter the query the changed documents have to match, or null (or an empty filter) to get every change the source sees
+     * @return a hot observable of the changes, which errors with an {@link IllegalStateException} if no change source is enabled
+     * @see #enableChanges(ChangeSource)
+     */
+    Observable<DocumentChange> changes(Bson filter);
+
+    /**
+     * Keeps the document caches of several nodes (JVMs) coherent. Every write through an ExoDocument of this collection publishes the document's id on the bus,
+     * the other nodes evict the document from their document cache (see {@link #enableDocumentCache(long, long, TimeUnit)}), so staleness is bounded by the latency of the bus.
+     * Write-behind flushes publish every flushed document.
+     * <p>
+     * With a version field (see {@link #versionField(String)}) updates on a single document are sent with findOneAndUpdate, which returns the version the database had before the write,
+     * and the written update and resulting version are published as well. A node that has the version right before the write cached applies the update instead of evicting the document.
+     * findOneAndUpdate doesn't report counts, so the UpdateResult of such a write is derived from whether it returned a document (then it matched and was modified, since its version was incremented) or upserted.
+     * Bulk-written updates only publish the id. If the bus errors it's logged and subscribed to again, invalidations published in the meantime are missed. An invalidation that can't be applied is logged and evicts the document. Enabling another bus replaces the current one.
+     *
+     * @param bus the invalidation bus, fe. {@link InvalidationBus#socket(int, Collection)}
+     * @return this collection
+     */
+    ExoCollection enableInvalidationBus(InvalidationBus bus);
+
+    /**
+     * Stops publishing and receiving invalidations, the bus itself is not closed.
+     *
+     * @return this collection
+     * @see #enableInvalidationBus(InvalidationBus)
+     */
+    ExoCollection disableInvalidationBus();
+
+    /**
+     * Sets how documents received from {@link #getDocument(Object)} are fetched, unless the document has its own strategy (see {@link ExoDocument#fetchStrategy(FetchStrategy)}).
+     * The default strategy is {@link FetchStrategy#UPSERT}.
+     *
+     * @param strategy the fetch strategy, which may not be null
+     * @return this collection
+     */
+    ExoCollection fetchStrategy(FetchStrategy strategy);
+
+    /**
+     * Gets the fetch strategy of the documents in this collection.
+     *
+     * @return the fetch strategy of the documents in this collection
+     * @see #fetchStrategy(FetchStrategy)
+     */
+    FetchStrategy getFetchStrategy();
+
+    /**
+     * Sets the version field of the documents received from {@link #getDocument(Object)}, unless the document has its own version field (see {@link ExoDocument#versionField(String)}).
+     * Updates made through those documents increment the version field, which makes {@link ExoDocument#compareAndUpdate(java.util.function.Function)} possible. Write-behind flushes increment it as well.
+     *
+     * @param field the version field, or null to not version updates (the default)
+     * @return this collection
+     */
+    ExoCollection versionField(String field);
+
+    /**
+     * @return the version field of the documents in this collection, or null if updates are not versioned
+     * @see #versionField(String)
+     */
+    String getVersionField();
+
+    /**
+     * Enables the document cache. While enabled, {@link #getDocument(Object)} returns the same ExoDocument (and thus the same cached document) for an id, as long as it's cached.
+     * <p>
+     * Cached ExoDocuments are weighed by the estimated BSON size of their cached document. When the total weight exceeds maxWeight, documents are evicted (Window TinyLFU, frequently used documents are kept).
+     * Documents that were not requested for the expireAfterAccess duration are evicted as well. Enabling the cache again replaces the current cache.
+     *
+     * @param maxWeight         the maximum amount of (estimated) bytes the cached documents may take up
+     * @param expireAfterAccess how long a document stays cached after it was last requested
+     * @param unit              the unit of expireAfterAccess
+     * @return this collection
+     */
+    ExoCollection enableDocumentCache(long maxWeight, long expireAfterAccess, TimeUnit unit);
+
+    /**
+     * Disables the document cache, {@link #getDocument(Object)} will return a new ExoDocument on every call.
+     *
+     * @return this collection
+     */
+    ExoCollection disableDocumentCache();
+
+    /**
+     * Gets the statistics of the document cache (hits, misses and evictions).
+     *
+     * @return the statistics of the document cache, or empty statistics if the cache is not enabled
+     */
+    CacheStats getDocumentCacheStats();
+
+    /**
+     * Enables a second level cache behind the document cache that keeps documents encoded as BSON outside of the heap, in direct buffers.
+     * See {@link #enableOffHeapCache(long, File)}.
+     *
+     * @param maxBytes the amount of bytes the off-heap cache may take up
+     * @return this collection
+     */
+    ExoCollection enableOffHeapCache(long maxBytes);
+
+    /**
+     * Enables a second level cache behind the document cache (see {@link #enableDocumentCache(long, long, TimeUnit)}) that keeps documents encoded as BSON outside of the heap.
+     * <p>
+     * Full documents that are evicted from the document cache because of its weight are moved to the off-heap cache, {@link #getDocument(Object)} takes them back
+     * and decodes them only when they're read. When maxBytes is exceeded, the documents that were stored first are evicted, and a document is not taken back once the expireAfterAccess
+     * of the document cache passed since it was moved off-heap. Documents are removed from the off-heap cache when they're written through an ExoDocument of this collection,
+     * or when a change (see {@link #enableChanges(ChangeSource)}) or invalidation (see {@link #enableInvalidationBus(InvalidationBus)}) is seen for them.
+     * Enabling the cache again replaces the current cache.
+     *
+     * @param maxBytes  the amount of bytes the off-heap cache may take up
+     * @param directory the directory to create memory-mapped files in (they're deleted when the cache is disabled), or null to use direct buffers
+     * @return this collection
+     */
+    ExoCollection enableOffHeapCache(long maxBytes, File directory);
+
+    /**
+     * Disables the off-heap cache and releases its documents.
+     *
+     * @return this collection
+     */
+    ExoCollection disableOffHeapCache();
+
+    /**
+     * Gets the statistics of the off-heap cache (hits, misses and evictions, the eviction weight is in bytes).
+     *
+     * @return the statistics of the off-heap cache, or empty statistics if the cache is not enabled
+     */
+    CacheStats getOffHeapCacheStats();
+
     /**
      * Gets the actual {@link MongoCollection} encapsulated by this class
-     * @return Gets the actual {@link MongoCollection}
+     * @return Gets the actual {@link MongoCollection}, or null if this collection runs on the async driver
      */
     MongoCollection getMongoCollection();
 
@@ -51,4 +375,13 @@ public interface ExoCollection {
     static ExoCollection create(MongoCollection collection) {
         return new IExoCollection(collection);
     }
+
+    /**
+     * Creates an ExoCollection from an async {@link com.mongodb.async.client.MongoCollection}, all IO will be done without blocking threads.
+     * @param collection the async {@link com.mongodb.async.client.MongoCollection}
+     * @return an ExoCollection that encapsulates the async collection
+     */
+    static ExoCollection create(com.mongodb.async.client.MongoCollection<Document> collection) {
+        return new IExoCollection(new AsyncCollectionIO(collection));
+    }
 }
@@ -16,6 +16,7 @@
 
 package com.exorath.exodata.api;
 
+import com.exorath.exodata.impl.IAsyncExoDatabase;
 import com.exorath.exodata.impl.IExoDatabase;
 import com.mongodb.client.MongoDatabase;
 import rx.Observable;
@@ -26,9 +27,25 @@ import rx.Observable;
 public interface ExoDatabase {
 
     Observable<ExoCollection> getCollection(String name);
+
+    /**
+     * Gets the sync {@link MongoDatabase} encapsulated by this class.
+     *
+     * @return the sync {@link MongoDatabase}, or null if this database runs on the async driver
+     */
     MongoDatabase getMongoDatabase();
 
     static ExoDatabase create(MongoDatabase database){
         return new IExoDatabase(database);
     }
+
+    /**
+     * Creates an ExoDatabase on the async MongoDB driver.
+     *
+     * @param database the async {@link com.mongodb.async.client.MongoDatabase}
+     * @return an ExoDatabase that encapsulates the async database
+     */
+    static ExoDatabase create(com.mongodb.async.client.MongoDatabase database) {
+        return new IAsyncExoDatabase(database);
+    }
 }
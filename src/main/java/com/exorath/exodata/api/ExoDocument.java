@@ -20,12 +20,16 @@ import com.exorath.exodata.impl.IExoDocument;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.result.UpdateResult;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 import rx.Observable;
 
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
 /**
- * TODO: Observable with external changes (fe the site)
- * An ExoDocument is an interface to fetch and update a specific document. Note that the cached document will not keep track of changes!
+ * An ExoDocument is an interface to fetch and update a specific document. Note that the cached document will not keep track of changes, unless {@link #writeThrough(boolean)} is enabled (and even then only of changes made through this ExoDocument)
+ * or the collection has a change source (see {@link ExoCollection#enableChanges(ChangeSource)})!
  * All Observable methods are cold observables. This means that the method will not execute unless subscribed to! If the method involves IO, it's most likely done on the {@link rx.schedulers.Schedulers#io} threads.
  * Created by toonsev on 8/21/2016.
  */
@@ -33,7 +37,7 @@ public interface ExoDocument {
     /**
      * Gets the namespace where this document is located in (the collection and database).
      *
-     * @return the namespace where this document is located in
+     * @return the namespace where this document is located in, or null if this document runs on the async driver
      */
     MongoCollection getCollection();
 
@@ -46,18 +50,50 @@ public interface ExoDocument {
 
     /**
      * Gets the cached version of the database document, if it was fetched already otherwise the document will be fetched from the database.
+     * If the document was only fetched with projections, the cached fields are emitted (use {@link #getCachedOrFetch(Bson)} to make sure a field is included).
      * See the {@link #fetch()} method for the fetch behavior.
      *
      * @return an observable that will emit the document and complete, or throw an error
      */
     Observable<Document> getCachedOrFetch();
 
+    /**
+     * Reads a number from the cached document (or the state of the held lease), without fetching and without decoding a document that's still encoded (see {@link #fetchRaw()}).
+     *
+     * @param key field identifier, may be a dotted path
+     * @return the value as a long (truncated if it's a double), or 0 if the field does not exist
+     * @throws IllegalStateException if the field is not cached or is not a number
+     */
+    long getLong(String key);
+
+    /**
+     * Reads a number from the cached document like {@link #getLong(String)}.
+     *
+     * @param key field identifier, may be a dotted path
+     * @return the value as a double, or 0 if the field does not exist
+     * @throws IllegalStateException if the field is not cached or is not a number
+     */
+    double getDouble(String key);
+
+    /**
+     * Gets the projected fields from the cache, only the fields that are not cached yet are fetched (and merged into the cache).
+     * This allows you to keep a few hot fields cached without ever fetching the full document.
+     * <p>
+     * This only works for projections that include fields (fe. {@link com.mongodb.client.model.Projections#include(String...)}), other projections are always fetched with {@link #fetch(Bson)}.
+     * The emitted document contains the _id and the projected fields, like the database would return it.
+     *
+     * @param projection the fields to include in the returned document
+     * @return an observable that will emit the projected document and complete, or throw an error
+     */
+    Observable<Document> getCachedOrFetch(Bson projection);
+
     /**
      * Fetches the latest version of the document from the database (note that even this may already be outdated when it arrives back).
      * <p>
      * The fetched document will also be cached for the {@link #getCachedOrFetch()} method.
      * <p>
      * If the document does not exist yet, this operation will create it atomically (with the findAndModify MongoDB operator).
+     * This depends on the {@link #getFetchStrategy()}, with {@link FetchStrategy#FIND} or {@link FetchStrategy#FIND_SECONDARY} a missing document is not created and the observable completes without emitting a document.
      *
      * @return an observable that will emit the document and complete, or throw an error
      */
@@ -69,9 +105,10 @@ public interface ExoDocument {
      * <p>
      * There may be a case that this the observable does not emit a document (Maybe if you do fetch(slice("nonexistendkey", 1)). Then this operation will simply complete. This needs testing!
      * <p>
-     * The fetched document will also be cached for the {@link #getCachedOrFetch()} method.
+     * If the projection only includes fields, the fetched fields are merged into the cache (replacing the cached values of those fields), see {@link #getCachedOrFetch(Bson)}.
+     * Documents fetched with other projections are not cached.
      * <p>
-     * If the document does not exist yet, this operation will create it atomically (with the findAndModify MongoDB operator).
+     * If the document does not exist yet, this operation will create it atomically (with the findAndModify MongoDB operator), see {@link #fetch()} for the fetch strategies that don't.
      *
      * @param projection the fields to include in the returned document
      * @return an observable that will emit the document and complete, or throw an error
@@ -79,6 +116,25 @@ public interface ExoDocument {
      */
     Observable<Document> fetch(Bson projection);
 
+    /**
+     * Fetches the latest version of the document like {@link #fetch()}, but without decoding it. The {@link RawBsonDocument} wraps the bytes of the response,
+     * a field is only decoded when it's read (so reading a few fields of a large document doesn't decode the rest of it).
+     * <p>
+     * The fetched document is cached for {@link #getCachedOrFetch()}, it's decoded when it's first read from the cache.
+     *
+     * @return an observable that will emit the document and complete, or throw an error
+     */
+    Observable<RawBsonDocument> fetchRaw();
+
+    /**
+     * Fetches the latest version of the document like {@link #fetch(Bson)}, but without decoding it (see {@link #fetchRaw()}).
+     * Documents fetched with a projection are not cached.
+     *
+     * @param projection the fields to include in the returned document
+     * @return an observable that will emit the document and complete, or throw an error
+     */
+    Observable<RawBsonDocument> fetchRaw(Bson projection);
+
 
     /**
      * The set operator replaces the value of a field with the specified value. If the field does not exist, $set will add a new field with the specified value.
@@ -98,6 +154,7 @@ public interface ExoDocument {
      * If the field does not exist, inc creates the field and sets the field to the specified value.
      * <p>
      * This operation will create the document in the database if it does not exist yet.
+     * If write-behind is enabled on the collection, the increment is only journaled and sent later (see {@link ExoCollection#enableWriteBehind(java.io.File, long, TimeUnit)}).
      *
      * @param key    field identifier
      * @param amount amount to increment (negative amount will decrement the field)
@@ -108,6 +165,35 @@ public interface ExoDocument {
      */
     Observable<UpdateResult> inc(String key, Number amount);
 
+    /**
+     * Increments a field by an int amount, like {@link #inc(String, Number)}. The update is built as BSON directly, so no codec is needed to encode the amount when it's sent.
+     * The amount is still boxed when the increment goes through write-behind or update coalescing (they merge amounts as numbers),
+     * and when it's applied to the cached document with {@link #writeThrough(boolean)} (the update is decoded for that).
+     *
+     * @param key    field identifier
+     * @param amount amount to increment (negative amount will decrement the field)
+     * @return an observable that will emit the UpdateResult and complete, or throw an error
+     */
+    Observable<UpdateResult> incInt(String key, int amount);
+
+    /**
+     * Increments a field by a long amount, see {@link #incInt(String, int)}.
+     *
+     * @param key    field identifier
+     * @param amount amount to increment (negative amount will decrement the field)
+     * @return an observable that will emit the UpdateResult and complete, or throw an error
+     */
+    Observable<UpdateResult> incLong(String key, long amount);
+
+    /**
+     * Increments a field by a double amount, see {@link #incInt(String, int)}.
+     *
+     * @param key    field identifier
+     * @param amount amount to increment (negative amount will decrement the field)
+     * @return an observable that will emit the UpdateResult and complete, or throw an error
+     */
+    Observable<UpdateResult> incDouble(String key, double amount);
+
     /**
      * Decrements a field if it has a sufficient value (greater or equal to the amount).
      * You can check whether or not this was successful by checking if the {@link UpdateResult#getModifiedCount()} is larger then zero.
@@ -150,6 +236,37 @@ public interface ExoDocument {
      */
     Observable<UpdateResult> decIfSufficient(String key, double amount);
 
+    /**
+     * Gets the changes made to this document, including the changes that were not made through ExoData (fe. by the website of your application).
+     * The observable is hot: it only emits changes that are seen while subscribed to, and subscribers share a single watch on the change source of the collection.
+     * While subscribed to, the changes update or clear the cached document of this ExoDocument before they are emitted.
+     *
+     * @return a hot observable of the changes, which errors with an {@link IllegalStateException} if the collection has no change source
+     * @see ExoCollection#enableChanges(ChangeSource)
+     */
+    Observable<DocumentChange> changes();
+
+    /**
+     * Starts an edit of the document: a mutable copy of the cached document (see {@link #getCachedOrFetch()}) whose changes are sent as one minimal updateOne on {@link DocumentEdit#commit()}.
+     * If the document does not exist (with the {@link FetchStrategy#FIND} strategies), the edit starts from an empty document which is created on commit.
+     *
+     * @return an observable that will emit the edit and complete, or throw an error
+     * @see DocumentEdit
+     */
+    Observable<DocumentEdit> edit();
+
+    /**
+     * Reserves chunks of the key's balance for this server, so spends can be approved locally instead of with a {@link #decIfSufficient(String, long)} round trip each.
+     * No IO is done until the first spend. See {@link BalanceEscrow} for how the reserved balance is stored, renewed and returned.
+     *
+     * @param key           the balance field
+     * @param chunk         the amount to reserve at once, a larger chunk means fewer round trips but more balance that is held by this server
+     * @param leaseDuration how long a reservation stays valid without being renewed, it's renewed every third of the duration while the escrow is open
+     * @param unit          the unit of the leaseDuration
+     * @return a new escrow on the key, {@link BalanceEscrow#release()} it once the balance is no longer spent on this server
+     */
+    BalanceEscrow escrow(String key, long chunk, long leaseDuration, TimeUnit unit);
+
     /**
      * The push operator appends a specified value to an array.
      * If the field is absent in the document to update, push adds the array field with the value as its element.
@@ -224,6 +341,96 @@ public interface ExoDocument {
      */
     Document getIdQuery();
 
+    /**
+     * Enables write coalescing for {@link #inc(String, Number)}, {@link #set(String, Object)} and {@link #push(String, Object)}.
+     * These updates are held back for up to the window (or until maxUpdates updates are pending) and then sent as one combined update:
+     * $inc amounts are added up, the last $set of a key wins and repeated $push operations become a single $push with $each.
+     * <p>
+     * All updates in a combined update emit the same {@link UpdateResult}. Note that an update that got merged will still be sent if you unsubscribe before it's flushed.
+     * Other updates (fe. {@link #pop(String, boolean)}) are not coalesced, they flush the pending updates first.
+     *
+     * @param window     the maximum time an update will be held back
+     * @param unit       the unit of the window
+     * @param maxUpdates the amount of pending updates after which they will be flushed immediately
+     * @return this document
+     */
+    ExoDocument coalesce(long window, TimeUnit unit, int maxUpdates);
+
+    /**
+     * Disables write coalescing, pending updates will be flushed.
+     *
+     * @return this document
+     * @see #coalesce(long, TimeUnit, int)
+     */
+    ExoDocument disableCoalescing();
+
+    /**
+     * Enables or disables the write-through mode of the cached document.
+     * In write-through mode every update made through this ExoDocument is applied to the cached document once the database confirmed it matched (or created) the document,
+     * so {@link #getCachedOrFetch()} keeps returning an up to date document without fetching it again. This includes dotted keys and conditional updates like {@link #decIfSufficient(String, int)}.
+     * <p>
+     * If an update can't be applied locally (fe. the cache only holds a projection, or the update uses operators other than $set, $setOnInsert, $unset, $inc, $push and $pop) the cache is cleared instead.
+     * Cached documents that were emitted before are never modified, every update creates a new cached document.
+     *
+     * @param enabled whether or not updates should be written through to the cached document
+     * @return this document
+     */
+    ExoDocument writeThrough(boolean enabled);
+
+    /**
+     * Sets how this document is fetched. By default the strategy of the {@link ExoCollection} this document was received from is used ({@link FetchStrategy#UPSERT} if the document was created directly).
+     *
+     * @param strategy the fetch strategy, or null to use the default strategy again
+     * @return this document
+     */
+    ExoDocument fetchStrategy(FetchStrategy strategy);
+
+    /**
+     * Gets the strategy that is used to fetch this document.
+     *
+     * @return the strategy that is used to fetch this document
+     * @see #fetchStrategy(FetchStrategy)
+     */
+    FetchStrategy getFetchStrategy();
+
+    /**
+     * Sets the version field of this document. Every update made through this ExoDocument (including coalesced, bulk and conditional updates) increments the version field by one,
+     * unless the update changes the version field itself. This allows compare-and-set updates, see {@link #compareAndUpdate(Function)}.
+     * By default the version field of the {@link ExoCollection} this document was received from is used (none if the document was created directly).
+     * <p>
+     * Note that updates that are not made through ExoData don't increment the version field, compare-and-set updates can't detect those.
+     *
+     * @param field the version field, or null to use the default version field again
+     * @return this document
+     */
+    ExoDocument versionField(String field);
+
+    /**
+     * @return the version field of this document, or null if updates are not versioned
+     * @see #versionField(String)
+     */
+    String getVersionField();
+
+    /**
+     * Compare-and-set update, with at most 10 attempts. See {@link #compareAndUpdate(Function, int)}.
+     */
+    Observable<UpdateResult> compareAndUpdate(Function<Document, Bson> update);
+
+    /**
+     * Reads the document (from the cache if it's cached, see {@link #getCachedOrFetch()}), builds the update from it and sends the update only if the version field still holds the version that was read.
+     * If another update was made in the meantime, the document is fetched again and the update is built and sent again, after a random backoff that grows exponentially (up to 100 milliseconds).
+     * This is an alternative to locking: a read-modify-write (fe. a trade between two fields) is only applied to the document it was computed from.
+     * <p>
+     * If the document does not exist, the function receives a document with only the _id and the update creates the document.
+     *
+     * @param update      builds the update from the current document, it may be called once per attempt. Return null to not update the document
+     * @param maxAttempts the maximum amount of times the update is sent
+     * @return an observable that will emit the UpdateResult of the last attempt and complete (without emitting if the function returned null), or throw an error. If all attempts conflicted, the matched count is 0
+     * @throws IllegalStateException if this document has no version field
+     * @see #versionField(String)
+     */
+    Observable<UpdateResult> compareAndUpdate(Function<Document, Bson> update, int maxAttempts);
+
     static ExoDocument create(MongoCollection collection, Object id) {
         return new IExoDocument(collection, id);
     }
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+import com.mongodb.client.result.UpdateResult;
+import org.bson.conversions.Bson;
+import rx.Observable;
+
+/**
+ * A document that is decoded straight into a class of your own instead of a {@link org.bson.Document}, see {@link ExoCollection#getDocument(Object, Class)}.
+ * Documents are decoded with the codec registry of the collection. Classes without a codec get a reflective codec (cached per class) that stores all non static, non transient fields, a field named id is stored as _id.
+ * Register your own (fe. generated) codecs on the collection's registry to use those instead.
+ * <p>
+ * Updates go through the untyped {@link ExoDocument} of the same id, so coalescing, bulk writes and write-through apply to them as well. Values are encoded with the codec registry, so they may be your own classes too.
+ * Like {@link ExoDocument}, all Observable methods are cold observables.
+ * <p>
+ * Fetches always read the database (or the cached typed document), they ignore a {@link DocumentLease} held on the document. So they don't see the changes the lease did not persist yet.
+ */
+public interface ExoTypedDocument<T> {
+
+    /**
+     * @return the unique id of this document
+     */
+    Object getId();
+
+    /**
+     * @return the class documents are decoded into
+     */
+    Class<T> getType();
+
+    /**
+     * Fetches the document and decodes it into the type of this document. The document is created if it does not exist yet (depending on the fetch strategy, see {@link ExoDocument#fetch()}).
+     *
+     * @return an observable that will emit the decoded document and complete, or throw an error
+     */
+    Observable<T> fetch();
+
+    /**
+     * Fetches only the fields in the projection, the other fields keep the value the constructor of the type gave them.
+     * Partially fetched documents are not cached.
+     *
+     * @param projection the fields to include in the decoded document
+     * @return an observable that will emit the decoded document and complete, or throw an error
+     */
+    Observable<T> fetch(Bson projection);
+
+    /**
+     * Emits the last fully fetched document if it's still cached, otherwise fetches it. Updates through the untyped document clear the cached value (only when write-through is enabled, like {@link ExoDocument#getCachedOrFetch()}).
+     *
+     * @return an observable that will emit the decoded document and complete, or throw an error
+     */
+    Observable<T> getCachedOrFetch();
+
+    /**
+     * Sets the field to the value, encoded with the codec registry of the collection.
+     *
+     * @param key   the field to set
+     * @param value the value, which may be an instance of any class the codec registry can encode (including your own classes)
+     * @return an observable that will emit the UpdateResult and complete, or throw an error
+     */
+    Observable<UpdateResult> set(String key, Object value);
+
+    /**
+     * Sets every field of the value in the database document (except for _id). Fields that are null in the value are left untouched.
+     *
+     * @param value the value to store
+     * @return an observable that will emit the UpdateResult and complete, or throw an error
+     */
+    Observable<UpdateResult> set(T value);
+
+    /**
+     * @see ExoDocument#inc(String, Number)
+     */
+    Observable<UpdateResult> inc(String key, Number amount);
+
+    /**
+     * Pushes the value, encoded with the codec registry of the collection, to the array.
+     *
+     * @see ExoDocument#push(String, Object)
+     */
+    Observable<UpdateResult> push(String key, Object value);
+
+    /**
+     * @see ExoDocument#remove(String)
+     */
+    Observable<UpdateResult> remove(String key);
+
+    /**
+     * @return the untyped ExoDocument with the same id, for the operations this document doesn't offer (fe. {@link ExoDocument#decIfSufficient(String, long)})
+     */
+    ExoDocument untyped();
+}
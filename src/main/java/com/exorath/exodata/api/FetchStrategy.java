@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.exorath.exodata.api;
+
+/**
+ * Decides how {@link ExoDocument#fetch()} reads a document from the database.
+ */
+public enum FetchStrategy {
+    /**
+     * Fetches with findOneAndUpdate and upsert, the document is created if it does not exist yet.
+     * This is a write operation on every fetch (it takes write locks, goes to the primary and ends up in the oplog). This is the default strategy.
+     */
+    UPSERT,
+    /**
+     * Fetches with a plain find on the collection's read preference. If the document does not exist, the fetch completes without emitting a document.
+     */
+    FIND,
+    /**
+     * Fetches with a plain find that prefers secondaries (the primary is used if no secondary is available). The document may lag behind on the primary.
+     * If the document does not exist, the fetch completes without emitting a document.
+     */
+    FIND_SECONDARY,
+    /**
+     * Fetches with a plain find, only if the document does not exist it's created with findOneAndUpdate and upsert.
+     * Existing documents are read without writing, new documents still behave like {@link #UPSERT}.
+     */
+    LAZY_UPSERT
+}
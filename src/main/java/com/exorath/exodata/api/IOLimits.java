@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits the IO of a {@link DataAPI} on the sync driver. Instead of the unbounded {@link rx.schedulers.Schedulers#io()} pool, the DataAPI gets its own pool with at most maxConcurrency threads.
+ * Operations that can't run right away wait in a bounded queue, when that queue is full the {@link RejectionPolicy} decides what happens.
+ * A collection can also be limited to a number of concurrent operations, so a single busy collection can't take up the whole pool.
+ * <p>
+ * Example: new IOLimits().maxConcurrency(32).maxQueued(1000).rejectionPolicy(RejectionPolicy.FAIL_FAST).collectionConcurrency(8)
+ */
+public class IOLimits {
+    private int maxConcurrency = 32;
+    private int maxQueued = 1024;
+    private RejectionPolicy rejectionPolicy = RejectionPolicy.FAIL_FAST;
+    private int collectionConcurrency = Integer.MAX_VALUE;
+    private final Map<String, Integer> collectionConcurrencies = new HashMap<>();
+
+    /**
+     * @param maxConcurrency the maximum amount of IO operations that run at once (the amount of threads), 32 by default
+     * @return these limits
+     */
+    public IOLimits maxConcurrency(int maxConcurrency) {
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        this.maxConcurrency = maxConcurrency;
+        return this;
+    }
+
+    /**
+     * @param maxQueued the maximum amount of IO operations that wait for a thread, 1024 by default
+     * @return these limits
+     */
+    public IOLimits maxQueued(int maxQueued) {
+        if (maxQueued < 1)
+            throw new IllegalArgumentException("maxQueued must be at least 1");
+        this.maxQueued = maxQueued;
+        return this;
+    }
+
+    /**
+     * @param rejectionPolicy what happens to operations when the queue is full, {@link RejectionPolicy#FAIL_FAST} by default
+     * @return these limits
+     */
+    public IOLimits rejectionPolicy(RejectionPolicy rejectionPolicy) {
+        if (rejectionPolicy == null)
+            throw new IllegalArgumentException("rejectionPolicy may not be null");
+        this.rejectionPolicy = rejectionPolicy;
+        return this;
+    }
+
+    /**
+     * @param collectionConcurrency the maximum amount of IO operations that run at once on a single collection, unlimited by default
+     * @return these limits
+     */
+    public IOLimits collectionConcurrency(int collectionConcurrency) {
+        if (collectionConcurrency < 1)
+            throw new IllegalArgumentException("collectionConcurrency must be at least 1");
+        this.collectionConcurrency = collectionConcurrency;
+        return this;
+    }
+
+    /**
+     * @param collection            the name of the collection
+     * @param collectionConcurrency the maximum amount of IO operations that run at once on this collection
+     * @return these limits
+     */
+    public IOLimits collectionConcurrency(String collection, int collectionConcurrency) {
+        if (collectionConcurrency < 1)
+            throw new IllegalArgumentException("collectionConcurrency must be at least 1");
+        collectionConcurrencies.put(collection, collectionConcurrency);
+        return this;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    public RejectionPolicy getRejectionPolicy() {
+        return rejectionPolicy;
+    }
+
+    public int getCollectionConcurrency(String collection) {
+        return collectionConcurrencies.getOrDefault(collection, collectionConcurrency);
+    }
+}
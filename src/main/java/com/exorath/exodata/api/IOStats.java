@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+/**
+ * A snapshot of the IO pool of a {@link DataAPI}, see {@link DataAPI#getIOStats()}.
+ */
+public class IOStats {
+    private final int active;
+    private final int queued;
+    private final long rejected;
+    private final long dropped;
+    private final long callerRuns;
+
+    public IOStats(int active, int queued, long rejected, long dropped, long callerRuns) {
+        this.active = active;
+        this.queued = queued;
+        this.rejected = rejected;
+        this.dropped = dropped;
+        this.callerRuns = callerRuns;
+    }
+
+    /**
+     * @return the amount of IO operations that are running right now
+     */
+    public int getActive() {
+        return active;
+    }
+
+    /**
+     * @return the amount of IO operations that are waiting to run (on the pool or on a collection limit)
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return the total amount of operations that failed because the queue was full ({@link RejectionPolicy#FAIL_FAST})
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the total amount of queued operations that failed to make room for a new one ({@link RejectionPolicy#DROP_OLDEST})
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the total amount of operations that ran on the subscribing thread because the queue was full ({@link RejectionPolicy#CALLER_RUNS})
+     */
+    public long getCallerRuns() {
+        return callerRuns;
+    }
+
+    @Override
+    public String toString() {
+        return "IOStats{active=" + active + ", queued=" + queued + ", rejected=" + rejected + ", dropped=" + dropped + ", callerRuns=" + callerRuns + '}';
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+import org.bson.Document;
+
+/**
+ * A message on an {@link InvalidationBus} that tells the other nodes a document was written, so they can patch or evict their cached copy.
+ */
+public class Invalidation {
+    private final String origin;
+    private final String collection;
+    private final String id;
+    private final Number version;
+    private final Document update;
+
+    /**
+     * @param origin     the node that wrote the document, nodes ignore their own invalidations
+     * @param collection the full name of the collection (database.collection)
+     * @param id         the _id of the written document
+     * @param version    the version the document has after the write, or null if it's not known
+     * @param update     the update that was written, or null if it's not known (then the document is always evicted)
+     */
+    public Invalidation(String origin, String collection, String id, Number version, Document update) {
+        if (origin == null || collection == null || id == null)
+            throw new IllegalArgumentException("origin, collection and id may not be null");
+        this.origin = origin;
+        this.collection = collection;
+        this.id = id;
+        this.version = version;
+        this.update = update;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * @return the full name of the collection (database.collection)
+     */
+    public String getCollection() {
+        return collection;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the version the document has after the write, or null if it's not known
+     */
+    public Number getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the update that was written, or null if it's not known
+     */
+    public Document getUpdate() {
+        return update;
+    }
+
+    /**
+     * @return this invalidation without the update, so it only evicts
+     */
+    public Invalidation withoutUpdate() {
+        return update == null ? this : new Invalidation(origin, collection, id, version, null);
+    }
+
+    @Override
+    public String toString() {
+        return "Invalidation{origin=" + origin + ", collection=" + collection + ", id=" + id + ", version=" + version + ", update=" + update + '}';
+    }
+}
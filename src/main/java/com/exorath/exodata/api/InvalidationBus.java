@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+import com.exorath.exodata.impl.LoopbackInvalidationBus;
+import com.exorath.exodata.impl.SocketInvalidationBus;
+import rx.Observable;
+
+import java.net.InetSocketAddress;
+import java.util.Collection;
+
+/**
+ * Carries {@link Invalidation}s between the nodes (JVMs) that cache documents of the same collections, see {@link ExoCollection#enableInvalidationBus(InvalidationBus)}.
+ * A bus is best effort: an invalidation that is lost leaves a stale cached document until it's evicted, so combine it with the expiry of the document cache.
+ */
+public interface InvalidationBus {
+
+    /**
+     * Sends the invalidation to all nodes on the bus. This may not block on IO and should not throw if a node can't be reached.
+     *
+     * @param invalidation the invalidation to send
+     */
+    void publish(Invalidation invalidation);
+
+    /**
+     * @return a hot observable of the invalidations published on the bus (it may include the ones published by this node)
+     */
+    Observable<Invalidation> getInvalidations();
+
+    /**
+     * Stops the bus, the invalidations observable completes.
+     */
+    default void close() {
+    }
+
+    /**
+     * Creates a bus within the JVM, every invalidation is delivered to all subscribers on the publishing thread. Collections that share the bus act as separate nodes, which is useful in tests.
+     *
+     * @return a new loopback bus
+     */
+    static InvalidationBus loopback() {
+        return new LoopbackInvalidationBus();
+    }
+
+    /**
+     * Creates a bus that sends every invalidation as a UDP datagram to each peer and receives the datagrams of the peers on the given port.
+     * Invalidations are small (the update is left out when it does not fit a datagram), so this only adds the network latency to the staleness of the peers' caches.
+     *
+     * @param port  the UDP port to receive invalidations on
+     * @param peers the addresses of the other nodes
+     * @return a new socket bus, which has to be closed
+     * @throws java.io.UncheckedIOException if the port can't be bound
+     */
+    static InvalidationBus socket(int port, Collection<InetSocketAddress> peers) {
+        return new SocketInvalidationBus(new InetSocketAddress(port), peers);
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+/**
+ * Receives periodic metrics snapshots, see {@link DataAPI#enableMetrics(MetricsReporter, long, java.util.concurrent.TimeUnit)}.
+ * Reporters are called from a timer thread, a slow reporter delays the next report. An exception thrown by a reporter is logged and the next report is still sent.
+ */
+@FunctionalInterface
+public interface MetricsReporter {
+
+    void report(MetricsSnapshot snapshot);
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The metrics of all measured operations of a {@link DataAPI} at one point in time, see {@link DataAPI#getMetrics()}.
+ */
+public class MetricsSnapshot {
+    private final long timestamp;
+    private final List<OperationStats> operations;
+
+    public MetricsSnapshot(long timestamp, List<OperationStats> operations) {
+        this.timestamp = timestamp;
+        this.operations = Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * @return the time this snapshot was taken at, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the stats of every collection and operation type that was used since metrics were enabled
+     */
+    public List<OperationStats> getOperations() {
+        return operations;
+    }
+
+    /**
+     * @param collection the full name of the collection (database.collection)
+     * @param type       the operation type
+     * @return the stats of the operation type on the collection, or null if it was not used since metrics were enabled
+     */
+    public OperationStats get(String collection, OperationType type) {
+        for (OperationStats stats : operations)
+            if (stats.getCollection().equals(collection) && stats.getType() == type)
+                return stats;
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("MetricsSnapshot{timestamp=").append(timestamp);
+        operations.forEach(stats -> builder.append("\n  ").append(stats));
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+/**
+ * The metrics of one operation type on one collection, all times are in nanoseconds.
+ * Counters and latencies are totals since metrics were enabled, only {@link #getOpsPerSecond()} covers the time since the previous snapshot.
+ * <p>
+ * The latency is measured from subscribing to the operation until it terminates, so it includes coalescing and bulk windows, the io queue and the driver.
+ * The io queue wait and driver time only cover the database calls: how long a call waited for a thread and how long the driver took.
+ * Bytes are estimated from the BSON that was sent (queries and updates) and received (documents).
+ */
+public class OperationStats {
+    private final String collection;
+    private final OperationType type;
+    private final long count;
+    private final long errors;
+    private final double opsPerSecond;
+    private final long meanLatency;
+    private final long p50Latency;
+    private final long p99Latency;
+    private final long p999Latency;
+    private final long maxLatency;
+    private final long meanQueueWait;
+    private final long meanDriverTime;
+    private final long bytesSent;
+    private final long bytesReceived;
+
+    public OperationStats(String collection, OperationType type, long count, long errors, double opsPerSecond, long meanLatency, long p50Latency, long p99Latency, long p999Latency, long maxLatency,
+                          long meanQueueWait, long meanDriverTime, long bytesSent, long bytesReceived) {
+        this.collection = collection;
+        this.type = type;
+        this.count = count;
+        this.errors = errors;
+        this.opsPerSecond = opsPerSecond;
+        this.meanLatency = meanLatency;
+        this.p50Latency = p50Latency;
+        this.p99Latency = p99Latency;
+        this.p999Latency = p999Latency;
+        this.maxLatency = maxLatency;
+        this.meanQueueWait = meanQueueWait;
+        this.meanDriverTime = meanDriverTime;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+    }
+
+    /**
+     * @return the full name of the collection (database.collection)
+     */
+    public String getCollection() {
+        return collection;
+    }
+
+    public OperationType getType() {
+        return type;
+    }
+
+    /**
+     * @return the amount of operations that terminated (including errors)
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the amount of operations per second since the previous snapshot (or since metrics were enabled)
+     */
+    public double getOpsPerSecond() {
+        return opsPerSecond;
+    }
+
+    public long getMeanLatency() {
+        return meanLatency;
+    }
+
+    public long getP50Latency() {
+        return p50Latency;
+    }
+
+    public long getP99Latency() {
+        return p99Latency;
+    }
+
+    public long getP999Latency() {
+        return p999Latency;
+    }
+
+    public long getMaxLatency() {
+        return maxLatency;
+    }
+
+    /**
+     * @return the mean time database calls waited for an io thread (always 0 on the async driver)
+     */
+    public long getMeanQueueWait() {
+        return meanQueueWait;
+    }
+
+    /**
+     * @return the mean time the driver took for the database calls
+     */
+    public long getMeanDriverTime() {
+        return meanDriverTime;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public String toString() {
+        return collection + ' ' + type + "{count=" + count + ", errors=" + errors + ", ops/s=" + String.format("%.1f", opsPerSecond) + ", mean=" + meanLatency + "ns, p50=" + p50Latency + "ns, p99=" + p99Latency
+                + "ns, p999=" + p999Latency + "ns, max=" + maxLatency + "ns, queueWait=" + meanQueueWait + "ns, driver=" + meanDriverTime + "ns, sent=" + bytesSent + "B, received=" + bytesReceived + "B}";
+    }
+}
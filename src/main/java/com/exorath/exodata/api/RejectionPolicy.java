@@ -0,0 +1,34 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+/**
+ * Decides what happens to an IO operation when the IO queue of a {@link DataAPI} is full (see {@link IOLimits}).
+ */
+public enum RejectionPolicy {
+    /**
+     * The new operation fails immediately with a {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    FAIL_FAST,
+    /**
+     * The new operation runs on the thread that subscribed to it. This slows down the caller, which naturally throttles new operations.
+     */
+    CALLER_RUNS,
+    /**
+     * The oldest queued operation fails with a {@link java.util.concurrent.RejectedExecutionException} and the new operation is queued instead.
+     */
+    DROP_OLDEST
+}
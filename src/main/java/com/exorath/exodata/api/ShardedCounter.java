@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.api;
+
+import com.mongodb.client.result.UpdateResult;
+import rx.Observable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A counter that is spread over multiple documents (shards), see {@link ExoCollection#getShardedCounter(Object, int)}.
+ * A counter every node increments (fe. the total amount of coins spent) is a single hot document when stored in one document, all writes to it queue up on the same document lock.
+ * Spreading the increments over N shards allows N increments to be applied at once, reading the total sums the shards with a single query.
+ * <p>
+ * Shard i is stored as the document with _id "&lt;id&gt;#&lt;i&gt;", its amount is stored in the "count" field. Shards that were never incremented don't exist.
+ * Increments go through {@link ExoDocument#inc(String, Number)} of the shard document, so coalescing and bulk writes of the collection apply to them as well.
+ * Like {@link ExoDocument}, all Observable methods are cold observables.
+ */
+public interface ShardedCounter {
+
+    /**
+     * @return the unique id of this counter
+     */
+    Object getId();
+
+    /**
+     * @return the amount of shards this counter is spread over
+     */
+    int getShards();
+
+    /**
+     * Increments the counter by the amount (which may be negative). The amount is added to a random shard, or the shard of this node (see {@link #pinShard(Object)}).
+     *
+     * @param amount the amount to add to the counter
+     * @return an observable that will emit the UpdateResult of the shard and complete, or throw an error
+     */
+    Observable<UpdateResult> inc(long amount);
+
+    /**
+     * Makes all increments through this instance go to the same shard, chosen by the hash of the node. Fe. pass the name of the server, so every server writes its own shard and no two servers contend on a shard (as long as there are enough shards).
+     *
+     * @param node the node that increments this counter, or null to choose a random shard for every increment (the default)
+     * @return this counter
+     */
+    ShardedCounter pinShard(Object node);
+
+    /**
+     * Fetches the sum of all shards with a single find({_id: {$in: shards}}) query. The fetched total is cached for {@link #getCachedTotalOrFetch()}.
+     *
+     * @return an observable that will emit the total and complete, or throw an error
+     */
+    Observable<Long> fetchTotal();
+
+    /**
+     * Emits the last fetched total if there is one, otherwise the total is fetched. Increments are not added to the cached total, enable periodic refreshes to keep it close to the actual total (see {@link #enableTotalRefresh(long, TimeUnit)}).
+     *
+     * @return an observable that will emit the total and complete, or throw an error
+     */
+    Observable<Long> getCachedTotalOrFetch();
+
+    /**
+     * Fetches the total every interval, so {@link #getCachedTotalOrFetch()} never waits for the database and is at most one interval (plus the fetch time) behind.
+     * A failed refresh is logged and marks the cached total as stale: until a fetch succeeds again, {@link #getCachedTotalOrFetch()} fetches the total (and emits the error if that fails too)
+     * instead of emitting a total that's no longer refreshed. Enabling it again replaces the current refresh interval.
+     *
+     * @param interval the time between two refreshes
+     * @param unit     the unit of the interval
+     * @return this counter
+     */
+    ShardedCounter enableTotalRefresh(long interval, TimeUnit unit);
+
+    /**
+     * Stops refreshing the total, the last fetched total stays cached.
+     *
+     * @return this counter
+     */
+    ShardedCounter disableTotalRefresh();
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import rx.Observable;
+import rx.functions.Action1;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs on the async MongoDB driver. The driver's callbacks are turned into observables directly, so no thread is parked while waiting for the database.
+ * Note that observers are notified on the driver's threads, don't block in them (use {@link Observable#observeOn(rx.Scheduler)} if you have to).
+ */
+public class AsyncCollectionIO implements CollectionIO {
+    private final com.mongodb.async.client.MongoCollection<Document> collection;
+
+    public AsyncCollectionIO(com.mongodb.async.client.MongoCollection<Document> collection) {
+        this.collection = collection;
+    }
+
+    @Override
+    public <T> Observable<T> findOneAndUpdate(Bson query, Bson update, FindOneAndUpdateOptions options, Class<T> resultClass) {
+        return fromCallback(callback -> collection.withDocumentClass(resultClass).findOneAndUpdate(query, update, options, callback));
+    }
+
+    @Override
+    public <T> Observable<T> findFirst(Bson query, Bson projection, ReadPreference readPreference, Class<T> resultClass) {
+        return fromCallback(callback -> reader(readPreference).find(query, resultClass).projection(projection).first(callback));
+    }
+
+    @Override
+    public Observable<Document> find(Bson query, Bson projection, ReadPreference readPreference) {
+        return AsyncCollectionIO.<List<Document>>fromCallback(callback -> reader(readPreference).find(query).projection(projection).into(new ArrayList<>(), callback))
+                .concatMap(Observable::from);
+    }
+
+    @Override
+    public Observable<UpdateResult> updateOne(Bson query, Bson update, UpdateOptions options) {
+        return fromCallback(callback -> collection.updateOne(query, update, options, callback));
+    }
+
+    @Override
+    public Observable<BulkWriteResult> bulkWrite(List<? extends WriteModel<Document>> models, BulkWriteOptions options) {
+        return fromCallback(callback -> collection.bulkWrite(models, options, callback));
+    }
+
+    @Override
+    public Observable<String> createIndex(Bson keys) {
+        return fromCallback(callback -> collection.createIndex(keys, callback));
+    }
+
+    @Override
+    public CodecRegistry getCodecRegistry() {
+        return collection.getCodecRegistry();
+    }
+
+    @Override
+    public CollectionIO withCodecRegistry(CodecRegistry registry) {
+        return new AsyncCollectionIO(collection.withCodecRegistry(registry));
+    }
+
+    @Override
+    public String getNamespace() {
+        return collection.getNamespace().getFullName();
+    }
+
+    @Override
+    public MongoCollection<Document> getMongoCollection() {
+        return null;
+    }
+
+    public com.mongodb.async.client.MongoCollection<Document> getAsyncMongoCollection() {
+        return collection;
+    }
+
+    private com.mongodb.async.client.MongoCollection<Document> reader(ReadPreference readPreference) {
+        return readPreference == null ? collection : collection.withReadPreference(readPreference);
+    }
+
+    /**
+     * Creates a cold observable that starts the operation once subscribed to, a null result completes the observable without emitting.
+     */
+    static <T> Observable<T> fromCallback(Action1<SingleResultCallback<T>> operation) {
+        return Observable.create(subscriber -> {
+            long started = IOTiming.isTracking() ? System.nanoTime() : -1;
+            try {
+                operation.call((result, error) -> {
+                    if (error != null) {
+                        subscriber.onError(error);
+                        return;
+                    }
+                    Runnable emission = () -> {
+                        if (result != null)
+                            subscriber.onNext(result);
+                        subscriber.onCompleted();
+                    };
+                    //Nothing waits for a thread on the async driver, so the queue wait is always 0
+                    if (started < 0)
+                        emission.run();
+                    else
+                        IOTiming.emit(0, System.nanoTime() - started, emission);
+                });
+            } catch (Throwable error) {
+                subscriber.onError(error);
+            }
+        });
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.IOLimits;
+import com.exorath.exodata.api.IOStats;
+import com.exorath.exodata.api.RejectionPolicy;
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Func0;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool for the blocking calls of a DataAPI, see {@link IOLimits}.
+ * At most maxConcurrency calls run at once, at most maxQueued calls wait for a thread and the {@link RejectionPolicy} handles the overflow.
+ * Each collection gets its own {@link IOExecutor} from {@link #forCollection(String, int)}, calls over the collection's concurrency wait in a queue of that collection (bounded by maxQueued as well) without taking a place in the pool.
+ * <p>
+ * Rejected calls are never lost silently: their observable fails with a {@link RejectedExecutionException}.
+ * Calls whose subscriber unsubscribed before they got a thread are skipped.
+ * <p>
+ * A call that has to run on the caller's thread ({@link RejectionPolicy#CALLER_RUNS}) while that thread is already running a call (fe. a pool thread handing its place to the next call of its collection)
+ * runs after that call instead of nested in it, so a long queue can't grow the stack.
+ */
+public class BoundedIOPool {
+    private final ThreadPoolExecutor executor;
+    private final int maxQueued;
+    private final RejectionPolicy policy;
+    private final ConcurrentMap<String, CollectionExecutor> collections = new ConcurrentHashMap<>();
+    private final CollectionExecutor shared = new CollectionExecutor(Integer.MAX_VALUE);
+    private static final ThreadLocal<Deque<Call<?>>> RUNNING = new ThreadLocal<>();
+
+    private final AtomicInteger collectionQueued = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+
+    public BoundedIOPool(IOLimits limits) {
+        this.maxQueued = limits.getMaxQueued();
+        this.policy = limits.getRejectionPolicy();
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(limits.getMaxConcurrency(), limits.getMaxConcurrency(), 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(maxQueued), runnable -> {
+            Thread thread = new Thread(runnable, "exodata-io-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, this::overflow);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param namespace      the full name of the collection (database.collection), every call with the same namespace returns the same executor
+     * @param maxConcurrency the maximum amount of calls of the collection that run at once
+     * @return an executor for a single collection that runs its calls on this pool
+     */
+    public IOExecutor forCollection(String namespace, int maxConcurrency) {
+        return collections.computeIfAbsent(namespace, n -> new CollectionExecutor(maxConcurrency));
+    }
+
+    /**
+     * @return an executor for calls that don't belong to a collection, they're only limited by the pool
+     */
+    public IOExecutor getExecutor() {
+        return shared;
+    }
+
+    public IOStats getStats() {
+        return new IOStats(executor.getActiveCount(), executor.getQueue().size() + collectionQueued.get(), rejected.get(), dropped.get(), callerRuns.get());
+    }
+
+    /**
+     * Stops accepting calls, calls that were already accepted still run.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private void overflow(Runnable runnable, ThreadPoolExecutor executor) {
+        Call<?> call = (Call<?>) runnable;
+        if (executor.isShutdown()) {
+            call.reject(new RejectedExecutionException("ExoData IO pool is shut down"));
+            return;
+        }
+        switch (policy) {
+            case CALLER_RUNS:
+                callerRuns.incrementAndGet();
+                call.run();
+                break;
+            case DROP_OLDEST:
+                Runnable oldest = executor.getQueue().poll();
+                if (oldest != null) {
+                    dropped.incrementAndGet();
+                    ((Call<?>) oldest).reject(new RejectedExecutionException("Dropped from the full ExoData IO queue"));
+                }
+                executor.execute(call);
+                break;
+            default:
+                rejected.incrementAndGet();
+                call.reject(new RejectedExecutionException("ExoData IO queue is full"));
+        }
+    }
+
+    private class CollectionExecutor implements IOExecutor {
+        private final int maxConcurrency;
+        private final Deque<Call<?>> waiting = new ArrayDeque<>();
+        private int running;
+
+        private CollectionExecutor(int maxConcurrency) {
+            this.maxConcurrency = maxConcurrency;
+        }
+
+        @Override
+        public <T> Observable<T> execute(Func0<T> call) {
+            return Observable.create(subscriber -> admit(new Call<>(call, subscriber, this)));
+        }
+
+        private void admit(Call<?> call) {
+            Call<?> dropped = null;
+            synchronized (this) {
+                if (running < maxConcurrency) {
+                    running++;
+                } else if (waiting.size() < maxQueued) {
+                    waiting.add(call);
+                    collectionQueued.incrementAndGet();
+                    return;
+                } else if (policy == RejectionPolicy.DROP_OLDEST) {
+                    dropped = waiting.poll();
+                    waiting.add(call);
+                    call = null;
+                } else {
+                    call.permit = false;
+                }
+            }
+            if (dropped != null) {
+                BoundedIOPool.this.dropped.incrementAndGet();
+                dropped.permit = false;
+                dropped.reject(new RejectedExecutionException("Dropped from the full ExoData IO queue"));
+            } else if (call != null && !call.permit) {
+                //The collection is at its limit, the pool is not involved so it only gets its policy
+                if (policy == RejectionPolicy.CALLER_RUNS) {
+                    callerRuns.incrementAndGet();
+                    call.run();
+                } else {
+                    rejected.incrementAndGet();
+                    call.reject(new RejectedExecutionException("ExoData IO queue of the collection is full"));
+                }
+            } else if (call != null)
+                executor.execute(call);
+        }
+
+        private void release() {
+            Call<?> next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null)
+                    running--;
+            }
+            if (next != null) {
+                collectionQueued.decrementAndGet();
+                executor.execute(next);
+            }
+        }
+    }
+
+    /**
+     * A blocking call with its subscriber. While permit is true the call holds a place in the concurrency of its collection, which is released once it ran or got rejected.
+     */
+    private static class Call<T> implements Runnable {
+        private final Func0<T> call;
+        private final Subscriber<? super T> subscriber;
+        private final CollectionExecutor collection;
+        private final long submitted;
+        private boolean permit = true;
+
+        private Call(Func0<T> call, Subscriber<? super T> subscriber, CollectionExecutor collection) {
+            this.call = call;
+            this.subscriber = subscriber;
+            this.collection = collection;
+            this.submitted = IOTiming.isTracking() ? System.nanoTime() : -1;
+        }
+
+        /**
+         * Runs the call, or queues it behind the call that is running on this thread (which then runs it once it's done).
+         */
+        @Override
+        public void run() {
+            Deque<Call<?>> next = RUNNING.get();
+            if (next != null) {
+                next.add(this);
+                return;
+            }
+            next = new ArrayDeque<>();
+            RUNNING.set(next);
+            try {
+                for (Call<?> call = this; call != null; call = next.poll())
+                    call.runNow();
+            } finally {
+                RUNNING.remove();
+                //Only left behind if a call threw, they still run
+                for (Call<?> call = next.poll(); call != null; call = next.poll())
+                    call.run();
+            }
+        }
+
+        private void runNow() {
+            try {
+                if (subscriber.isUnsubscribed())
+                    return;
+                long started = submitted < 0 ? 0 : System.nanoTime();
+                T result;
+                try {
+                    result = call.call();
+                } catch (Throwable throwable) {
+                    subscriber.onError(throwable);
+                    return;
+                }
+                if (submitted < 0) {
+                    emit(result);
+                    return;
+                }
+                IOTiming.emit(started - submitted, System.nanoTime() - started, () -> emit(result));
+            } finally {
+                if (permit)
+                    collection.release();
+            }
+        }
+
+        private void emit(T result) {
+            if (result != null)
+                subscriber.onNext(result);
+            subscriber.onCompleted();
+        }
+
+        private void reject(Throwable error) {
+            try {
+                subscriber.onError(error);
+            } finally {
+                if (permit)
+                    collection.release();
+            }
+        }
+    }
+}
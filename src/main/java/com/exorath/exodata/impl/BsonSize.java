@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.exorath.exodata.impl;
+
+import org.bson.BsonBinary;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Estimates the encoded BSON size of a document without encoding it.
+ * Strings are counted as if they only contain single byte characters, which is good enough to weigh cached documents.
+ */
+public class BsonSize {
+
+    /**
+     * Estimates the size of a query, update or projection (fe. one created with {@link com.mongodb.client.model.Updates}).
+     */
+    public static int estimate(Bson bson, CodecRegistry registry) {
+        if (bson == null)
+            return 0;
+        if (bson instanceof Document)
+            return estimate((Object) bson);
+        return estimate(bson.toBsonDocument(BsonDocument.class, registry));
+    }
+
+    public static int estimate(Object value) {
+        if (value instanceof BsonValue && !(value instanceof BsonDocument) && !((BsonValue) value).isArray())
+            return estimate((BsonValue) value);
+        if (value == null || value instanceof Boolean)
+            return 1;
+        if (value instanceof Integer)
+            return 4;
+        if (value instanceof Long || value instanceof Double || value instanceof Date)
+            return 8;
+        if (value instanceof ObjectId)
+            return 12;
+        if (value instanceof String)
+            return 5 + ((String) value).length();
+        if (value instanceof Binary)
+            return 5 + ((Binary) value).length();
+        if (value instanceof byte[])
+            return 5 + ((byte[]) value).length;
+        if (value instanceof Map) {
+            int size = 5;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+                size += 2 + entry.getKey().toString().length() + estimate(entry.getValue());
+            return size;
+        }
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            int size = 5;
+            for (int i = 0; i < list.size(); i++)
+                size += 2 + Integer.toString(i).length() + estimate(list.get(i));
+            return size;
+        }
+        return 16;
+    }
+
+    private static int estimate(BsonValue value) {
+        if (value instanceof BsonNull || value instanceof BsonBoolean)
+            return 1;
+        if (value instanceof BsonInt32)
+            return 4;
+        if (value instanceof BsonString)
+            return 5 + ((BsonString) value).getValue().length();
+        if (value instanceof BsonBinary)
+            return 5 + ((BsonBinary) value).getData().length;
+        if (value.isObjectId())
+            return 12;
+        return 8;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.exorath.exodata.impl;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import rx.Observable;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.subjects.AsyncSubject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gathers upserting updateOne operations on the ids of documents in a collection and sends them as unordered bulkWrites.
+ * A batch is sent when flushSize updates are pending or when the flush interval elapsed, with at most maxInFlight batches being written at once.
+ * <p>
+ * MongoDB may apply the updates of an unordered bulkWrite in any order, so a batch holds at most one update per document and a document is only part of one batch in flight.
+ * Later updates of a document wait for the batch with its previous update, the updates of a document are applied in the order they were added.
+ * <p>
+ * The {@link BulkWriteResult} is split back into an {@link UpdateResult} per update. Upserts are attributed exactly and every other update matched its document.
+ * The modified count is only reported per batch by MongoDB, it's only attributed when all (or none) of the updates that matched modified their document.
+ * Otherwise the modified count of those updates is not available (see {@link UpdateResult#isModifiedCountAvailable()}).
+ */
+public class BulkWriter {
+    private final CollectionIO io;
+    private final int flushSize;
+    private final long flushInterval;
+    private final TimeUnit unit;
+    private final int maxInFlight;
+
+    private final List<PendingUpdate> pending = new ArrayList<>();
+    private final Set<Object> writing = new HashSet<>();
+    private final List<AsyncSubject<Void>> idle = new ArrayList<>();
+    private Subscription timer;
+    private boolean due;
+    private boolean draining;
+    private int inFlight;
+
+    public BulkWriter(CollectionIO io, int flushSize, long flushInterval, TimeUnit unit, int maxInFlight) {
+        if (flushSize < 1)
+            throw new IllegalArgumentException("flushSize must be at least 1");
+        if (maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        this.io = io;
+        this.flushSize = flushSize;
+        this.flushInterval = flushInterval;
+        this.unit = unit;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Adds an upserting update of the document with the given id to the next batch.
+     */
+    public Observable<UpdateResult> update(Object id, Bson update) {
+        return Observable.create(subscriber -> {
+            synchronized (this) {
+                pending.add(new PendingUpdate(id, new UpdateOneModel<>(new Document("_id", id), update, new UpdateOptions().upsert(true)), subscriber));
+                if (timer == null)
+                    timer = Observable.timer(flushInterval, unit).subscribe(t -> {
+                        synchronized (this) {
+                            timer = null;
+                            due = true;
+                        }
+                        drain();
+                    });
+            }
+            drain();
+        });
+    }
+
+    /**
+     * Sends all pending updates, regardless of the flush size and interval (the maximum amount of in flight batches is still respected).
+     */
+    public void flush() {
+        synchronized (this) {
+            due = true;
+        }
+        drain();
+    }
+
+    /**
+     * Sends all pending updates like {@link #flush()}.
+     *
+     * @return an observable that completes once no update is pending or in flight anymore (they were written or failed)
+     */
+    public Observable<Void> flushed() {
+        AsyncSubject<Void> flushed = AsyncSubject.create();
+        synchronized (this) {
+            idle.add(flushed);
+            due = true;
+        }
+        drain();
+        return flushed.asObservable();
+    }
+
+    /**
+     * Sends the batches that are ready. A call while a thread is already draining (fe. because a batch completed synchronously) leaves the batches to that thread,
+     * which looks for batches again after every write, so a long queue of synchronous writes doesn't grow the stack.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (draining)
+                return;
+            draining = true;
+        }
+        List<AsyncSubject<Void>> flushed;
+        while (true) {
+            List<PendingUpdate> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    due = false;
+                    if (timer != null) {
+                        timer.unsubscribe();
+                        timer = null;
+                    }
+                    draining = false;
+                    if (inFlight > 0 || idle.isEmpty())
+                        return;
+                    flushed = new ArrayList<>(idle);
+                    idle.clear();
+                    break;
+                }
+                if ((!due && pending.size() < flushSize) || inFlight >= maxInFlight) {
+                    draining = false;
+                    return;
+                }
+                batch = new ArrayList<>();
+                Set<Object> ids = new HashSet<>();
+                boolean held = false;
+                for (Iterator<PendingUpdate> iterator = pending.iterator(); iterator.hasNext() && batch.size() < flushSize; ) {
+                    PendingUpdate update = iterator.next();
+                    if (writing.contains(update.id) || !ids.add(update.id)) {
+                        held = true;
+                        continue;
+                    }
+                    batch.add(update);
+                    iterator.remove();
+                }
+                //Updates held back for their document are sent as soon as the document's batch is written
+                if (held)
+                    due = true;
+                if (batch.isEmpty()) {
+                    draining = false;
+                    return;
+                }
+                writing.addAll(ids);
+                inFlight++;
+            }
+            write(batch);
+        }
+        flushed.forEach(AsyncSubject::onCompleted);
+    }
+
+    private void write(List<PendingUpdate> batch) {
+        List<WriteModel<Document>> models = new ArrayList<>(batch.size());
+        batch.forEach(update -> models.add(update.model));
+        io.bulkWrite(models, new BulkWriteOptions().ordered(false)).subscribe(result -> complete(batch, result, new HashMap<>()), error -> {
+            if (error instanceof MongoBulkWriteException) {
+                MongoBulkWriteException bulkError = (MongoBulkWriteException) error;
+                Map<Integer, Throwable> errors = new HashMap<>();
+                for (BulkWriteError writeError : bulkError.getWriteErrors())
+                    errors.put(writeError.getIndex(), new MongoWriteException(writeError, bulkError.getServerAddress()));
+                complete(batch, bulkError.getWriteResult(), errors);
+            } else {
+                batch.forEach(update -> update.subscriber.onError(error));
+                completed(batch);
+            }
+        });
+    }
+
+    private void complete(List<PendingUpdate> batch, BulkWriteResult result, Map<Integer, Throwable> errors) {
+        UpdateResult[] results = split(result, batch.size(), errors);
+        for (int i = 0; i < batch.size(); i++) {
+            Subscriber<? super UpdateResult> subscriber = batch.get(i).subscriber;
+            if (errors.containsKey(i)) {
+                subscriber.onError(errors.get(i));
+            } else {
+                subscriber.onNext(results[i]);
+                subscriber.onCompleted();
+            }
+        }
+        completed(batch);
+    }
+
+    private void completed(List<PendingUpdate> batch) {
+        synchronized (this) {
+            batch.forEach(update -> writing.remove(update.id));
+            inFlight--;
+        }
+        drain();
+    }
+
+    static UpdateResult[] split(BulkWriteResult result, int size, Map<Integer, ?> failed) {
+        UpdateResult[] results = new UpdateResult[size];
+        if (!result.wasAcknowledged()) {
+            for (int i = 0; i < size; i++)
+                results[i] = UpdateResult.unacknowledged();
+            return results;
+        }
+        Map<Integer, BsonValue> upserts = new HashMap<>();
+        for (BulkWriteUpsert upsert : result.getUpserts())
+            upserts.put(upsert.getIndex(), upsert.getId());
+        int matched = 0;
+        for (int i = 0; i < size; i++)
+            if (!failed.containsKey(i) && !upserts.containsKey(i))
+                matched++;
+        //All updates upsert, so every update that did not upsert (or fail) matched its document
+        Long modified = null;
+        if (result.isModifiedCountAvailable() && result.getModifiedCount() == matched)
+            modified = 1L;
+        else if (result.isModifiedCountAvailable() && result.getModifiedCount() == 0)
+            modified = 0L;
+        for (int i = 0; i < size; i++) {
+            if (failed.containsKey(i))
+                continue;
+            results[i] = upserts.containsKey(i) ? UpdateResult.acknowledged(0, 0L, upserts.get(i)) : UpdateResult.acknowledged(1, modified, null);
+        }
+        return results;
+    }
+
+    private static class PendingUpdate {
+        private final Object id;
+        private final UpdateOneModel<Document> model;
+        private final Subscriber<? super UpdateResult> subscriber;
+
+        private PendingUpdate(Object id, UpdateOneModel<Document> model, Subscriber<? super UpdateResult> subscriber) {
+            this.id = id;
+            this.model = model;
+            this.subscriber = subscriber;
+        }
+    }
+}
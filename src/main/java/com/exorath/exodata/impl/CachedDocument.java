@@ -0,0 +1,332 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+import org.bson.BsonNumber;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The cached view of a document: either the full document or only the fields that were fetched with (inclusion) projections.
+ * A path is covered when it or one of its parents was fetched, a covered path that's not in the document does not exist in the database (as far as the cache knows).
+ * Instances are immutable, merging a fetch creates a new instance (the documents are copied on write).
+ * A full document that was read from the off-heap cache stays encoded until it's first read.
+ */
+public class CachedDocument {
+    private volatile Document document;
+    private final Set<String> fields;
+    private final RawBsonDocument raw;
+    private final Codec<Document> codec;
+
+    /**
+     * @param fields the fetched paths, or null if this is the full document
+     */
+    CachedDocument(Document document, Set<String> fields) {
+        this.document = document;
+        this.fields = fields == null ? null : Collections.unmodifiableSet(fields);
+        this.raw = null;
+        this.codec = null;
+    }
+
+    /**
+     * Creates the view of a full document that is decoded with the codec when it's first read.
+     */
+    CachedDocument(RawBsonDocument raw, Codec<Document> codec) {
+        this.fields = null;
+        this.raw = raw;
+        this.codec = codec;
+    }
+
+    Document getDocument() {
+        Document document = this.document;
+        if (document == null)
+            this.document = document = raw.decode(codec);
+        return document;
+    }
+
+    /**
+     * @return the encoded document if it was not decoded yet, or null
+     */
+    RawBsonDocument getRaw() {
+        return document == null ? raw : null;
+    }
+
+    /**
+     * Reads a number of a covered path, an encoded document is not decoded for it.
+     *
+     * @return the number, or null if the path does not exist
+     * @throws IllegalStateException if the value is not a number
+     */
+    Number getNumber(String path) {
+        RawBsonDocument raw = getRaw();
+        Object value = raw == null ? getValue(getDocument(), path) : get(raw, path);
+        if (value == MISSING)
+            return null;
+        if (value instanceof BsonNumber) {
+            BsonNumber number = (BsonNumber) value;
+            return number.isInt32() ? number.intValue() : number.isInt64() ? (Number) number.longValue() : number.doubleValue();
+        }
+        if (!(value instanceof Number))
+            throw new IllegalStateException(path + " is not a number");
+        return (Number) value;
+    }
+
+    /**
+     * Follows the path through embedded documents and arrays (a numeric key is an index in an array).
+     */
+    private static Object get(BsonDocument document, String path) {
+        BsonValue current = document;
+        for (String key : path.split("\\.")) {
+            if (current.isDocument() && current.asDocument().containsKey(key))
+                current = current.asDocument().get(key);
+            else if (current.isArray()) {
+                int index = index(key);
+                if (index < 0 || index >= current.asArray().size())
+                    return MISSING;
+                current = current.asArray().get(index);
+            } else
+                return MISSING;
+        }
+        return current;
+    }
+
+    /**
+     * Follows the path like {@link #get(BsonDocument, String)}, through a decoded document.
+     */
+    private static Object getValue(Document document, String path) {
+        Object current = document;
+        for (String key : path.split("\\.")) {
+            if (current instanceof Document && ((Document) current).containsKey(key))
+                current = ((Document) current).get(key);
+            else if (current instanceof List) {
+                int index = index(key);
+                if (index < 0 || index >= ((List<?>) current).size())
+                    return MISSING;
+                current = ((List<?>) current).get(index);
+            } else
+                return MISSING;
+        }
+        return current;
+    }
+
+    /**
+     * @return the array index of the key, or -1 if it's not one
+     */
+    private static int index(String key) {
+        try {
+            return Integer.parseInt(key);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the estimated amount of bytes the view keeps in memory
+     */
+    int getSize() {
+        RawBsonDocument raw = getRaw();
+        return raw != null ? raw.getByteBuffer().remaining() : BsonSize.estimate(getDocument());
+    }
+
+    boolean isPartial() {
+        return fields != null;
+    }
+
+    /**
+     * @return the fetched paths, or null if this is the full document
+     */
+    Set<String> getFields() {
+        return fields;
+    }
+
+    boolean covers(String path) {
+        if (fields == null || fields.contains(path))
+            return true;
+        for (int dot = path.indexOf('.'); dot >= 0; dot = path.indexOf('.', dot + 1))
+            if (fields.contains(path.substring(0, dot)))
+                return true;
+        return false;
+    }
+
+    /**
+     * @return the paths that are not covered by this view
+     */
+    List<String> missing(Collection<String> paths) {
+        List<String> missing = new ArrayList<>();
+        for (String path : paths)
+            if (!covers(path))
+                missing.add(path);
+        return missing;
+    }
+
+    /**
+     * Merges the result of a projected fetch into this view. The fetched values replace the cached ones, fetched paths that are absent are removed.
+     * Paths that go through an array can't be merged, they're left out (and stay uncovered).
+     *
+     * @param cached  the current view, or null if nothing is cached
+     * @param fetched the fetched document
+     * @param paths   the paths the fetched document was projected on
+     * @return the merged view
+     */
+    static CachedDocument merge(CachedDocument cached, Document fetched, Collection<String> paths) {
+        Document set = new Document();
+        Document unset = new Document();
+        Set<String> merged = new HashSet<>();
+        for (String path : paths) {
+            Object value = get(fetched, path);
+            if (value == UNMERGEABLE)
+                continue;
+            if (value == MISSING)
+                unset.put(path, "");
+            else
+                set.put(path, value);
+            merged.add(path);
+        }
+        Document base = cached == null ? new Document("_id", fetched.get("_id")) : cached.getDocument();
+        Document update = new Document();
+        if (!set.isEmpty())
+            update.put("$set", set);
+        if (!unset.isEmpty())
+            update.put("$unset", unset);
+        Document document = update.isEmpty() ? base : LocalUpdate.apply(base, update, false);
+        if (document == null)
+            return cached;
+        if (cached != null && cached.fields == null)
+            return new CachedDocument(document, null);
+        Set<String> fields = new HashSet<>(merged);
+        CachedDocument fetchedView = new CachedDocument(null, merged);
+        if (cached != null)
+            for (String field : cached.fields)
+                if (!fetchedView.covers(field))
+                    fields.add(field);
+        return new CachedDocument(document, fields);
+    }
+
+    /**
+     * @return a document with only the _id and the given (covered) paths, like the database would return for an inclusion projection.
+     * A path through an array is projected on every element of the array, elements that aren't documents are left out.
+     */
+    Document project(Collection<String> paths) {
+        Map<String, Object> tree = new HashMap<>();
+        for (String path : paths)
+            add(tree, path.split("\\."), 0);
+        Document document = getDocument();
+        Document projected = new Document("_id", document.get("_id"));
+        project(document, tree, projected);
+        return projected;
+    }
+
+    /**
+     * Adds the keys of a path to the tree of projected paths, a key maps to the tree of its sub paths or to null if it's included as a whole.
+     */
+    @SuppressWarnings("unchecked")
+    private static void add(Map<String, Object> tree, String[] keys, int index) {
+        String key = keys[index];
+        if (index == keys.length - 1) {
+            tree.put(key, null);
+            return;
+        }
+        if (tree.containsKey(key) && tree.get(key) == null)
+            return;
+        Map<String, Object> subTree = (Map<String, Object>) tree.computeIfAbsent(key, k -> new HashMap<String, Object>());
+        add(subTree, keys, index + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void project(Document source, Map<String, Object> tree, Document projected) {
+        for (Map.Entry<String, Object> entry : source.entrySet()) {
+            if (!tree.containsKey(entry.getKey()))
+                continue;
+            Map<String, Object> subTree = (Map<String, Object>) tree.get(entry.getKey());
+            Object value = subTree == null ? entry.getValue() : project(entry.getValue(), subTree);
+            if (value != MISSING)
+                projected.put(entry.getKey(), value);
+        }
+    }
+
+    /**
+     * @return the value projected on the sub paths, or MISSING if the value has no fields
+     */
+    private static Object project(Object value, Map<String, Object> tree) {
+        if (value instanceof Document) {
+            Document projected = new Document();
+            project((Document) value, tree, projected);
+            return projected;
+        }
+        if (value instanceof List) {
+            List<Object> projected = new ArrayList<>();
+            for (Object element : (List<?>) value) {
+                Object projectedElement = project(element, tree);
+                if (projectedElement != MISSING)
+                    projected.add(projectedElement);
+            }
+            return projected;
+        }
+        return MISSING;
+    }
+
+    /**
+     * Reads the paths of a projection that only includes fields (fe. one created with {@link com.mongodb.client.model.Projections#include(String...)}).
+     * The _id field is ignored, it's always part of the view.
+     *
+     * @return the included paths, or null if the projection excludes fields or uses operators ({@code $slice}, {@code $elemMatch}, ...)
+     */
+    static List<String> paths(Bson projection, CodecRegistry registry) {
+        if (projection == null)
+            return null;
+        List<String> paths = new ArrayList<>();
+        for (Map.Entry<String, BsonValue> entry : projection.toBsonDocument(BsonDocument.class, registry).entrySet()) {
+            if (entry.getKey().equals("_id"))
+                continue;
+            BsonValue value = entry.getValue();
+            boolean included = value instanceof BsonNumber ? ((BsonNumber) value).doubleValue() != 0 : value instanceof BsonBoolean && ((BsonBoolean) value).getValue();
+            if (!included)
+                return null;
+            paths.add(entry.getKey());
+        }
+        return paths.isEmpty() ? null : paths;
+    }
+
+    private static final Object MISSING = new Object();
+    private static final Object UNMERGEABLE = new Object();
+
+    private static Object get(Document document, String path) {
+        Object current = document;
+        for (String key : path.split("\\.")) {
+            if (current instanceof List)
+                return UNMERGEABLE;
+            if (!(current instanceof Document) || !((Document) current).containsKey(key))
+                return MISSING;
+            current = ((Document) current).get(key);
+        }
+        return current;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.ChangeSource;
+import com.exorath.exodata.api.DocumentChange;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.Subscription;
+import rx.subjects.PublishSubject;
+import rx.subjects.SerializedSubject;
+import rx.subjects.Subject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the changes of a {@link ChangeSource} to the cached documents of a collection and passes them on to the subscribers of {@link IExoDocument#changes()} and {@link IExoCollection#changes(Bson)}.
+ * A change reaches the cache before it's emitted, so subscribers see the changed document in {@link IExoDocument#getCachedOrFetch()}.
+ * <p>
+ * A source that terminates (it errors, or completes although it shouldn't) is subscribed to again after a backoff that doubles from {@link #MIN_BACKOFF_MILLIS} up to {@link #MAX_BACKOFF_MILLIS},
+ * and is reset by the next change. Subscribers of the feed are not terminated, they miss the changes made while the source was down. Each error of the source is logged.
+ */
+class ChangeFeed {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChangeFeed.class);
+    static final long MIN_BACKOFF_MILLIS = 100;
+    static final long MAX_BACKOFF_MILLIS = 10000;
+    private final IExoCollection owner;
+    private final ChangeSource source;
+    private final Subject<DocumentChange, DocumentChange> changes = new SerializedSubject<>(PublishSubject.create());
+    private final ConcurrentMap<String, List<IExoDocument>> listeners = new ConcurrentHashMap<>();
+    private final Subscription subscription;
+
+    ChangeFeed(IExoCollection owner, ChangeSource source) {
+        this.owner = owner;
+        this.source = source;
+        AtomicLong backoff = new AtomicLong(MIN_BACKOFF_MILLIS);
+        this.subscription = source.getChanges()
+                .doOnNext(change -> backoff.set(MIN_BACKOFF_MILLIS))
+                .repeatWhen(completions -> completions.flatMap(completed -> retry(backoff)))
+                .retryWhen(errors -> errors
+                        .doOnNext(error -> LOGGER.warn("Change source {} failed, subscribing to it again", source, error))
+                        .flatMap(error -> retry(backoff)))
+                .subscribe(this::apply);
+    }
+
+    private static Observable<Long> retry(AtomicLong backoff) {
+        long delay = backoff.getAndUpdate(current -> Math.min(current * 2, MAX_BACKOFF_MILLIS));
+        return Observable.timer(delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void apply(DocumentChange change) {
+        String id = change.getId().toString();
+        Set<IExoDocument> targets = Collections.newSetFromMap(new IdentityHashMap<>());
+        targets.addAll(listeners.getOrDefault(id, Collections.emptyList()));
+        owner.evictOffHeap(id);
+        IExoDocument cached = owner.getCachedDocument(id);
+        if (cached != null)
+            targets.add(cached);
+        for (IExoDocument target : targets)
+            target.applyChange(change);
+        changes.onNext(change);
+    }
+
+    /**
+     * @return a hot observable of the changes of the document, the document is watched while subscribed to
+     */
+    Observable<DocumentChange> changes(IExoDocument document) {
+        String id = document.getId().toString();
+        return changes.filter(change -> change.getId().toString().equals(id))
+                .doOnSubscribe(() -> {
+                    listeners.compute(id, (key, documents) -> {
+                        List<IExoDocument> added = documents == null ? new ArrayList<>() : new ArrayList<>(documents);
+                        added.add(document);
+                        return added;
+                    });
+                    source.watch(id);
+                })
+                .doOnUnsubscribe(() -> {
+                    source.unwatch(id);
+                    listeners.computeIfPresent(id, (key, documents) -> {
+                        List<IExoDocument> removed = new ArrayList<>(documents);
+                        removed.remove(document);
+                        return removed.isEmpty() ? null : removed;
+                    });
+                })
+                .share();
+    }
+
+    /**
+     * @return a hot observable of the changes of the documents that match the filter, the filter is watched while subscribed to.
+     * Whether a changed document matches is checked with a query on its id and the filter, deletes never match.
+     * If that query fails the failure is logged and the change is emitted anyway, subscribers may see a change of a document that doesn't match rather than miss one that does.
+     */
+    Observable<DocumentChange> changes(Bson filter) {
+        boolean all = filter.toBsonDocument(BsonDocument.class, owner.getIO().getCodecRegistry()).isEmpty();
+        Observable<DocumentChange> matching = all ? changes : changes
+                .filter(change -> change.getType() != DocumentChange.Type.DELETE)
+                .onBackpressureBuffer()
+                .concatMap(change -> owner.getIO().findFirst(Filters.and(filter, Filters.eq("_id", change.getId())), Projections.include("_id"), null)
+                        .map(found -> change)
+                        .onErrorResumeNext(error -> {
+                            LOGGER.warn("Failed to check whether changed document {} matches {}, emitting the change unfiltered", change.getId(), filter, error);
+                            return Observable.just(change);
+                        }));
+        return matching
+                .doOnSubscribe(() -> source.watch(filter))
+                .doOnUnsubscribe(() -> source.unwatch(filter))
+                .share();
+    }
+
+    /**
+     * Stops receiving changes from the source, the subscribers of the feed don't receive changes anymore (they are not completed).
+     */
+    void stop() {
+        subscription.unsubscribe();
+    }
+}
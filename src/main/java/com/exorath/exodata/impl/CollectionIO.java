@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import rx.Observable;
+
+import java.util.List;
+
+/**
+ * All IO ExoData does on a collection. This allows the same {@link IExoCollection} and {@link IExoDocument} to run on both the sync and the async MongoDB driver.
+ * All observables are cold, an operation only starts once subscribed to.
+ */
+public interface CollectionIO {
+
+    /**
+     * @return an observable that emits the found (or updated) document and completes, or completes without emitting if no document matched
+     */
+    default Observable<Document> findOneAndUpdate(Bson query, Bson update, FindOneAndUpdateOptions options) {
+        return findOneAndUpdate(query, update, options, Document.class);
+    }
+
+    /**
+     * @param resultClass the class to decode the document into, using the codec registry of this IO
+     * @return an observable that emits the found (or updated) document and completes, or completes without emitting if no document matched
+     */
+    <T> Observable<T> findOneAndUpdate(Bson query, Bson update, FindOneAndUpdateOptions options, Class<T> resultClass);
+
+    /**
+     * @param readPreference the read preference to use, or null to use the collection's read preference
+     * @return an observable that emits the first document that matched the query and completes, or completes without emitting if no document matched
+     */
+    default Observable<Document> findFirst(Bson query, Bson projection, ReadPreference readPreference) {
+        return findFirst(query, projection, readPreference, Document.class);
+    }
+
+    /**
+     * @param readPreference the read preference to use, or null to use the collection's read preference
+     * @param resultClass    the class to decode the document into, using the codec registry of this IO
+     * @return an observable that emits the first document that matched the query and completes, or completes without emitting if no document matched
+     */
+    <T> Observable<T> findFirst(Bson query, Bson projection, ReadPreference readPreference, Class<T> resultClass);
+
+    /**
+     * @param readPreference the read preference to use, or null to use the collection's read preference
+     * @return an observable that emits all documents that matched the query and completes
+     */
+    Observable<Document> find(Bson query, Bson projection, ReadPreference readPreference);
+
+    Observable<UpdateResult> updateOne(Bson query, Bson update, UpdateOptions options);
+
+    Observable<BulkWriteResult> bulkWrite(List<? extends WriteModel<Document>> models, BulkWriteOptions options);
+
+    Observable<String> createIndex(Bson keys);
+
+    CodecRegistry getCodecRegistry();
+
+    /**
+     * @return an IO on the same collection (and executor) that encodes and decodes with the given codec registry
+     */
+    CollectionIO withCodecRegistry(CodecRegistry registry);
+
+    /**
+     * @return the full name of the collection (database.collection)
+     */
+    String getNamespace();
+
+    /**
+     * @return the sync {@link MongoCollection}, or null if this runs on the async driver
+     */
+    MongoCollection<Document> getMongoCollection();
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.DataAPI;
+import com.exorath.exodata.api.ExoDatabase;
+import com.exorath.exodata.api.IOStats;
+import com.exorath.exodata.api.MetricsReporter;
+import com.exorath.exodata.api.MetricsSnapshot;
+import com.mongodb.MongoClient;
+import com.mongodb.async.client.MongoClients;
+import rx.Observable;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link DataAPI} on the async MongoDB driver. Driver callbacks are turned into observables directly, so no threads are parked while waiting for MongoDB.
+ */
+public class IAsyncDataAPI implements DataAPI {
+    private com.mongodb.async.client.MongoClient client;
+    private boolean ownsClient;
+    private final Metrics metrics = new Metrics();
+    private final OpenCollections collections = new OpenCollections();
+
+    public IAsyncDataAPI() {
+        this.client = MongoClients.create();
+        this.ownsClient = true;
+    }
+
+    public IAsyncDataAPI(String connectionString) {
+        this.client = MongoClients.create(connectionString);
+        this.ownsClient = true;
+    }
+
+    public IAsyncDataAPI(com.mongodb.async.client.MongoClient client) {
+        this.client = client;
+    }
+
+    @Override
+    public Observable<ExoDatabase> getDatabase(String name) {
+        return Observable.defer(() -> Observable.just(new IAsyncExoDatabase(client.getDatabase(name), metrics, collections)));
+    }
+
+    /**
+     * This DataAPI runs on the async driver, use {@link #getAsyncMongoClient()} instead.
+     *
+     * @return null
+     */
+    @Override
+    public MongoClient getMongoClient() {
+        return null;
+    }
+
+    /**
+     * The async driver does not block threads, so there is no IO pool (see the driver's connection pool settings instead).
+     *
+     * @return null
+     */
+    @Override
+    public IOStats getIOStats() {
+        return null;
+    }
+
+    @Override
+    public DataAPI enableMetrics() {
+        metrics.enable(null, 0, null);
+        return this;
+    }
+
+    @Override
+    public DataAPI enableMetrics(MetricsReporter reporter, long interval, TimeUnit unit) {
+        metrics.enable(reporter, interval, unit);
+        return this;
+    }
+
+    @Override
+    public DataAPI disableMetrics() {
+        metrics.disable();
+        return this;
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+        return metrics.snapshot();
+    }
+
+    @Override
+    public void close() {
+        collections.shutdown();
+        metrics.disable();
+        if (ownsClient)
+            client.close();
+    }
+
+    public com.mongodb.async.client.MongoClient getAsyncMongoClient() {
+        return client;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.ExoCollection;
+import com.exorath.exodata.api.ExoDatabase;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import rx.Observable;
+
+/**
+ * An {@link ExoDatabase} on the async MongoDB driver, the collections it creates never block a thread on IO.
+ */
+public class IAsyncExoDatabase implements ExoDatabase {
+    private com.mongodb.async.client.MongoDatabase database;
+    private Metrics metrics;
+    private OpenCollections collections;
+
+    public IAsyncExoDatabase(com.mongodb.async.client.MongoDatabase database) {
+        this.database = database;
+    }
+
+    public IAsyncExoDatabase(com.mongodb.async.client.MongoDatabase database, Metrics metrics) {
+        this(database, metrics, null);
+    }
+
+    /**
+     * @param collections the collections of the DataAPI, which are shut down when it's closed, or null
+     */
+    IAsyncExoDatabase(com.mongodb.async.client.MongoDatabase database, Metrics metrics, OpenCollections collections) {
+        this.database = database;
+        this.metrics = metrics;
+        this.collections = collections;
+    }
+
+    @Override
+    public Observable<ExoCollection> getCollection(String name) {
+        return Observable.defer(() -> {
+            IExoCollection collection = new IExoCollection(new AsyncCollectionIO(database.getCollection(name, Document.class)), metrics, database.getName() + '.' + name);
+            return Observable.just(collections == null ? collection : collections.add(collection));
+        });
+    }
+
+    /**
+     * This database runs on the async driver, use {@link #getAsyncMongoDatabase()} instead.
+     *
+     * @return null
+     */
+    @Override
+    public MongoDatabase getMongoDatabase() {
+        return null;
+    }
+
+    public com.mongodb.async.client.MongoDatabase getAsyncMongoDatabase() {
+        return database;
+    }
+}
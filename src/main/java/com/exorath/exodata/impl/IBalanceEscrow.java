@@ -0,0 +1,407 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.BalanceEscrow;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNumber;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.Subscription;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.and;
+
+/**
+ * The local state is guarded by this escrow: available is what may still be spent, unsynced is what was spent but not yet subtracted from the lease in the database and
+ * leased is the amount of the lease in the database once all sent updates are applied.
+ * <p>
+ * A reservation that fails may still have been applied by the database, then the lease holds more than leased. Such a lease is uncertain: it's not returned with leased,
+ * but expired in the database and reclaimed with the amount the database has. Returns of the lease are retried, if they keep failing this is logged and the lease expires and is reclaimed later.
+ * <p>
+ * Every sync sets the sequence number "seq" of the lease and only matches if the lease doesn't have that number yet. A sync that failed stays pending and is sent again before the next one,
+ * so a sync whose reply was lost is applied exactly once.
+ */
+public class IBalanceEscrow implements BalanceEscrow {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IBalanceEscrow.class);
+    static final String LEASES_FIELD = "_leases";
+    private static final int RETRIES = 5;
+    private static final long RETRY_MILLIS = 50;
+    private final IExoDocument document;
+    private final String key;
+    private final long chunk;
+    private final long leaseMillis;
+
+    private String leasePath;
+    private long available;
+    private long unsynced;
+    private long leased;
+    private long deadline;
+    private boolean syncing;
+    private boolean toppingUp;
+    private boolean released;
+    private boolean uncertain;
+    private long synced;
+    private Sync pending;
+    private Subscription renewal;
+
+    public IBalanceEscrow(IExoDocument document, String key, long chunk, long leaseMillis) {
+        if (chunk < 1)
+            throw new IllegalArgumentException("chunk must be at least 1");
+        if (leaseMillis < 10)
+            throw new IllegalArgumentException("leaseDuration must be at least 10 milliseconds");
+        this.document = document;
+        this.key = key;
+        this.chunk = chunk;
+        this.leaseMillis = leaseMillis;
+        this.leasePath = newLeasePath();
+    }
+
+    private String newLeasePath() {
+        return getLeasesPath() + '.' + UUID.randomUUID().toString();
+    }
+
+    private String getLeasesPath() {
+        return LEASES_FIELD + '.' + key;
+    }
+
+    @Override
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public synchronized long getAvailable() {
+        return isValid() ? available : 0;
+    }
+
+    private boolean isValid() {
+        return !released && System.nanoTime() - deadline < 0;
+    }
+
+    @Override
+    public Observable<Boolean> spend(long amount) {
+        if (amount < 1)
+            throw new IllegalArgumentException("amount must be positive");
+        return Observable.defer(() -> {
+            if (trySpend(amount))
+                return Observable.just(true);
+            long missing;
+            synchronized (this) {
+                if (released)
+                    return Observable.just(false);
+                missing = amount - getAvailable();
+            }
+            //Reserve a chunk, fall back to only the missing amount when the balance is smaller than a chunk
+            return reserve(Math.max(chunk, missing))
+                    .flatMap(reserved -> reserved || missing >= chunk ? Observable.just(reserved) : reserve(missing))
+                    .map(reserved -> reserved && trySpend(amount));
+        });
+    }
+
+    /**
+     * Approves the spend from the reserved amount if it's sufficient and the lease is not about to expire.
+     */
+    private boolean trySpend(long amount) {
+        boolean topUp;
+        synchronized (this) {
+            if (!isValid() || available < amount)
+                return false;
+            available -= amount;
+            unsynced += amount;
+            topUp = available < chunk / 4 && !toppingUp;
+            if (topUp)
+                toppingUp = true;
+        }
+        sync();
+        //A failed top-up leaves the lease uncertain (see tryReserve), the next spend that runs low tops up again
+        if (topUp)
+            reserve(chunk).doOnTerminate(() -> {
+                synchronized (this) {
+                    toppingUp = false;
+                }
+            }).subscribe(reserved -> {
+            }, error -> LOGGER.warn("Failed to top up the escrow of {} on {}", key, document.getId(), error));
+        return true;
+    }
+
+    /**
+     * Moves the amount from the balance to the lease if the balance is sufficient. If it's not, expired leases are reclaimed and the reservation is tried once more.
+     */
+    private Observable<Boolean> reserve(long amount) {
+        return tryReserve(amount).flatMap(reserved -> reserved ? Observable.just(true) : reclaimExpired().flatMap(reclaimed -> reclaimed > 0 ? tryReserve(amount) : Observable.just(false)));
+    }
+
+    private Observable<Boolean> tryReserve(long amount) {
+        return Observable.defer(() -> {
+            String leasePath;
+            synchronized (this) {
+                if (released)
+                    return Observable.just(false);
+                if (System.nanoTime() - deadline >= 0 && leased > 0)
+                    abandon();
+                leasePath = this.leasePath;
+            }
+            long sent = System.nanoTime();
+            Bson update = Updates.combine(Updates.inc(key, narrow(-amount)), Updates.inc(leasePath + ".amount", narrow(amount)), Updates.set(leasePath + ".expires", expires()));
+            BsonNumber has = amount >= Integer.MIN_VALUE && amount <= Integer.MAX_VALUE ? new BsonInt32((int) amount) : new BsonInt64(amount);
+            return document.updateIfHas(key, has, update).map(result -> {
+                if (result.getModifiedCount() == 0)
+                    return false;
+                synchronized (this) {
+                    if (!leasePath.equals(this.leasePath)) {
+                        //The lease was abandoned while reserving, give the amount back
+                        returnInBackground(returnLease(leasePath, amount), leasePath);
+                        return false;
+                    }
+                    leased += amount;
+                    available += amount;
+                    renewed(sent);
+                }
+                return true;
+            }).doOnError(error -> {
+                synchronized (this) {
+                    if (leasePath.equals(this.leasePath))
+                        uncertain = true;
+                }
+            });
+        });
+    }
+
+    /**
+     * Persists the unsynced spends (and renews the lease) unless that's already in progress. A pending sync (one that failed) is sent again first.
+     */
+    private void sync() {
+        Sync sync;
+        synchronized (this) {
+            if (syncing || leased == 0 && pending == null)
+                return;
+            if (pending == null) {
+                pending = new Sync(leasePath, unsynced, synced + 1, System.nanoTime());
+                leased -= unsynced;
+                unsynced = 0;
+            }
+            syncing = true;
+            sync = pending;
+        }
+        send(sync).subscribe(applied -> {
+            boolean again;
+            synchronized (this) {
+                syncing = false;
+                if (pending == sync)
+                    pending = null;
+                if (sync.leasePath.equals(this.leasePath)) {
+                    if (!applied)
+                        lost();
+                    else {
+                        synced = sync.seq;
+                        renewed(sync.sent);
+                    }
+                }
+                again = unsynced > 0 && !released;
+            }
+            if (again)
+                sync();
+        }, error -> {
+            //The sync may have been applied, it stays pending and is sent again by the next sync
+            LOGGER.warn("Failed to sync the escrow of {} on {}, sending it again with the next sync", key, document.getId(), error);
+            synchronized (this) {
+                syncing = false;
+            }
+        });
+    }
+
+    /**
+     * Sends the sync, it only matches if the lease doesn't have its sequence number yet. If it doesn't match, the lease is read to tell an earlier attempt that was applied from a lost lease.
+     *
+     * @return an observable that emits whether or not the sync is applied to the lease
+     */
+    private Observable<Boolean> send(Sync sync) {
+        String seqPath = sync.leasePath + ".seq";
+        Bson query = and(document.getIdQuery(), Filters.exists(sync.leasePath), Filters.ne(seqPath, sync.seq));
+        Bson update = Updates.combine(Updates.inc(sync.leasePath + ".amount", narrow(-sync.spent)), Updates.set(sync.leasePath + ".expires", expires()), Updates.set(seqPath, sync.seq));
+        return document.update(query, update, false).flatMap(result -> result.getMatchedCount() > 0 ? Observable.just(true)
+                : document.getIO().findFirst(and(document.getIdQuery(), Filters.eq(seqPath, sync.seq)), Projections.include(seqPath), null).map(found -> true).defaultIfEmpty(false));
+    }
+
+    private void renewed(long sent) {
+        //Stop spending well before the lease expires in the database
+        deadline = sent + TimeUnit.MILLISECONDS.toNanos(leaseMillis) * 9 / 10;
+        if (renewal == null && !released) {
+            long interval = Math.max(1, leaseMillis / 3);
+            renewal = Observable.interval(interval, interval, TimeUnit.MILLISECONDS).subscribe(tick -> sync());
+        }
+    }
+
+    /**
+     * The lease was reclaimed by another server, the spends that were not persisted are lost (they were returned to the balance).
+     */
+    private void lost() {
+        leasePath = newLeasePath();
+        available = 0;
+        unsynced = 0;
+        leased = 0;
+        uncertain = false;
+        synced = 0;
+        pending = null;
+    }
+
+    /**
+     * The lease expired locally, it's returned to the balance unless another server reclaimed it already and a new lease is started.
+     */
+    private void abandon() {
+        String leasePath = this.leasePath;
+        Observable<UpdateResult> returned = returnLease();
+        lost();
+        returnInBackground(returned, leasePath);
+    }
+
+    /**
+     * Returns the current lease: with the local amount, or if the lease is uncertain by expiring it (minus the unsynced spends) and reclaiming it.
+     * Both are idempotent, so they can be retried.
+     * The local amount already excludes a pending sync, whether or not it was applied. The amount of an uncertain lease is read from the database, so a pending sync is sent again first.
+     */
+    private Observable<UpdateResult> returnLease() {
+        if (!uncertain)
+            return returnLease(leasePath, leased - unsynced);
+        String leasePath = this.leasePath;
+        Date expired = new Date(0);
+        Bson query = and(document.getIdQuery(), Filters.exists(leasePath), Filters.ne(leasePath + ".expires", expired));
+        Bson update = Updates.combine(Updates.inc(leasePath + ".amount", narrow(-unsynced)), Updates.set(leasePath + ".expires", expired));
+        Observable<UpdateResult> expire = document.update(query, update, false).flatMap(result -> reclaimExpired().map(reclaimed -> result));
+        Sync pending = this.pending;
+        return pending == null ? expire : send(pending).concatMap(applied -> expire);
+    }
+
+    /**
+     * Moves the amount back to the balance and removes the lease, unless the lease was removed already (fe. reclaimed by another server).
+     */
+    private Observable<UpdateResult> returnLease(String leasePath, long amount) {
+        return document.update(and(document.getIdQuery(), Filters.exists(leasePath)), Updates.combine(Updates.inc(key, narrow(amount)), Updates.unset(leasePath)), false);
+    }
+
+    /**
+     * Retries a return of a lease in the background with an increasing delay. If it still fails this is logged, the lease expires in the database and is reclaimed by {@link #reclaimExpired()}.
+     */
+    private void returnInBackground(Observable<UpdateResult> returned, String leasePath) {
+        returned.retryWhen(errors -> errors.zipWith(Observable.range(0, RETRIES + 1), (error, attempt) -> attempt < RETRIES
+                ? Observable.timer(RETRY_MILLIS << attempt, TimeUnit.MILLISECONDS)
+                : Observable.<Long>error(error)).flatMap(retry -> retry))
+                .subscribe(result -> {
+                }, error -> LOGGER.error("Failed to return lease {} on {}, it's reclaimed once it expired", leasePath, document.getId(), error));
+    }
+
+    /**
+     * @return whether or not this escrow may hold a lease in the database that has to be released
+     */
+    synchronized boolean holdsLease() {
+        return !released && (leased > 0 || uncertain || pending != null);
+    }
+
+    @Override
+    public Observable<UpdateResult> release() {
+        return Observable.defer(() -> {
+            Observable<UpdateResult> returned;
+            synchronized (this) {
+                released = true;
+                if (renewal != null)
+                    renewal.unsubscribe();
+                renewal = null;
+                returned = returnLease();
+            }
+            //Spends that were not persisted are not returned, once the lease is gone updates of the lease don't match anymore
+            return returned;
+        });
+    }
+
+    @Override
+    public Observable<Long> reclaimExpired() {
+        //A plain read, reclaiming should not create the document
+        return document.getIO().findFirst(document.getIdQuery(), Projections.include(getLeasesPath()), null).flatMap(fetched -> {
+            Object leases = fetched.get(LEASES_FIELD) instanceof Document ? getPath((Document) fetched.get(LEASES_FIELD), key) : null;
+            if (!(leases instanceof Document))
+                return Observable.just(0L);
+            Date now = new Date();
+            List<Observable<Long>> reclaims = new ArrayList<>();
+            for (Map.Entry<String, Object> lease : ((Document) leases).entrySet()) {
+                if (!(lease.getValue() instanceof Document))
+                    continue;
+                Object amount = ((Document) lease.getValue()).get("amount");
+                Object expires = ((Document) lease.getValue()).get("expires");
+                if (!(amount instanceof Number) || !(expires instanceof Date) || !((Date) expires).before(now))
+                    continue;
+                //Only reclaim if nothing changed since the fetch, the owner may have renewed it in the meantime
+                String leasePath = getLeasesPath() + '.' + lease.getKey();
+                Bson query = and(document.getIdQuery(), Filters.eq(leasePath + ".amount", amount), Filters.lt(leasePath + ".expires", now));
+                Bson update = Updates.combine(Updates.inc(key, (Number) amount), Updates.unset(leasePath));
+                reclaims.add(document.update(query, update, false).map(result -> result.getModifiedCount() > 0 ? ((Number) amount).longValue() : 0L));
+            }
+            return Observable.merge(reclaims).reduce(0L, Long::sum);
+        }).defaultIfEmpty(0L);
+    }
+
+    private static Object getPath(Document document, String path) {
+        Object current = document;
+        for (String field : path.split("\\.")) {
+            if (!(current instanceof Document))
+                return null;
+            current = ((Document) current).get(field);
+        }
+        return current;
+    }
+
+    private Date expires() {
+        return new Date(System.currentTimeMillis() + leaseMillis);
+    }
+
+    /**
+     * Subtracts the spends from the lease, see {@link #send(Sync)}.
+     */
+    private static class Sync {
+        private final String leasePath;
+        private final long spent;
+        private final long seq;
+        private final long sent;
+
+        private Sync(String leasePath, long spent, long seq, long sent) {
+            this.leasePath = leasePath;
+            this.spent = spent;
+            this.seq = seq;
+            this.sent = sent;
+        }
+    }
+
+    /**
+     * Sends amounts that fit as an int, so the balance field keeps its BSON type.
+     */
+    private static Number narrow(long amount) {
+        return amount >= Integer.MIN_VALUE && amount <= Integer.MAX_VALUE ? (Number) (int) amount : (Number) amount;
+    }
+}
@@ -18,39 +18,96 @@ package com.exorath.exodata.impl;
 
 import com.exorath.exodata.api.DataAPI;
 import com.exorath.exodata.api.ExoDatabase;
+import com.exorath.exodata.api.IOLimits;
+import com.exorath.exodata.api.IOStats;
+import com.exorath.exodata.api.MetricsReporter;
+import com.exorath.exodata.api.MetricsSnapshot;
 import com.mongodb.MongoClient;
 import rx.Observable;
 import rx.schedulers.Schedulers;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by toonsev on 8/22/2016.
  */
 public class IDataAPI implements DataAPI {
     private MongoClient client;
+    private boolean ownsClient;
+    private BoundedIOPool pool;
+    private IOLimits limits;
+    private IOExecutor io = new SchedulerIOExecutor(Schedulers.io());
+    private final Metrics metrics = new Metrics();
+    private final OpenCollections collections = new OpenCollections();
 
     public IDataAPI(){
         this.client = new MongoClient();
+        this.ownsClient = true;
     }
     public IDataAPI(String host){
         this.client = new MongoClient(host);
+        this.ownsClient = true;
     }
 
     public IDataAPI(String host, int port){
         this.client = new MongoClient(host, port);
+        this.ownsClient = true;
     }
     public IDataAPI(MongoClient client){
         this.client = client;
     }
+
+    public IDataAPI(MongoClient client, IOLimits limits){
+        this.client = client;
+        this.limits = limits;
+        this.pool = new BoundedIOPool(limits);
+        this.io = pool.getExecutor();
+    }
     @Override
     public Observable<ExoDatabase> getDatabase(String name) {
-        return Observable.create(subscriber -> {
-            subscriber.onNext(ExoDatabase.create(client.getDatabase(name)));
-            subscriber.onCompleted();
-        }).subscribeOn(Schedulers.io()).cast(ExoDatabase.class);
+        return io.execute(() -> new IExoDatabase(client.getDatabase(name), pool, limits, metrics, io, collections)).cast(ExoDatabase.class);
     }
 
     @Override
     public MongoClient getMongoClient() {
         return client;
     }
+
+    @Override
+    public IOStats getIOStats() {
+        return pool == null ? null : pool.getStats();
+    }
+
+    @Override
+    public DataAPI enableMetrics() {
+        metrics.enable(null, 0, null);
+        return this;
+    }
+
+    @Override
+    public DataAPI enableMetrics(MetricsReporter reporter, long interval, TimeUnit unit) {
+        metrics.enable(reporter, interval, unit);
+        return this;
+    }
+
+    @Override
+    public DataAPI disableMetrics() {
+        metrics.disable();
+        return this;
+    }
+
+    @Override
+    public MetricsSnapshot getMetrics() {
+        return metrics.snapshot();
+    }
+
+    @Override
+    public void close() {
+        collections.shutdown();
+        metrics.disable();
+        if (pool != null)
+            pool.shutdown();
+        if (ownsClient)
+            client.close();
+    }
 }
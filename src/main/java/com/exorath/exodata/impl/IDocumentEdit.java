@@ -0,0 +1,260 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.DocumentEdit;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static com.mongodb.client.model.Filters.and;
+
+/**
+ * Keeps the committed state (with the recorded increments applied to it) next to the mutable document, the update is the difference between both.
+ */
+public class IDocumentEdit implements DocumentEdit {
+    private final IExoDocument exoDocument;
+    private final Document document;
+    private Document committed;
+    private Document incs = new Document();
+    private boolean upsert;
+
+    /**
+     * @param started the document to start from, it's copied
+     * @param upsert  whether or not the document still has to be created
+     */
+    public IDocumentEdit(IExoDocument exoDocument, Document started, boolean upsert) {
+        this.exoDocument = exoDocument;
+        this.committed = copy(started);
+        this.document = copy(started);
+        this.upsert = upsert;
+    }
+
+    @Override
+    public Document getDocument() {
+        return document;
+    }
+
+    @Override
+    public synchronized DocumentEdit inc(String path, Number amount) {
+        Document inc = new Document("$inc", new Document(path, amount));
+        Document incremented = LocalUpdate.apply(committed, inc, false);
+        if (incremented == null || !increment(document, path.split("\\."), amount))
+            throw new IllegalArgumentException(path + " is not a number");
+        committed = incremented;
+        incs.put(path, incs.containsKey(path) ? UpdateCoalescer.add((Number) incs.get(path), amount) : amount);
+        return this;
+    }
+
+    @Override
+    public synchronized Bson getUpdate() {
+        Document set = new Document();
+        Document unset = new Document();
+        Document push = new Document();
+        diff("", committed, document, set, unset, push);
+        Document inc = new Document(incs);
+        //A field that was changed as well is set to its final value
+        for (Iterator<String> paths = inc.keySet().iterator(); paths.hasNext(); ) {
+            String path = paths.next();
+            if (overlaps(path, set) || overlaps(path, unset) || overlaps(path, push))
+                paths.remove();
+        }
+        Document update = new Document();
+        if (!set.isEmpty())
+            update.append("$set", set);
+        if (!unset.isEmpty())
+            update.append("$unset", unset);
+        if (!push.isEmpty())
+            update.append("$push", push);
+        if (!inc.isEmpty())
+            update.append("$inc", inc);
+        return update.isEmpty() ? null : update;
+    }
+
+    @Override
+    public Observable<UpdateResult> commit() {
+        return commit(null);
+    }
+
+    @Override
+    public Observable<UpdateResult> commit(String versionField) {
+        return Observable.defer(() -> {
+            Document update;
+            Document snapshot;
+            Bson query = exoDocument.getIdQuery();
+            boolean upsert;
+            synchronized (this) {
+                update = (Document) getUpdate();
+                if (update == null)
+                    return Observable.empty();
+                snapshot = copy(document);
+                upsert = this.upsert;
+                if (versionField != null) {
+                    Object version = committed.get(versionField);
+                    query = and(query, version == null ? Filters.exists(versionField, false) : Filters.eq(versionField, version));
+                    Document inc = update.get("$inc", Document.class);
+                    if (inc == null)
+                        update.append("$inc", inc = new Document());
+                    inc.put(versionField, 1);
+                    removePath(update, versionField);
+                    snapshot.put(versionField, version instanceof Number ? UpdateCoalescer.add((Number) version, 1) : 1);
+                }
+            }
+            //A versioned commit of a missing document is not upserted: the version filter would make the upsert insert a second document
+            return exoDocument.update(query, update, upsert && versionField == null).doOnNext(result -> {
+                if (result.getMatchedCount() == 0 && result.getUpsertedId() == null)
+                    return;
+                synchronized (this) {
+                    if (versionField != null)
+                        document.put(versionField, snapshot.get(versionField));
+                    committed = snapshot;
+                    incs = new Document();
+                    this.upsert = false;
+                }
+            });
+        });
+    }
+
+    /**
+     * Removes the version field from the $set, $unset and $push of the update, the version is only incremented.
+     */
+    private static void removePath(Document update, String path) {
+        for (String operator : new String[]{"$set", "$unset", "$push"}) {
+            Document fields = update.get(operator, Document.class);
+            if (fields == null)
+                continue;
+            fields.keySet().removeIf(field -> field.equals(path) || field.startsWith(path + '.'));
+            if (fields.isEmpty())
+                update.remove(operator);
+        }
+    }
+
+    private static boolean overlaps(String path, Document fields) {
+        for (String field : fields.keySet())
+            if (field.equals(path) || field.startsWith(path + '.') || path.startsWith(field + '.'))
+                return true;
+        return false;
+    }
+
+    /**
+     * Adds the changes from before to after (both documents at the given path prefix) to the operators.
+     */
+    static void diff(String prefix, Document before, Document after, Document set, Document unset, Document push) {
+        for (String key : before.keySet())
+            if (!after.containsKey(key) && !(prefix.isEmpty() && key.equals("_id")))
+                unset.append(prefix + key, "");
+        for (Map.Entry<String, Object> entry : after.entrySet()) {
+            if (prefix.isEmpty() && entry.getKey().equals("_id"))
+                continue;
+            String path = prefix + entry.getKey();
+            if (!before.containsKey(entry.getKey()))
+                set.append(path, entry.getValue());
+            else
+                diff(path, before.get(entry.getKey()), entry.getValue(), set, unset, push);
+        }
+    }
+
+    private static void diff(String path, Object before, Object after, Document set, Document unset, Document push) {
+        if (Objects.equals(before, after))
+            return;
+        if (before instanceof Document && after instanceof Document) {
+            diff(path + '.', (Document) before, (Document) after, set, unset, push);
+        } else if (before instanceof List && after instanceof List) {
+            List<?> beforeList = (List<?>) before;
+            List<?> afterList = (List<?>) after;
+            if (afterList.size() > beforeList.size() && afterList.subList(0, beforeList.size()).equals(beforeList)) {
+                push.append(path, new Document("$each", new ArrayList<>(afterList.subList(beforeList.size(), afterList.size()))));
+            } else if (afterList.size() == beforeList.size()) {
+                for (int i = 0; i < afterList.size(); i++)
+                    diff(path + '.' + i, beforeList.get(i), afterList.get(i), set, unset, push);
+            } else
+                set.append(path, after);
+        } else
+            set.append(path, after);
+    }
+
+    /**
+     * Increments the field in place, creating documents along the path that don't exist.
+     */
+    private static boolean increment(Document root, String[] path, Number amount) {
+        Object container = root;
+        for (int i = 0; i < path.length - 1; i++) {
+            Object child = get(container, path[i]);
+            if (child == null && container instanceof Document)
+                ((Document) container).put(path[i], child = new Document());
+            if (!(child instanceof Document) && !(child instanceof List))
+                return false;
+            container = child;
+        }
+        String last = path[path.length - 1];
+        Object current = get(container, last);
+        if (current != null && !(current instanceof Number))
+            return false;
+        Number incremented = current == null ? amount : UpdateCoalescer.add((Number) current, amount);
+        if (container instanceof Document) {
+            ((Document) container).put(last, incremented);
+            return true;
+        }
+        if (current == null)
+            return false;
+        //Lists of decoded documents (and their copies) hold any kind of value
+        @SuppressWarnings("unchecked")
+        List<Object> list = (List<Object>) container;
+        list.set(Integer.parseInt(last), incremented);
+        return true;
+    }
+
+    private static Object get(Object container, String key) {
+        if (container instanceof Document)
+            return ((Document) container).get(key);
+        try {
+            int index = Integer.parseInt(key);
+            List<?> list = (List<?>) container;
+            return index >= 0 && index < list.size() ? list.get(index) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Deep copies the documents and lists, so changes to the copy don't affect the cached document.
+     */
+    static Document copy(Document document) {
+        Document copy = new Document();
+        document.forEach((key, value) -> copy.put(key, copyValue(value)));
+        return copy;
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof Document)
+            return copy((Document) value);
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>(((List) value).size());
+            for (Object element : (List) value)
+                copy.add(copyValue(element));
+            return copy;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.DocumentLease;
+import com.exorath.exodata.api.ExoDocument;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonNumber;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.Subscription;
+import rx.subjects.AsyncSubject;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Filters.and;
+
+/**
+ * Keeps the state of a leased document in memory next to the state that was persisted, persisting sends the difference between both.
+ * All persisting runs one after another, so a difference is never sent twice.
+ * <p>
+ * While the lease is released, expires or is handed over to a new lease of the same owner, it stays attached and updates wait in line behind the last persist.
+ * Once it's done, they're sent to the database (or to the new lease), so an update is never applied to a state that was already persisted for the last time.
+ */
+public class IDocumentLease implements DocumentLease {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IDocumentLease.class);
+    static final String LEASE_FIELD = "_lease";
+    private final IExoDocument document;
+    private final CollectionIO io;
+    private final String owner;
+    private final long token;
+    private final long duration;
+    private static final int RETRIES = 5;
+    private static final long RETRY_MILLIS = 50;
+    private final OrderedLanes persisting = new OrderedLanes(1);
+    private final Subscription renewing;
+    private final AsyncSubject<Void> ended = AsyncSubject.create();
+    private volatile boolean held = true;
+    private volatile long heldUntil;
+    private Document state;
+    private Document persisted;
+    private boolean releasing;
+
+    /**
+     * @param acquired   the document as it was after acquiring the lease
+     * @param acquiredAt the time the lease was acquired at, in milliseconds
+     */
+    IDocumentLease(IExoDocument document, CollectionIO io, String owner, long duration, Document acquired, long acquiredAt) {
+        this.document = document;
+        this.io = io;
+        this.owner = owner;
+        this.duration = duration;
+        Document lease = acquired.get(LEASE_FIELD, Document.class);
+        this.token = ((Number) lease.get("token")).longValue();
+        Document initial = new Document(acquired);
+        initial.remove(LEASE_FIELD);
+        this.state = this.persisted = initial;
+        this.heldUntil = acquiredAt + duration * 9 / 10;
+        long interval = Math.max(1, duration / 3);
+        this.renewing = Observable.interval(interval, interval, TimeUnit.MILLISECONDS)
+                .onBackpressureDrop()
+                .concatMap(tick -> flush().onErrorResumeNext(error -> {
+                    //A lease that was taken over is logged when it's lost
+                    if (held)
+                        LOGGER.warn("Failed to renew the lease on {}, retrying at the next renewal", document.getId(), error);
+                    return Observable.empty();
+                }))
+                .subscribe();
+    }
+
+    @Override
+    public ExoDocument getDocument() {
+        return document;
+    }
+
+    @Override
+    public String getOwner() {
+        return owner;
+    }
+
+    @Override
+    public long getFencingToken() {
+        return token;
+    }
+
+    @Override
+    public Observable<Void> ended() {
+        return ended.asObservable();
+    }
+
+    @Override
+    public boolean isHeld() {
+        return held && System.currentTimeMillis() < heldUntil;
+    }
+
+    /**
+     * Like {@link #isHeld()}, but a lease that expired persists its state one last time and is detached from its document, see {@link #expire()}.
+     * Until then it's still held, updates wait for it.
+     */
+    boolean holds() {
+        if (!held)
+            return false;
+        if (System.currentTimeMillis() >= heldUntil)
+            expire();
+        return held;
+    }
+
+    /**
+     * The lease may still be held in the database, since it expires earlier locally. So the state is persisted (with the fence) and the lease removed before it's detached.
+     * The persist is retried with an increasing delay, if it keeps failing the lease is lost anyway and the changes that were not persisted are discarded.
+     */
+    private void expire() {
+        synchronized (this) {
+            if (releasing)
+                return;
+            releasing = true;
+        }
+        persisting.run(LEASE_FIELD, persist(true))
+                .retryWhen(errors -> errors.zipWith(Observable.range(0, RETRIES + 1), (error, attempt) -> attempt < RETRIES && !(error instanceof IllegalStateException)
+                        ? Observable.timer(RETRY_MILLIS << attempt, TimeUnit.MILLISECONDS)
+                        : Observable.<Long>error(error)).flatMap(retry -> retry))
+                //Whether or not the state was persisted, the lease is lost now
+                .subscribe(result -> {
+                }, this::lose, this::lose);
+    }
+
+    synchronized Document getState() {
+        return state;
+    }
+
+    /**
+     * Applies an update that only queries on the id in memory. Updates that can't be applied in memory are sent to the database, see {@link #remote(Bson, Bson, boolean, boolean)}.
+     */
+    Observable<UpdateResult> apply(Bson update) {
+        return Observable.defer(() -> {
+            Document decoded = LocalUpdate.decode(update, io.getCodecRegistry());
+            synchronized (this) {
+                Document applied = releasing ? null : LocalUpdate.apply(state, decoded, false);
+                if (applied != null)
+                    return Observable.just(replaceState(applied));
+            }
+            return remote(document.getIdQuery(), update, false, true);
+        });
+    }
+
+    /**
+     * Applies the update in memory if the key holds at least the given amount, like {@link IExoDocument#updateIfHas(String, BsonNumber, Bson)}.
+     */
+    Observable<UpdateResult> applyIfHas(String key, BsonNumber has, Bson update) {
+        return Observable.defer(() -> {
+            Document decoded = LocalUpdate.decode(update, io.getCodecRegistry());
+            synchronized (this) {
+                if (!releasing) {
+                    Object value = get(state, key);
+                    if (!(value instanceof Number) || ((Number) value).doubleValue() < has.doubleValue())
+                        return Observable.just(UpdateResult.acknowledged(0, 0L, null));
+                    Document applied = LocalUpdate.apply(state, decoded, false);
+                    if (applied != null)
+                        return Observable.just(replaceState(applied));
+                }
+            }
+            return remote(and(document.getIdQuery(), IExoDocument.hasQuery(key, has)), update, false, false);
+        });
+    }
+
+    private UpdateResult replaceState(Document applied) {
+        boolean modified = !applied.equals(state);
+        state = applied;
+        return UpdateResult.acknowledged(1, modified ? 1L : 0L, null);
+    }
+
+    /**
+     * Persists the state and sends the update to the database with the fencing token added to the query. The state becomes the updated document,
+     * with the changes that were made in memory while the update was sent applied on top.
+     * If the lease isn't held anymore once it's the update's turn (fe. it was released meanwhile), the update is sent like it would be without this lease.
+     */
+    Observable<UpdateResult> remote(Bson query, Bson update, boolean upsert, boolean idOnly) {
+        return persisting.run(LEASE_FIELD, Observable.defer(() -> held ? fenced(query, update, upsert) : document.send(query, update, upsert, idOnly)));
+    }
+
+    private Observable<UpdateResult> fenced(Bson query, Bson update, boolean upsert) {
+        return persist(false).ignoreElements().concatWith(Observable.defer(() -> {
+            Document sent;
+            synchronized (this) {
+                sent = persisted;
+            }
+            FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().upsert(upsert).returnDocument(ReturnDocument.AFTER);
+            return io.findOneAndUpdate(and(query, getFence()), document.versioned(update), options).map(updated -> {
+                Document result = new Document(updated);
+                result.remove(LEASE_FIELD);
+                synchronized (this) {
+                    Document local = diff(sent, state);
+                    Document merged = local.isEmpty() ? result : LocalUpdate.apply(result, local, false);
+                    state = merged == null ? result : merged;
+                    persisted = result;
+                }
+                UpdateResult updateResult = UpdateResult.acknowledged(1, 1L, null);
+                document.publish(updateResult, null, null);
+                return updateResult;
+            }).defaultIfEmpty(UpdateResult.acknowledged(0, 0L, null));
+        }));
+    }
+
+    @Override
+    public Observable<UpdateResult> flush() {
+        return persisting.run(LEASE_FIELD, persist(false));
+    }
+
+    @Override
+    public Observable<UpdateResult> release() {
+        return Observable.defer(() -> {
+            synchronized (this) {
+                if (!held)
+                    return Observable.error(new IllegalStateException("the lease on " + document.getId() + " is no longer held"));
+                //Updates made from now on wait for the release and are sent to the database after it
+                releasing = true;
+            }
+            return persisting.run(LEASE_FIELD, persist(true)).doOnError(error -> resume());
+        });
+    }
+
+    /**
+     * Persists the state and then acquires the new lease of the same owner, updates made meanwhile wait and are applied to the new lease.
+     * The new lease is acquired with the persisted state, so nothing is lost when the new lease replaces this one.
+     */
+    <T> Observable<T> handOver(Observable<T> acquire) {
+        return Observable.defer(() -> {
+            synchronized (this) {
+                if (!held)
+                    return acquire;
+                releasing = true;
+            }
+            return persisting.run(LEASE_FIELD, persist(false).concatMap(result -> acquire)).doOnError(error -> resume());
+        });
+    }
+
+    /**
+     * Applies updates in memory again after a release or hand-over failed while the lease is still held.
+     */
+    private synchronized void resume() {
+        releasing = false;
+    }
+
+    /**
+     * Sends the difference between the persisted state and the state, together with the renewal (or removal) of the lease. The query holds the fencing token,
+     * so if another owner acquired the document since, nothing is written and this lease is lost. A removal detaches the lease once it's written.
+     */
+    private Observable<UpdateResult> persist(boolean release) {
+        return Observable.defer(() -> {
+            if (!held)
+                return Observable.error(new IllegalStateException("the lease on " + document.getId() + " is no longer held"));
+            Document snapshot;
+            Document update;
+            synchronized (this) {
+                snapshot = state;
+                update = diff(persisted, snapshot);
+            }
+            boolean changed = !update.isEmpty();
+            String field = document.getVersionField();
+            boolean versioned = changed && field != null && !touches(update, field);
+            if (versioned)
+                update.append("$inc", new Document(field, 1));
+            long now = System.currentTimeMillis();
+            String operator = release ? "$unset" : "$set";
+            Document fields = update.get(operator, Document.class);
+            if (fields == null)
+                update.append(operator, fields = new Document());
+            if (release)
+                fields.append(LEASE_FIELD, "");
+            else
+                fields.append(LEASE_FIELD + ".expires", now + duration);
+            return io.updateOne(and(document.getIdQuery(), getFence()), update, new UpdateOptions()).map(result -> {
+                if (result.wasAcknowledged() && result.getMatchedCount() == 0) {
+                    IllegalStateException takenOver = new IllegalStateException("the lease on " + document.getId() + " was taken over");
+                    lose(takenOver);
+                    throw takenOver;
+                }
+                synchronized (this) {
+                    persisted = versioned ? incrementVersion(snapshot, field) : snapshot;
+                    if (versioned)
+                        state = incrementVersion(state, field);
+                }
+                if (changed)
+                    document.publish(result, null, null);
+                if (release)
+                    lose();
+                else
+                    heldUntil = now + duration * 9 / 10;
+                return result;
+            });
+        });
+    }
+
+    private Bson getFence() {
+        return Filters.eq(LEASE_FIELD + ".token", token);
+    }
+
+    /**
+     * Stops renewing and detaches the lease from its document after its state was persisted for the last time.
+     */
+    private void lose() {
+        stop();
+        document.detachLease(this);
+    }
+
+    /**
+     * Stops renewing and detaches the lease from its document, the changes that were not persisted are discarded. The loss is logged and {@link #ended()} errors with the cause.
+     */
+    private void lose(Throwable cause) {
+        synchronized (this) {
+            if (!held)
+                return;
+            held = false;
+        }
+        LOGGER.error("Lost the lease on {} of {}, the changes that were not persisted are discarded", document.getId(), owner, cause);
+        renewing.unsubscribe();
+        ended.onError(cause);
+        document.detachLease(this);
+    }
+
+    /**
+     * Stops renewing, the state was persisted (or handed over to a new lease) so {@link #ended()} completes.
+     */
+    void stop() {
+        synchronized (this) {
+            held = false;
+        }
+        renewing.unsubscribe();
+        ended.onCompleted();
+    }
+
+    private static Document diff(Document before, Document after) {
+        Document set = new Document();
+        Document unset = new Document();
+        Document push = new Document();
+        IDocumentEdit.diff("", before, after, set, unset, push);
+        Document update = new Document();
+        if (!set.isEmpty())
+            update.append("$set", set);
+        if (!unset.isEmpty())
+            update.append("$unset", unset);
+        if (!push.isEmpty())
+            update.append("$push", push);
+        return update;
+    }
+
+    private static boolean touches(Document update, String field) {
+        for (Object operator : update.values())
+            for (String path : ((Document) operator).keySet())
+                if (path.equals(field) || path.startsWith(field + '.') || field.startsWith(path + '.'))
+                    return true;
+        return false;
+    }
+
+    private static Document incrementVersion(Document document, String field) {
+        Document incremented = LocalUpdate.apply(document, new Document("$inc", new Document(field, 1)), false);
+        return incremented == null ? document : incremented;
+    }
+
+    private static Object get(Document document, String path) {
+        Object current = document;
+        for (String key : path.split("\\.")) {
+            if (current instanceof Document)
+                current = ((Document) current).get(key);
+            else if (current instanceof List) {
+                try {
+                    int index = Integer.parseInt(key);
+                    List<?> list = (List<?>) current;
+                    current = index >= 0 && index < list.size() ? list.get(index) : null;
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else
+                return null;
+        }
+        return current;
+    }
+}
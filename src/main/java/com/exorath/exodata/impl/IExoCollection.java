@@ -16,38 +16,615 @@
 
 package com.exorath.exodata.impl;
 
+import com.exorath.exodata.api.CacheStats;
+import com.exorath.exodata.api.ChangeSource;
+import com.exorath.exodata.api.DocumentChange;
+import com.exorath.exodata.api.DocumentLease;
+import com.exorath.exodata.api.DroppedIncrements;
 import com.exorath.exodata.api.ExoCollection;
 import com.exorath.exodata.api.ExoDocument;
+import com.exorath.exodata.api.ExoTypedDocument;
+import com.exorath.exodata.api.FetchStrategy;
+import com.exorath.exodata.api.Invalidation;
+import com.exorath.exodata.api.InvalidationBus;
+import com.exorath.exodata.api.OperationType;
+import com.exorath.exodata.api.ShardedCounter;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.mongodb.ReadPreference;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.configuration.CodecConfigurationException;
+import org.bson.codecs.configuration.CodecRegistries;
 import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import rx.Observable;
-import rx.schedulers.Schedulers;
+import rx.Subscription;
+import rx.subjects.PublishSubject;
+import rx.subjects.SerializedSubject;
+import rx.subjects.Subject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by toonsev on 8/22/2016.
  */
 public class IExoCollection implements ExoCollection {
-    private MongoCollection collection;
+    private static final Logger LOGGER = LoggerFactory.getLogger(IExoCollection.class);
+    private static final int DEFAULT_FETCH_CHUNK_SIZE = 500;
+    private static final long BUS_RETRY_MILLIS = 100;
+    private final CollectionIO io;
+    private static final PojoCodecProvider POJO_CODECS = new PojoCodecProvider();
+    private final SingleFlight<String, Document> fetches = new SingleFlight<>();
+    private final SingleFlight<String, Object> typedFetches = new SingleFlight<>();
+    private volatile CollectionIO typedIO;
+    private final ConcurrentMap<String, ShardedCounter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, IExoDocument> leased = new ConcurrentHashMap<>();
+    //Weak, an escrow that renews a lease is reachable from its renewal
+    private final Set<IBalanceEscrow> escrows = Collections.newSetFromMap(new WeakHashMap<>());
+    private volatile BulkWriter bulkWriter;
+    private volatile WriteBehind writeBehind;
+    private final Subject<DroppedIncrements, DroppedIncrements> droppedIncrements = new SerializedSubject<>(PublishSubject.create());
+    private volatile OrderedLanes lanes;
+    private volatile ChangeFeed changeFeed;
+    private final String node = UUID.randomUUID().toString();
+    private volatile InvalidationBus invalidationBus;
+    private Subscription invalidations;
+    private volatile Cache<String, IExoDocument> documents;
+    private volatile OffHeapCache offHeap;
+    private volatile long expireAfterAccessNanos;
+    private volatile FetchStrategy fetchStrategy = FetchStrategy.UPSERT;
+    private volatile String versionField;
+    private final Metrics metrics;
+    private final String namespace;
 
     public IExoCollection(MongoCollection collection){
-        this.collection = collection;
+        this(new SyncCollectionIO(collection));
+    }
+
+    public IExoCollection(CollectionIO io) {
+        this(io, null, null);
+    }
+
+    /**
+     * @param metrics   the metrics of the DataAPI, or null if this collection is not measured
+     * @param namespace the full name of this collection (database.collection), the operations are measured under this name
+     */
+    public IExoCollection(CollectionIO io, Metrics metrics, String namespace) {
+        this.io = io;
+        this.metrics = metrics;
+        this.namespace = namespace;
     }
 
     @Override
     public Observable<String> createIndex(Bson bson) {
-        return Observable.create(s -> {
-            s.onNext(collection.createIndex(bson));
-            s.onCompleted();
-        }).subscribeOn(Schedulers.io()).cast(String.class);
+        return io.createIndex(bson);
     }
 
     @Override
     public ExoDocument getDocument(Object id) {
-        return ExoDocument.create(collection, id);
+        IExoDocument leased = this.leased.get(id.toString());
+        if (leased != null)
+            return leased;
+        Cache<String, IExoDocument> documents = this.documents;
+        if (documents == null)
+            return new IExoDocument(this, id);
+        return documents.get(id.toString(), key -> load(key, id));
+    }
+
+    /**
+     * Creates the ExoDocument for the document cache, the document is taken from the off-heap cache if it was spilled there.
+     */
+    private IExoDocument load(String key, Object id) {
+        IExoDocument document = new IExoDocument(this, id);
+        OffHeapCache offHeap = this.offHeap;
+        RawBsonDocument raw = offHeap == null ? null : offHeap.take(key);
+        if (raw != null)
+            document.seed(new CachedDocument(raw, io.getCodecRegistry().get(Document.class)));
+        return document;
+    }
+
+    @Override
+    public <T> ExoTypedDocument<T> getDocument(Object id, Class<T> type) {
+        return new IExoTypedDocument<>((IExoDocument) getDocument(id), type, getTypedIO(), typedFetches);
+    }
+
+    @Override
+    public Observable<DocumentLease> acquireLease(Object id, String owner, long duration, TimeUnit unit) {
+        if (owner == null)
+            throw new IllegalArgumentException("owner may not be null");
+        if (duration <= 0)
+            throw new IllegalArgumentException("duration must be positive");
+        return Observable.defer(() -> ((IExoDocument) getDocument(id)).acquireLease(owner, unit.toMillis(duration)));
+    }
+
+    /**
+     * Keeps returning the leased document from {@link #getDocument(Object)}, even if the document cache evicts it or is disabled.
+     */
+    void pinLeased(IExoDocument document) {
+        leased.put(document.getId().toString(), document);
+    }
+
+    void unpinLeased(IExoDocument document) {
+        leased.remove(document.getId().toString(), document);
+    }
+
+    void track(IBalanceEscrow escrow) {
+        synchronized (escrows) {
+            escrows.add(escrow);
+        }
+    }
+
+    /**
+     * Flushes the bulk writes and write-behind increments, releases the leases and escrows, stops refreshing the totals of the sharded counters
+     * and afterwards stops receiving changes and invalidations, see {@link com.exorath.exodata.api.DataAPI#close()}.
+     *
+     * @return an observable that completes once everything was flushed and released, failures are logged
+     */
+    Observable<Void> shutdown() {
+        List<Observable<Void>> flushes = new ArrayList<>();
+        BulkWriter bulkWriter = this.bulkWriter;
+        this.bulkWriter = null;
+        if (bulkWriter != null)
+            flushes.add(logged(bulkWriter.flushed(), "flush the bulk writes"));
+        flushes.add(logged(disableWriteBehind(), "flush the write-behind increments"));
+        for (IExoDocument document : leased.values())
+            flushes.add(logged(document.releaseLease(), "release the lease on " + document.getId()));
+        List<IBalanceEscrow> escrows;
+        synchronized (this.escrows) {
+            escrows = new ArrayList<>(this.escrows);
+            this.escrows.clear();
+        }
+        for (IBalanceEscrow escrow : escrows)
+            if (escrow.holdsLease())
+                flushes.add(logged(escrow.release(), "release the escrow of " + escrow.getKey()));
+        counters.values().forEach(ShardedCounter::disableTotalRefresh);
+        return Observable.merge(flushes).doOnTerminate(() -> {
+            disableChanges();
+            disableInvalidationBus();
+        });
+    }
+
+    private Observable<Void> logged(Observable<?> flush, String action) {
+        return flush.ignoreElements().map(ignored -> (Void) null).onErrorResumeNext(error -> {
+            LOGGER.error("Failed to {} of {} while shutting down", action, getName(), error);
+            return Observable.empty();
+        });
+    }
+
+    @Override
+    public ShardedCounter getShardedCounter(Object id, int shards) {
+        return counters.computeIfAbsent(id.toString() + '/' + shards, key -> new IShardedCounter(this, id, shards));
+    }
+
+    /**
+     * The IO with the collection's codec registry, falling back to reflective codecs for classes that don't have a codec.
+     */
+    private CollectionIO getTypedIO() {
+        CollectionIO typedIO = this.typedIO;
+        if (typedIO == null)
+            this.typedIO = typedIO = io.withCodecRegistry(CodecRegistries.fromRegistries(io.getCodecRegistry(), CodecRegistries.fromProviders(POJO_CODECS)));
+        return typedIO;
+    }
+
+    @Override
+    public ExoCollection fetchStrategy(FetchStrategy strategy) {
+        if (strategy == null)
+            throw new IllegalArgumentException("strategy may not be null");
+        this.fetchStrategy = strategy;
+        return this;
+    }
+
+    @Override
+    public FetchStrategy getFetchStrategy() {
+        return fetchStrategy;
+    }
+
+    @Override
+    public ExoCollection versionField(String field) {
+        this.versionField = field;
+        return this;
+    }
+
+    @Override
+    public String getVersionField() {
+        return versionField;
+    }
+
+    @Override
+    public ExoCollection enableDocumentCache(long maxWeight, long expireAfterAccess, TimeUnit unit) {
+        expireAfterAccessNanos = unit.toNanos(expireAfterAccess);
+        documents = Caffeine.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher((String id, IExoDocument document) -> document.getWeight())
+                .expireAfterAccess(expireAfterAccess, unit)
+                .executor(Runnable::run)
+                .evictionListener((String id, IExoDocument document, RemovalCause cause) -> {
+                    if (cause == RemovalCause.SIZE)
+                        spill(id, document);
+                })
+                .recordStats()
+                .build();
+        return this;
+    }
+
+    @Override
+    public ExoCollection disableDocumentCache() {
+        documents = null;
+        return this;
+    }
+
+    @Override
+    public CacheStats getDocumentCacheStats() {
+        Cache<String, IExoDocument> documents = this.documents;
+        if (documents == null)
+            return CacheStats.empty();
+        com.github.benmanes.caffeine.cache.stats.CacheStats stats = documents.stats();
+        return new CacheStats(stats.hitCount(), stats.missCount(), stats.evictionCount(), stats.evictionWeight());
+    }
+
+    @Override
+    public ExoCollection enableOffHeapCache(long maxBytes) {
+        return enableOffHeapCache(maxBytes, null);
+    }
+
+    @Override
+    public synchronized ExoCollection enableOffHeapCache(long maxBytes, File directory) {
+        OffHeapCache previous = offHeap;
+        offHeap = new OffHeapCache(maxBytes, directory);
+        if (previous != null)
+            previous.close();
+        return this;
+    }
+
+    @Override
+    public synchronized ExoCollection disableOffHeapCache() {
+        OffHeapCache previous = offHeap;
+        offHeap = null;
+        if (previous != null)
+            previous.close();
+        return this;
+    }
+
+    @Override
+    public CacheStats getOffHeapCacheStats() {
+        OffHeapCache offHeap = this.offHeap;
+        return offHeap == null ? CacheStats.empty() : offHeap.getStats();
+    }
+
+    /**
+     * Moves the full cached document of an ExoDocument that was evicted from the document cache to the off-heap cache.
+     * Leased documents and documents that only hold a projection are not spilled. The document expires off-heap after the expireAfterAccess of the document cache,
+     * counted from the spill (which is after its last access).
+     */
+    private void spill(String id, IExoDocument document) {
+        OffHeapCache offHeap = this.offHeap;
+        CachedDocument cached = document.getCached();
+        if (offHeap == null || cached == null || cached.isPartial() || leased.containsKey(id))
+            return;
+        RawBsonDocument raw = cached.getRaw();
+        try {
+            if (raw == null)
+                raw = new RawBsonDocument(cached.getDocument(), io.getCodecRegistry().get(Document.class));
+        } catch (CodecConfigurationException e) {
+            return;
+        }
+        //Capped so the deadline can't overflow
+        offHeap.put(id, raw.getByteBuffer().asNIO(), System.nanoTime() + Math.min(expireAfterAccessNanos, Long.MAX_VALUE / 4));
+    }
+
+    /**
+     * Removes the document from the off-heap cache, for writes of this node and changes that were made by others.
+     */
+    void evictOffHeap(String id) {
+        OffHeapCache offHeap = this.offHeap;
+        if (offHeap != null)
+            offHeap.remove(id);
+    }
+
+    /**
+     * @return the ExoDocument that's cached for the id, or null if it's not cached (or the document cache is disabled)
+     */
+    IExoDocument getCachedDocument(String id) {
+        Cache<String, IExoDocument> documents = this.documents;
+        return documents == null ? null : documents.getIfPresent(id);
+    }
+
+    /**
+     * Recomputes the weight of a cached document after its cached content changed.
+     */
+    void reweigh(IExoDocument document) {
+        Cache<String, IExoDocument> documents = this.documents;
+        if (documents != null)
+            documents.asMap().replace(document.getId().toString(), document, document);
+    }
+
+    @Override
+    public Observable<ExoDocument> fetchAll(Collection<?> ids, Bson projection) {
+        return fetchAll(ids, projection, DEFAULT_FETCH_CHUNK_SIZE);
+    }
+
+    @Override
+    public Observable<ExoDocument> fetchAll(Collection<?> ids, Bson projection, int chunkSize) {
+        Set<String> uniqueIds = new LinkedHashSet<>();
+        ids.forEach(id -> uniqueIds.add(id.toString()));
+        OperationMetrics metrics = getMetrics(OperationType.FETCH_ALL);
+        Observable<ExoDocument> fetchAll = Observable.from(uniqueIds).buffer(chunkSize).concatMap(chunk -> fetchChunk(chunk, projection, metrics));
+        if (metrics == null)
+            return fetchAll;
+        int sent = 0;
+        for (String id : uniqueIds)
+            sent += 2 + BsonSize.estimate(id);
+        return Metrics.measure(metrics, sent + BsonSize.estimate(projection, io.getCodecRegistry()), false, fetchAll);
+    }
+
+    /**
+     * Reads all documents of the chunk with one $in query, the missing ones are created with a single bulkWrite and read afterwards (unless the fetch strategy does not create documents).
+     */
+    private Observable<ExoDocument> fetchChunk(List<String> chunk, Bson projection, OperationMetrics metrics) {
+        FetchStrategy strategy = fetchStrategy;
+        ReadPreference readPreference = strategy == FetchStrategy.FIND_SECONDARY ? ReadPreference.secondaryPreferred() : null;
+        boolean create = strategy == FetchStrategy.UPSERT || strategy == FetchStrategy.LAZY_UPSERT;
+        return find(chunk, projection, readPreference).flatMap(found -> {
+            List<String> missing = new ArrayList<>();
+            for (String id : chunk)
+                if (!found.containsKey(id))
+                    missing.add(id);
+            if (!create || missing.isEmpty())
+                return Observable.just(found);
+            List<WriteModel<Document>> upserts = new ArrayList<>(missing.size());
+            for (String id : missing)
+                upserts.add(new UpdateOneModel<>(new Document("_id", id), Updates.setOnInsert("_id", id), new UpdateOptions().upsert(true)));
+            return io.bulkWrite(upserts, new BulkWriteOptions().ordered(false))
+                    .flatMap(result -> find(missing, projection, null))
+                    .map(created -> {
+                        found.putAll(created);
+                        return found;
+                    });
+        }).concatMap(found -> {
+            List<ExoDocument> documents = new ArrayList<>(chunk.size());
+            for (String id : chunk) {
+                Document fetched = found.get(id);
+                if (fetched == null)
+                    continue;
+                IExoDocument document = (IExoDocument) getDocument(id);
+                document.cacheFetched(fetched, projection);
+                if (metrics != null)
+                    metrics.recordReceived(BsonSize.estimate(fetched));
+                documents.add(document);
+            }
+            return Observable.from(documents);
+        });
+    }
+
+    private Observable<Map<String, Document>> find(List<String> ids, Bson projection, ReadPreference readPreference) {
+        return io.find(Filters.in("_id", ids), projection, readPreference)
+                .filter(document -> document.get("_id") != null)
+                .toMap(document -> document.get("_id").toString());
+    }
+
+    @Override
+    public ExoCollection enableBulkWrites(int flushSize, long flushInterval, TimeUnit unit, int maxInFlight) {
+        BulkWriter previous = bulkWriter;
+        bulkWriter = new BulkWriter(io, flushSize, flushInterval, unit, maxInFlight);
+        if (previous != null)
+            previous.flush();
+        return this;
+    }
+
+    @Override
+    public ExoCollection disableBulkWrites() {
+        BulkWriter previous = bulkWriter;
+        bulkWriter = null;
+        if (previous != null)
+            previous.flush();
+        return this;
+    }
+
+    @Override
+    public ExoCollection enableOrderedLanes(int lanes) {
+        this.lanes = new OrderedLanes(lanes);
+        return this;
+    }
+
+    @Override
+    public ExoCollection disableOrderedLanes() {
+        lanes = null;
+        return this;
+    }
+
+    @Override
+    public synchronized ExoCollection enableWriteBehind(File journalDirectory, long flushInterval, TimeUnit unit) {
+        WriteBehind previous = writeBehind;
+        //The new write-behind replays the journals in its directory, so it waits until the previous one is done sending them
+        Observable<BulkWriteResult> replaced = previous == null ? Observable.empty() : previous.stop();
+        writeBehind = new WriteBehind(io, journalDirectory, WriteBehind.DEFAULT_JOURNAL_SIZE, flushInterval, unit, this::getVersionField, this::publishEvictions,
+                droppedIncrements::onNext, replaced);
+        return this;
+    }
+
+    @Override
+    public Observable<DroppedIncrements> droppedIncrements() {
+        return droppedIncrements.asObservable();
+    }
+
+    @Override
+    public synchronized Observable<BulkWriteResult> disableWriteBehind() {
+        WriteBehind previous = writeBehind;
+        writeBehind = null;
+        return previous == null ? Observable.empty() : previous.stop();
+    }
+
+    @Override
+    public Observable<BulkWriteResult> flushWriteBehind() {
+        WriteBehind writeBehind = this.writeBehind;
+        return writeBehind == null ? Observable.empty() : writeBehind.flush();
+    }
+
+    @Override
+    public synchronized ExoCollection enableChanges(ChangeSource source) {
+        if (source == null)
+            throw new IllegalArgumentException("source may not be null");
+        ChangeFeed previous = changeFeed;
+        changeFeed = new ChangeFeed(this, source);
+        if (previous != null)
+            previous.stop();
+        return this;
+    }
+
+    @Override
+    public ExoCollection enablePollingChanges(long interval, TimeUnit unit) {
+        return enableChanges(new PollingChangeSource(io, this::getVersionField, interval, unit));
+    }
+
+    @Override
+    public synchronized ExoCollection disableChanges() {
+        ChangeFeed previous = changeFeed;
+        changeFeed = null;
+        if (previous != null)
+            previous.stop();
+        return this;
+    }
+
+    @Override
+    public Observable<DocumentChange> changes(Bson filter) {
+        return Observable.defer(() -> getChangeFeed().changes(filter == null ? new Document() : filter)).share();
+    }
+
+    @Override
+    public synchronized ExoCollection enableInvalidationBus(InvalidationBus bus) {
+        if (bus == null)
+            throw new IllegalArgumentException("bus may not be null");
+        disableInvalidationBus();
+        String name = getName();
+        //A bus that errors is subscribed to again, it's best effort anyway
+        invalidations = bus.getInvalidations()
+                .filter(invalidation -> !node.equals(invalidation.getOrigin()) && name.equals(invalidation.getCollection()))
+                .doOnNext(this::applyInvalidation)
+                .retryWhen(errors -> errors
+                        .doOnNext(error -> LOGGER.warn("Invalidation bus {} failed, subscribing to it again", bus, error))
+                        .flatMap(error -> Observable.timer(BUS_RETRY_MILLIS, TimeUnit.MILLISECONDS)))
+                .subscribe();
+        invalidationBus = bus;
+        return this;
+    }
+
+    /**
+     * Applies an invalidation of another node to the caches. If that fails the document is evicted instead, so one bad invalidation neither leaves a stale document cached nor ends the subscription to the bus.
+     */
+    private void applyInvalidation(Invalidation invalidation) {
+        String id = invalidation.getId();
+        try {
+            evictOffHeap(id);
+            IExoDocument document = getCachedDocument(id);
+            if (document != null)
+                document.applyInvalidation(invalidation);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to apply invalidation of document {} in {}, evicting it", id, invalidation.getCollection(), e);
+            Cache<String, IExoDocument> documents = this.documents;
+            if (documents != null)
+                documents.invalidate(id);
+        }
+    }
+
+    @Override
+    public synchronized ExoCollection disableInvalidationBus() {
+        if (invalidations != null)
+            invalidations.unsubscribe();
+        invalidations = null;
+        invalidationBus = null;
+        return this;
+    }
+
+    /**
+     * Tells the other nodes on the invalidation bus that the document was written.
+     *
+     * @param version the version of the document after the write, or null if it's not known
+     * @param update  the written update, or null if it's not known
+     */
+    void publish(String id, Number version, Document update) {
+        InvalidationBus bus = invalidationBus;
+        if (bus != null)
+            bus.publish(new Invalidation(node, getName(), id, version, update));
+    }
+
+    boolean hasInvalidationBus() {
+        return invalidationBus != null;
+    }
+
+    private void publishEvictions(Collection<String> ids) {
+        if (invalidationBus != null)
+            ids.forEach(id -> publish(id, null, null));
+    }
+
+    /**
+     * @return the full name of this collection (database.collection)
+     */
+    String getName() {
+        return namespace == null ? io.getNamespace() : namespace;
+    }
+
+    /**
+     * @throws IllegalStateException if no change source is enabled
+     */
+    ChangeFeed getChangeFeed() {
+        ChangeFeed changeFeed = this.changeFeed;
+        if (changeFeed == null)
+            throw new IllegalStateException("changes requires a change source, see enableChanges(ChangeSource)");
+        return changeFeed;
+    }
+
+    /**
+     * @return the metrics of the operation type on this collection, or null if this collection is not measured
+     */
+    OperationMetrics getMetrics(OperationType type) {
+        return metrics == null ? null : metrics.get(namespace, type);
+    }
+
+    SingleFlight<String, Document> getFetches() {
+        return fetches;
+    }
+
+    OrderedLanes getLanes() {
+        return lanes;
+    }
+
+    WriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
+    BulkWriter getBulkWriter() {
+        return bulkWriter;
+    }
+
+    CollectionIO getIO() {
+        return io;
     }
 
     @Override
     public MongoCollection getMongoCollection() {
-        return collection;
+        return io.getMongoCollection();
     }
 }
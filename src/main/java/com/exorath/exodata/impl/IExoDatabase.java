@@ -18,6 +18,7 @@ package com.exorath.exodata.impl;
 
 import com.exorath.exodata.api.ExoDatabase;
 import com.exorath.exodata.api.ExoCollection;
+import com.exorath.exodata.api.IOLimits;
 import com.mongodb.client.MongoDatabase;
 import rx.Observable;
 import rx.schedulers.Schedulers;
@@ -27,13 +28,48 @@ import rx.schedulers.Schedulers;
  */
 public class IExoDatabase implements ExoDatabase {
     private MongoDatabase database;
+    private BoundedIOPool pool;
+    private IOLimits limits;
+    private Metrics metrics;
+    private IOExecutor io;
+    private OpenCollections collections;
     public IExoDatabase(MongoDatabase database){
         this.database = database;
+        this.io = new SchedulerIOExecutor(Schedulers.io());
+    }
+
+    /**
+     * @param pool    the IO pool of the DataAPI, or null to use {@link rx.schedulers.Schedulers#io()}
+     * @param limits  the limits of the pool
+     * @param metrics the metrics of the DataAPI
+     * @param io      the executor of the DataAPI for calls that don't belong to a collection
+     */
+    public IExoDatabase(MongoDatabase database, BoundedIOPool pool, IOLimits limits, Metrics metrics, IOExecutor io){
+        this(database, pool, limits, metrics, io, null);
+    }
+
+    /**
+     * @param collections the collections of the DataAPI, which are shut down when it's closed, or null
+     */
+    IExoDatabase(MongoDatabase database, BoundedIOPool pool, IOLimits limits, Metrics metrics, IOExecutor io, OpenCollections collections){
+        this.database = database;
+        this.pool = pool;
+        this.limits = limits;
+        this.metrics = metrics;
+        this.io = io;
+        this.collections = collections;
     }
     @Override
     public Observable<ExoCollection> getCollection(String name) {
-        return Observable.create(s -> s.onNext(ExoCollection.create(database.getCollection(name))))
-                .subscribeOn(Schedulers.io()).cast(ExoCollection.class);
+        return io.execute(() -> createCollection(name));
+    }
+
+    private ExoCollection createCollection(String name) {
+        String namespace = database.getName() + '.' + name;
+        SyncCollectionIO io = pool == null ? new SyncCollectionIO(database.getCollection(name))
+                : new SyncCollectionIO(database.getCollection(name), pool.forCollection(namespace, limits.getCollectionConcurrency(name)));
+        IExoCollection collection = new IExoCollection(io, metrics, namespace);
+        return collections == null ? collection : collections.add(collection);
     }
 
     @Override
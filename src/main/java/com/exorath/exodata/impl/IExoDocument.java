@@ -16,14 +16,38 @@
 
 package com.exorath.exodata.impl;
 
+import com.exorath.exodata.api.BalanceEscrow;
+import com.exorath.exodata.api.DocumentChange;
+import com.exorath.exodata.api.DocumentEdit;
+import com.exorath.exodata.api.DocumentLease;
 import com.exorath.exodata.api.ExoDocument;
+import com.exorath.exodata.api.FetchStrategy;
+import com.exorath.exodata.api.Invalidation;
+import com.exorath.exodata.api.OperationType;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.ReadPreference;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.*;
 import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNumber;
+import org.bson.BsonString;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 import rx.Observable;
-import rx.schedulers.Schedulers;
+import rx.functions.Func0;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 import static com.mongodb.client.model.Filters.and;
 
@@ -31,14 +55,36 @@ import static com.mongodb.client.model.Filters.and;
  * Created by toonsev on 8/19/2016.
  */
 public class IExoDocument implements ExoDocument {
+    private static final int TYPED_WEIGHT = 1024;
+    private static final int DEFAULT_CAS_ATTEMPTS = 10;
+    private static final long MAX_CAS_BACKOFF_MILLIS = 100;
     private Object id;
-    private Document document;
+    private volatile CachedDocument cached;
+    private volatile Object typed;
+    private volatile boolean writeThrough;
+    private volatile FetchStrategy fetchStrategy;
+    private volatile String versionField;
+    private volatile IDocumentLease lease;
 
-    private MongoCollection collection;
+    private CollectionIO io;
+    private IExoCollection owner;
+    private SingleFlight<String, Document> fetches;
+    private volatile UpdateCoalescer coalescer;
 
     public IExoDocument(MongoCollection collection, Object id) {
+        this(new SyncCollectionIO(collection), id);
+    }
+
+    public IExoDocument(CollectionIO io, Object id) {
         this.id = id;
-        this.collection = collection;
+        this.io = io;
+        this.fetches = new SingleFlight<>();
+    }
+
+    IExoDocument(IExoCollection owner, Object id) {
+        this(owner.getIO(), id);
+        this.owner = owner;
+        this.fetches = owner.getFetches();
     }
 
     public Object getId() {
@@ -47,14 +93,60 @@ public class IExoDocument implements ExoDocument {
 
     @Override
     public MongoCollection getCollection() {
-        return collection;
+        return io.getMongoCollection();
     }
 
     @Override
     public Observable<Document> getCachedOrFetch() {
-        return document == null ? fetch() : Observable.create(s -> {
-            s.onNext(document);
-            s.onCompleted();
+        return Observable.defer(() -> {
+            IDocumentLease lease = getHeldLease();
+            if (lease != null)
+                return Observable.just(lease.getState());
+            CachedDocument cached = this.cached;
+            return cached == null ? fetch() : Observable.just(cached.getDocument());
+        });
+    }
+
+    @Override
+    public long getLong(String key) {
+        Number value = getCachedNumber(key);
+        return value == null ? 0 : value.longValue();
+    }
+
+    @Override
+    public double getDouble(String key) {
+        Number value = getCachedNumber(key);
+        return value == null ? 0 : value.doubleValue();
+    }
+
+    private Number getCachedNumber(String key) {
+        IDocumentLease lease = getHeldLease();
+        CachedDocument cached = lease != null ? new CachedDocument(lease.getState(), null) : this.cached;
+        if (cached == null || !cached.covers(key))
+            throw new IllegalStateException(key + " is not cached");
+        return cached.getNumber(key);
+    }
+
+    @Override
+    public Observable<Document> getCachedOrFetch(Bson projection) {
+        return Observable.defer(() -> {
+            List<String> paths = CachedDocument.paths(projection, io.getCodecRegistry());
+            IDocumentLease lease = getHeldLease();
+            if (lease != null)
+                return Observable.just(paths == null ? lease.getState() : new CachedDocument(lease.getState(), null).project(paths));
+            if (paths == null)
+                return projection == null ? getCachedOrFetch() : fetch(projection);
+            CachedDocument cached = this.cached;
+            List<String> missing = cached == null ? paths : cached.missing(paths);
+            if (missing.isEmpty())
+                return Observable.just(cached.project(paths));
+            return fetch(Projections.include(missing)).flatMap(fetched -> {
+                CachedDocument merged = CachedDocument.merge(cached, fetched, missing);
+                if (merged != null && merged.missing(paths).isEmpty())
+                    return Observable.just(merged.project(paths));
+                //Some paths go through arrays and can't be merged
+                return missing.size() == paths.size() ? Observable.just(fetched) : fetch(projection);
+            });
         });
     }
 
@@ -65,71 +157,661 @@ public class IExoDocument implements ExoDocument {
 
     @Override
     public Observable<Document> fetch(Bson projection) {
+        FetchStrategy strategy = getFetchStrategy();
+        Observable<Document> fetch = measure(OperationType.FETCH, projection, fetches.execute(getFetchKey(strategy, projection), () -> fetch(strategy, projection))
+                .doOnNext(fetched -> cacheFetched(fetched, projection)));
+        //The state of a held lease is authoritative
+        return Observable.defer(() -> getHeldLease() == null ? fetch : getCachedOrFetch(projection));
+    }
+
+    @Override
+    public Observable<RawBsonDocument> fetchRaw() {
+        return fetchRaw(null);
+    }
+
+    @Override
+    public Observable<RawBsonDocument> fetchRaw(Bson projection) {
+        Observable<RawBsonDocument> fetch = measure(OperationType.FETCH, projection, inLane(fetch(io, getIdQuery(), getFetchStrategy(), projection, RawBsonDocument.class))
+                .doOnNext(fetched -> {
+                    if (projection == null)
+                        cacheFetched(fetched);
+                }));
+        return Observable.defer(() -> getHeldLease() == null ? fetch : getCachedOrFetch(projection).map(document -> new RawBsonDocument(document, io.getCodecRegistry().get(Document.class))));
+    }
+
+    private Observable<Document> fetch(FetchStrategy strategy, Bson projection) {
+        return inLane(fetch(io, getIdQuery(), strategy, projection, Document.class));
+    }
+
+    /**
+     * Reads the document with the id query using the fetch strategy and decodes it into the result class.
+     */
+    static <T> Observable<T> fetch(CollectionIO io, Document idQuery, FetchStrategy strategy, Bson projection, Class<T> resultClass) {
+        switch (strategy) {
+            case FIND:
+                return io.findFirst(idQuery, projection, null, resultClass);
+            case FIND_SECONDARY:
+                return io.findFirst(idQuery, projection, ReadPreference.secondaryPreferred(), resultClass);
+            case LAZY_UPSERT:
+                return io.findFirst(idQuery, projection, null, resultClass).switchIfEmpty(fetchUpsert(io, idQuery, projection, resultClass));
+            default:
+                return fetchUpsert(io, idQuery, projection, resultClass);
+        }
+    }
+
+    private static <T> Observable<T> fetchUpsert(CollectionIO io, Document idQuery, Bson projection, Class<T> resultClass) {
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER).projection(projection);
+        return io.findOneAndUpdate(idQuery, Updates.setOnInsert("_id", idQuery.get("_id")), options, resultClass);
+    }
+
+    /**
+     * Concurrent fetches of this document with the same strategy and projection share a single database call.
+     */
+    String getFetchKey(FetchStrategy strategy, Bson projection) {
+        String key = strategy.name() + ':' + id.toString();
+        if (projection == null)
+            return key;
+        return key + projection.toBsonDocument(BsonDocument.class, io.getCodecRegistry()).toJson();
+    }
+
+    @Override
+    public ExoDocument fetchStrategy(FetchStrategy strategy) {
+        this.fetchStrategy = strategy;
+        return this;
+    }
+
+    @Override
+    public FetchStrategy getFetchStrategy() {
+        FetchStrategy strategy = fetchStrategy;
+        if (strategy == null)
+            strategy = owner == null ? FetchStrategy.UPSERT : owner.getFetchStrategy();
+        return strategy;
+    }
+
+    @Override
+    public ExoDocument versionField(String field) {
+        this.versionField = field;
+        return this;
+    }
+
+    @Override
+    public String getVersionField() {
+        String field = versionField;
+        return field != null || owner == null ? field : owner.getVersionField();
+    }
 
-        return Observable.create((subscriber -> {
-            FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER).projection(projection);
-            document = (Document) collection.findOneAndUpdate(getIdQuery(), Updates.setOnInsert("_id", getId().toString()), options);
-            if (document != null)
-                subscriber.onNext(document);
-            subscriber.onCompleted();
-        })).subscribeOn(Schedulers.io()).cast(Document.class);
+    @Override
+    public Observable<UpdateResult> compareAndUpdate(Function<Document, Bson> update) {
+        return compareAndUpdate(update, DEFAULT_CAS_ATTEMPTS);
+    }
+
+    @Override
+    public Observable<UpdateResult> compareAndUpdate(Function<Document, Bson> update, int maxAttempts) {
+        String field = getVersionField();
+        if (field == null)
+            throw new IllegalStateException("compareAndUpdate requires a version field, see versionField(String)");
+        if (maxAttempts < 1)
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        return compareAndUpdate(field, update, getCachedOrFetch(), 1, maxAttempts);
+    }
+
+    /**
+     * Builds the update from the read document and sends it conditioned on the version the document had. On a conflict the document is fetched again after a random, exponentially growing backoff.
+     */
+    private Observable<UpdateResult> compareAndUpdate(String field, Function<Document, Bson> update, Observable<Document> read, int attempt, int maxAttempts) {
+        return read.defaultIfEmpty(null).flatMap(document -> {
+            boolean missing = document == null;
+            Document current = missing ? new Document("_id", id.toString()) : document;
+            Bson built = update.apply(current);
+            if (built == null)
+                return Observable.empty();
+            Object version = current.get(field);
+            Bson query = and(getIdQuery(), version == null ? Filters.exists(field, false) : Filters.eq(field, version));
+            return update(query, built, missing)
+                    .onErrorResumeNext(error -> {
+                        //Another writer created the document first
+                        if (error instanceof MongoWriteException && ((MongoWriteException) error).getError().getCategory() == ErrorCategory.DUPLICATE_KEY)
+                            return Observable.just(UpdateResult.acknowledged(0, 0L, null));
+                        return Observable.error(error);
+                    })
+                    .flatMap(result -> {
+                        if (result.getMatchedCount() > 0 || result.getUpsertedId() != null || !result.wasAcknowledged() || attempt >= maxAttempts)
+                            return Observable.just(result);
+                        long backoff = ThreadLocalRandom.current().nextLong(1, Math.min(MAX_CAS_BACKOFF_MILLIS, 1L << attempt) + 1);
+                        return Observable.timer(backoff, TimeUnit.MILLISECONDS).flatMap(tick -> compareAndUpdate(field, update, fetch(), attempt + 1, maxAttempts));
+                    });
+        });
+    }
+
+    @Override
+    public Observable<DocumentChange> changes() {
+        if (owner == null)
+            return Observable.error(new IllegalStateException("changes requires a document of an ExoCollection"));
+        return Observable.defer(() -> owner.getChangeFeed().changes(this)).share();
+    }
+
+    /**
+     * Applies a change seen by the change source of the collection to the cached document. Nothing is cached if nothing was cached before.
+     * A change that comes with the whole document replaces the cache (unless the cached version is newer), an update is applied like a write-through and a change without either clears the cache.
+     */
+    synchronized void applyChange(DocumentChange change) {
+        CachedDocument cached = this.cached;
+        if (cached == null && typed == null)
+            return;
+        if (cached == null || change.getType() == DocumentChange.Type.DELETE) {
+            cache(null);
+            return;
+        }
+        Document document = change.getDocument();
+        if (document != null) {
+            String field = getVersionField();
+            Object cachedVersion = field == null ? null : cached.getDocument().get(field);
+            Object version = field == null ? null : document.get(field);
+            if (!cached.isPartial() && cachedVersion instanceof Number && version instanceof Number && ((Number) cachedVersion).doubleValue() > ((Number) version).doubleValue())
+                return;
+            cache(new CachedDocument(document, null));
+            return;
+        }
+        Document update = change.getUpdate();
+        if (update == null || !covers(cached, update)) {
+            cache(null);
+            return;
+        }
+        Document applied = LocalUpdate.apply(cached.getDocument(), update, false);
+        cache(applied == null ? null : new CachedDocument(applied, cached.getFields()));
+    }
+
+    /**
+     * Acquires the lease if the document is not leased, its lease expired or it's leased by the same holder (then the token is incremented as well and the previous lease is replaced).
+     * The lease is set with a conditional findOneAndUpdate, when the document is leased by another owner nothing matches and the upsert fails on the duplicate _id.
+     * A lease of the same holder on this node persists its state before it's replaced, see {@link IDocumentLease#handOver(Observable)}.
+     */
+    Observable<DocumentLease> acquireLease(String holder, long duration) {
+        Observable<DocumentLease> acquire = Observable.defer(() -> {
+            long now = System.currentTimeMillis();
+            String field = IDocumentLease.LEASE_FIELD;
+            Bson query = and(getIdQuery(), Filters.or(Filters.exists(field, false), Filters.lt(field + ".expires", now), Filters.eq(field + ".owner", holder)));
+            Bson update = Updates.combine(Updates.set(field + ".owner", holder), Updates.set(field + ".expires", now + duration), Updates.inc(field + ".token", 1L));
+            FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER);
+            return inLane(io.findOneAndUpdate(query, update, options))
+                    .onErrorResumeNext(error -> {
+                        //Leased by another holder
+                        if (error instanceof MongoException && ErrorCategory.fromErrorCode(((MongoException) error).getCode()) == ErrorCategory.DUPLICATE_KEY)
+                            return Observable.empty();
+                        return Observable.error(error);
+                    })
+                    .map(acquired -> {
+                        IDocumentLease lease = new IDocumentLease(this, io, holder, duration, acquired, now);
+                        attachLease(lease);
+                        return (DocumentLease) lease;
+                    });
+        });
+        return Observable.defer(() -> {
+            IDocumentLease current = this.lease;
+            return current != null && current.getOwner().equals(holder) ? current.handOver(acquire) : acquire;
+        });
+    }
+
+    private synchronized void attachLease(IDocumentLease lease) {
+        IDocumentLease previous = this.lease;
+        this.lease = lease;
+        if (previous != null)
+            previous.stop();
+        if (owner != null)
+            owner.pinLeased(this);
+    }
+
+    /**
+     * Detaches the lease if it's the current lease of this document, the cached document is cleared since it may not hold the changes of the lease.
+     */
+    synchronized void detachLease(IDocumentLease lease) {
+        if (this.lease != lease)
+            return;
+        this.lease = null;
+        cache(null);
+        if (owner != null)
+            owner.unpinLeased(this);
+    }
+
+    /**
+     * Releases the lease on this document if it's held, see {@link IExoCollection#shutdown()}.
+     *
+     * @return an observable that emits the UpdateResult of the release and completes (without emitting if no lease is held), or throws an error
+     */
+    Observable<UpdateResult> releaseLease() {
+        IDocumentLease lease = getHeldLease();
+        return lease == null ? Observable.empty() : lease.release();
+    }
+
+    /**
+     * @return the lease on this document if it's still held, or null
+     */
+    private IDocumentLease getHeldLease() {
+        IDocumentLease lease = this.lease;
+        return lease != null && lease.holds() ? lease : null;
     }
 
     @Override
     public Observable<UpdateResult> pop(String key, boolean first) {
-        return first ? update(Updates.popFirst(key), false) : update(Updates.popLast(key), false);
+        Bson update = first ? Updates.popFirst(key) : Updates.popLast(key);
+        return measure(OperationType.POP, update, write(update, false));
     }
 
     @Override
     public Observable<UpdateResult> set(String key, Object value) {
-        return update(Updates.set(key, value), true);
+        UpdateCoalescer coalescer = this.coalescer;
+        Bson update = Updates.set(key, value);
+        return measure(OperationType.SET, update, coalescer != null ? coalescer.set(key, value) : write(update, true));
     }
 
     @Override
     public Observable<UpdateResult> inc(String key, Number amount) {
-        return update(Updates.inc(key, amount), true);
+        WriteBehind writeBehind = owner == null ? null : owner.getWriteBehind();
+        Bson update = Updates.inc(key, amount);
+        if (writeBehind != null && getHeldLease() == null)
+            return evictingOffHeap(writeBehind.inc(id.toString(), key, amount).doOnNext(result -> writeThrough(update, result, true)));
+        UpdateCoalescer coalescer = this.coalescer;
+        return measure(OperationType.INC, update, coalescer != null ? coalescer.inc(key, amount) : write(update, true));
+    }
+
+    @Override
+    public Observable<UpdateResult> incInt(String key, int amount) {
+        return inc(key, new BsonInt32(amount));
+    }
+
+    @Override
+    public Observable<UpdateResult> incLong(String key, long amount) {
+        return inc(key, new BsonInt64(amount));
+    }
+
+    @Override
+    public Observable<UpdateResult> incDouble(String key, double amount) {
+        return inc(key, new BsonDouble(amount));
+    }
+
+    /**
+     * Increments with an update that's built as BSON directly. Write-behind and update coalescing merge amounts as numbers, only then the amount is boxed.
+     */
+    private Observable<UpdateResult> inc(String key, BsonNumber amount) {
+        if (coalescer != null || (owner != null && owner.getWriteBehind() != null))
+            return inc(key, toNumber(amount));
+        Bson update = incUpdate(key, amount);
+        return measure(OperationType.INC, update, write(update, true));
+    }
+
+    private static Number toNumber(BsonNumber amount) {
+        return amount.isInt32() ? amount.intValue() : amount.isInt64() ? (Number) amount.longValue() : amount.doubleValue();
+    }
+
+    private static BsonDocument incUpdate(String key, BsonNumber amount) {
+        return new BsonDocument("$inc", new BsonDocument(key, amount));
     }
 
     @Override
     public Observable<UpdateResult> decIfSufficient(String key, int amount) {
-        return incIfHas(key, Math.abs(amount), -amount);
+        return updateIfHas(key, new BsonInt32(Math.abs(amount)), incUpdate(key, new BsonInt32(-amount)));
     }
 
     @Override
     public Observable<UpdateResult> decIfSufficient(String key, long amount) {
-        return incIfHas(key, Math.abs(amount), -amount);
+        return updateIfHas(key, new BsonInt64(Math.abs(amount)), incUpdate(key, new BsonInt64(-amount)));
     }
 
     @Override
     public Observable<UpdateResult> decIfSufficient(String key, double amount) {
-        return incIfHas(key, Math.abs(amount), -amount);
+        return updateIfHas(key, new BsonDouble(Math.abs(amount)), incUpdate(key, new BsonDouble(-amount)));
     }
 
-    private Observable<UpdateResult> incIfHas(String key, Number has, Number increment) {
-        return update(and(getIdQuery(), Filters.gte(key, has)), Updates.inc(key, increment), false);
+    /**
+     * Sends the update only if the key holds at least the given amount, like {@link #decIfSufficient(String, long)} but with any update.
+     * The condition is built as BSON directly, like the update of {@link #incInt(String, int)}.
+     */
+    Observable<UpdateResult> updateIfHas(String key, BsonNumber has, Bson update) {
+        IDocumentLease lease = getHeldLease();
+        if (lease != null)
+            return measure(OperationType.DEC_IF_SUFFICIENT, update, lease.applyIfHas(key, has, update));
+        return measure(OperationType.DEC_IF_SUFFICIENT, update, afterCoalesced(() -> execute(and(getIdQuery(), hasQuery(key, has)), update, false, false)));
+    }
+
+    static BsonDocument hasQuery(String key, BsonNumber has) {
+        return new BsonDocument(key, new BsonDocument("$gte", has));
+    }
+
+    @Override
+    public Observable<DocumentEdit> edit() {
+        return getCachedOrFetch()
+                .map(document -> (DocumentEdit) new IDocumentEdit(this, document, false))
+                .switchIfEmpty(Observable.defer(() -> Observable.just(new IDocumentEdit(this, new Document("_id", id.toString()), true))));
+    }
+
+    @Override
+    public BalanceEscrow escrow(String key, long chunk, long leaseDuration, TimeUnit unit) {
+        IBalanceEscrow escrow = new IBalanceEscrow(this, key, chunk, unit.toMillis(leaseDuration));
+        if (owner != null)
+            owner.track(escrow);
+        return escrow;
     }
 
     @Override
     public Observable<UpdateResult> push(String key, Object value) {
-        return update(Updates.push(key, value), true);
+        UpdateCoalescer coalescer = this.coalescer;
+        Bson update = Updates.push(key, value);
+        return measure(OperationType.PUSH, update, coalescer != null ? coalescer.push(key, value) : write(update, true));
     }
 
     @Override
     public Observable<UpdateResult> remove(String key) {
-        return update(Updates.unset(key), false);
+        Bson update = Updates.unset(key);
+        return measure(OperationType.REMOVE, update, write(update, false));
     }
 
     @Override
     public Observable<UpdateResult> update(Bson update, boolean upsert) {
-        return update(getIdQuery(), update, upsert);
+        return measure(OperationType.UPDATE, update, write(update, upsert));
     }
 
     @Override
     public Observable<UpdateResult> update(Bson query, Bson update, boolean upsert) {
-        return Observable.create((subscriber -> {
-            subscriber.onNext(collection.updateOne(query, update, new UpdateOptions().upsert(upsert)));
-            subscriber.onCompleted();
-        })).subscribeOn(Schedulers.io()).cast(UpdateResult.class);
+        return measure(OperationType.UPDATE, update, afterCoalesced(() -> execute(query, update, upsert, false)));
+    }
+
+    private Observable<UpdateResult> write(Bson update, boolean upsert) {
+        return afterCoalesced(() -> execute(getIdQuery(), update, upsert, true));
+    }
+
+    /**
+     * Measures the operation if the DataAPI of this document has metrics enabled, otherwise the operation is returned as is.
+     */
+    <T> Observable<T> measure(OperationType type, Bson sent, Observable<T> operation) {
+        OperationMetrics metrics = owner == null ? null : owner.getMetrics(type);
+        if (metrics == null)
+            return operation;
+        return Metrics.measure(metrics, BsonSize.estimate(getIdQuery()) + BsonSize.estimate(sent, io.getCodecRegistry()), true, operation);
+    }
+
+    /**
+     * Sends the update once the pending coalesced updates are written, so it can't overtake them.
+     */
+    private Observable<UpdateResult> afterCoalesced(Func0<Observable<UpdateResult>> update) {
+        UpdateCoalescer coalescer = this.coalescer;
+        if (coalescer == null)
+            return update.call();
+        return Observable.defer(() -> coalescer.flush().ignoreElements().cast(UpdateResult.class).concatWith(Observable.defer(update)));
+    }
+
+    /**
+     * Sends the update to the database. Upserting updates that only query on the id may be batched by the bulk writer of the collection,
+     * conditional and non-upserting updates are always sent on their own so their matched count stays exact.
+     */
+    private Observable<UpdateResult> execute(Bson query, Bson sent, boolean upsert, boolean idOnly) {
+        return evictingOffHeap(send(query, sent, upsert, idOnly));
+    }
+
+    /**
+     * Removes the off-heap copy of this document when the write starts and when it terminates, so a copy that was spilled before or during the write is not taken back.
+     */
+    private <T> Observable<T> evictingOffHeap(Observable<T> write) {
+        if (owner == null)
+            return write;
+        String key = id.toString();
+        return write.doOnSubscribe(() -> owner.evictOffHeap(key)).doOnTerminate(() -> owner.evictOffHeap(key));
+    }
+
+    Observable<UpdateResult> send(Bson query, Bson sent, boolean upsert, boolean idOnly) {
+        IDocumentLease lease = getHeldLease();
+        if (lease != null)
+            return idOnly ? lease.apply(sent) : lease.remote(query, sent, upsert, false);
+        Bson update = versioned(sent);
+        BulkWriter bulkWriter = owner == null ? null : owner.getBulkWriter();
+        Observable<UpdateResult> result;
+        if (idOnly && upsert && bulkWriter != null)
+            result = bulkWriter.update(id.toString(), update);
+        else if (idOnly && update != sent && owner != null && owner.hasInvalidationBus())
+            return inLane(findAndUpdate(update, upsert));
+        else
+            result = io.updateOne(query, update, new UpdateOptions().upsert(upsert));
+        return inLane(result.doOnNext(updateResult -> {
+            writeThrough(update, updateResult, idOnly);
+            publish(updateResult, null, null);
+        }));
+    }
+
+    /**
+     * Sends an update that increments the version field with findOneAndUpdate, which returns the version the database had before the write.
+     * So the version after the write is known without trusting the cache, and the update is published with it.
+     * <p>
+     * findOneAndUpdate doesn't report counts, so the UpdateResult is derived from the document it returned: a returned document matched and was modified (the update increments its version),
+     * no returned document with upsert means it was inserted with the _id of the id query, otherwise nothing matched.
+     */
+    private Observable<UpdateResult> findAndUpdate(Bson update, boolean upsert) {
+        String field = getVersionField();
+        FindOneAndUpdateOptions options = new FindOneAndUpdateOptions().upsert(upsert).projection(Projections.include(field)).returnDocument(ReturnDocument.BEFORE);
+        return io.findOneAndUpdate(getIdQuery(), update, options).firstOrDefault(null).map(found -> {
+            //The previous document always has its _id, some servers return an empty document instead of null after an upsert (fe. Fongo)
+            Document previous = found == null || found.get("_id") == null ? null : found;
+            UpdateResult result;
+            if (previous != null)
+                result = UpdateResult.acknowledged(1, 1L, null);
+            else
+                result = upsert ? UpdateResult.acknowledged(0, 0L, new BsonString(id.toString())) : UpdateResult.acknowledged(0, 0L, null);
+            writeThrough(update, result, true);
+            Number version = previous == null ? null : increment(previous.get(field));
+            if (previous == null && upsert)
+                version = 1;
+            publish(result, version, update);
+            return result;
+        });
+    }
+
+    /**
+     * @return the version after an $inc of 1 on the given version, or null if the version isn't a number the database increments (then the write failed anyway)
+     */
+    private static Number increment(Object version) {
+        if (version == null)
+            return 1;
+        if (version instanceof Integer)
+            return (Integer) version + 1;
+        if (version instanceof Long)
+            return (Long) version + 1;
+        if (version instanceof Double)
+            return (Double) version + 1;
+        return null;
+    }
+
+    /**
+     * Publishes the written update on the invalidation bus of the collection.
+     *
+     * @param version the version after the write as returned by the database, or null to only publish an eviction
+     * @param update  the written update, only published with a version
+     */
+    void publish(UpdateResult result, Number version, Bson update) {
+        if (owner == null || result.wasAcknowledged() && result.getMatchedCount() == 0 && result.getUpsertedId() == null)
+            return;
+        owner.publish(id.toString(), version, version == null ? null : LocalUpdate.decode(update, io.getCodecRegistry()));
+    }
+
+    /**
+     * Applies an invalidation of another node to the cached document. The update is only applied if this document has the version right before the write, otherwise the cache is cleared.
+     */
+    synchronized void applyInvalidation(Invalidation invalidation) {
+        CachedDocument cached = this.cached;
+        if (cached == null && typed == null)
+            return;
+        String field = getVersionField();
+        Number version = invalidation.getVersion();
+        Document update = invalidation.getUpdate();
+        if (cached == null || field == null || version == null || update == null || !cached.covers(field) || !covers(cached, update)) {
+            cache(null);
+            return;
+        }
+        Object cachedVersion = cached.getDocument().get(field);
+        if (!(cachedVersion instanceof Number) || ((Number) cachedVersion).doubleValue() + 1 != version.doubleValue()) {
+            cache(null);
+            return;
+        }
+        Document applied = LocalUpdate.apply(cached.getDocument(), update, false);
+        cache(applied == null ? null : new CachedDocument(applied, cached.getFields()));
+    }
+
+    /**
+     * Adds an increment of the version field to the update, unless the update changes the version field itself or there is no version field.
+     */
+    Bson versioned(Bson update) {
+        String field = getVersionField();
+        if (field == null)
+            return update;
+        BsonDocument versioned = update.toBsonDocument(BsonDocument.class, io.getCodecRegistry()).clone();
+        for (BsonValue operator : versioned.values())
+            if (operator.isDocument())
+                for (String path : operator.asDocument().keySet())
+                    if (path.equals(field) || path.startsWith(field + '.') || field.startsWith(path + '.'))
+                        return update;
+        BsonDocument inc = versioned.containsKey("$inc") ? versioned.getDocument("$inc") : new BsonDocument();
+        inc.put(field, new BsonInt32(1));
+        versioned.put("$inc", inc);
+        return versioned;
+    }
+
+    /**
+     * Runs the operation in the lane of this document if the collection has ordered lanes, so it's sent after all operations on this document that were subscribed to before.
+     */
+    <T> Observable<T> inLane(Observable<T> operation) {
+        if (owner == null)
+            return operation;
+        return Observable.defer(() -> {
+            OrderedLanes lanes = owner.getLanes();
+            return lanes == null ? operation : lanes.run(id.toString(), operation);
+        });
+    }
+
+    /**
+     * Applies an update that was confirmed by the database to the cached document.
+     * If the update can't be applied exactly (fe. the cache only holds a projection or an unsupported operator was used) the cache is cleared instead.
+     */
+    private synchronized void writeThrough(Bson update, UpdateResult result, boolean idOnly) {
+        if (!writeThrough)
+            return;
+        CachedDocument cached = this.cached;
+        boolean inserted = result.wasAcknowledged() && result.getUpsertedId() != null;
+        if (!result.wasAcknowledged() || (inserted && !idOnly)) {
+            cache(null);
+            return;
+        }
+        if (!inserted && (cached == null || result.getMatchedCount() == 0))
+            return;
+        Document decoded = LocalUpdate.decode(update, io.getCodecRegistry());
+        if (inserted) {
+            Document applied = LocalUpdate.apply(new Document("_id", id.toString()), decoded, true);
+            cache(applied == null ? null : new CachedDocument(applied, null));
+            return;
+        }
+        if (!covers(cached, decoded)) {
+            cache(null);
+            return;
+        }
+        Document applied = LocalUpdate.apply(cached.getDocument(), decoded, false);
+        cache(applied == null ? null : new CachedDocument(applied, cached.getFields()));
+    }
+
+    /**
+     * A view can only be updated exactly if it holds every updated field.
+     */
+    private static boolean covers(CachedDocument cached, Document update) {
+        if (!cached.isPartial())
+            return true;
+        for (Object operator : update.values())
+            if (!(operator instanceof Document) || !((Document) operator).keySet().stream().allMatch(cached::covers))
+                return false;
+        return true;
+    }
+
+    @Override
+    public ExoDocument writeThrough(boolean enabled) {
+        this.writeThrough = enabled;
+        return this;
+    }
+
+    @Override
+    public ExoDocument coalesce(long window, TimeUnit unit, int maxUpdates) {
+        UpdateCoalescer previous = coalescer;
+        coalescer = new UpdateCoalescer(update -> execute(getIdQuery(), update, true, true), window, unit, maxUpdates);
+        if (previous != null)
+            previous.flush();
+        return this;
+    }
+
+    @Override
+    public ExoDocument disableCoalescing() {
+        UpdateCoalescer previous = coalescer;
+        coalescer = null;
+        if (previous != null)
+            previous.flush();
+        return this;
+    }
+
+    /**
+     * Caches a fetched document. A document fetched with an inclusion projection is merged into the cached view, other projections are not cached.
+     */
+    synchronized void cacheFetched(Document fetched, Bson projection) {
+        if (projection == null) {
+            cache(new CachedDocument(fetched, null));
+            return;
+        }
+        List<String> paths = CachedDocument.paths(projection, io.getCodecRegistry());
+        if (paths != null)
+            cache(CachedDocument.merge(cached, fetched, paths));
+    }
+
+    /**
+     * Caches a document before this ExoDocument is added to the document cache (so it's not reweighed).
+     */
+    void seed(CachedDocument cached) {
+        this.cached = cached;
+    }
+
+    CachedDocument getCached() {
+        return cached;
+    }
+
+    CollectionIO getIO() {
+        return io;
+    }
+
+    /**
+     * Caches a document fetched with {@link #fetchRaw()}, it stays encoded until it's read from the cache.
+     */
+    synchronized void cacheFetched(RawBsonDocument fetched) {
+        cache(new CachedDocument(fetched, io.getCodecRegistry().get(Document.class)));
+    }
+
+    private void cache(CachedDocument cached) {
+        this.cached = cached;
+        this.typed = null;
+        if (owner != null)
+            owner.reweigh(this);
+    }
+
+    /**
+     * Caches the document decoded by an {@link IExoTypedDocument}, it's cleared whenever the untyped document is cached (fe. by a fetch or write-through).
+     */
+    void cacheTyped(Object typed) {
+        this.typed = typed;
+        if (owner != null)
+            owner.reweigh(this);
+    }
+
+    <T> T getTyped(Class<T> type) {
+        Object typed = this.typed;
+        return type.isInstance(typed) ? type.cast(typed) : null;
+    }
+
+    /**
+     * Gets the estimated amount of bytes this document keeps in memory (mostly the cached document).
+     * The size of a typed document is unknown without encoding it, it's counted as {@link #TYPED_WEIGHT} bytes.
+     */
+    int getWeight() {
+        CachedDocument cached = this.cached;
+        return 64 + id.toString().length() + (cached == null ? 0 : cached.getSize()) + (typed == null ? 0 : TYPED_WEIGHT);
     }
 
     public Document getIdQuery() {
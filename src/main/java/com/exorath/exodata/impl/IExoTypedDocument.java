@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.ExoDocument;
+import com.exorath.exodata.api.ExoTypedDocument;
+import com.exorath.exodata.api.FetchStrategy;
+import com.exorath.exodata.api.OperationType;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.EncoderContext;
+import org.bson.conversions.Bson;
+import rx.Observable;
+
+/**
+ * Decodes fetches straight into the type with the codec of the collection's registry, and encodes typed values before they're written through the untyped document.
+ * The decoded document is cached on the untyped document. A held lease is not consulted, fetches read the database like the document was not leased.
+ */
+public class IExoTypedDocument<T> implements ExoTypedDocument<T> {
+    private final IExoDocument document;
+    private final Class<T> type;
+    private final CollectionIO io;
+    private final SingleFlight<String, Object> fetches;
+
+    /**
+     * @param document the untyped document with the same id, writes go through this document and the decoded document is cached on it
+     * @param io       the IO of the collection with a codec registry that can decode the type
+     * @param fetches  the typed fetches of the collection
+     */
+    IExoTypedDocument(IExoDocument document, Class<T> type, CollectionIO io, SingleFlight<String, Object> fetches) {
+        this.document = document;
+        this.type = type;
+        this.io = io;
+        this.fetches = fetches;
+    }
+
+    @Override
+    public Object getId() {
+        return document.getId();
+    }
+
+    @Override
+    public Class<T> getType() {
+        return type;
+    }
+
+    @Override
+    public Observable<T> fetch() {
+        return fetch(null);
+    }
+
+    @Override
+    public Observable<T> fetch(Bson projection) {
+        FetchStrategy strategy = document.getFetchStrategy();
+        String key = type.getName() + '/' + document.getFetchKey(strategy, projection);
+        Observable<T> fetch = fetches.execute(key, () -> document.inLane(IExoDocument.fetch(io, document.getIdQuery(), strategy, projection, type)).cast(Object.class)).cast(type);
+        return document.measure(OperationType.FETCH, projection, fetch.doOnNext(fetched -> {
+            if (projection == null)
+                document.cacheTyped(fetched);
+        }));
+    }
+
+    @Override
+    public Observable<T> getCachedOrFetch() {
+        return Observable.defer(() -> {
+            T cached = document.getTyped(type);
+            return cached == null ? fetch() : Observable.just(cached);
+        });
+    }
+
+    @Override
+    public Observable<UpdateResult> set(String key, Object value) {
+        return document.set(key, encode(value));
+    }
+
+    @Override
+    public Observable<UpdateResult> set(T value) {
+        BsonDocument fields = new BsonDocument();
+        BsonDocumentWriter writer = new BsonDocumentWriter(fields);
+        io.getCodecRegistry().get(type).encode(writer, value, EncoderContext.builder().build());
+        fields.remove("_id");
+        if (fields.isEmpty())
+            return document.update(new BsonDocument("$setOnInsert", new BsonDocument("_id", new BsonString(getId().toString()))), true);
+        return document.update(new BsonDocument("$set", fields), true);
+    }
+
+    @Override
+    public Observable<UpdateResult> inc(String key, Number amount) {
+        return document.inc(key, amount);
+    }
+
+    @Override
+    public Observable<UpdateResult> push(String key, Object value) {
+        return document.push(key, encode(value));
+    }
+
+    @Override
+    public Observable<UpdateResult> remove(String key) {
+        return document.remove(key);
+    }
+
+    @Override
+    public ExoDocument untyped() {
+        return document;
+    }
+
+    /**
+     * Encodes the value with the typed codec registry, the result can be sent with any registry. Wrapping the value in a Document lets the Document codec handle lists and maps.
+     */
+    private BsonValue encode(Object value) {
+        if (value == null || value instanceof BsonValue)
+            return (BsonValue) value;
+        BsonDocument wrapper = new BsonDocument();
+        io.getCodecRegistry().get(Document.class).encode(new BsonDocumentWriter(wrapper), new Document("v", value), EncoderContext.builder().build());
+        return wrapper.get("v");
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import rx.Observable;
+import rx.functions.Func0;
+
+/**
+ * Runs blocking calls of the sync MongoDB driver off the subscribing thread.
+ */
+public interface IOExecutor {
+
+    /**
+     * Creates a cold observable that runs the blocking call once subscribed to. A null result completes the observable without emitting.
+     */
+    <T> Observable<T> execute(Func0<T> call);
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the io queue wait and driver time of a database call to the metrics of the operation that made it.
+ * The executors publish the timing on the emitting thread for as long as the result is being emitted, an operation picks it up while it receives the result.
+ * Operators in between run synchronously, so this works without passing the timing through every observable. Results that are replayed later (fe. to late single flight subscribers) have no timing.
+ * Timing is only measured while at least one DataAPI has metrics enabled.
+ */
+public class IOTiming {
+    private static final AtomicInteger TRACKING = new AtomicInteger();
+    private static final ThreadLocal<IOTiming> CURRENT = ThreadLocal.withInitial(IOTiming::new);
+
+    private boolean active;
+    private long queueWait;
+    private long driverTime;
+
+    public static boolean isTracking() {
+        return TRACKING.get() > 0;
+    }
+
+    static void startTracking() {
+        TRACKING.incrementAndGet();
+    }
+
+    static void stopTracking() {
+        TRACKING.decrementAndGet();
+    }
+
+    /**
+     * Runs the emission of a call's result with the call's timing published on this thread.
+     */
+    public static void emit(long queueWait, long driverTime, Runnable emission) {
+        IOTiming timing = CURRENT.get();
+        boolean wasActive = timing.active;
+        long previousQueueWait = timing.queueWait;
+        long previousDriverTime = timing.driverTime;
+        timing.active = true;
+        timing.queueWait = queueWait;
+        timing.driverTime = driverTime;
+        try {
+            emission.run();
+        } finally {
+            timing.active = wasActive;
+            timing.queueWait = previousQueueWait;
+            timing.driverTime = previousDriverTime;
+        }
+    }
+
+    /**
+     * @return the timing of the call whose result is being emitted on this thread, or null if there is none
+     */
+    static IOTiming current() {
+        IOTiming timing = CURRENT.get();
+        return timing.active ? timing : null;
+    }
+
+    long getQueueWait() {
+        return queueWait;
+    }
+
+    long getDriverTime() {
+        return driverTime;
+    }
+}
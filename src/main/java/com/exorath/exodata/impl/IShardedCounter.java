@@ -0,0 +1,140 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.OperationType;
+import com.exorath.exodata.api.ShardedCounter;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Increments a random (or the pinned) shard document of the collection, the total is the sum of the shards found with one $in query.
+ * A refresh that fails is logged and marks the cached total as stale, so the next cached read fetches (and fails) instead of serving it.
+ */
+public class IShardedCounter implements ShardedCounter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(IShardedCounter.class);
+    static final String COUNT_FIELD = "count";
+    private final IExoCollection collection;
+    private final Object id;
+    private final List<String> shardIds;
+    private volatile int pinnedShard = -1;
+    private volatile Long total;
+    private volatile boolean stale;
+    private Subscription refreshing;
+
+    public IShardedCounter(IExoCollection collection, Object id, int shards) {
+        if (shards < 1)
+            throw new IllegalArgumentException("shards must be at least 1");
+        this.collection = collection;
+        this.id = id;
+        this.shardIds = new ArrayList<>(shards);
+        for (int shard = 0; shard < shards; shard++)
+            shardIds.add(getShardId(id, shard));
+    }
+
+    @Override
+    public Object getId() {
+        return id;
+    }
+
+    @Override
+    public int getShards() {
+        return shardIds.size();
+    }
+
+    @Override
+    public Observable<UpdateResult> inc(long amount) {
+        return Observable.defer(() -> {
+            int shard = pinnedShard;
+            if (shard < 0)
+                shard = ThreadLocalRandom.current().nextInt(shardIds.size());
+            return collection.getDocument(shardIds.get(shard)).inc(COUNT_FIELD, amount);
+        });
+    }
+
+    @Override
+    public ShardedCounter pinShard(Object node) {
+        pinnedShard = node == null ? -1 : Math.floorMod(node.hashCode(), shardIds.size());
+        return this;
+    }
+
+    @Override
+    public Observable<Long> fetchTotal() {
+        Bson query = Filters.in("_id", shardIds);
+        Observable<Long> fetchTotal = collection.getIO().find(query, Projections.include(COUNT_FIELD), null)
+                .reduce(0L, (total, shard) -> total + getCount(shard))
+                .doOnNext(total -> {
+                    this.total = total;
+                    stale = false;
+                });
+        OperationMetrics metrics = collection.getMetrics(OperationType.FETCH_ALL);
+        if (metrics == null)
+            return fetchTotal;
+        return Metrics.measure(metrics, BsonSize.estimate(query, collection.getIO().getCodecRegistry()), true, fetchTotal);
+    }
+
+    @Override
+    public Observable<Long> getCachedTotalOrFetch() {
+        return Observable.defer(() -> {
+            Long total = this.total;
+            return total == null || stale ? fetchTotal() : Observable.just(total);
+        });
+    }
+
+    @Override
+    public synchronized ShardedCounter enableTotalRefresh(long interval, TimeUnit unit) {
+        if (refreshing != null)
+            refreshing.unsubscribe();
+        refreshing = Observable.interval(0, interval, unit)
+                .onBackpressureDrop()
+                .concatMap(tick -> fetchTotal().onErrorResumeNext(error -> {
+                    LOGGER.warn("Failed to refresh the total of sharded counter {}", id, error);
+                    stale = true;
+                    return Observable.empty();
+                }))
+                .subscribe();
+        return this;
+    }
+
+    @Override
+    public synchronized ShardedCounter disableTotalRefresh() {
+        if (refreshing != null)
+            refreshing.unsubscribe();
+        refreshing = null;
+        return this;
+    }
+
+    private static long getCount(Document shard) {
+        Object count = shard.get(COUNT_FIELD);
+        return count instanceof Number ? ((Number) count).longValue() : 0;
+    }
+
+    static String getShardId(Object id, int shard) {
+        return id.toString() + '#' + shard;
+    }
+}
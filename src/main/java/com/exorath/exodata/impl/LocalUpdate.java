@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.exorath.exodata.impl;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Applies MongoDB update operators ($set, $setOnInsert, $unset, $inc, $push and $pop) to a local {@link Document}, supporting dotted paths.
+ * The given document is never modified: the root and every nested document or array along an updated path are copied (copy on write), so documents that were handed out before stay untouched.
+ */
+public class LocalUpdate {
+
+    /**
+     * Decodes an update (fe. one created with {@link com.mongodb.client.model.Updates}) into a plain {@link Document}.
+     */
+    public static Document decode(Bson update, CodecRegistry registry) {
+        BsonDocument bsonDocument = update.toBsonDocument(BsonDocument.class, registry);
+        return registry.get(Document.class).decode(new BsonDocumentReader(bsonDocument), DecoderContext.builder().build());
+    }
+
+    /**
+     * Applies the update to a copy of the document.
+     *
+     * @param document the document to update, this document will not be modified
+     * @param update   the decoded update
+     * @param inserted whether or not the update created the document (only then $setOnInsert is applied)
+     * @return the updated copy, or null if the update contains something that can't be applied locally
+     */
+    public static Document apply(Document document, Document update, boolean inserted) {
+        Document root = new Document(document);
+        for (Map.Entry<String, Object> operator : update.entrySet()) {
+            if (!(operator.getValue() instanceof Document))
+                return null;
+            for (Map.Entry<String, Object> field : ((Document) operator.getValue()).entrySet())
+                if (!apply(root, operator.getKey(), field.getKey(), field.getValue(), inserted))
+                    return null;
+        }
+        return root;
+    }
+
+    private static boolean apply(Document root, String operator, String key, Object value, boolean inserted) {
+        String[] path = key.split("\\.");
+        String last = path[path.length - 1];
+        switch (operator) {
+            case "$setOnInsert":
+            case "$set": {
+                //$setOnInsert is a $set that is only applied when the update created the document
+                if (operator.equals("$setOnInsert") && !inserted)
+                    return true;
+                Object container = container(root, path, true);
+                return container != null && put(container, last, value);
+            }
+            case "$unset": {
+                Object container = container(root, path, false);
+                if (container instanceof Document)
+                    ((Document) container).remove(last);
+                else if (container instanceof List && index(last) >= 0 && index(last) < ((List<?>) container).size())
+                    copiedList(container).set(index(last), null);
+                return true;
+            }
+            case "$inc": {
+                Object container = container(root, path, true);
+                if (container == null || !(value instanceof Number))
+                    return false;
+                Object current = get(container, last);
+                if (current == null)
+                    return put(container, last, value);
+                return current instanceof Number && put(container, last, UpdateCoalescer.add((Number) current, (Number) value));
+            }
+            case "$push": {
+                Object container = container(root, path, true);
+                if (container == null)
+                    return false;
+                Object current = get(container, last);
+                if (current != null && !(current instanceof List))
+                    return false;
+                List<Object> list = current == null ? new ArrayList<>() : new ArrayList<Object>((List<?>) current);
+                if (value instanceof Document && ((Document) value).containsKey("$each")) {
+                    if (((Document) value).size() != 1)
+                        return false;//$position, $slice and $sort are not supported
+                    list.addAll((List<?>) ((Document) value).get("$each"));
+                } else
+                    list.add(value);
+                return put(container, last, list);
+            }
+            case "$pop": {
+                Object container = container(root, path, false);
+                Object current = container == null ? null : get(container, last);
+                if (current == null)
+                    return true;
+                if (!(current instanceof List) || !(value instanceof Number))
+                    return false;
+                List<Object> list = new ArrayList<Object>((List<?>) current);
+                if (!list.isEmpty())
+                    list.remove(((Number) value).intValue() < 0 ? 0 : list.size() - 1);
+                return put(container, last, list);
+            }
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Walks the path (except for the last key) and copies every document or array on the way.
+     *
+     * @return the (copied) document or array that holds the last key of the path, or null if it does not exist and should not be created
+     */
+    private static Object container(Document root, String[] path, boolean create) {
+        Object current = root;
+        for (int i = 0; i < path.length - 1; i++) {
+            Object child = get(current, path[i]);
+            if (child == null) {
+                if (!create)
+                    return null;
+                child = new Document();
+            } else if (child instanceof Document)
+                child = new Document((Document) child);
+            else if (child instanceof List)
+                child = new ArrayList<Object>((List<?>) child);
+            else
+                return null;
+            if (!put(current, path[i], child))
+                return null;
+            current = child;
+        }
+        return current;
+    }
+
+    private static Object get(Object container, String key) {
+        if (container instanceof Document)
+            return ((Document) container).get(key);
+        int index = index(key);
+        List<?> list = (List<?>) container;
+        return index >= 0 && index < list.size() ? list.get(index) : null;
+    }
+
+    private static boolean put(Object container, String key, Object value) {
+        if (container instanceof Document) {
+            ((Document) container).put(key, value);
+            return true;
+        }
+        int index = index(key);
+        if (index < 0)
+            return false;
+        List<Object> list = copiedList(container);
+        while (list.size() <= index)
+            list.add(null);
+        list.set(index, value);
+        return true;
+    }
+
+    /**
+     * The lists on the path are the copies {@link #container(Document, String[], boolean)} made, so they're lists of objects.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Object> copiedList(Object container) {
+        return (List<Object>) container;
+    }
+
+    private static int index(String key) {
+        try {
+            return Integer.parseInt(key);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
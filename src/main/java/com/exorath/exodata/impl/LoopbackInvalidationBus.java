@@ -0,0 +1,45 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.Invalidation;
+import com.exorath.exodata.api.InvalidationBus;
+import rx.Observable;
+import rx.subjects.PublishSubject;
+import rx.subjects.SerializedSubject;
+import rx.subjects.Subject;
+
+/**
+ * An {@link InvalidationBus} within the JVM, see {@link InvalidationBus#loopback()}.
+ */
+public class LoopbackInvalidationBus implements InvalidationBus {
+    private final Subject<Invalidation, Invalidation> invalidations = new SerializedSubject<>(PublishSubject.create());
+
+    @Override
+    public void publish(Invalidation invalidation) {
+        invalidations.onNext(invalidation);
+    }
+
+    @Override
+    public Observable<Invalidation> getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public void close() {
+        invalidations.onCompleted();
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.MetricsReporter;
+import com.exorath.exodata.api.MetricsSnapshot;
+import com.exorath.exodata.api.OperationStats;
+import com.exorath.exodata.api.OperationType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The metrics of a DataAPI, shared by all its collections. While disabled {@link #get(String, OperationType)} returns null and operations are not wrapped at all.
+ */
+public class Metrics {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+    private static final OperationType[] TYPES = OperationType.values();
+
+    private volatile ConcurrentMap<String, AtomicReferenceArray<OperationMetrics>> collections;
+    private Subscription reporting;
+
+    /**
+     * Starts measuring with empty counters (counters of a previous enable are dropped).
+     *
+     * @param reporter the reporter to send snapshots to, or null to only take snapshots with {@link #snapshot()}
+     */
+    public synchronized void enable(MetricsReporter reporter, long interval, TimeUnit unit) {
+        if (collections == null)
+            IOTiming.startTracking();
+        collections = new ConcurrentHashMap<>();
+        if (reporting != null)
+            reporting.unsubscribe();
+        reporting = reporter == null ? null : Observable.interval(interval, interval, unit).subscribe(tick -> {
+            MetricsSnapshot snapshot = snapshot();
+            if (snapshot == null)
+                return;
+            //A failing reporter should not stop the next reports
+            try {
+                reporter.report(snapshot);
+            } catch (RuntimeException e) {
+                LOGGER.error("Metrics reporter {} failed", reporter, e);
+            }
+        });
+    }
+
+    public synchronized void disable() {
+        if (collections != null)
+            IOTiming.stopTracking();
+        collections = null;
+        if (reporting != null)
+            reporting.unsubscribe();
+        reporting = null;
+    }
+
+    public boolean isEnabled() {
+        return collections != null;
+    }
+
+    /**
+     * @param collection the full name of the collection (database.collection)
+     * @return the metrics of the operation type on the collection, or null if metrics are disabled
+     */
+    public OperationMetrics get(String collection, OperationType type) {
+        ConcurrentMap<String, AtomicReferenceArray<OperationMetrics>> collections = this.collections;
+        if (collections == null)
+            return null;
+        AtomicReferenceArray<OperationMetrics> operations = collections.computeIfAbsent(collection, name -> new AtomicReferenceArray<>(TYPES.length));
+        OperationMetrics metrics = operations.get(type.ordinal());
+        if (metrics == null) {
+            operations.compareAndSet(type.ordinal(), null, new OperationMetrics(collection, type));
+            metrics = operations.get(type.ordinal());
+        }
+        return metrics;
+    }
+
+    /**
+     * @return a snapshot of all measured operations, or null if metrics are disabled
+     */
+    public MetricsSnapshot snapshot() {
+        ConcurrentMap<String, AtomicReferenceArray<OperationMetrics>> collections = this.collections;
+        if (collections == null)
+            return null;
+        List<OperationStats> operations = new ArrayList<>();
+        collections.values().forEach(collection -> {
+            for (int i = 0; i < collection.length(); i++)
+                if (collection.get(i) != null)
+                    operations.add(collection.get(i).snapshot());
+        });
+        return new MetricsSnapshot(System.currentTimeMillis(), operations);
+    }
+
+    /**
+     * Measures every subscription to the operation: the latency, errors, received documents and the io timing of the database call that produced the first result (see {@link IOTiming}).
+     *
+     * @param single whether the operation emits at most one item, its latency is then taken when the item arrives (subscribers often unsubscribe right after it, fe. with first()).
+     *               Otherwise the latency is taken when the operation terminates.
+     */
+    static <T> Observable<T> measure(OperationMetrics metrics, long bytesSent, boolean single, Observable<T> operation) {
+        return Observable.defer(() -> {
+            long start = System.nanoTime();
+            boolean[] timed = new boolean[1];
+            boolean[] done = new boolean[1];
+            metrics.recordSent(bytesSent);
+            return operation.doOnEach(notification -> {
+                IOTiming timing = IOTiming.current();
+                if (timing != null && !timed[0]) {
+                    timed[0] = true;
+                    metrics.recordIO(timing);
+                }
+                if (notification.isOnNext() && notification.getValue() instanceof Document)
+                    metrics.recordReceived(BsonSize.estimate(notification.getValue()));
+                else if (notification.isOnNext() && notification.getValue() instanceof RawBsonDocument)
+                    metrics.recordReceived(((RawBsonDocument) notification.getValue()).getByteBuffer().remaining());
+                if ((single || !notification.isOnNext()) && !done[0]) {
+                    done[0] = true;
+                    metrics.recordLatency(System.nanoTime() - start, notification.isOnError());
+                }
+            });
+        });
+    }
+}
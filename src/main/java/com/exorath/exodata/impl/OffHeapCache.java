@@ -0,0 +1,295 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.CacheStats;
+import org.bson.RawBsonDocument;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Keeps encoded documents outside of the heap, in a ring of slabs (direct or memory-mapped buffers). Documents are appended to the newest slab,
+ * when it's full the oldest slab is emptied and reused, so eviction is first in first out by byte budget.
+ * <p>
+ * An entry is [short idLength][id (UTF-8)][long expires (System.nanoTime)][BSON document], the index maps the 64-bit hash of an id to the location of its entry (slab sequence &lt;&lt; 32 | offset).
+ * The index is an open addressing table of longs, so it holds no objects per entry. Entries in a reused slab are detected by their sequence and removed lazily.
+ * Ids with the same hash replace each other's entry, the id in the entry is compared on every read. Expired entries are removed when they're taken.
+ */
+public class OffHeapCache {
+    static final int SLABS = 8;
+    private static final long EMPTY = 0;
+    private final ByteBuffer[] slabs = new ByteBuffer[SLABS];
+    private final int[] slabEntries = new int[SLABS];
+    private final long[] slabBytes = new long[SLABS];
+    private final int slabSize;
+    private final File[] files;
+    private long[] hashes = new long[1024];
+    private long[] locations = new long[1024];
+    private int size;
+    private int sequence;
+    private int offset;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long evictedBytes;
+
+    /**
+     * @param maxBytes  the amount of bytes the slabs take up together
+     * @param directory the directory to create memory-mapped slab files in, or null to use direct buffers
+     */
+    public OffHeapCache(long maxBytes, File directory) {
+        if (maxBytes < SLABS * 1024L)
+            throw new IllegalArgumentException("maxBytes must be at least " + SLABS * 1024);
+        this.slabSize = (int) Math.min(Integer.MAX_VALUE, maxBytes / SLABS);
+        this.files = directory == null ? null : new File[SLABS];
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+            throw new UncheckedIOException(new IOException("Could not create " + directory));
+        for (int i = 0; i < SLABS; i++)
+            slabs[i] = directory == null ? ByteBuffer.allocateDirect(slabSize) : map(files[i] = new File(directory, "slab-" + i + ".bin"));
+    }
+
+    private ByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, slabSize);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Stores the encoded document, replacing a previous entry of the id. Documents that don't fit in a slab are not stored.
+     *
+     * @param document the BSON bytes between the position and limit of the buffer, the buffer is not modified
+     * @param expires  the {@link System#nanoTime()} after which the document may not be taken anymore
+     */
+    public synchronized void put(String id, ByteBuffer document, long expires) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int length = 2 + idBytes.length + 8 + document.remaining();
+        if (idBytes.length > Short.MAX_VALUE || length > slabSize)
+            return;
+        remove(id);
+        if (offset + length > slabSize)
+            rotate();
+        ByteBuffer slab = slabs[sequence % SLABS].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        slab.position(offset);
+        slab.putShort((short) idBytes.length).put(idBytes).putLong(expires).put(document.duplicate());
+        insert(hash(id), (long) sequence << 32 | offset);
+        slabEntries[sequence % SLABS]++;
+        slabBytes[sequence % SLABS] += length;
+        offset += length;
+    }
+
+    /**
+     * Removes the entry of the id and copies it onto the heap.
+     *
+     * @return the document, or null if it's not cached (or expired)
+     */
+    public synchronized RawBsonDocument take(String id) {
+        int slot = find(id);
+        if (slot < 0) {
+            misses++;
+            return null;
+        }
+        ByteBuffer entry = entry(locations[slot]);
+        entry.position(entry.position() + 2 + entry.getShort(entry.position()));
+        if (System.nanoTime() - entry.getLong() > 0) {
+            evictions++;
+            evictedBytes += 2 + id.getBytes(StandardCharsets.UTF_8).length + 8 + entry.getInt(entry.position());
+            delete(slot);
+            misses++;
+            return null;
+        }
+        byte[] bytes = new byte[entry.getInt(entry.position())];
+        entry.get(bytes);
+        delete(slot);
+        hits++;
+        return new RawBsonDocument(bytes);
+    }
+
+    /**
+     * Removes the entry of the id, if there is one.
+     */
+    public synchronized void remove(String id) {
+        int slot = find(id);
+        if (slot >= 0)
+            delete(slot);
+    }
+
+    public synchronized CacheStats getStats() {
+        return new CacheStats(hits, misses, evictions, evictedBytes);
+    }
+
+    /**
+     * Deletes the slab files (if the slabs are memory-mapped), the slabs are released once they are garbage collected.
+     */
+    public synchronized void close() {
+        Arrays.fill(hashes, EMPTY);
+        size = 0;
+        if (files != null)
+            for (File file : files)
+                if (!file.delete())
+                    file.deleteOnExit();
+    }
+
+    /**
+     * Starts writing in the oldest slab, its entries are evicted.
+     */
+    private void rotate() {
+        sequence++;
+        offset = 0;
+        int slab = sequence % SLABS;
+        evictions += slabEntries[slab];
+        evictedBytes += slabBytes[slab];
+        slabEntries[slab] = 0;
+        slabBytes[slab] = 0;
+    }
+
+    private boolean isLive(long location) {
+        int entrySequence = (int) (location >>> 32);
+        return sequence - entrySequence < SLABS;
+    }
+
+    /**
+     * @return a buffer positioned at the entry (little endian, like BSON)
+     */
+    private ByteBuffer entry(long location) {
+        ByteBuffer entry = slabs[(int) (location >>> 32) % SLABS].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        entry.position((int) location);
+        return entry;
+    }
+
+    /**
+     * @return the slot of the id's live entry, or -1
+     */
+    private int find(String id) {
+        long hash = hash(id);
+        int mask = hashes.length - 1;
+        for (int slot = (int) hash & mask; hashes[slot] != EMPTY; slot = (slot + 1) & mask) {
+            if (hashes[slot] != hash)
+                continue;
+            if (!isLive(locations[slot])) {
+                delete(slot);
+                return -1;
+            }
+            ByteBuffer entry = entry(locations[slot]);
+            byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+            if (entry.getShort() != idBytes.length)
+                return -1;
+            for (byte b : idBytes)
+                if (entry.get() != b)
+                    return -1;
+            return slot;
+        }
+        return -1;
+    }
+
+    private void insert(long hash, long location) {
+        if ((size + 1) * 2 > hashes.length)
+            resize();
+        int mask = hashes.length - 1;
+        int slot = (int) hash & mask;
+        while (hashes[slot] != EMPTY && hashes[slot] != hash)
+            slot = (slot + 1) & mask;
+        if (hashes[slot] == EMPTY)
+            size++;
+        else if (isLive(locations[slot]))
+            forget(locations[slot]);
+        hashes[slot] = hash;
+        locations[slot] = location;
+    }
+
+    /**
+     * Removes the slot and shifts the following slots back (linear probing without tombstones).
+     */
+    private void delete(int slot) {
+        if (isLive(locations[slot]))
+            forget(locations[slot]);
+        int mask = hashes.length - 1;
+        int hole = slot;
+        for (int next = (hole + 1) & mask; hashes[next] != EMPTY; next = (next + 1) & mask) {
+            int home = (int) hashes[next] & mask;
+            //Move the entry into the hole if the hole lies between its home slot and its current slot
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                hashes[hole] = hashes[next];
+                locations[hole] = locations[next];
+                hole = next;
+            }
+        }
+        hashes[hole] = EMPTY;
+        size--;
+    }
+
+    /**
+     * Updates the slab statistics for an entry that is no longer referenced, its bytes stay in the slab until it's reused.
+     */
+    private void forget(long location) {
+        int slab = (int) (location >>> 32) % SLABS;
+        ByteBuffer entry = entry(location);
+        int idLength = entry.getShort(entry.position());
+        slabEntries[slab]--;
+        slabBytes[slab] -= 2 + idLength + 8 + entry.getInt(entry.position() + 2 + idLength + 8);
+    }
+
+    /**
+     * Rebuilds the index without the entries of reused slabs, doubling it if it's still half full.
+     */
+    private void resize() {
+        long[] oldHashes = hashes;
+        long[] oldLocations = locations;
+        int live = 0;
+        for (int i = 0; i < oldHashes.length; i++)
+            if (oldHashes[i] != EMPTY && isLive(oldLocations[i]))
+                live++;
+        int capacity = oldHashes.length;
+        while ((live + 1) * 2 > capacity)
+            capacity *= 2;
+        hashes = new long[capacity];
+        locations = new long[capacity];
+        size = 0;
+        int mask = capacity - 1;
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] == EMPTY || !isLive(oldLocations[i]))
+                continue;
+            int slot = (int) oldHashes[i] & mask;
+            while (hashes[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            hashes[slot] = oldHashes[i];
+            locations[slot] = oldLocations[i];
+            size++;
+        }
+    }
+
+    /**
+     * FNV-1a over the characters of the id, never {@link #EMPTY}.
+     */
+    static long hash(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 29;
+        return hash == EMPTY ? 1 : hash;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * The collections created through a DataAPI, so closing it can shut them down (see {@link IExoCollection#shutdown()}).
+ * They are held weakly, whatever still runs in the background (fe. a lease renewal, write-behind or pending bulk writes) keeps its collection reachable.
+ */
+class OpenCollections {
+    private final Set<IExoCollection> collections = Collections.newSetFromMap(new WeakHashMap<>());
+
+    synchronized IExoCollection add(IExoCollection collection) {
+        collections.add(collection);
+        return collection;
+    }
+
+    /**
+     * Shuts down the collections that were added and blocks until they're done, failures are logged by the collections.
+     */
+    void shutdown() {
+        List<IExoCollection> open;
+        synchronized (this) {
+            open = new ArrayList<>(collections);
+            collections.clear();
+        }
+        Observable.from(open).flatMap(IExoCollection::shutdown).toBlocking().lastOrDefault(null);
+    }
+}
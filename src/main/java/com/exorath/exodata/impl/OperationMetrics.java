@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.OperationStats;
+import com.exorath.exodata.api.OperationType;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of one operation type on one collection, see {@link Metrics}.
+ */
+public class OperationMetrics {
+    private final String collection;
+    private final OperationType type;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder queueWait = new LongAdder();
+    private final LongAdder driverTime = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    private long previousCount;
+    private long previousTime = System.nanoTime();
+
+    OperationMetrics(String collection, OperationType type) {
+        this.collection = collection;
+        this.type = type;
+    }
+
+    void recordLatency(long nanos, boolean error) {
+        latency.record(nanos);
+        if (error)
+            errors.increment();
+    }
+
+    void recordIO(IOTiming timing) {
+        calls.increment();
+        queueWait.add(timing.getQueueWait());
+        driverTime.add(timing.getDriverTime());
+    }
+
+    void recordSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    void recordReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    synchronized OperationStats snapshot() {
+        long now = System.nanoTime();
+        long count = latency.getCount();
+        double seconds = (now - previousTime) / 1e9;
+        double opsPerSecond = seconds <= 0 ? 0 : (count - previousCount) / seconds;
+        previousCount = count;
+        previousTime = now;
+        long ioCalls = calls.sum();
+        return new OperationStats(collection, type, count, errors.sum(), opsPerSecond, latency.getMean(), latency.getPercentile(50), latency.getPercentile(99), latency.getPercentile(99.9), latency.getMax(),
+                ioCalls == 0 ? 0 : queueWait.sum() / ioCalls, ioCalls == 0 ? 0 : driverTime.sum() / ioCalls, bytesSent.sum(), bytesReceived.sum());
+    }
+}
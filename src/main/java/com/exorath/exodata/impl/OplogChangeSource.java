@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.ChangeSource;
+import com.exorath.exodata.api.DocumentChange;
+import com.mongodb.CursorType;
+import com.mongodb.MongoException;
+import com.mongodb.MongoSecurityException;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.Subscriber;
+import rx.schedulers.Schedulers;
+
+/**
+ * Tails the oplog of a replica set on its own thread, see {@link ChangeSource#oplog(MongoCollection, String)}.
+ */
+public class OplogChangeSource implements ChangeSource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(OplogChangeSource.class);
+    //Unauthorized, AuthenticationFailed and NamespaceNotFound won't go away by trying again
+    private static final int[] FATAL_CODES = {13, 18, 26};
+    private static final long RETRY_MILLIS = 100;
+    private final MongoCollection<Document> oplog;
+    private final String namespace;
+    private final Observable<DocumentChange> changes;
+
+    public OplogChangeSource(MongoCollection<Document> oplog, String namespace) {
+        if (oplog == null || namespace == null)
+            throw new IllegalArgumentException("oplog and namespace may not be null");
+        this.oplog = oplog;
+        this.namespace = namespace;
+        this.changes = Observable.<DocumentChange>create(this::tail).subscribeOn(Schedulers.newThread()).share();
+    }
+
+    @Override
+    public Observable<DocumentChange> getChanges() {
+        return changes;
+    }
+
+    /**
+     * Follows the oplog from its current end until unsubscribed. When the cursor dies (or there was nothing to tail yet) a new cursor starts after the last seen entry.
+     * A failed cursor is logged and retried, unless the failure is one a retry won't fix (see {@link #isFatal(MongoException)}), then the subscriber receives it.
+     */
+    private void tail(Subscriber<? super DocumentChange> subscriber) {
+        BsonTimestamp last = null;
+        boolean started = false;
+        while (!subscriber.isUnsubscribed()) {
+            try {
+                if (!started) {
+                    Document newest = oplog.find().sort(new Document("$natural", -1)).limit(1).first();
+                    last = newest == null ? null : newest.get("ts", BsonTimestamp.class);
+                    started = true;
+                }
+                Bson query = last == null ? Filters.eq("ns", namespace) : Filters.and(Filters.gt("ts", last), Filters.eq("ns", namespace));
+                try (MongoCursor<Document> cursor = oplog.find(query).cursorType(CursorType.TailableAwait).noCursorTimeout(true).oplogReplay(last != null).iterator()) {
+                    while (!subscriber.isUnsubscribed() && cursor.hasNext()) {
+                        Document entry = cursor.next();
+                        last = entry.get("ts", BsonTimestamp.class);
+                        DocumentChange change = toChange(entry);
+                        if (change != null)
+                            subscriber.onNext(change);
+                    }
+                }
+            } catch (MongoException e) {
+                if (isFatal(e)) {
+                    subscriber.onError(e);
+                    return;
+                }
+                //The cursor is resumed after the last seen entry
+                LOGGER.warn("Tailing the oplog of {} failed, resuming after {}", namespace, last, e);
+            } catch (Throwable e) {
+                subscriber.onError(e);
+                return;
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return whether the error is a security error or a server error with one of the {@link #FATAL_CODES}
+     */
+    static boolean isFatal(MongoException e) {
+        if (e instanceof MongoSecurityException)
+            return true;
+        if (!(e instanceof MongoServerException))
+            return false;
+        for (int code : FATAL_CODES)
+            if (e.getCode() == code)
+                return true;
+        return false;
+    }
+
+    /**
+     * @return the change described by the oplog entry, or null if the entry doesn't change a document (fe. a command or no-op)
+     */
+    static DocumentChange toChange(Document entry) {
+        Document o = entry.get("o", Document.class);
+        if (o == null)
+            return null;
+        switch (String.valueOf(entry.get("op"))) {
+            case "i":
+                return o.get("_id") == null ? null : new DocumentChange(o.get("_id"), DocumentChange.Type.INSERT, o, null);
+            case "d":
+                return o.get("_id") == null ? null : new DocumentChange(o.get("_id"), DocumentChange.Type.DELETE, null, null);
+            case "u":
+                Document o2 = entry.get("o2", Document.class);
+                if (o2 == null || o2.get("_id") == null)
+                    return null;
+                boolean operators = false;
+                Document update = new Document();
+                for (String key : o.keySet()) {
+                    if (!key.startsWith("$"))
+                        continue;
+                    operators = true;
+                    if (key.equals("$set") || key.equals("$unset"))
+                        update.put(key, o.get(key));
+                    else if (!key.equals("$v"))
+                        update = null;
+                    if (update == null)
+                        break;
+                }
+                if (!operators)
+                    return new DocumentChange(o2.get("_id"), DocumentChange.Type.REPLACE, o, null);
+                //Newer servers log some updates as diffs, then only the id is known
+                return new DocumentChange(o2.get("_id"), DocumentChange.Type.UPDATE, null, update == null || update.isEmpty() ? null : update);
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import rx.Observable;
+import rx.subscriptions.Subscriptions;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the operations of a key (a document id) one after another, in the order they were subscribed to. Keys are hashed to a fixed amount of lanes,
+ * a lane runs a single operation at a time and starts the next one when it terminates. Operations of different lanes still run in parallel on the IO executor.
+ * <p>
+ * A lane does not own a thread, it only holds operations back. So the IO pool (and its admission control) and the async driver are used as before.
+ * An operation that is unsubscribed from (fe. by a timeout) lets the next operation of its lane start right away.
+ */
+public class OrderedLanes {
+    private final Lane[] lanes;
+
+    public OrderedLanes(int lanes) {
+        if (lanes < 1)
+            throw new IllegalArgumentException("lanes must be at least 1");
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++)
+            this.lanes[i] = new Lane();
+    }
+
+    public int getLanes() {
+        return lanes.length;
+    }
+
+    /**
+     * @return an observable that runs the operation once the previous operations of the key's lane terminated
+     */
+    public <T> Observable<T> run(Object key, Observable<T> operation) {
+        return lanes[Math.floorMod(key.hashCode(), lanes.length)].run(operation);
+    }
+
+    private static class Lane {
+        private final Queue<Runnable> queue = new ArrayDeque<>();
+        private boolean running;
+        private boolean draining;
+        private int handoffs;
+
+        private <T> Observable<T> run(Observable<T> operation) {
+            return Observable.create(subscriber -> {
+                AtomicBoolean done = new AtomicBoolean();
+                Runnable next = () -> {
+                    if (done.compareAndSet(false, true))
+                        next();
+                };
+                Runnable start = () -> {
+                    if (subscriber.isUnsubscribed()) {
+                        next.run();
+                        return;
+                    }
+                    subscriber.add(Subscriptions.create(next::run));
+                    operation.doOnTerminate(next::run).unsafeSubscribe(subscriber);
+                };
+                synchronized (this) {
+                    if (running) {
+                        queue.add(start);
+                        return;
+                    }
+                    running = true;
+                }
+                start.run();
+            });
+        }
+
+        /**
+         * Starts the next operation. An operation that terminates while it's started by a thread that is already starting operations of this lane
+         * (fe. because it completed synchronously) leaves the handoff to that thread, so a long queue of synchronous operations doesn't grow the stack.
+         */
+        private void next() {
+            synchronized (this) {
+                handoffs++;
+                if (draining)
+                    return;
+                draining = true;
+            }
+            while (true) {
+                Runnable start;
+                synchronized (this) {
+                    if (handoffs == 0) {
+                        draining = false;
+                        return;
+                    }
+                    handoffs--;
+                    start = queue.poll();
+                    if (start == null) {
+                        running = false;
+                        continue;
+                    }
+                }
+                start.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecConfigurationException;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Encodes and decodes a POJO field by field, straight from and to the BSON stream (no {@link Document} in between).
+ * All non static, non transient fields are stored (including the fields of superclasses), a field named id is stored as _id unless there's a field named _id.
+ * Primitive fields are read and written without boxing. Numbers are converted to the type of the field, so a document whose int was turned into a long by $inc still decodes.
+ * Lists, sets and maps (with string keys) of any supported type are decoded using the generic type of the field, other values use the codec of the registry.
+ * Java arrays (except byte[]) are not supported, use a list instead. Collection and map fields have to accept the ArrayList, LinkedHashSet or LinkedHashMap they're decoded into.
+ * Both are rejected with a {@link CodecConfigurationException} when the codec is created.
+ * <p>
+ * The class needs a constructor without arguments (it may be private). Fields that are not in the document keep the value the constructor gave them.
+ */
+public class PojoCodec<T> implements Codec<T> {
+    private static final BsonTypeClassMap BSON_TYPES = new BsonTypeClassMap();
+
+    private final Model<T> model;
+    private final CodecRegistry registry;
+
+    PojoCodec(Model<T> model, CodecRegistry registry) {
+        this.model = model;
+        this.registry = registry;
+    }
+
+    @Override
+    public Class<T> getEncoderClass() {
+        return model.clazz;
+    }
+
+    @Override
+    public void encode(BsonWriter writer, T value, EncoderContext encoderContext) {
+        writer.writeStartDocument();
+        try {
+            for (Property property : model.properties) {
+                switch (property.kind) {
+                    case INT:
+                        writer.writeInt32(property.name, property.field.getInt(value));
+                        break;
+                    case LONG:
+                        writer.writeInt64(property.name, property.field.getLong(value));
+                        break;
+                    case DOUBLE:
+                        writer.writeDouble(property.name, property.field.getDouble(value));
+                        break;
+                    case FLOAT:
+                        writer.writeDouble(property.name, property.field.getFloat(value));
+                        break;
+                    case SHORT:
+                        writer.writeInt32(property.name, property.field.getShort(value));
+                        break;
+                    case BYTE:
+                        writer.writeInt32(property.name, property.field.getByte(value));
+                        break;
+                    case BOOLEAN:
+                        writer.writeBoolean(property.name, property.field.getBoolean(value));
+                        break;
+                    default:
+                        Object fieldValue = property.field.get(value);
+                        if (fieldValue == null)
+                            continue;
+                        writer.writeName(property.name);
+                        writeValue(writer, fieldValue, encoderContext);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new CodecConfigurationException("Can't read a field of " + model.clazz.getName() + ": " + e.getMessage());
+        }
+        writer.writeEndDocument();
+    }
+
+    private void writeValue(BsonWriter writer, Object value, EncoderContext encoderContext) {
+        if (value instanceof Collection) {
+            writer.writeStartArray();
+            for (Object element : (Collection<?>) value) {
+                if (element == null)
+                    writer.writeNull();
+                else
+                    writeValue(writer, element, encoderContext);
+            }
+            writer.writeEndArray();
+        } else if (value instanceof Map && !(value instanceof Document)) {
+            writer.writeStartDocument();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                writer.writeName(entry.getKey().toString());
+                if (entry.getValue() == null)
+                    writer.writeNull();
+                else
+                    writeValue(writer, entry.getValue(), encoderContext);
+            }
+            writer.writeEndDocument();
+        } else
+            encode(registry.get(value.getClass()), writer, value, encoderContext);
+    }
+
+    private static <V> void encode(Codec<V> codec, BsonWriter writer, Object value, EncoderContext encoderContext) {
+        encoderContext.encodeWithChildContext(codec, writer, codec.getEncoderClass().cast(value));
+    }
+
+    @Override
+    public T decode(BsonReader reader, DecoderContext decoderContext) {
+        T instance = model.newInstance();
+        reader.readStartDocument();
+        try {
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                Property property = model.byName.get(reader.readName());
+                if (property == null) {
+                    reader.skipValue();
+                    continue;
+                }
+                if (reader.getCurrentBsonType() == BsonType.NULL) {
+                    reader.readNull();
+                    if (property.kind == Kind.OBJECT)
+                        property.field.set(instance, null);
+                    continue;
+                }
+                switch (property.kind) {
+                    case INT:
+                        property.field.setInt(instance, (int) readLong(reader));
+                        break;
+                    case LONG:
+                        property.field.setLong(instance, readLong(reader));
+                        break;
+                    case DOUBLE:
+                        property.field.setDouble(instance, readDouble(reader));
+                        break;
+                    case FLOAT:
+                        property.field.setFloat(instance, (float) readDouble(reader));
+                        break;
+                    case SHORT:
+                        property.field.setShort(instance, (short) readLong(reader));
+                        break;
+                    case BYTE:
+                        property.field.setByte(instance, (byte) readLong(reader));
+                        break;
+                    case BOOLEAN:
+                        property.field.setBoolean(instance, reader.readBoolean());
+                        break;
+                    default:
+                        property.field.set(instance, readValue(reader, property.type, decoderContext));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new CodecConfigurationException("Can't set a field of " + model.clazz.getName() + ": " + e.getMessage());
+        }
+        reader.readEndDocument();
+        return instance;
+    }
+
+    private Object readValue(BsonReader reader, Type type, DecoderContext decoderContext) {
+        Class<?> raw = rawClass(type);
+        if (raw == Integer.class)
+            return (int) readLong(reader);
+        if (raw == Long.class)
+            return readLong(reader);
+        if (raw == Double.class)
+            return readDouble(reader);
+        if (raw == Float.class)
+            return (float) readDouble(reader);
+        if (Collection.class.isAssignableFrom(raw)) {
+            Type elementType = typeArgument(type, 0);
+            Collection<Object> collection = Set.class.isAssignableFrom(raw) ? new LinkedHashSet<>() : new ArrayList<>();
+            reader.readStartArray();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT)
+                collection.add(readNullable(reader, elementType, decoderContext));
+            reader.readEndArray();
+            return collection;
+        }
+        if (Map.class.isAssignableFrom(raw) && raw != Document.class) {
+            Type valueType = typeArgument(type, 1);
+            Map<String, Object> map = new LinkedHashMap<>();
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT)
+                map.put(reader.readName(), readNullable(reader, valueType, decoderContext));
+            reader.readEndDocument();
+            return map;
+        }
+        if (raw == Object.class) {
+            if (reader.getCurrentBsonType() == BsonType.ARRAY)
+                return readValue(reader, List.class, decoderContext);
+            raw = BSON_TYPES.get(reader.getCurrentBsonType());
+        }
+        return registry.get(raw).decode(reader, decoderContext);
+    }
+
+    private Object readNullable(BsonReader reader, Type type, DecoderContext decoderContext) {
+        if (reader.getCurrentBsonType() == BsonType.NULL) {
+            reader.readNull();
+            return null;
+        }
+        return readValue(reader, type, decoderContext);
+    }
+
+    private static long readLong(BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case INT32:
+                return reader.readInt32();
+            case DOUBLE:
+                return (long) reader.readDouble();
+            default:
+                return reader.readInt64();
+        }
+    }
+
+    private static double readDouble(BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return reader.readInt64();
+            default:
+                return reader.readDouble();
+        }
+    }
+
+    private static Class<?> rawClass(Type type) {
+        if (type instanceof Class)
+            return (Class<?>) type;
+        if (type instanceof ParameterizedType)
+            return (Class<?>) ((ParameterizedType) type).getRawType();
+        return Object.class;
+    }
+
+    private static Type typeArgument(Type type, int index) {
+        if (type instanceof ParameterizedType && ((ParameterizedType) type).getActualTypeArguments().length > index)
+            return ((ParameterizedType) type).getActualTypeArguments()[index];
+        return Object.class;
+    }
+
+    private enum Kind {
+        INT, LONG, DOUBLE, FLOAT, SHORT, BYTE, BOOLEAN, OBJECT
+    }
+
+    private static class Property {
+        private final String name;
+        private final Field field;
+        private final Type type;
+        private final Kind kind;
+
+        private Property(String name, Field field) {
+            this.name = name;
+            this.field = field;
+            this.type = field.getGenericType();
+            Class<?> clazz = field.getType();
+            if (clazz.isArray() && clazz != byte[].class)
+                throw new CodecConfigurationException(field.getDeclaringClass().getName() + "." + field.getName() + " is an array, arrays are not supported (use a List)");
+            if (Collection.class.isAssignableFrom(clazz) && !clazz.isAssignableFrom(Set.class.isAssignableFrom(clazz) ? LinkedHashSet.class : ArrayList.class)
+                    || Map.class.isAssignableFrom(clazz) && clazz != Document.class && !clazz.isAssignableFrom(LinkedHashMap.class))
+                throw new CodecConfigurationException(field.getDeclaringClass().getName() + "." + field.getName() + " can't hold the "
+                        + (Map.class.isAssignableFrom(clazz) ? "LinkedHashMap" : Set.class.isAssignableFrom(clazz) ? "LinkedHashSet" : "ArrayList") + " it would be decoded into");
+            if (clazz == int.class)
+                kind = Kind.INT;
+            else if (clazz == long.class)
+                kind = Kind.LONG;
+            else if (clazz == double.class)
+                kind = Kind.DOUBLE;
+            else if (clazz == float.class)
+                kind = Kind.FLOAT;
+            else if (clazz == short.class)
+                kind = Kind.SHORT;
+            else if (clazz == byte.class)
+                kind = Kind.BYTE;
+            else if (clazz == boolean.class)
+                kind = Kind.BOOLEAN;
+            else
+                kind = Kind.OBJECT;
+        }
+    }
+
+    /**
+     * The reflection data of a class, this is created once per class (see {@link PojoCodecProvider}).
+     */
+    static class Model<T> {
+        private final Class<T> clazz;
+        private final Constructor<T> constructor;
+        private final List<Property> properties = new ArrayList<>();
+        private final Map<String, Property> byName = new HashMap<>();
+
+        Model(Class<T> clazz) {
+            this.clazz = clazz;
+            try {
+                constructor = clazz.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new CodecConfigurationException(clazz.getName() + " needs a constructor without arguments");
+            }
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> current = clazz; current != null && current != Object.class; current = current.getSuperclass())
+                for (Field field : current.getDeclaredFields())
+                    if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers()) && !field.isSynthetic())
+                        fields.add(field);
+            boolean hasIdField = fields.stream().anyMatch(field -> field.getName().equals("_id"));
+            for (Field field : fields) {
+                String name = field.getName().equals("id") && !hasIdField ? "_id" : field.getName();
+                if (byName.containsKey(name))
+                    continue;//A subclass field hides the field of its superclass
+                field.setAccessible(true);
+                Property property = new Property(name, field);
+                properties.add(property);
+                byName.put(name, property);
+            }
+        }
+
+        T newInstance() {
+            try {
+                return constructor.newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new CodecConfigurationException("Can't create a " + clazz.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Provides reflective codecs for plain Java classes (POJOs) and enums. It's meant to be the last provider of a registry: classes that already have a codec (fe. a generated one) keep using that codec.
+ * The reflection work (fields and constructor) is done once per class and cached, see {@link PojoCodec}.
+ */
+public class PojoCodecProvider implements CodecProvider {
+    private final ConcurrentMap<Class<?>, PojoCodec.Model<?>> models = new ConcurrentHashMap<>();
+
+    @Override
+    public <T> Codec<T> get(Class<T> clazz, CodecRegistry registry) {
+        if (clazz.isEnum())
+            return enumCodec(clazz);
+        if (!isPojo(clazz))
+            return null;
+        //The model of a class is always created for that class
+        @SuppressWarnings("unchecked")
+        PojoCodec.Model<T> model = (PojoCodec.Model<T>) models.computeIfAbsent(clazz, PojoCodec.Model::new);
+        return new PojoCodec<>(model, registry);
+    }
+
+    /**
+     * The class is an enum, but T is not declared as one.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> Codec<T> enumCodec(Class<T> clazz) {
+        return new EnumCodec(clazz);
+    }
+
+    private static boolean isPojo(Class<?> clazz) {
+        if (clazz.isPrimitive() || clazz.isArray() || clazz.isInterface() || Modifier.isAbstract(clazz.getModifiers()) || clazz.getName().startsWith("java."))
+            return false;
+        if (clazz.getEnclosingClass() != null && !Modifier.isStatic(clazz.getModifiers()))
+            return false;
+        for (Constructor<?> constructor : clazz.getDeclaredConstructors())
+            if (constructor.getParameterCount() == 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * Stores enums by their name.
+     */
+    private static class EnumCodec<T extends Enum<T>> implements Codec<T> {
+        private final Class<T> clazz;
+
+        private EnumCodec(Class<T> clazz) {
+            this.clazz = clazz;
+        }
+
+        @Override
+        public T decode(BsonReader reader, DecoderContext decoderContext) {
+            return Enum.valueOf(clazz, reader.readString());
+        }
+
+        @Override
+        public void encode(BsonWriter writer, T value, EncoderContext encoderContext) {
+            writer.writeString(value.name());
+        }
+
+        @Override
+        public Class<T> getEncoderClass() {
+            return clazz;
+        }
+    }
+}
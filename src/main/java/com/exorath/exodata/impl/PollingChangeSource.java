@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.ChangeSource;
+import com.exorath.exodata.api.DocumentChange;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.functions.Func0;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds changes by polling the watched documents, for deployments without an oplog. Every interval all watched ids and filters are read with a single query,
+ * which only returns the _id and version field of the documents. The documents whose version changed are read with a second query.
+ * Without a version field the whole documents are read and compared instead.
+ * <p>
+ * A document that is polled for the first time only records its version, so changes made before the first poll after it was watched are not seen.
+ * After that, a document that appears (it was created or started to match a filter) is emitted as an {@link DocumentChange.Type#INSERT}, a watched id that disappears as a {@link DocumentChange.Type#DELETE}.
+ */
+public class PollingChangeSource implements ChangeSource {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PollingChangeSource.class);
+    private final CollectionIO io;
+    private final Func0<String> versionField;
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Map<String, Bson> filters = new HashMap<>();
+    private final Map<String, Integer> filterWatchers = new HashMap<>();
+    private final Set<String> fresh = new HashSet<>();
+    private boolean freshFilter;
+    private final Observable<DocumentChange> changes;
+    //Only accessed by the polls, which run one after another
+    private Map<String, Object> versions = new HashMap<>();
+
+    /**
+     * @param versionField the version field of the collection, or null if documents are not versioned
+     */
+    public PollingChangeSource(CollectionIO io, Func0<String> versionField, long interval, TimeUnit unit) {
+        this.io = io;
+        this.versionField = versionField;
+        this.changes = Observable.interval(interval, interval, unit)
+                .onBackpressureDrop()
+                .concatMap(tick -> poll().onErrorResumeNext(error -> {
+                    LOGGER.warn("Polling the watched documents failed, trying again next interval", error);
+                    return Observable.empty();
+                }))
+                .share();
+    }
+
+    @Override
+    public Observable<DocumentChange> getChanges() {
+        return changes;
+    }
+
+    @Override
+    public synchronized void watch(String id) {
+        if (ids.merge(id, 1, Integer::sum) == 1)
+            fresh.add(id);
+    }
+
+    @Override
+    public synchronized void unwatch(String id) {
+        ids.computeIfPresent(id, (key, watchers) -> watchers == 1 ? null : watchers - 1);
+    }
+
+    @Override
+    public synchronized void watch(Bson filter) {
+        String key = getKey(filter);
+        filters.putIfAbsent(key, filter);
+        if (filterWatchers.merge(key, 1, Integer::sum) == 1)
+            freshFilter = true;
+    }
+
+    @Override
+    public synchronized void unwatch(Bson filter) {
+        String key = getKey(filter);
+        if (filterWatchers.computeIfPresent(key, (k, watchers) -> watchers == 1 ? null : watchers - 1) == null)
+            filters.remove(key);
+    }
+
+    private String getKey(Bson filter) {
+        return filter.toBsonDocument(BsonDocument.class, io.getCodecRegistry()).toJson();
+    }
+
+    /**
+     * Reads the versions of all watched documents with one query, and the changed documents with a second one.
+     * The versions are only recorded once the poll succeeded, so the changes of a failed poll are found again by the next one.
+     */
+    private Observable<DocumentChange> poll() {
+        Set<String> watchedIds;
+        List<Bson> clauses;
+        Set<String> fresh;
+        boolean freshFilter;
+        synchronized (this) {
+            watchedIds = new HashSet<>(ids.keySet());
+            clauses = new ArrayList<>(filters.values());
+            fresh = new HashSet<>(this.fresh);
+            this.fresh.clear();
+            freshFilter = this.freshFilter;
+            this.freshFilter = false;
+        }
+        if (watchedIds.isEmpty() && clauses.isEmpty()) {
+            versions = new HashMap<>();
+            return Observable.empty();
+        }
+        if (!watchedIds.isEmpty())
+            clauses.add(Filters.in("_id", watchedIds));
+        String field = versionField.call();
+        Bson query = clauses.size() == 1 ? clauses.get(0) : Filters.or(clauses);
+        return io.find(query, field == null ? null : Projections.include("_id", field), null)
+                .filter(document -> document.get("_id") != null)
+                .toList()
+                .concatMap(found -> {
+                    Map<String, Object> previous = versions;
+                    Map<String, Object> current = new HashMap<>();
+                    List<String> changed = new ArrayList<>();
+                    Set<String> inserted = new HashSet<>();
+                    List<DocumentChange> documents = new ArrayList<>();
+                    for (Document document : found) {
+                        String id = document.get("_id").toString();
+                        Object version = field == null ? document : document.get(field);
+                        current.put(id, version == null ? Boolean.FALSE : version);
+                        if (!previous.containsKey(id)) {
+                            //The first poll of a new watcher only records the versions
+                            if (fresh.contains(id) || freshFilter)
+                                continue;
+                            inserted.add(id);
+                        } else if (sameVersion(previous.get(id), current.get(id)))
+                            continue;
+                        if (field == null)
+                            documents.add(new DocumentChange(document.get("_id"), inserted.contains(id) ? DocumentChange.Type.INSERT : DocumentChange.Type.UPDATE, document, null));
+                        else
+                            changed.add(id);
+                    }
+                    for (String id : previous.keySet())
+                        if (!current.containsKey(id) && watchedIds.contains(id))
+                            documents.add(new DocumentChange(id, DocumentChange.Type.DELETE, null, null));
+                    if (changed.isEmpty())
+                        return Observable.from(documents).doOnCompleted(() -> versions = current);
+                    return io.find(Filters.in("_id", changed), null, null)
+                            .filter(document -> document.get("_id") != null)
+                            .map(document -> new DocumentChange(document.get("_id"), inserted.contains(document.get("_id").toString()) ? DocumentChange.Type.INSERT : DocumentChange.Type.UPDATE, document, null))
+                            .concatWith(Observable.from(documents))
+                            .doOnCompleted(() -> versions = current);
+                })
+                .doOnError(error -> restore(fresh, freshFilter));
+    }
+
+    /**
+     * Marks the ids and filters of a failed poll as fresh again (unless they were unwatched), the versions of the failed poll were not recorded so the next poll has to record them.
+     */
+    private synchronized void restore(Set<String> fresh, boolean freshFilter) {
+        for (String id : fresh)
+            if (ids.containsKey(id))
+                this.fresh.add(id);
+        if (freshFilter && !filters.isEmpty())
+            this.freshFilter = true;
+    }
+
+    private static boolean sameVersion(Object previous, Object current) {
+        if (previous instanceof Number && current instanceof Number)
+            return ((Number) previous).doubleValue() == ((Number) current).doubleValue();
+        return Objects.equals(previous, current);
+    }
+}
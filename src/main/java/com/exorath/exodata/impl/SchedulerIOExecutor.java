@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Func0;
+
+/**
+ * Runs blocking calls on an RxJava {@link Scheduler} (by default {@link rx.schedulers.Schedulers#io()}).
+ */
+public class SchedulerIOExecutor implements IOExecutor {
+    private final Scheduler scheduler;
+
+    public SchedulerIOExecutor(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public <T> Observable<T> execute(Func0<T> call) {
+        if (!IOTiming.isTracking())
+            return Observable.<T>create(subscriber -> {
+                T result = call.call();
+                if (result != null)
+                    subscriber.onNext(result);
+                subscriber.onCompleted();
+            }).subscribeOn(scheduler);
+        return Observable.defer(() -> {
+            long submitted = System.nanoTime();
+            return Observable.<T>create(subscriber -> {
+                long started = System.nanoTime();
+                T result = call.call();
+                IOTiming.emit(started - submitted, System.nanoTime() - started, () -> {
+                    if (result != null)
+                        subscriber.onNext(result);
+                    subscriber.onCompleted();
+                });
+            }).subscribeOn(scheduler);
+        });
+    }
+}
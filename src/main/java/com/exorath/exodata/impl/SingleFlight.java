@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.exorath.exodata.impl;
+
+import rx.Observable;
+import rx.functions.Func0;
+import rx.subjects.ReplaySubject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collapses concurrent calls with the same key into one call. Subscribers that arrive while a call is in flight receive the result of that call.
+ * A call is forgotten as soon as it terminates, so subscribers arriving afterwards will start a new call.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, ReplaySubject<V>> inFlight = new ConcurrentHashMap<>();
+
+    public Observable<V> execute(K key, Func0<Observable<V>> call) {
+        return Observable.defer(() -> {
+            ReplaySubject<V> subject = ReplaySubject.create();
+            ReplaySubject<V> existing = inFlight.putIfAbsent(key, subject);
+            if (existing != null)
+                return existing;
+            //The call is forgotten before anything is emitted, so a subscriber that starts a new call right after receiving the value won't join this call
+            call.call().toList().doOnEach(notification -> inFlight.remove(key, subject)).concatMap(Observable::from).subscribe(subject);
+            return subject;
+        });
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+}
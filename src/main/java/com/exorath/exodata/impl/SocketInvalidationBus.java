@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.Invalidation;
+import com.exorath.exodata.api.InvalidationBus;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonSerializationException;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import rx.Observable;
+import rx.subjects.PublishSubject;
+import rx.subjects.SerializedSubject;
+import rx.subjects.Subject;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An {@link InvalidationBus} over UDP, see {@link InvalidationBus#socket(int, Collection)}. Every invalidation is a single datagram holding a BSON document.
+ */
+public class SocketInvalidationBus implements InvalidationBus {
+    static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final DocumentCodec CODEC = new DocumentCodec();
+    private final DatagramSocket socket;
+    private final List<InetSocketAddress> peers;
+    private final Subject<Invalidation, Invalidation> invalidations = new SerializedSubject<>(PublishSubject.create());
+
+    public SocketInvalidationBus(InetSocketAddress address, Collection<InetSocketAddress> peers) {
+        try {
+            this.socket = new DatagramSocket(address);
+        } catch (SocketException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.peers = new ArrayList<>(peers);
+        Thread receiver = new Thread(this::receive, "exodata-invalidations-" + socket.getLocalPort());
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * @return the UDP port invalidations are received on
+     */
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public void publish(Invalidation invalidation) {
+        byte[] bytes = encode(invalidation);
+        if (bytes.length > MAX_DATAGRAM_SIZE)
+            bytes = encode(invalidation.withoutUpdate());
+        for (InetSocketAddress peer : peers) {
+            try {
+                socket.send(new DatagramPacket(bytes, bytes.length, peer));
+            } catch (IOException e) {
+                //The peer misses this invalidation, its cached document expires eventually
+            }
+        }
+    }
+
+    @Override
+    public Observable<Invalidation> getInvalidations() {
+        return invalidations;
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        while (!socket.isClosed()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (IOException e) {
+                continue;
+            }
+            Invalidation invalidation;
+            try {
+                invalidation = decode(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
+            } catch (BsonSerializationException | IllegalArgumentException | ClassCastException e) {
+                continue;
+            }
+            invalidations.onNext(invalidation);
+        }
+        invalidations.onCompleted();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    static byte[] encode(Invalidation invalidation) {
+        Document document = new Document("o", invalidation.getOrigin()).append("c", invalidation.getCollection()).append("i", invalidation.getId());
+        if (invalidation.getVersion() != null)
+            document.append("v", invalidation.getVersion());
+        if (invalidation.getUpdate() != null)
+            document.append("u", invalidation.getUpdate());
+        BasicOutputBuffer buffer = new BasicOutputBuffer();
+        CODEC.encode(new BsonBinaryWriter(buffer), document, EncoderContext.builder().build());
+        return buffer.toByteArray();
+    }
+
+    static Invalidation decode(ByteBuffer bytes) {
+        Document document = CODEC.decode(new BsonBinaryReader(bytes.slice()), DecoderContext.builder().build());
+        return new Invalidation(document.getString("o"), document.getString("c"), document.getString("i"), (Number) document.get("v"), document.get("u", Document.class));
+    }
+}
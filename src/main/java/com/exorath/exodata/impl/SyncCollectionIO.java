@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Func0;
+import rx.schedulers.Schedulers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the blocking calls of the sync MongoDB driver on an {@link IOExecutor} ({@link Schedulers#io()} by default, or the {@link BoundedIOPool} of the DataAPI).
+ */
+public class SyncCollectionIO implements CollectionIO {
+    private final MongoCollection<Document> collection;
+    private final IOExecutor executor;
+
+    public SyncCollectionIO(MongoCollection<?> collection) {
+        this(collection, Schedulers.io());
+    }
+
+    public SyncCollectionIO(MongoCollection<?> collection, Scheduler scheduler) {
+        this(collection, new SchedulerIOExecutor(scheduler));
+    }
+
+    public SyncCollectionIO(MongoCollection<?> collection, IOExecutor executor) {
+        this.collection = documents(collection);
+        this.executor = executor;
+    }
+
+    @Override
+    public <T> Observable<T> findOneAndUpdate(Bson query, Bson update, FindOneAndUpdateOptions options, Class<T> resultClass) {
+        if (resultClass == Document.class)
+            return call(() -> resultClass.cast(collection.findOneAndUpdate(query, update, options)));
+        return call(() -> collection.withDocumentClass(resultClass).findOneAndUpdate(query, update, options));
+    }
+
+    @Override
+    public <T> Observable<T> findFirst(Bson query, Bson projection, ReadPreference readPreference, Class<T> resultClass) {
+        MongoCollection<Document> reader = reader(readPreference);
+        if (resultClass == Document.class)
+            return call(() -> resultClass.cast(reader.find(query).projection(projection).first()));
+        return call(() -> reader.find(query, resultClass).projection(projection).first());
+    }
+
+    @Override
+    public Observable<Document> find(Bson query, Bson projection, ReadPreference readPreference) {
+        //The cursor is drained in one call, so the whole find takes a single place in the executor
+        return call(() -> reader(readPreference).find(query).projection(projection).into(new ArrayList<>()))
+                .concatMap(Observable::from);
+    }
+
+    @Override
+    public Observable<UpdateResult> updateOne(Bson query, Bson update, UpdateOptions options) {
+        return call(() -> collection.updateOne(query, update, options));
+    }
+
+    @Override
+    public Observable<BulkWriteResult> bulkWrite(List<? extends WriteModel<Document>> models, BulkWriteOptions options) {
+        return call(() -> collection.bulkWrite(models, options));
+    }
+
+    @Override
+    public Observable<String> createIndex(Bson keys) {
+        return call(() -> collection.createIndex(keys));
+    }
+
+    @Override
+    public CodecRegistry getCodecRegistry() {
+        return collection.getCodecRegistry();
+    }
+
+    @Override
+    public CollectionIO withCodecRegistry(CodecRegistry registry) {
+        return new SyncCollectionIO(collection.withCodecRegistry(registry), executor);
+    }
+
+    @Override
+    public String getNamespace() {
+        return collection.getNamespace().getFullName();
+    }
+
+    @Override
+    public MongoCollection<Document> getMongoCollection() {
+        return collection;
+    }
+
+    /**
+     * The API takes raw collections, ExoData always reads and writes them as Documents.
+     */
+    @SuppressWarnings("unchecked")
+    private static MongoCollection<Document> documents(MongoCollection<?> collection) {
+        return (MongoCollection<Document>) collection;
+    }
+
+    private MongoCollection<Document> reader(ReadPreference readPreference) {
+        return readPreference == null ? collection : collection.withReadPreference(readPreference);
+    }
+
+    /**
+     * Runs the blocking call on the executor, a null result completes the observable without emitting.
+     */
+    private <T> Observable<T> call(Func0<T> call) {
+        return executor.execute(call);
+    }
+}
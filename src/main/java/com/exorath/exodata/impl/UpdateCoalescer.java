@@ -0,0 +1,258 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package com.exorath.exodata.impl;
+
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.conversions.Bson;
+import rx.Observable;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Func1;
+import rx.subjects.AsyncSubject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merges $inc, $set and $push updates on a single document into one combined update.
+ * A batch is flushed once the window elapsed (counted from the first update in the batch) or once it holds maxUpdates updates.
+ * Every update in a batch completes with the same {@link UpdateResult}.
+ * <p>
+ * Updates that touch a path that can't be merged with the pending batch (fe. a $set on a key that is already $inc'ed, or 'a' and 'a.b') flush the pending batch first.
+ */
+public class UpdateCoalescer {
+    private final Func1<Bson, Observable<UpdateResult>> writer;
+    private final long window;
+    private final TimeUnit unit;
+    private final int maxUpdates;
+
+    private Batch current;
+    private final Queue<Batch> writeQueue = new ArrayDeque<>();
+    private Batch last;
+    private boolean writing;
+    private boolean draining;
+    private int handoffs;
+
+    /**
+     * @param writer     sends the merged update to the database (upserting)
+     * @param window     the maximum time an update will be held back
+     * @param unit       the unit of the window
+     * @param maxUpdates the amount of updates after which a batch is flushed immediately
+     */
+    public UpdateCoalescer(Func1<Bson, Observable<UpdateResult>> writer, long window, TimeUnit unit, int maxUpdates) {
+        if (maxUpdates < 1)
+            throw new IllegalArgumentException("maxUpdates must be at least 1");
+        this.writer = writer;
+        this.window = window;
+        this.unit = unit;
+        this.maxUpdates = maxUpdates;
+    }
+
+    public Observable<UpdateResult> inc(String key, Number amount) {
+        return Observable.create(s -> add(s, key, Operator.INC, amount));
+    }
+
+    public Observable<UpdateResult> set(String key, Object value) {
+        return Observable.create(s -> add(s, key, Operator.SET, value));
+    }
+
+    public Observable<UpdateResult> push(String key, Object value) {
+        return Observable.create(s -> add(s, key, Operator.PUSH, value));
+    }
+
+    /**
+     * Sends the pending batch (if any) to the database right away.
+     *
+     * @return an observable that completes once every batch that was flushed before (including the pending one) is written, whether or not the write succeeded
+     */
+    public Observable<Void> flush() {
+        Batch batch;
+        synchronized (this) {
+            batch = current;
+        }
+        if (batch != null)
+            flush(batch);
+        synchronized (this) {
+            return last == null ? Observable.empty() : last.written;
+        }
+    }
+
+    private void add(Subscriber<? super UpdateResult> subscriber, String key, Operator operator, Object value) {
+        Batch toFlush = null;
+        Batch full = null;
+        synchronized (this) {
+            if (current != null && current.conflicts(key, operator)) {
+                toFlush = current;
+                current = null;
+            }
+            if (current == null) {
+                Batch batch = new Batch();
+                current = batch;
+                batch.timer = Observable.timer(window, unit).subscribe(t -> flush(batch));
+            }
+            current.add(subscriber, key, operator, value);
+            if (current.subscribers.size() >= maxUpdates)
+                full = current;
+        }
+        if (toFlush != null)
+            write(toFlush);
+        if (full != null)
+            flush(full);
+    }
+
+    private void flush(Batch batch) {
+        synchronized (this) {
+            if (current != batch)
+                return;
+            current = null;
+        }
+        write(batch);
+    }
+
+    /**
+     * Batches are written one after another, so a batch that was split off because of a conflict can't overtake the previous one.
+     */
+    private void write(Batch batch) {
+        batch.timer.unsubscribe();
+        synchronized (this) {
+            writeQueue.add(batch);
+            last = batch;
+            if (writing)
+                return;
+            writing = true;
+        }
+        writeNext();
+    }
+
+    /**
+     * Starts the next batch once the previous one is written. A batch that is written while the thread that started it is still starting batches
+     * (fe. because the writer completed synchronously) leaves the next batch to that thread, like {@link OrderedLanes} does, so a long queue doesn't grow the stack.
+     */
+    private void writeNext() {
+        synchronized (this) {
+            handoffs++;
+            if (draining)
+                return;
+            draining = true;
+        }
+        while (true) {
+            Batch batch;
+            synchronized (this) {
+                if (handoffs == 0) {
+                    draining = false;
+                    return;
+                }
+                handoffs--;
+                batch = writeQueue.poll();
+                if (batch == null) {
+                    writing = false;
+                    continue;
+                }
+            }
+            send(batch);
+        }
+    }
+
+    /**
+     * Completes every update of the batch with the result of the writer, or just completes them if the writer completes without a result.
+     */
+    private void send(Batch batch) {
+        writer.call(batch.toUpdate()).lastOrDefault(null).subscribe(result -> batch.subscribers.forEach(s -> {
+            if (result != null)
+                s.onNext(result);
+            s.onCompleted();
+        }), error -> {
+            batch.subscribers.forEach(s -> s.onError(error));
+            batch.written.onCompleted();
+            writeNext();
+        }, () -> {
+            batch.written.onCompleted();
+            writeNext();
+        });
+    }
+
+    /**
+     * Adds two numbers the way MongoDB's $inc would: ints overflow into longs and any floating point makes a double.
+     */
+    static Number add(Number a, Number b) {
+        if (a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float)
+            return a.doubleValue() + b.doubleValue();
+        long sum = a.longValue() + b.longValue();
+        if (a instanceof Integer && b instanceof Integer && sum == (int) sum)
+            return (int) sum;
+        return sum;
+    }
+
+    private enum Operator {
+        INC, SET, PUSH
+    }
+
+    private static class Batch {
+        private final Map<String, Number> incs = new LinkedHashMap<>();
+        private final Map<String, Object> sets = new LinkedHashMap<>();
+        private final Map<String, List<Object>> pushes = new LinkedHashMap<>();
+        private final List<Subscriber<? super UpdateResult>> subscribers = new ArrayList<>();
+        private final AsyncSubject<Void> written = AsyncSubject.create();
+        private Subscription timer;
+
+        private boolean conflicts(String key, Operator operator) {
+            return conflicts(key, incs, operator == Operator.INC)
+                    || conflicts(key, sets, operator == Operator.SET)
+                    || conflicts(key, pushes, operator == Operator.PUSH);
+        }
+
+        private static boolean conflicts(String key, Map<String, ?> fields, boolean sameOperator) {
+            for (String field : fields.keySet()) {
+                if (field.equals(key)) {
+                    if (!sameOperator)
+                        return true;
+                } else if (field.startsWith(key + ".") || key.startsWith(field + "."))
+                    return true;
+            }
+            return false;
+        }
+
+        private void add(Subscriber<? super UpdateResult> subscriber, String key, Operator operator, Object value) {
+            switch (operator) {
+                case INC:
+                    incs.merge(key, (Number) value, UpdateCoalescer::add);
+                    break;
+                case SET:
+                    sets.put(key, value);
+                    break;
+                case PUSH:
+                    pushes.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+                    break;
+            }
+            subscribers.add(subscriber);
+        }
+
+        private Bson toUpdate() {
+            List<Bson> updates = new ArrayList<>();
+            incs.forEach((key, amount) -> updates.add(Updates.inc(key, amount)));
+            sets.forEach((key, value) -> updates.add(Updates.set(key, value)));
+            pushes.forEach((key, values) -> updates.add(values.size() == 1 ? Updates.push(key, values.get(0)) : Updates.pushEach(key, values)));
+            return Updates.combine(updates);
+        }
+    }
+}
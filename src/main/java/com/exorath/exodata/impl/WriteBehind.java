@@ -0,0 +1,304 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import com.exorath.exodata.api.DroppedIncrements;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import rx.Observable;
+import rx.Subscription;
+import rx.functions.Action1;
+import rx.functions.Func0;
+import rx.subjects.ReplaySubject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates increments locally and sends the summed deltas periodically, as one unordered bulkWrite with a single $inc per document.
+ * Every delta is appended to a memory-mapped journal before it's accumulated, journals that were not flushed (fe. after a crash) are replayed when write-behind is enabled on the same directory again.
+ * <p>
+ * Deltas are accumulated per journal generation. A flush closes the current generation and opens the next one, waits for the appends to the closed generation to finish and sends its deltas.
+ * The journal file of a generation is deleted once its deltas are written, a flush that failed without write errors keeps the generation so it's sent again with the next flush.
+ * A flush with write errors only drops the deltas of the documents that failed (they would fail again), except for duplicate key errors of concurrent upserts, which are journaled again.
+ * Dropped deltas are logged and passed on, failed periodic flushes are logged.
+ * <p>
+ * The journals that are in the directory when a write-behind is created are replayed once the write-behind it replaces finished its last flush, all flushes wait for that.
+ * <p>
+ * Deltas are written at least once: a bulkWrite that failed on the network may have been applied partially, and a crash between a bulkWrite and the deletion of its journals
+ * replays (and applies again) the deltas of those journals.
+ * Increments only take the lock of the journal to reserve their record, writing the record and adding to the adders is lock-free.
+ */
+public class WriteBehind {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehind.class);
+    public static final int DEFAULT_JOURNAL_SIZE = 4 * 1024 * 1024;
+    private final CollectionIO io;
+    private final File directory;
+    private final int journalSize;
+    private final Func0<String> versionField;
+    private final Action1<Set<String>> flushed;
+    private final Action1<DroppedIncrements> dropped;
+    private final List<WriteBehindJournal> pending = new ArrayList<>();
+    private volatile WriteBehindJournal current;
+    private long generation;
+    private Subscription timer;
+    private Observable<BulkWriteResult> lastFlush;
+
+    /**
+     * @param versionField supplies the version field of the collection, which is incremented once per flushed document (or null if there is none)
+     * @param flushed      called with the ids of the documents after their deltas were written
+     * @param dropped      called with the deltas of a document that were dropped after a write error
+     * @param replaced     the last flush of the write-behind this one replaces, the journals in the directory are replayed once it terminated (or empty if there is none)
+     */
+    public WriteBehind(CollectionIO io, File directory, int journalSize, long flushInterval, TimeUnit unit, Func0<String> versionField, Action1<Set<String>> flushed,
+                       Action1<DroppedIncrements> dropped, Observable<BulkWriteResult> replaced) {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new UncheckedIOException(new IOException("could not create journal directory " + directory));
+        this.io = io;
+        this.directory = directory;
+        this.journalSize = journalSize;
+        this.versionField = versionField;
+        this.flushed = flushed;
+        this.dropped = dropped;
+        File[] journals = listJournals();
+        for (File journal : journals)
+            generation = Math.max(generation, getGeneration(journal) + 1);
+        long firstGeneration = generation;
+        current = WriteBehindJournal.create(new File(directory, generation++ + WriteBehindJournal.EXTENSION), journalSize);
+        ReplaySubject<BulkWriteResult> replayed = ReplaySubject.create();
+        lastFlush = replayed;
+        replaced.ignoreElements()
+                .onErrorResumeNext(error -> {
+                    LOGGER.warn("The last flush of the replaced write-behind failed, its journals in {} are replayed", directory, error);
+                    return Observable.empty();
+                })
+                .concatWith(Observable.defer(() -> {
+                    replay(firstGeneration);
+                    return Observable.empty();
+                }))
+                .subscribe(replayed);
+        //Replayed journals are sent right away
+        timer = Observable.interval(journals.length == 0 ? flushInterval : 0, flushInterval, unit)
+                .onBackpressureDrop()
+                .concatMap(tick -> flush().onErrorResumeNext(error -> {
+                    LOGGER.warn("Write-behind flush of {} failed", directory, error);
+                    return Observable.empty();
+                }))
+                .subscribe();
+    }
+
+    private File[] listJournals() {
+        File[] journals = directory.listFiles((dir, name) -> name.endsWith(WriteBehindJournal.EXTENSION));
+        if (journals == null)
+            return new File[0];
+        Arrays.sort(journals, (a, b) -> Long.compare(getGeneration(a), getGeneration(b)));
+        return journals;
+    }
+
+    /**
+     * Queues the journals of earlier generations that are still in the directory before the journals of this write-behind.
+     * A journal that can't be read is logged and left in the directory, it's replayed when write-behind is enabled on the directory again.
+     */
+    private void replay(long firstGeneration) {
+        List<WriteBehindJournal> replayed = new ArrayList<>();
+        for (File journal : listJournals()) {
+            if (getGeneration(journal) >= firstGeneration)
+                continue;
+            try {
+                replayed.add(WriteBehindJournal.replay(journal));
+            } catch (UncheckedIOException e) {
+                LOGGER.error("Could not replay write-behind journal {}", journal, e);
+            }
+        }
+        synchronized (this) {
+            pending.addAll(0, replayed);
+        }
+    }
+
+    private static long getGeneration(File journal) {
+        String name = journal.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - WriteBehindJournal.EXTENSION.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Journals and accumulates the increment, it's sent with the next flush.
+     *
+     * @return an observable that emits an unacknowledged UpdateResult once the increment is journaled and completes, or throws an error if the journal could not be written
+     */
+    public Observable<UpdateResult> inc(String id, String field, Number amount) {
+        return Observable.defer(() -> {
+            journal(id, field, amount);
+            return Observable.just(UpdateResult.unacknowledged());
+        });
+    }
+
+    private void journal(String id, String field, Number amount) {
+        while (true) {
+            WriteBehindJournal journal = current;
+            if (!journal.enter())
+                continue;
+            boolean appended;
+            try {
+                appended = journal.append(id, field, amount);
+            } finally {
+                journal.exit();
+            }
+            if (appended)
+                return;
+            rotate(journal);
+        }
+    }
+
+    /**
+     * Closes the journal and opens the next generation, unless another thread did so already.
+     */
+    private synchronized void rotate(WriteBehindJournal journal) {
+        if (current != journal)
+            return;
+        current = WriteBehindJournal.create(new File(directory, generation++ + WriteBehindJournal.EXTENSION), journalSize);
+        journal.close();
+        pending.add(journal);
+    }
+
+    /**
+     * Sends all accumulated deltas. Flushes are sent one after another, so once a flush completes all deltas that were accumulated before it are written (or failed).
+     *
+     * @return an observable that emits the BulkWriteResult and completes (without emitting if there was nothing to send), or throws an error
+     */
+    public Observable<BulkWriteResult> flush() {
+        return Observable.defer(() -> {
+            ReplaySubject<BulkWriteResult> flushed = ReplaySubject.create();
+            Observable<BulkWriteResult> previous;
+            synchronized (this) {
+                previous = lastFlush;
+                lastFlush = flushed.ignoreElements().onErrorResumeNext(Observable.empty());
+            }
+            previous.concatWith(Observable.defer(this::send)).subscribe(flushed);
+            return flushed;
+        });
+    }
+
+    private Observable<BulkWriteResult> send() {
+        return Observable.defer(() -> {
+            List<WriteBehindJournal> journals;
+            synchronized (this) {
+                WriteBehindJournal current = this.current;
+                current.force();
+                if (!current.isEmpty())
+                    rotate(current);
+                journals = new ArrayList<>(pending);
+                pending.clear();
+            }
+            if (journals.isEmpty())
+                return Observable.empty();
+            Map<String, Map<String, WriteBehindJournal.Delta>> deltas = new HashMap<>();
+            for (WriteBehindJournal journal : journals) {
+                journal.awaitWriters();
+                journal.getDeltas().forEach((id, fields) -> fields.forEach((field, delta) ->
+                        delta.addTo(deltas.computeIfAbsent(id, key -> new HashMap<>()).computeIfAbsent(field, key -> new WriteBehindJournal.Delta()))));
+            }
+            List<WriteModel<Document>> models = new ArrayList<>(deltas.size());
+            List<String> ids = new ArrayList<>(deltas.size());
+            UpdateOptions upsert = new UpdateOptions().upsert(true);
+            String versionField = this.versionField.call();
+            deltas.forEach((id, fields) -> {
+                Document inc = new Document();
+                fields.forEach((field, delta) -> inc.append(field, delta.getSum()));
+                if (versionField != null && !inc.containsKey(versionField))
+                    inc.append(versionField, 1);
+                models.add(new UpdateOneModel<>(new Document("_id", id), new Document("$inc", inc), upsert));
+                ids.add(id);
+            });
+            if (models.isEmpty()) {
+                journals.forEach(WriteBehindJournal::delete);
+                return Observable.empty();
+            }
+            return io.bulkWrite(models, new BulkWriteOptions().ordered(false))
+                    .doOnNext(result -> {
+                        journals.forEach(WriteBehindJournal::delete);
+                        flushed.call(deltas.keySet());
+                    })
+                    .doOnError(error -> {
+                        if (error instanceof MongoBulkWriteException && ((MongoBulkWriteException) error).getWriteConcernError() == null) {
+                            failed((MongoBulkWriteException) error, ids, deltas);
+                            journals.forEach(WriteBehindJournal::delete);
+                            return;
+                        }
+                        //Not known what was applied, the whole flush is sent again
+                        synchronized (this) {
+                            pending.addAll(0, journals);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Handles a bulkWrite that was applied except for the documents with write errors. Those are dropped (fe. incrementing a field that is not a number would fail again),
+     * unless the error is a duplicate key of an upsert that raced with another upsert: their deltas are journaled again and sent with the next flush.
+     */
+    private void failed(MongoBulkWriteException error, List<String> ids, Map<String, Map<String, WriteBehindJournal.Delta>> deltas) {
+        Set<String> written = new HashSet<>(ids);
+        for (BulkWriteError writeError : error.getWriteErrors()) {
+            String id = ids.get(writeError.getIndex());
+            written.remove(id);
+            if (ErrorCategory.fromErrorCode(writeError.getCode()) == ErrorCategory.DUPLICATE_KEY) {
+                deltas.get(id).forEach((field, delta) -> journal(id, field, delta.getSum()));
+                continue;
+            }
+            Document increments = new Document();
+            deltas.get(id).forEach((field, delta) -> increments.append(field, delta.getSum()));
+            LOGGER.error("Dropped the write-behind increments {} of document {} after write error {}: {}", increments, id, writeError.getCode(), writeError.getMessage());
+            dropped.call(new DroppedIncrements(id, increments, writeError));
+        }
+        if (!written.isEmpty())
+            flushed.call(written);
+    }
+
+    /**
+     * Stops the periodic flushes and sends the accumulated deltas one last time. Increments that are still added to this write-behind are journaled, but only sent when it's enabled again.
+     */
+    public Observable<BulkWriteResult> stop() {
+        synchronized (this) {
+            if (timer != null)
+                timer.unsubscribe();
+            timer = null;
+        }
+        return flush();
+    }
+}
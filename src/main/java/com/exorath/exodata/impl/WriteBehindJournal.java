@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One generation of write-behind increments: the accumulated deltas and the memory-mapped file every delta is appended to before it's accumulated.
+ * Once a generation is closed no deltas are added anymore, after its last writer left ({@link #awaitWriters()}) its deltas equal the deltas in its file.
+ * <p>
+ * A record is [int length][byte kind][long delta][short id length][id][short field length][field][byte committed].
+ * The length is written together with the reservation of the record's space (under a short lock), so every reserved record can be skipped on replay.
+ * The committed byte is written last, records that were still being written when the process died are skipped on replay.
+ */
+class WriteBehindJournal {
+    static final String EXTENSION = ".journal";
+    private static final byte KIND_INT = 0;
+    private static final byte KIND_LONG = 1;
+    private static final byte KIND_DOUBLE = 2;
+    private static final byte COMMITTED = 1;
+    private static final int OVERHEAD = 4 + 1 + 8 + 2 + 2 + 1;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final AtomicInteger position = new AtomicInteger();
+    private final AtomicInteger writers = new AtomicInteger();
+    private final ConcurrentMap<String, ConcurrentMap<String, Delta>> deltas = new ConcurrentHashMap<>();
+    private volatile boolean closed;
+
+    private WriteBehindJournal(File file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Creates a new, empty journal file of the given size.
+     */
+    static WriteBehindJournal create(File file, int size) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            return new WriteBehindJournal(file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads the committed records of a journal that was left behind (fe. by a crash), the returned journal is closed.
+     */
+    static WriteBehindJournal replay(File file) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            WriteBehindJournal journal = new WriteBehindJournal(file, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()));
+            journal.closed = true;
+            journal.replay();
+            return journal;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void replay() {
+        int position = 0;
+        while (position + 4 <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length < OVERHEAD || position + length > buffer.limit())
+                break;
+            if (buffer.get(position + length - 1) == COMMITTED) {
+                byte kind = buffer.get(position + 4);
+                long bits = buffer.getLong(position + 5);
+                int idLength = buffer.getShort(position + 13) & 0xFFFF;
+                String id = readString(position + 15, idLength);
+                int fieldLength = buffer.getShort(position + 15 + idLength) & 0xFFFF;
+                String field = readString(position + 17 + idLength, fieldLength);
+                getDelta(id, field).add(kind, bits);
+            }
+            position += length;
+        }
+        this.position.set(position);
+    }
+
+    /**
+     * Registers a writer, a writer may only append while registered.
+     *
+     * @return false if the journal is closed, the writer is not registered in that case
+     */
+    boolean enter() {
+        writers.incrementAndGet();
+        if (closed) {
+            writers.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void exit() {
+        writers.decrementAndGet();
+    }
+
+    /**
+     * Appends the delta to the file and adds it to the accumulated deltas. The calling thread must have entered the journal.
+     *
+     * @return false if the journal is full, nothing is appended or added in that case
+     */
+    boolean append(String id, String field, Number amount) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] fieldBytes = field.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > 0xFFFF || fieldBytes.length > 0xFFFF)
+            throw new IllegalArgumentException("id and field may not be longer than 65535 bytes");
+        int length = OVERHEAD + idBytes.length + fieldBytes.length;
+        if (length > buffer.capacity())
+            throw new IllegalArgumentException("the journal is too small for an increment of " + field);
+        int start;
+        synchronized (this) {
+            start = position.get();
+            if (start + length > buffer.capacity())
+                return false;
+            buffer.putInt(start, length);
+            position.set(start + length);
+        }
+        byte kind = getKind(amount);
+        long bits = kind == KIND_DOUBLE ? Double.doubleToRawLongBits(amount.doubleValue()) : amount.longValue();
+        buffer.put(start + 4, kind);
+        buffer.putLong(start + 5, bits);
+        buffer.putShort(start + 13, (short) idBytes.length);
+        writeBytes(start + 15, idBytes);
+        buffer.putShort(start + 15 + idBytes.length, (short) fieldBytes.length);
+        writeBytes(start + 17 + idBytes.length, fieldBytes);
+        buffer.put(start + length - 1, COMMITTED);
+        getDelta(id, field).add(kind, bits);
+        return true;
+    }
+
+    private void writeBytes(int position, byte[] bytes) {
+        for (int i = 0; i < bytes.length; i++)
+            buffer.put(position + i, bytes[i]);
+    }
+
+    private String readString(int position, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = buffer.get(position + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Delta getDelta(String id, String field) {
+        return deltas.computeIfAbsent(id, key -> new ConcurrentHashMap<>()).computeIfAbsent(field, key -> new Delta());
+    }
+
+    private static byte getKind(Number amount) {
+        if (amount instanceof Integer || amount instanceof Short || amount instanceof Byte)
+            return KIND_INT;
+        if (amount instanceof Double || amount instanceof Float)
+            return KIND_DOUBLE;
+        return KIND_LONG;
+    }
+
+    /**
+     * Stops accepting writers, writers that entered before can still finish their append.
+     */
+    void close() {
+        closed = true;
+    }
+
+    /**
+     * Waits until all writers that entered before the journal was closed have left. Appends are a few memory writes, so this spins.
+     */
+    void awaitWriters() {
+        while (writers.get() != 0)
+            Thread.yield();
+    }
+
+    boolean isEmpty() {
+        return position.get() == 0;
+    }
+
+    /**
+     * Writes the appended records to disk (they already survive a crash of the process, this makes them survive a crash of the machine).
+     */
+    void force() {
+        if (!closed)
+            buffer.force();
+    }
+
+    /**
+     * @return the accumulated deltas by document id and field, only complete once the journal is closed and its writers have left
+     */
+    Map<String, ConcurrentMap<String, Delta>> getDeltas() {
+        return deltas;
+    }
+
+    /**
+     * Unmaps and deletes the file, the journal may not be used anymore afterwards.
+     */
+    void delete() {
+        unmap(buffer);
+        file.delete();
+    }
+
+    /**
+     * Releases the mapping now instead of when the buffer is garbage collected (which could keep thousands of deleted journals mapped).
+     * There is no public API for this, if the JDK does not allow it the buffer is left to the garbage collector.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                //Java 8
+                Method cleaner = buffer.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                Object clean = cleaner.invoke(buffer);
+                if (clean != null)
+                    clean.getClass().getMethod("clean").invoke(clean);
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            //Unmapped once garbage collected
+        }
+    }
+
+    /**
+     * The sum of the deltas of one field. The sum is sent as an int while only ints were added (and it fits), so increments don't change the BSON type of int fields.
+     */
+    static class Delta {
+        private final LongAdder longs = new LongAdder();
+        private final DoubleAdder doubles = new DoubleAdder();
+        private volatile boolean wide;
+        private volatile boolean floating;
+
+        private void add(byte kind, long bits) {
+            if (kind == KIND_DOUBLE) {
+                floating = true;
+                doubles.add(Double.longBitsToDouble(bits));
+            } else {
+                if (kind == KIND_LONG)
+                    wide = true;
+                longs.add(bits);
+            }
+        }
+
+        Number getSum() {
+            long longs = this.longs.sum();
+            if (floating)
+                return doubles.sum() + longs;
+            if (!wide && longs >= Integer.MIN_VALUE && longs <= Integer.MAX_VALUE)
+                return (int) longs;
+            return longs;
+        }
+
+        void addTo(Delta delta) {
+            if (floating)
+                delta.add(KIND_DOUBLE, Double.doubleToRawLongBits(doubles.sum()));
+            delta.add(wide ? KIND_LONG : KIND_INT, longs.sum());
+        }
+    }
+}
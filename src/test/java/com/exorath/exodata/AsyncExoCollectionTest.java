@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata;
+
+import com.exorath.exodata.api.ExoCollection;
+import com.exorath.exodata.api.ExoDocument;
+import com.exorath.exodata.api.FetchStrategy;
+import com.github.fakemongo.Fongo;
+import com.mongodb.ReadPreference;
+import com.mongodb.async.SingleResultCallback;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs ExoCollection and ExoDocument on the async driver. Fongo has no async driver, so the async collection is a proxy that calls the Fongo collection on another thread.
+ */
+public class AsyncExoCollectionTest {
+    private static final String DB_NAME = "testdb";
+    private static final String COLL_NAME = "testcoll";
+    private MongoCollection syncCollection;
+    private ExoCollection collection;
+
+    @Before
+    public void setup() {
+        syncCollection = new Fongo("mongo server 1").getMongo().getDatabase(DB_NAME).getCollection(COLL_NAME);
+        collection = ExoCollection.create(async(syncCollection));
+    }
+
+    @Test
+    public void getMongoCollectionIsNullTest() {
+        assertNull(collection.getMongoCollection());
+        assertNull(collection.getDocument("doc1").getCollection());
+    }
+
+    @Test(timeout = 1000)
+    public void fetchCreatesDocumentTest() {
+        assertEquals(new Document("_id", "doc1"), collection.getDocument("doc1").fetch().toBlocking().first());
+        assertEquals(1, syncCollection.count());
+    }
+
+    @Test(timeout = 1000)
+    public void findFetchStrategyDoesNotCreateDocumentTest() {
+        collection.fetchStrategy(FetchStrategy.FIND_SECONDARY);
+        assertNull(collection.getDocument("doc1").fetch().toBlocking().firstOrDefault(null));
+        assertEquals(0, syncCollection.count());
+    }
+
+    @Test(timeout = 1000)
+    public void incAndDecIfSufficientUpdateDocumentTest() {
+        ExoDocument document = collection.getDocument("doc1");
+        document.inc("testkey", 30).toBlocking().subscribe();
+        assertEquals(1, document.decIfSufficient("testkey", 10).toBlocking().first().getModifiedCount());
+        assertEquals(0, document.decIfSufficient("testkey", 100).toBlocking().first().getModifiedCount());
+        assertEquals(20, document.fetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void createIndexTest() {
+        collection.createIndex(new Document("testkey", 1)).toBlocking().subscribe();
+        boolean called = false;
+        for (Object index : syncCollection.listIndexes())
+            if (((Document) index).get("key", Document.class).equals(new Document("testkey", 1)))
+                called = true;
+        assertTrue(called);
+    }
+
+    @Test(timeout = 1000)
+    public void fetchAllCreatesMissingDocumentsTest() {
+        syncCollection.insertOne(new Document("_id", "doc1").append("testkey", "testvalue"));
+        assertEquals(2, collection.fetchAll(Arrays.asList("doc1", "doc2"), null).count().toBlocking().first().intValue());
+        assertEquals(2, syncCollection.count());
+    }
+
+    @Test(timeout = 1000)
+    public void bulkWritesUpdateDocumentsTest() {
+        collection.enableBulkWrites(100, 20, TimeUnit.MILLISECONDS, 1);
+        Observable.merge(collection.getDocument("doc1").inc("testkey", 1), collection.getDocument("doc2").inc("testkey", 2)).toBlocking().last();
+        assertEquals(2, ((Document) syncCollection.find(new Document("_id", "doc2")).first()).get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void typedDocumentFetchesAndUpdatesTest() {
+        ExoTypedDocumentTest.Profile profile = collection.getDocument("doc1", ExoTypedDocumentTest.Profile.class).fetch().toBlocking().first();
+        assertEquals("doc1", profile.id);
+        collection.getDocument("doc1", ExoTypedDocumentTest.Profile.class).set("home", new ExoTypedDocumentTest.Location(1, 2)).toBlocking().first();
+        collection.fetchStrategy(FetchStrategy.FIND);
+        assertEquals(2, collection.getDocument("doc1", ExoTypedDocumentTest.Profile.class).fetch().toBlocking().first().home.z);
+    }
+
+    private static com.mongodb.async.client.MongoCollection<Document> async(MongoCollection sync) {
+        return (com.mongodb.async.client.MongoCollection<Document>) Proxy.newProxyInstance(AsyncExoCollectionTest.class.getClassLoader(),
+                new Class[]{com.mongodb.async.client.MongoCollection.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getCodecRegistry":
+                            return sync.getCodecRegistry();
+                        case "withReadPreference":
+                            return async(sync.withReadPreference((ReadPreference) args[0]));
+                        case "withCodecRegistry":
+                            return async(sync.withCodecRegistry((CodecRegistry) args[0]));
+                        case "withDocumentClass":
+                            return async(sync.withDocumentClass((Class) args[0]));
+                        case "find":
+                            return asyncFind(args.length == 1 ? sync.find((Bson) args[0]) : sync.find((Bson) args[0], (Class) args[1]));
+                        default:
+                            Class<?>[] types = method.getParameterTypes();
+                            Method syncMethod = MongoCollection.class.getMethod(method.getName(), Arrays.copyOf(types, types.length - 1));
+                            callback(args, () -> syncMethod.invoke(sync, Arrays.copyOf(args, args.length - 1)));
+                            return null;
+                    }
+                });
+    }
+
+    private static com.mongodb.async.client.FindIterable<Document> asyncFind(FindIterable sync) {
+        return (com.mongodb.async.client.FindIterable<Document>) Proxy.newProxyInstance(AsyncExoCollectionTest.class.getClassLoader(),
+                new Class[]{com.mongodb.async.client.FindIterable.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "projection":
+                            return asyncFind(sync.projection((Bson) args[0]));
+                        case "first":
+                            callback(args, sync::first);
+                            return null;
+                        case "into":
+                            callback(args, () -> sync.into((Collection) args[0]));
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static void callback(Object[] args, SyncCall call) {
+        SingleResultCallback<Object> callback = (SingleResultCallback<Object>) args[args.length - 1];
+        new Thread(() -> {
+            Object result;
+            try {
+                result = call.call();
+            } catch (InvocationTargetException e) {
+                callback.onResult(null, e.getCause());
+                return;
+            } catch (Throwable e) {
+                callback.onResult(null, e);
+                return;
+            }
+            callback.onResult(result, null);
+        }).start();
+    }
+
+    private interface SyncCall {
+        Object call() throws Throwable;
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata;
+
+import com.exorath.exodata.api.BalanceEscrow;
+import com.exorath.exodata.api.ExoCollection;
+import com.exorath.exodata.api.ExoDocument;
+import com.github.fakemongo.Fongo;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import rx.observers.TestSubscriber;
+
+import java.lang.reflect.Proxy;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BalanceEscrowTest {
+    private static final String DB_NAME = "testdb";
+    private static final String COLL_NAME = "testcoll";
+    private MongoCollection<Document> mongoCollection;
+    private ExoDocument document;
+
+    @Before
+    public void setup() {
+        mongoCollection = new Fongo("mongo server 1").getMongo().getDatabase(DB_NAME).getCollection(COLL_NAME);
+        document = ExoCollection.create(mongoCollection).getDocument("player1");
+        mongoCollection.insertOne(new Document("_id", "player1").append("coins", 1000));
+    }
+
+    private Document findInDatabase() {
+        return mongoCollection.find(new Document("_id", "player1")).first();
+    }
+
+    private Object getLeaseAmount(Document found) {
+        Document leases = (Document) ((Document) found.get("_leases")).get("coins");
+        return leases.isEmpty() ? null : ((Document) leases.values().iterator().next()).get("amount");
+    }
+
+    private void awaitLeaseAmount(Object amount) throws InterruptedException {
+        while (!amount.equals(getLeaseAmount(findInDatabase())))
+            Thread.sleep(5);
+    }
+
+    @Test(timeout = 1000)
+    public void spendReservesChunkTest() throws InterruptedException {
+        BalanceEscrow escrow = document.escrow("coins", 100, 10, TimeUnit.SECONDS);
+        assertTrue(escrow.spend(10).toBlocking().first());
+        assertEquals(90, escrow.getAvailable());
+        assertEquals(900, findInDatabase().get("coins"));
+        awaitLeaseAmount(90);
+    }
+
+    @Test(timeout = 1000)
+    public void spendFromReservedChunkDoesNotReadBalanceTest() {
+        BalanceEscrow escrow = document.escrow("coins", 100, 10, TimeUnit.SECONDS);
+        escrow.spend(10).toBlocking().first();
+        mongoCollection.updateOne(new Document("_id", "player1"), new Document("$set", new Document("coins", 0)));
+        assertTrue(escrow.spend(50).toBlocking().first());
+        assertEquals(40, escrow.getAvailable());
+    }
+
+    @Test(timeout = 1000)
+    public void spendWithInsufficientBalanceIsNotApprovedTest() {
+        BalanceEscrow escrow = document.escrow("coins", 100, 10, TimeUnit.SECONDS);
+        assertFalse(escrow.spend(2000).toBlocking().first());
+        assertEquals(1000, findInDatabase().get("coins"));
+    }
+
+    @Test(timeout = 1000)
+    public void spendReservesMissingAmountIfBalanceIsSmallerThanChunkTest() {
+        BalanceEscrow escrow = document.escrow("coins", 5000, 10, TimeUnit.SECONDS);
+        assertTrue(escrow.spend(600).toBlocking().first());
+        assertEquals(0, escrow.getAvailable());
+        assertEquals(400, findInDatabase().get("coins"));
+    }
+
+    @Test(timeout = 1000)
+    public void spendTopsUpInBackgroundTest() throws InterruptedException {
+        BalanceEscrow escrow = document.escrow("coins", 100, 10, TimeUnit.SECONDS);
+        assertTrue(escrow.spend(90).toBlocking().first());
+        while (escrow.getAvailable() != 110)
+            Thread.sleep(5);
+        assertEquals(800, findInDatabase().get("coins"));
+    }
+
+    @Test(timeout = 1000)
+    public void releaseReturnsUnspentAmountTest() {
+        BalanceEscrow escrow = document.escrow("coins", 100, 10, TimeUnit.SECONDS);
+        escrow.spend(30).toBlocking().first();
+        assertEquals(1, escrow.release().toBlocking().first().getModifiedCount());
+        assertEquals(970, findInDatabase().get("coins"));
+        assertNull(getLeaseAmount(findInDatabase()));
+        assertEquals(0, escrow.getAvailable());
+        assertFalse(escrow.spend(1).toBlocking().first());
+    }
+
+    @Test(timeout = 1000)
+    public void balanceKeepsIntTypeTest() {
+        BalanceEscrow escrow = document.escrow("coins", 100, 10, TimeUnit.SECONDS);
+        escrow.spend(30).toBlocking().first();
+        escrow.release().toBlocking().first();
+        assertEquals(Integer.class, findInDatabase().get("coins").getClass());
+    }
+
+    @Test(timeout = 1000)
+    public void reclaimExpiredReturnsExpiredLeasesTest() {
+        Document deadLease = new Document("amount", 200).append("expires", new Date(System.currentTimeMillis() - 1000));
+        Document liveLease = new Document("amount", 300).append("expires", new Date(System.currentTimeMillis() + 60000));
+        mongoCollection.updateOne(new Document("_id", "player1"), new Document("$set", new Document("_leases.coins.dead", deadLease).append("_leases.coins.live", liveLease)));
+        assertEquals(200L, document.escrow("coins", 100, 10, TimeUnit.SECONDS).reclaimExpired().toBlocking().first().longValue());
+        assertEquals(1200, findInDatabase().get("coins"));
+        assertEquals(300, ((Document) ((Document) ((Document) findInDatabase().get("_leases")).get("coins")).get("live")).get("amount"));
+    }
+
+    @Test(timeout = 1000)
+    public void spendReclaimsExpiredLeasesWhenShortTest() {
+        mongoCollection.updateOne(new Document("_id", "player1"), new Document("$set", new Document("coins", 0)
+                .append("_leases.coins.dead", new Document("amount", 500).append("expires", new Date(System.currentTimeMillis() - 1000)))));
+        assertTrue(document.escrow("coins", 100, 10, TimeUnit.SECONDS).spend(50).toBlocking().first());
+        assertEquals(400, findInDatabase().get("coins"));
+    }
+
+    @Test(timeout = 2000)
+    public void lostLeaseIsReservedAgainTest() throws InterruptedException {
+        BalanceEscrow escrow = document.escrow("coins", 100, 90, TimeUnit.MILLISECONDS);
+        escrow.spend(10).toBlocking().first();
+        //Another server reclaimed the lease
+        mongoCollection.updateOne(new Document("_id", "player1"), new Document("$unset", new Document("_leases.coins", "")));
+        while (escrow.getAvailable() != 0)
+            Thread.sleep(5);
+        assertTrue(escrow.spend(10).toBlocking().first());
+        assertEquals(800, findInDatabase().get("coins"));
+        escrow.release().toBlocking().first();
+    }
+
+    @Test(timeout = 1000)
+    public void leaseIsRenewedTest() throws InterruptedException {
+        BalanceEscrow escrow = document.escrow("coins", 100, 60, TimeUnit.MILLISECONDS);
+        escrow.spend(10).toBlocking().first();
+        Thread.sleep(200);
+        assertEquals(90, escrow.getAvailable());
+        escrow.release().toBlocking().first();
+        assertEquals(990, findInDatabase().get("coins"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void spendNonPositiveAmountThrowsTest() {
+        document.escrow("coins", 100, 10, TimeUnit.SECONDS).spend(0);
+    }
+
+    @Test(timeout = 1000)
+    public void reclaimExpiredDoesNotCreateDocumentTest() {
+        ExoDocument missing = ExoCollection.create(mongoCollection).getDocument("player2");
+        assertEquals(0L, (long) missing.escrow("coins", 100, 10, TimeUnit.SECONDS).reclaimExpired().toBlocking().first());
+        assertNull(mongoCollection.find(new Document("_id", "player2")).first());
+    }
+
+    @Test(timeout = 1000)
+    public void releaseReclaimsLeaseOfReservationWithLostReplyTest() {
+        AtomicBoolean lost = new AtomicBoolean();
+        @SuppressWarnings("unchecked")
+        MongoCollection<Document> lossy = (MongoCollection<Document>) Proxy.newProxyInstance(MongoCollection.class.getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            Object result = method.invoke(mongoCollection, args);
+            if (method.getName().equals("updateOne") && lost.compareAndSet(false, true))
+                throw new MongoSocketReadException("reply lost", new ServerAddress());
+            return result;
+        });
+        BalanceEscrow escrow = ExoCollection.create(lossy).getDocument("player1").escrow("coins", 100, 10, TimeUnit.SECONDS);
+        TestSubscriber<Boolean> spend = new TestSubscriber<>();
+        escrow.spend(10).subscribe(spend);
+        spend.awaitTerminalEvent();
+        spend.assertError(MongoSocketReadException.class);
+        assertEquals(900, findInDatabase().get("coins"));
+        escrow.release().toBlocking().first();
+        assertEquals(1000, findInDatabase().get("coins"));
+        assertNull(getLeaseAmount(findInDatabase()));
+    }
+
+    @Test(timeout = 2000)
+    public void syncWithLostReplyIsNotAppliedTwiceTest() throws InterruptedException {
+        AtomicInteger updates = new AtomicInteger();
+        @SuppressWarnings("unchecked")
+        MongoCollection<Document> lossy = (MongoCollection<Document>) Proxy.newProxyInstance(MongoCollection.class.getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            Object result = method.invoke(mongoCollection, args);
+            //The first update reserves the chunk, the second one syncs the first spend
+            if (method.getName().equals("updateOne") && updates.incrementAndGet() == 2)
+                throw new MongoSocketReadException("reply lost", new ServerAddress());
+            return result;
+        });
+        BalanceEscrow escrow = ExoCollection.create(lossy).getDocument("player1").escrow("coins", 100, 300, TimeUnit.MILLISECONDS);
+        assertTrue(escrow.spend(10).toBlocking().first());
+        assertTrue(escrow.spend(5).toBlocking().first());
+        awaitLeaseAmount(85);
+        Thread.sleep(250);
+        assertEquals(85, getLeaseAmount(findInDatabase()));
+        escrow.release().toBlocking().first();
+        assertEquals(985, findInDatabase().get("coins"));
+    }
+}
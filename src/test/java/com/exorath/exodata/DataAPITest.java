@@ -17,16 +17,36 @@
 package com.exorath.exodata;
 
 import com.exorath.exodata.api.DataAPI;
+import com.exorath.exodata.api.DocumentLease;
 import com.exorath.exodata.api.ExoDatabase;
+import com.exorath.exodata.api.ExoCollection;
+import com.exorath.exodata.api.IOLimits;
+import com.exorath.exodata.api.MetricsSnapshot;
+import com.exorath.exodata.api.OperationStats;
+import com.exorath.exodata.api.OperationType;
+import com.exorath.exodata.api.RejectionPolicy;
+import com.exorath.exodata.impl.BoundedIOPool;
+import com.exorath.exodata.impl.IOExecutor;
 import com.github.fakemongo.Fongo;
 import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
 import org.junit.Before;
 import org.junit.Test;
+import rx.observers.TestSubscriber;
 
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -81,4 +101,240 @@ public class DataAPITest {
         assertEquals(client, dataAPI.getMongoClient());
         assertEquals(client, dataAPI.getMongoClient());
     }
+
+    @Test
+    public void getIOStatsNullWithoutLimitsTest(){
+        assertNull(dataAPI.getIOStats());
+    }
+
+    @Test
+    public void limitedDataAPIFetchesTest(){
+        DataAPI limited = DataAPI.create(client, new IOLimits().maxConcurrency(2).maxQueued(4).collectionConcurrency(1));
+        Document document = limited.getDatabase(DB_NAME).toBlocking().first().getCollection("impl").toBlocking().first()
+                .getDocument("test").inc("value", 3).flatMap(result -> limited.getDatabase(DB_NAME).toBlocking().first().getCollection("impl").toBlocking().first().getDocument("test").fetch())
+                .toBlocking().first();
+        assertEquals(3, document.get("value"));
+        assertEquals(0, limited.getIOStats().getRejected());
+    }
+
+    @Test
+    public void failFastRejectsWhenQueueIsFullTest() throws Exception {
+        BoundedIOPool pool = new BoundedIOPool(new IOLimits().maxConcurrency(1).maxQueued(1).rejectionPolicy(RejectionPolicy.FAIL_FAST));
+        IOExecutor executor = pool.forCollection("db.coll", Integer.MAX_VALUE);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TestSubscriber<String> running = new TestSubscriber<>();
+        executor.execute(() -> block(started, release, "running")).subscribe(running);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        TestSubscriber<String> queued = new TestSubscriber<>();
+        executor.execute(() -> "queued").subscribe(queued);
+        TestSubscriber<String> rejected = new TestSubscriber<>();
+        executor.execute(() -> "rejected").subscribe(rejected);
+        rejected.assertError(RejectedExecutionException.class);
+        assertEquals(1, pool.getStats().getQueued());
+        assertEquals(1, pool.getStats().getRejected());
+        release.countDown();
+        queued.awaitTerminalEvent(5, TimeUnit.SECONDS);
+        queued.assertValue("queued");
+        running.assertValue("running");
+    }
+
+    @Test
+    public void callerRunsRunsOnSubscribingThreadWhenQueueIsFullTest() throws Exception {
+        BoundedIOPool pool = new BoundedIOPool(new IOLimits().maxConcurrency(1).maxQueued(1).rejectionPolicy(RejectionPolicy.CALLER_RUNS));
+        IOExecutor executor = pool.forCollection("db.coll", Integer.MAX_VALUE);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> block(started, release, "running")).subscribe();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.execute(() -> "queued").subscribe();
+        TestSubscriber<String> callerRuns = new TestSubscriber<>();
+        executor.execute(() -> Thread.currentThread().getName()).subscribe(callerRuns);
+        callerRuns.assertValue(Thread.currentThread().getName());
+        assertEquals(1, pool.getStats().getCallerRuns());
+        release.countDown();
+    }
+
+    @Test
+    public void callerRunsInsideRunningCallRunsAfterItTest() throws Exception {
+        BoundedIOPool pool = new BoundedIOPool(new IOLimits().maxConcurrency(1).maxQueued(1).rejectionPolicy(RejectionPolicy.CALLER_RUNS));
+        IOExecutor executor = pool.getExecutor();
+        AtomicBoolean innerRan = new AtomicBoolean();
+        TestSubscriber<String> inner = new TestSubscriber<>();
+        TestSubscriber<Boolean> outer = new TestSubscriber<>();
+        executor.execute(() -> {
+            executor.execute(() -> "queued").subscribe();
+            executor.execute(() -> {
+                innerRan.set(true);
+                return Thread.currentThread().getName();
+            }).subscribe(inner);
+            return innerRan.get();
+        }).subscribe(outer);
+        outer.awaitTerminalEvent(5, TimeUnit.SECONDS);
+        outer.assertValue(false);
+        inner.awaitTerminalEvent(5, TimeUnit.SECONDS);
+        assertTrue(inner.getOnNextEvents().get(0).startsWith("exodata-io-"));
+        assertEquals(1, pool.getStats().getCallerRuns());
+    }
+
+    @Test
+    public void dropOldestRejectsOldestQueuedTest() throws Exception {
+        BoundedIOPool pool = new BoundedIOPool(new IOLimits().maxConcurrency(1).maxQueued(1).rejectionPolicy(RejectionPolicy.DROP_OLDEST));
+        IOExecutor executor = pool.forCollection("db.coll", Integer.MAX_VALUE);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute(() -> block(started, release, "running")).subscribe();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        TestSubscriber<String> oldest = new TestSubscriber<>();
+        executor.execute(() -> "oldest").subscribe(oldest);
+        TestSubscriber<String> newest = new TestSubscriber<>();
+        executor.execute(() -> "newest").subscribe(newest);
+        oldest.assertError(RejectedExecutionException.class);
+        assertEquals(1, pool.getStats().getDropped());
+        release.countDown();
+        newest.awaitTerminalEvent(5, TimeUnit.SECONDS);
+        newest.assertValue("newest");
+    }
+
+    @Test
+    public void collectionConcurrencyLimitsSingleCollectionTest() throws Exception {
+        BoundedIOPool pool = new BoundedIOPool(new IOLimits().maxConcurrency(4).maxQueued(4));
+        IOExecutor limited = pool.forCollection("db.limited", 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        limited.execute(() -> block(started, release, "running")).subscribe();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        TestSubscriber<String> waiting = new TestSubscriber<>();
+        limited.execute(() -> "waiting").subscribe(waiting);
+        TestSubscriber<String> other = new TestSubscriber<>();
+        pool.forCollection("db.other", 1).execute(() -> "other").subscribe(other);
+        other.awaitTerminalEvent(5, TimeUnit.SECONDS);
+        other.assertValue("other");
+        waiting.assertNoValues();
+        assertEquals(1, pool.getStats().getQueued());
+        release.countDown();
+        waiting.awaitTerminalEvent(5, TimeUnit.SECONDS);
+        waiting.assertValue("waiting");
+        assertEquals(0, pool.getStats().getQueued());
+    }
+
+    @Test
+    public void closeShutsDownPoolButNotPassedClientTest(){
+        DataAPI limited = DataAPI.create(client, new IOLimits());
+        limited.close();
+        TestSubscriber<ExoDatabase> database = new TestSubscriber<>();
+        limited.getDatabase(DB_NAME).subscribe(database);
+        database.awaitTerminalEvent(5, TimeUnit.SECONDS);
+        database.assertError(RejectedExecutionException.class);
+        client.getDatabase(DB_NAME).getCollection("open").insertOne(new Document());
+        assertEquals(1, client.getDatabase(DB_NAME).getCollection("open").count());
+    }
+
+    @Test(timeout = 2000)
+    public void closeFlushesAndReleasesCollectionsTest() throws Exception {
+        File journals = Files.createTempDirectory("journals").toFile();
+        DataAPI limited = DataAPI.create(client, new IOLimits());
+        ExoCollection collection = limited.getDatabase(DB_NAME).toBlocking().first().getCollection("closed").toBlocking().first();
+        collection.enableWriteBehind(journals, 1, TimeUnit.HOURS).enableBulkWrites(100, 1, TimeUnit.HOURS, 1);
+        collection.getDocument("doc1").inc("written", 5).toBlocking().subscribe();
+        collection.getDocument("doc2").set("bulk", 1).subscribe();
+        DocumentLease lease = collection.acquireLease("doc3", "server1", 1, TimeUnit.HOURS).toBlocking().first();
+        lease.getDocument().set("leased", 1).toBlocking().subscribe();
+        limited.close();
+        MongoCollection<Document> closed = client.getDatabase(DB_NAME).getCollection("closed");
+        assertEquals(5, closed.find(new Document("_id", "doc1")).first().get("written"));
+        assertEquals(1, closed.find(new Document("_id", "doc2")).first().get("bulk"));
+        Document leased = closed.find(new Document("_id", "doc3")).first();
+        assertEquals(1, leased.get("leased"));
+        assertNull(leased.get("_lease"));
+        assertFalse(lease.isHeld());
+    }
+
+    @Test
+    public void forCollectionReturnsSameExecutorForNamespaceTest(){
+        BoundedIOPool pool = new BoundedIOPool(new IOLimits());
+        assertTrue(pool.forCollection("db.coll", 1) == pool.forCollection("db.coll", 1));
+    }
+
+    @Test
+    public void getMetricsNullWhileDisabledTest(){
+        assertNull(dataAPI.getMetrics());
+        dataAPI.enableMetrics().disableMetrics();
+        assertNull(dataAPI.getMetrics());
+    }
+
+    @Test
+    public void metricsMeasureOperationsPerCollectionTest(){
+        ExoCollection collection = dataAPI.enableMetrics().getDatabase(DB_NAME).toBlocking().first().getCollection("impl").toBlocking().first();
+        for (int i = 0; i < 10; i++)
+            collection.getDocument("doc").inc("coins", 5).toBlocking().first();
+        collection.getDocument("doc").decIfSufficient("coins", 20).toBlocking().first();
+        collection.getDocument("doc").fetch().toBlocking().first();
+        MetricsSnapshot snapshot = dataAPI.getMetrics();
+
+        OperationStats inc = snapshot.get(DB_NAME + ".impl", OperationType.INC);
+        assertEquals(10, inc.getCount());
+        assertEquals(0, inc.getErrors());
+        assertTrue(inc.getP50Latency() > 0);
+        assertTrue(inc.getP99Latency() >= inc.getP50Latency());
+        assertTrue(inc.getP999Latency() >= inc.getP99Latency());
+        assertTrue(inc.getMaxLatency() >= inc.getP999Latency());
+        assertTrue(inc.getMeanDriverTime() > 0);
+        assertTrue(inc.getBytesSent() > 0);
+        assertTrue(inc.getOpsPerSecond() > 0);
+
+        assertEquals(1, snapshot.get(DB_NAME + ".impl", OperationType.DEC_IF_SUFFICIENT).getCount());
+        OperationStats fetch = snapshot.get(DB_NAME + ".impl", OperationType.FETCH);
+        assertEquals(1, fetch.getCount());
+        assertTrue(fetch.getBytesReceived() > 0);
+        assertNull(snapshot.get(DB_NAME + ".impl", OperationType.PUSH));
+    }
+
+    @Test
+    public void metricsCountErrorsTest(){
+        ExoCollection collection = dataAPI.enableMetrics().getDatabase(DB_NAME).toBlocking().first().getCollection("impl").toBlocking().first();
+        collection.getDocument("doc").set("value", "text").toBlocking().first();
+        collection.getDocument("doc").inc("value", 1).onErrorResumeNext(error -> rx.Observable.empty()).toBlocking().lastOrDefault(null);
+        assertEquals(1, dataAPI.getMetrics().get(DB_NAME + ".impl", OperationType.INC).getErrors());
+    }
+
+    @Test
+    public void metricsMeasureQueueWaitOnLimitedDataAPITest(){
+        DataAPI limited = DataAPI.create(client, new IOLimits().maxConcurrency(1)).enableMetrics();
+        ExoCollection collection = limited.getDatabase(DB_NAME).toBlocking().first().getCollection("impl").toBlocking().first();
+        collection.fetchAll(Arrays.asList("a", "b", "c"), null).toList().toBlocking().first();
+        OperationStats fetchAll = limited.getMetrics().get(DB_NAME + ".impl", OperationType.FETCH_ALL);
+        assertEquals(1, fetchAll.getCount());
+        assertTrue(fetchAll.getMeanQueueWait() > 0);
+        assertTrue(fetchAll.getBytesReceived() > 0);
+    }
+
+    @Test
+    public void metricsReporterReceivesSnapshotsTest() throws Exception {
+        CountDownLatch reported = new CountDownLatch(2);
+        dataAPI.enableMetrics(snapshot -> reported.countDown(), 10, TimeUnit.MILLISECONDS);
+        assertTrue(reported.await(5, TimeUnit.SECONDS));
+        dataAPI.disableMetrics();
+    }
+
+    @Test
+    public void failingMetricsReporterKeepsReportingTest() throws Exception {
+        CountDownLatch reported = new CountDownLatch(2);
+        dataAPI.enableMetrics(snapshot -> {
+            reported.countDown();
+            throw new IllegalStateException("reporter failed");
+        }, 10, TimeUnit.MILLISECONDS);
+        assertTrue(reported.await(5, TimeUnit.SECONDS));
+        dataAPI.disableMetrics();
+    }
+
+    private static String block(CountDownLatch started, CountDownLatch release, String value) {
+        started.countDown();
+        try {
+            release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return value;
+    }
 }
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata;
+
+import com.exorath.exodata.api.DocumentEdit;
+import com.exorath.exodata.api.ExoCollection;
+import com.exorath.exodata.api.ExoDocument;
+import com.exorath.exodata.api.FetchStrategy;
+import com.github.fakemongo.Fongo;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DocumentEditTest {
+    private static final String DB_NAME = "testdb";
+    private static final String COLL_NAME = "testcoll";
+    private MongoCollection<Document> mongoCollection;
+    private ExoCollection collection;
+    private ExoDocument document;
+
+    @Before
+    public void setup() {
+        mongoCollection = new Fongo("mongo server 1").getMongo().getDatabase(DB_NAME).getCollection(COLL_NAME);
+        collection = ExoCollection.create(mongoCollection);
+        document = collection.getDocument("player1");
+        mongoCollection.insertOne(new Document("_id", "player1")
+                .append("name", "toon")
+                .append("stats", new Document("kills", 1).append("deaths", 2))
+                .append("items", new ArrayList<>(Arrays.asList(new Document("type", "sword").append("count", 1), new Document("type", "bow").append("count", 1))))
+                .append("coins", 100));
+    }
+
+    private Document findInDatabase() {
+        return mongoCollection.find(new Document("_id", "player1")).first();
+    }
+
+    private DocumentEdit edit() {
+        return document.edit().toBlocking().first();
+    }
+
+    @Test(timeout = 1000)
+    public void unchangedEditHasNoUpdateTest() {
+        DocumentEdit edit = edit();
+        assertNull(edit.getUpdate());
+        assertNull(edit.commit().toBlocking().firstOrDefault(null));
+    }
+
+    @Test(timeout = 1000)
+    public void nestedChangeSetsOnlyChangedPathTest() {
+        DocumentEdit edit = edit();
+        edit.getDocument().get("stats", Document.class).put("kills", 10);
+        assertEquals(new Document("$set", new Document("stats.kills", 10)), edit.getUpdate());
+        edit.commit().toBlocking().first();
+        assertEquals(new Document("kills", 10).append("deaths", 2), findInDatabase().get("stats"));
+    }
+
+    @Test(timeout = 1000)
+    public void removedFieldIsUnsetTest() {
+        DocumentEdit edit = edit();
+        edit.getDocument().remove("name");
+        edit.getDocument().get("stats", Document.class).remove("deaths");
+        assertEquals(new Document("$unset", new Document("name", "").append("stats.deaths", "")), edit.getUpdate());
+        edit.commit().toBlocking().first();
+        assertFalse(findInDatabase().containsKey("name"));
+        assertEquals(new Document("kills", 1), findInDatabase().get("stats"));
+    }
+
+    @Test(timeout = 1000)
+    public void newFieldIsSetTest() {
+        DocumentEdit edit = edit();
+        edit.getDocument().put("level", 5);
+        assertEquals(new Document("$set", new Document("level", 5)), edit.getUpdate());
+    }
+
+    @Test(timeout = 1000)
+    public void changedListElementSetsElementPathTest() {
+        DocumentEdit edit = edit();
+        ((List<Document>) edit.getDocument().get("items")).get(1).put("count", 3);
+        assertEquals(new Document("$set", new Document("items.1.count", 3)), edit.getUpdate());
+        edit.commit().toBlocking().first();
+        assertEquals(3, ((List<Document>) findInDatabase().get("items")).get(1).get("count"));
+    }
+
+    @Test(timeout = 1000)
+    public void appendedListElementsArePushedTest() {
+        DocumentEdit edit = edit();
+        ((List<Document>) edit.getDocument().get("items")).add(new Document("type", "axe"));
+        assertEquals(new Document("$push", new Document("items", new Document("$each", Arrays.asList(new Document("type", "axe"))))), edit.getUpdate());
+        edit.commit().toBlocking().first();
+        assertEquals(3, ((List) findInDatabase().get("items")).size());
+    }
+
+    @Test(timeout = 1000)
+    public void shrunkListIsSetTest() {
+        DocumentEdit edit = edit();
+        ((List<Document>) edit.getDocument().get("items")).remove(0);
+        edit.commit().toBlocking().first();
+        assertEquals(Arrays.asList(new Document("type", "bow").append("count", 1)), findInDatabase().get("items"));
+    }
+
+    @Test(timeout = 1000)
+    public void incIsSentAsIncTest() {
+        DocumentEdit edit = edit().inc("coins", 5).inc("coins", 5).inc("stats.kills", 1);
+        assertEquals(110, edit.getDocument().get("coins"));
+        assertEquals(new Document("$inc", new Document("coins", 10).append("stats.kills", 1)), edit.getUpdate());
+        mongoCollection.updateOne(new Document("_id", "player1"), new Document("$inc", new Document("coins", 1000)));
+        edit.commit().toBlocking().first();
+        assertEquals(1110, findInDatabase().get("coins"));
+    }
+
+    @Test(timeout = 1000)
+    public void incOfChangedFieldSetsFinalValueTest() {
+        DocumentEdit edit = edit().inc("coins", 5);
+        edit.getDocument().put("coins", 50);
+        assertEquals(new Document("$set", new Document("coins", 50)), edit.getUpdate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void incOfNonNumberThrowsTest() {
+        edit().inc("name", 1);
+    }
+
+    @Test(timeout = 1000)
+    public void secondCommitOnlySendsNewChangesTest() {
+        DocumentEdit edit = edit();
+        edit.getDocument().put("name", "toonsev");
+        edit.inc("coins", 1);
+        edit.commit().toBlocking().first();
+        assertNull(edit.getUpdate());
+        edit.getDocument().put("level", 2);
+        assertEquals(new Document("$set", new Document("level", 2)), edit.getUpdate());
+    }
+
+    @Test(timeout = 1000)
+    public void editDoesNotChangeCachedDocumentTest() {
+        DocumentEdit edit = edit();
+        edit.getDocument().get("stats", Document.class).put("kills", 10);
+        assertEquals(1, document.getCachedOrFetch().toBlocking().first().get("stats", Document.class).get("kills"));
+    }
+
+    @Test(timeout = 1000)
+    public void versionedCommitIncrementsVersionTest() {
+        DocumentEdit edit = edit();
+        edit.getDocument().put("name", "toonsev");
+        assertEquals(1, edit.commit("version").toBlocking().first().getModifiedCount());
+        assertEquals(1, findInDatabase().get("version"));
+        assertEquals(1, edit.getDocument().get("version"));
+        edit.getDocument().put("name", "toon");
+        assertEquals(1, edit.commit("version").toBlocking().first().getModifiedCount());
+        assertEquals(2, findInDatabase().get("version"));
+    }
+
+    @Test(timeout = 1000)
+    public void versionedCommitFailsAfterConcurrentCommitTest() {
+        DocumentEdit first = edit();
+        DocumentEdit second = edit();
+        first.getDocument().put("name", "first");
+        second.getDocument().put("name", "second");
+        assertEquals(1, first.commit("version").toBlocking().first().getMatchedCount());
+        UpdateResult result = second.commit("version").toBlocking().first();
+        assertEquals(0, result.getMatchedCount());
+        assertEquals("first", findInDatabase().get("name"));
+    }
+
+    @Test(timeout = 1000)
+    public void editOfMissingDocumentCreatesItTest() {
+        collection.fetchStrategy(FetchStrategy.FIND);
+        DocumentEdit edit = collection.getDocument("player2").edit().toBlocking().first();
+        assertEquals(new Document("_id", "player2"), edit.getDocument());
+        edit.getDocument().put("name", "new");
+        edit.commit().toBlocking().first();
+        assertEquals("new", mongoCollection.find(new Document("_id", "player2")).first().get("name"));
+    }
+}
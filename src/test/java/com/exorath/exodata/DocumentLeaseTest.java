@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata;
+
+import com.exorath.exodata.api.DocumentLease;
+import com.exorath.exodata.api.ExoCollection;
+import com.exorath.exodata.api.ExoDocument;
+import com.exorath.exodata.api.Invalidation;
+import com.exorath.exodata.api.InvalidationBus;
+import com.github.fakemongo.Fongo;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DocumentLeaseTest {
+    private static final String DB_NAME = "testdb";
+    private static final String COLL_NAME = "testcoll";
+    private MongoCollection<Document> mongoCollection;
+    private ExoCollection collection;
+
+    @Before
+    public void setup() {
+        mongoCollection = new Fongo("mongo server 1").getMongo().getDatabase(DB_NAME).getCollection(COLL_NAME);
+        collection = ExoCollection.create(mongoCollection);
+        mongoCollection.insertOne(new Document("_id", "player1").append("coins", 100));
+    }
+
+    private Document findInDatabase() {
+        return mongoCollection.find(new Document("_id", "player1")).first();
+    }
+
+    private DocumentLease acquire(String owner) {
+        return collection.acquireLease("player1", owner, 1, TimeUnit.HOURS).toBlocking().firstOrDefault(null);
+    }
+
+    @Test(timeout = 1000)
+    public void acquireStoresLeaseOnDocumentTest() {
+        DocumentLease lease = acquire("server1");
+        assertEquals("server1", lease.getOwner());
+        assertEquals(1, lease.getFencingToken());
+        assertTrue(lease.isHeld());
+        Document stored = findInDatabase().get("_lease", Document.class);
+        assertEquals("server1", stored.get("owner"));
+        assertEquals(1L, stored.get("token"));
+        assertTrue(((Number) stored.get("expires")).longValue() > System.currentTimeMillis());
+    }
+
+    @Test(timeout = 1000)
+    public void acquireCreatesMissingDocumentTest() {
+        DocumentLease lease = collection.acquireLease("player2", "server1", 1, TimeUnit.HOURS).toBlocking().first();
+        assertEquals("player2", lease.getDocument().getCachedOrFetch().toBlocking().first().get("_id"));
+        assertNotNull(mongoCollection.find(new Document("_id", "player2")).first());
+    }
+
+    @Test(timeout = 1000)
+    public void acquireLeasedByOtherOwnerCompletesEmptyTest() {
+        acquire("server1");
+        assertNull(acquire("server2"));
+        assertEquals("server1", findInDatabase().get("_lease", Document.class).get("owner"));
+    }
+
+    @Test(timeout = 1000)
+    public void acquireExpiredLeaseIncrementsTokenTest() {
+        acquire("server1");
+        mongoCollection.updateOne(new Document("_id", "player1"), Updates.set("_lease.expires", 0L));
+        DocumentLease lease = acquire("server2");
+        assertEquals("server2", lease.getOwner());
+        assertEquals(2, lease.getFencingToken());
+    }
+
+    @Test(timeout = 1000)
+    public void operationsAreInMemoryWhileHeldTest() {
+        DocumentLease lease = acquire("server1");
+        ExoDocument document = collection.getDocument("player1");
+        assertSame(lease.getDocument(), document);
+        document.inc("coins", 50).toBlocking().subscribe();
+        document.set("rank", "vip").toBlocking().subscribe();
+        document.push("friends", "player2").toBlocking().subscribe();
+        assertEquals(1, document.decIfSufficient("coins", 20).toBlocking().first().getModifiedCount());
+        assertEquals(0, document.decIfSufficient("coins", 1000).toBlocking().first().getModifiedCount());
+        assertEquals(100, findInDatabase().get("coins"));
+        Document state = document.fetch().toBlocking().first();
+        assertEquals(130, state.get("coins"));
+        assertEquals("vip", state.get("rank"));
+        assertEquals(Arrays.asList("player2"), state.get("friends"));
+        assertNull(state.get("_lease"));
+    }
+
+    @Test(timeout = 1000)
+    public void flushPersistsDifferenceTest() {
+        DocumentLease lease = acquire("server1");
+        lease.getDocument().inc("coins", 50).toBlocking().subscribe();
+        lease.getDocument().push("friends", "player2").toBlocking().subscribe();
+        lease.flush().toBlocking().subscribe();
+        lease.getDocument().push("friends", "player3").toBlocking().subscribe();
+        lease.flush().toBlocking().subscribe();
+        Document persisted = findInDatabase();
+        assertEquals(150, persisted.get("coins"));
+        assertEquals(Arrays.asList("player2", "player3"), persisted.get("friends"));
+        assertEquals("server1", persisted.get("_lease", Document.class).get("owner"));
+    }
+
+    @Test(timeout = 1000)
+    public void flushIncrementsVersionOnlyWhenChangedTest() {
+        collection.versionField("version");
+        DocumentLease lease = acquire("server1");
+        lease.flush().toBlocking().subscribe();
+        assertNull(findInDatabase().get("version"));
+        lease.getDocument().inc("coins", 1).toBlocking().subscribe();
+        lease.flush().toBlocking().subscribe();
+        assertEquals(1, findInDatabase().get("version"));
+        assertEquals(1, lease.getDocument().getCachedOrFetch().toBlocking().first().get("version"));
+    }
+
+    @Test(timeout = 1000)
+    public void releasePersistsAndRemovesLeaseTest() {
+        DocumentLease lease = acquire("server1");
+        ExoDocument document = lease.getDocument();
+        document.inc("coins", 5).toBlocking().subscribe();
+        lease.release().toBlocking().subscribe();
+        assertFalse(lease.isHeld());
+        Document persisted = findInDatabase();
+        assertEquals(105, persisted.get("coins"));
+        assertNull(persisted.get("_lease"));
+        document.inc("coins", 5).toBlocking().subscribe();
+        assertEquals(110, findInDatabase().get("coins"));
+        assertNotNull(acquire("server2"));
+    }
+
+    @Test(timeout = 1000)
+    public void updatesDuringReleaseAreNotOverwrittenTest() {
+        DocumentLease lease = acquire("server1");
+        ExoDocument document = lease.getDocument();
+        document.inc("coins", 5).toBlocking().subscribe();
+        Observable<UpdateResult> release = lease.release().cache();
+        release.subscribe();
+        document.inc("coins", 5).toBlocking().subscribe();
+        release.toBlocking().subscribe();
+        assertEquals(110, findInDatabase().get("coins"));
+        assertNull(findInDatabase().get("_lease"));
+    }
+
+    @Test(timeout = 1000)
+    public void acquireAgainKeepsStateOfPreviousLeaseTest() {
+        DocumentLease previous = acquire("server1");
+        previous.getDocument().inc("coins", 50).toBlocking().subscribe();
+        DocumentLease lease = acquire("server1");
+        assertFalse(previous.isHeld());
+        assertEquals(2, lease.getFencingToken());
+        assertEquals(150, findInDatabase().get("coins"));
+        lease.getDocument().inc("coins", 1).toBlocking().subscribe();
+        assertEquals(151, lease.getDocument().fetch().toBlocking().first().get("coins"));
+    }
+
+    @Test(timeout = 1000)
+    public void flushPublishesInvalidationOnlyWhenChangedTest() {
+        InvalidationBus bus = InvalidationBus.loopback();
+        List<Invalidation> published = new ArrayList<>();
+        bus.getInvalidations().subscribe(published::add);
+        collection.enableInvalidationBus(bus);
+        DocumentLease lease = acquire("server1");
+        lease.flush().toBlocking().subscribe();
+        assertTrue(published.isEmpty());
+        lease.getDocument().inc("coins", 1).toBlocking().subscribe();
+        lease.flush().toBlocking().subscribe();
+        assertEquals(1, published.size());
+        assertEquals("player1", published.get(0).getId());
+        lease.getDocument().inc("coins", 1).toBlocking().subscribe();
+        lease.release().toBlocking().subscribe();
+        assertEquals(2, published.size());
+    }
+
+    @Test(timeout = 1000)
+    public void staleOwnerIsFencedTest() {
+        DocumentLease lease = acquire("server1");
+        //Another server took over the lease, fe. while this one was paused
+        mongoCollection.updateOne(new Document("_id", "player1"), Updates.combine(Updates.set("_lease.owner", "server2"), Updates.inc("_lease.token", 1L)));
+        lease.getDocument().inc("coins", 50).toBlocking().subscribe();
+        try {
+            lease.flush().toBlocking().subscribe();
+            fail();
+        } catch (IllegalStateException e) {
+            assertFalse(lease.isHeld());
+        }
+        assertEquals(100, findInDatabase().get("coins"));
+        assertEquals("server2", findInDatabase().get("_lease", Document.class).get("owner"));
+    }
+
+    @Test(timeout = 1000)
+    public void takenOverLeaseEndsWithErrorTest() {
+        DocumentLease lease = acquire("server1");
+        mongoCollection.updateOne(new Document("_id", "player1"), Updates.inc("_lease.token", 1L));
+        lease.getDocument().inc("coins", 50).toBlocking().subscribe();
+        lease.flush().onErrorResumeNext(Observable.empty()).toBlocking().subscribe();
+        Throwable error = lease.ended().materialize().toBlocking().first().getThrowable();
+        assertTrue(error instanceof IllegalStateException);
+    }
+
+    @Test(timeout = 1000)
+    public void releasedLeaseEndsTest() {
+        DocumentLease lease = acquire("server1");
+        lease.release().toBlocking().subscribe();
+        assertNull(lease.ended().toBlocking().firstOrDefault(null));
+    }
+
+    @Test(timeout = 1000)
+    public void updateWithQueryPersistsStateFirstTest() {
+        DocumentLease lease = acquire("server1");
+        ExoDocument document = lease.getDocument();
+        document.inc("coins", 50).toBlocking().subscribe();
+        assertEquals(1, document.update(Filters.and(new Document("_id", "player1"), Filters.gte("coins", 150)), Updates.addToSet("badges", "rich"), false).toBlocking().first().getMatchedCount());
+        Document persisted = findInDatabase();
+        assertEquals(150, persisted.get("coins"));
+        assertEquals(Arrays.asList("rich"), persisted.get("badges"));
+        assertEquals(Arrays.asList("rich"), document.getCachedOrFetch().toBlocking().first().get("badges"));
+        assertTrue(lease.isHeld());
+    }
+
+    @Test(timeout = 1000)
+    public void renewalPersistsStateInBackgroundTest() throws InterruptedException {
+        DocumentLease lease = collection.acquireLease("player1", "server1", 60, TimeUnit.MILLISECONDS).toBlocking().first();
+        lease.getDocument().inc("coins", 50).toBlocking().subscribe();
+        while (!Integer.valueOf(150).equals(findInDatabase().get("coins")))
+            Thread.sleep(10);
+        Thread.sleep(100);
+        assertTrue(lease.isHeld());
+        lease.release().toBlocking().subscribe();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void acquireWithoutDurationThrowsTest() {
+        collection.acquireLease("player1", "server1", 0, TimeUnit.SECONDS);
+    }
+}
@@ -16,15 +16,70 @@
 
 package com.exorath.exodata;
 
+import com.exorath.exodata.api.ChangeSource;
+import com.exorath.exodata.api.DocumentChange;
+import com.exorath.exodata.api.DroppedIncrements;
 import com.exorath.exodata.api.ExoCollection;
+import com.exorath.exodata.api.ExoDocument;
+import com.exorath.exodata.api.FetchStrategy;
+import com.exorath.exodata.api.Invalidation;
+import com.exorath.exodata.api.InvalidationBus;
+import com.exorath.exodata.impl.BulkWriter;
+import com.exorath.exodata.impl.CollectionIO;
+import com.exorath.exodata.impl.OrderedLanes;
+import com.exorath.exodata.impl.WriteBehind;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.result.UpdateResult;
 import com.github.fakemongo.Fongo;
 import com.mongodb.MongoClient;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
 import org.bson.Document;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import rx.Observable;
+import rx.Subscription;
+import rx.subjects.PublishSubject;
+
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -36,6 +91,8 @@ public class ExoCollectionTest {
     private Fongo fongo;
     private MongoClient client;
     private ExoCollection collection;
+    @Rule
+    public TemporaryFolder journals = new TemporaryFolder();
 
     @Before
     public void setup() {
@@ -72,4 +129,969 @@ public class ExoCollectionTest {
     public void getDocumentCollectionEqualsGetMongoCollectionTest(){
         assertEquals(collection.getMongoCollection(), collection.getDocument("testdoc").getCollection());
     }
+
+    @Test(timeout = 1000)
+    public void bulkWritesUpdateAllDocumentsTest() {
+        collection.enableBulkWrites(100, 50, TimeUnit.MILLISECONDS, 2);
+        Observable.merge(collection.getDocument("doc1").inc("testkey", 1), collection.getDocument("doc2").inc("testkey", 2), collection.getDocument("doc3").set("testkey", 3)).toBlocking().last();
+        for (int i = 1; i <= 3; i++)
+            assertEquals(i, ((Document) collection.getMongoCollection().find(new Document("_id", "doc" + i)).first()).get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void bulkWritesReturnUpsertedIdsPerUpdateTest() {
+        collection.enableBulkWrites(2, 1, TimeUnit.HOURS, 1);
+        List<UpdateResult> results = Observable.merge(collection.getDocument("doc1").inc("testkey", 1), collection.getDocument("doc2").inc("testkey", 2)).toList().toBlocking().first();
+        assertEquals(2, results.size());
+        for (UpdateResult result : results)
+            assertNotNull(result.getUpsertedId());
+    }
+
+    @Test(timeout = 1000)
+    public void bulkWritesReturnModifiedCountForExistingDocumentsTest() {
+        collection.getMongoCollection().insertOne(new Document("_id", "doc1"));
+        collection.enableBulkWrites(2, 1, TimeUnit.HOURS, 1);
+        List<UpdateResult> results = Observable.merge(collection.getDocument("doc1").inc("testkey", 1), collection.getDocument("doc1").inc("testkey", 2)).toList().toBlocking().first();
+        for (UpdateResult result : results) {
+            assertNull(result.getUpsertedId());
+            assertEquals(1, result.getModifiedCount());
+        }
+        assertEquals(3, ((Document) collection.getMongoCollection().find(new Document("_id", "doc1")).first()).get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void bulkWritesDoNotBatchNonUpsertingUpdatesTest() {
+        collection.getMongoCollection().insertOne(new Document("_id", "doc1"));
+        collection.enableBulkWrites(2, 50, TimeUnit.MILLISECONDS, 1);
+        Observable<UpdateResult> set = collection.getDocument("doc1").set("testkey", 1).cache();
+        Observable<UpdateResult> remove = collection.getDocument("doc2").remove("testkey").cache();
+        Observable.merge(set, remove).toBlocking().last();
+        assertEquals(1, set.toBlocking().first().getMatchedCount());
+        assertEquals(0, remove.toBlocking().first().getMatchedCount());
+    }
+
+    @Test(timeout = 1000)
+    public void bulkWritesHideAmbiguousModifiedCountTest() {
+        //Fongo counts no-op updates as modified, so the result of the server is faked
+        MongoCollection oneModified = (MongoCollection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            Object result = method.invoke(collection.getMongoCollection(), args);
+            return method.getName().equals("bulkWrite") ? BulkWriteResult.acknowledged(0, 2, 0, 1, Collections.emptyList()) : result;
+        });
+        collection.getMongoCollection().insertOne(new Document("_id", "doc1").append("testkey", 1));
+        collection.getMongoCollection().insertOne(new Document("_id", "doc2").append("testkey", 1));
+        ExoCollection bulkCollection = ExoCollection.create(oneModified).enableBulkWrites(2, 1, TimeUnit.HOURS, 1);
+        List<UpdateResult> results = Observable.merge(bulkCollection.getDocument("doc1").set("testkey", 1), bulkCollection.getDocument("doc2").set("testkey", 2)).toList().toBlocking().first();
+        for (UpdateResult result : results) {
+            assertEquals(1, result.getMatchedCount());
+            assertFalse(result.isModifiedCountAvailable());
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void bulkWritesSendOneUpdatePerDocumentPerBatchTest() {
+        List<List<Object>> batches = Collections.synchronizedList(new ArrayList<>());
+        MongoCollection recording = (MongoCollection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("bulkWrite")) {
+                List<Object> ids = new ArrayList<>();
+                for (Object model : (List<?>) args[0])
+                    ids.add(((Document) ((UpdateOneModel) model).getFilter()).get("_id"));
+                batches.add(ids);
+            }
+            return method.invoke(collection.getMongoCollection(), args);
+        });
+        ExoCollection bulkCollection = ExoCollection.create(recording).enableBulkWrites(100, 20, TimeUnit.MILLISECONDS, 4);
+        Observable.merge(bulkCollection.getDocument("doc1").set("testkey", 1), bulkCollection.getDocument("doc1").set("testkey", 2),
+                bulkCollection.getDocument("doc2").set("testkey", 1), bulkCollection.getDocument("doc1").set("testkey", 3)).toBlocking().last();
+        assertEquals(3, batches.size());
+        for (List<Object> ids : batches)
+            assertEquals(new HashSet<>(ids).size(), ids.size());
+        assertEquals(3, findInDatabase("doc1").get("testkey"));
+    }
+
+    @Test(timeout = 5000)
+    public void bulkWriterDrainsLongSynchronousQueueTest() {
+        PublishSubject<BulkWriteResult> blocker = PublishSubject.create();
+        AtomicInteger writes = new AtomicInteger();
+        CollectionIO io = (CollectionIO) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{CollectionIO.class}, (proxy, method, args) ->
+                writes.getAndIncrement() == 0 ? blocker : Observable.just(BulkWriteResult.acknowledged(0, 1, 0, 1, Collections.emptyList())));
+        BulkWriter writer = new BulkWriter(io, 1, 1, TimeUnit.HOURS, 1);
+        AtomicInteger completed = new AtomicInteger();
+        for (int i = 0; i < 10000; i++)
+            writer.update("doc" + i, new Document("$set", new Document("testkey", i))).doOnCompleted(completed::incrementAndGet).subscribe();
+        blocker.onNext(BulkWriteResult.acknowledged(0, 1, 0, 1, Collections.emptyList()));
+        blocker.onCompleted();
+        assertEquals(10000, completed.get());
+    }
+
+    @Test(timeout = 1000)
+    public void bulkWritesDoNotBatchConditionalUpdatesTest() {
+        collection.enableBulkWrites(100, 1, TimeUnit.HOURS, 1);
+        assertEquals(0, collection.getDocument("doc1").decIfSufficient("testkey", 10).toBlocking().first().getModifiedCount());
+    }
+
+    @Test(timeout = 1000)
+    public void fetchAllEmitsDocumentPerIdTest() {
+        List<ExoDocument> documents = collection.fetchAll(Arrays.asList("doc1", "doc2", "doc3", "doc2"), null, 2).toList().toBlocking().first();
+        assertEquals(3, documents.size());
+        assertEquals("doc1", documents.get(0).getId());
+        assertEquals("doc3", documents.get(2).getId());
+    }
+
+    @Test(timeout = 1000)
+    public void fetchAllCreatesMissingDocumentsTest() {
+        collection.getMongoCollection().insertOne(new Document("_id", "doc1").append("testkey", "testvalue"));
+        collection.fetchAll(Arrays.asList("doc1", "doc2"), null).toBlocking().last();
+        assertEquals(2, collection.getMongoCollection().count());
+        assertEquals("testvalue", ((Document) collection.getMongoCollection().find(new Document("_id", "doc1")).first()).get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void fetchAllCachesDocumentsTest() {
+        collection.getMongoCollection().insertOne(new Document("_id", "doc1").append("testkey", "testvalue"));
+        ExoDocument document = collection.fetchAll(Arrays.asList("doc1"), null).toBlocking().first();
+        collection.getMongoCollection().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", "changed")));
+        assertEquals("testvalue", document.getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void fetchAllWithProjectionExcludesFieldsTest() {
+        collection.getMongoCollection().insertOne(new Document("_id", "doc1").append("key1", "value1").append("key2", "value2"));
+        Document fetched = collection.fetchAll(Arrays.asList("doc1"), new Document("key1", 1)).toBlocking().first().getCachedOrFetch().toBlocking().first();
+        assertTrue(fetched.containsKey("key1"));
+        assertFalse(fetched.containsKey("key2"));
+    }
+
+    @Test(timeout = 1000)
+    public void concurrentFetchesOfDifferentInstancesShareDatabaseCallTest() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        MongoCollection blockingCollection = (MongoCollection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("findOneAndUpdate")) {
+                calls.incrementAndGet();
+                latch.await();
+            }
+            return method.invoke(collection.getMongoCollection(), args);
+        });
+        ExoCollection blockingExoCollection = ExoCollection.create(blockingCollection);
+        Observable<Document> first = blockingExoCollection.getDocument("doc1").fetch().cache();
+        Observable<Document> second = blockingExoCollection.getDocument("doc1").fetch().cache();
+        first.subscribe();
+        second.subscribe();
+        latch.countDown();
+        assertEquals(first.toBlocking().first(), second.toBlocking().first());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void getDocumentWithoutCacheReturnsNewDocumentTest() {
+        assertNotSame(collection.getDocument("doc1"), collection.getDocument("doc1"));
+    }
+
+    @Test
+    public void getDocumentWithCacheReturnsSameDocumentTest() {
+        collection.enableDocumentCache(1024 * 1024, 1, TimeUnit.MINUTES);
+        assertSame(collection.getDocument("doc1"), collection.getDocument("doc1"));
+        assertEquals(1, collection.getDocumentCacheStats().getHitCount());
+        assertEquals(1, collection.getDocumentCacheStats().getMissCount());
+    }
+
+    @Test(timeout = 1000)
+    public void documentCacheEvictsWhenOverWeightTest() {
+        collection.enableDocumentCache(1024, 1, TimeUnit.MINUTES);
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 100; i++)
+            value.append("0123456789");
+        for (int i = 0; i < 10; i++)
+            collection.getDocument("doc" + i).set("testkey", value.toString()).toBlocking().subscribe();
+        collection.fetchAll(Arrays.asList("doc0", "doc1", "doc2", "doc3", "doc4", "doc5", "doc6", "doc7", "doc8", "doc9"), null).toBlocking().last();
+        assertTrue(collection.getDocumentCacheStats().getEvictionCount() > 0);
+    }
+
+    @Test(timeout = 1000)
+    public void documentsUseCollectionFetchStrategyTest() {
+        collection.fetchStrategy(FetchStrategy.FIND);
+        assertEquals(FetchStrategy.FIND, collection.getDocument("doc1").getFetchStrategy());
+        assertNull(collection.getDocument("doc1").fetch().toBlocking().firstOrDefault(null));
+    }
+
+    @Test(timeout = 1000)
+    public void documentFetchStrategyOverridesCollectionFetchStrategyTest() {
+        collection.fetchStrategy(FetchStrategy.FIND);
+        assertEquals(FetchStrategy.UPSERT, collection.getDocument("doc1").fetchStrategy(FetchStrategy.UPSERT).getFetchStrategy());
+    }
+
+    @Test(timeout = 1000)
+    public void fetchAllWithFindFetchStrategyDoesNotCreateDocumentsTest() {
+        collection.getMongoCollection().insertOne(new Document("_id", "doc1"));
+        collection.fetchStrategy(FetchStrategy.FIND);
+        assertEquals(1, collection.fetchAll(Arrays.asList("doc1", "doc2"), null).count().toBlocking().first().intValue());
+        assertEquals(1, collection.getMongoCollection().count());
+    }
+
+    //write-behind
+    private Document findInDatabase(String id) {
+        return (Document) collection.getMongoCollection().find(new Document("_id", id)).first();
+    }
+
+    @Test(timeout = 1000)
+    public void writeBehindIncDoesNotWriteUntilFlushedTest() {
+        collection.enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        UpdateResult result = collection.getDocument("doc1").inc("testkey", 5).toBlocking().first();
+        assertFalse(result.wasAcknowledged());
+        assertNull(findInDatabase("doc1"));
+        collection.getDocument("doc1").inc("testkey", 10).toBlocking().subscribe();
+        collection.getDocument("doc1").inc("otherkey", 2.5).toBlocking().subscribe();
+        collection.flushWriteBehind().toBlocking().subscribe();
+        assertEquals(15, findInDatabase("doc1").get("testkey"));
+        assertEquals(2.5, findInDatabase("doc1").get("otherkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeBehindJournalsPrimitiveIncsTest() {
+        collection.enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        assertFalse(collection.getDocument("doc1").incLong("testkey", 5L).toBlocking().first().wasAcknowledged());
+        collection.getDocument("doc1").incLong("testkey", 10L).toBlocking().subscribe();
+        assertNull(findInDatabase("doc1"));
+        collection.flushWriteBehind().toBlocking().subscribe();
+        assertEquals(15L, findInDatabase("doc1").get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeBehindFlushSendsOneUpdatePerDocumentTest() {
+        collection.enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        for (int i = 0; i < 10; i++) {
+            collection.getDocument("doc1").inc("testkey", 1).toBlocking().subscribe();
+            collection.getDocument("doc2").inc("testkey", 1L).toBlocking().subscribe();
+        }
+        assertEquals(2, collection.flushWriteBehind().toBlocking().first().getUpserts().size());
+        assertEquals(10, findInDatabase("doc1").get("testkey"));
+        assertEquals(10L, findInDatabase("doc2").get("testkey"));
+        assertNull(collection.flushWriteBehind().toBlocking().firstOrDefault(null));
+    }
+
+    @Test(timeout = 5000)
+    public void writeBehindConcurrentIncrementsAreNotLostTest() throws InterruptedException {
+        collection.enableWriteBehind(journals.getRoot(), 5, TimeUnit.MILLISECONDS);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 1000; i++)
+                    collection.getDocument("doc1").inc("testkey", 1).toBlocking().subscribe();
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        collection.disableWriteBehind().toBlocking().subscribe();
+        assertEquals(8000, findInDatabase("doc1").get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeBehindReplaysUnflushedJournalsTest() {
+        collection.enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        collection.getDocument("doc1").inc("testkey", 5).toBlocking().subscribe();
+        collection.getDocument("doc2").inc("testkey", 7).toBlocking().subscribe();
+        //A new collection on the same directory acts like a restart after a crash
+        ExoCollection restarted = ExoCollection.create(client.getDatabase(DB_NAME).getCollection(COLL_NAME));
+        restarted.enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        restarted.flushWriteBehind().toBlocking().subscribe();
+        assertEquals(5, findInDatabase("doc1").get("testkey"));
+        assertEquals(7, findInDatabase("doc2").get("testkey"));
+        assertNull(restarted.flushWriteBehind().toBlocking().firstOrDefault(null));
+    }
+
+    @Test(timeout = 1000)
+    public void writeBehindReplaySkipsUnfinishedRecordsTest() throws Exception {
+        //A record whose space was reserved but that was never finished, followed by a finished record
+        ByteBuffer journal = ByteBuffer.allocate(1024);
+        journal.putInt(18 + 4 + 7).position(18 + 4 + 7);
+        journal.putInt(18 + 4 + 7).put((byte) 0).putLong(3).putShort((short) 4).put("doc1".getBytes(StandardCharsets.UTF_8))
+                .putShort((short) 7).put("testkey".getBytes(StandardCharsets.UTF_8)).put((byte) 1);
+        Files.write(new File(journals.getRoot(), "0.journal").toPath(), journal.array());
+        collection.enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        collection.flushWriteBehind().toBlocking().subscribe();
+        assertEquals(3, findInDatabase("doc1").get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void enableWriteBehindAgainWaitsForLastFlushTest() {
+        collection.enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        collection.getDocument("doc1").inc("testkey", 5).toBlocking().subscribe();
+        collection.enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        //The flush of the new write-behind waits for the last flush of the previous one, which doesn't leave a journal to replay
+        collection.flushWriteBehind().toBlocking().subscribe();
+        assertEquals(5, findInDatabase("doc1").get("testkey"));
+        collection.flushWriteBehind().toBlocking().subscribe();
+        assertEquals(5, findInDatabase("doc1").get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void enableWriteBehindAgainReplaysJournalsOfFailedLastFlushTest() {
+        AtomicBoolean failed = new AtomicBoolean();
+        MongoCollection failingCollection = (MongoCollection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("bulkWrite") && failed.compareAndSet(false, true))
+                throw new MongoSocketReadException("connection reset", new ServerAddress());
+            return method.invoke(collection.getMongoCollection(), args);
+        });
+        ExoCollection failing = ExoCollection.create(failingCollection).enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        failing.getDocument("doc1").inc("testkey", 5).toBlocking().subscribe();
+        //The last flush of the previous write-behind fails, its journal is replayed by the new one
+        failing.enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        failing.flushWriteBehind().toBlocking().subscribe();
+        assertEquals(5, findInDatabase("doc1").get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeBehindEmitsDroppedIncrementsTest() {
+        BulkWriteError writeError = new BulkWriteError(14, "Cannot apply $inc to a value of non-numeric type", new BsonDocument(), 0);
+        CollectionIO io = (CollectionIO) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{CollectionIO.class}, (proxy, method, args) ->
+                Observable.error(new MongoBulkWriteException(BulkWriteResult.acknowledged(0, 0, 0, 0, Collections.emptyList()), Collections.singletonList(writeError), null, new ServerAddress())));
+        List<DroppedIncrements> dropped = new ArrayList<>();
+        WriteBehind writeBehind = new WriteBehind(io, journals.getRoot(), WriteBehind.DEFAULT_JOURNAL_SIZE, 1, TimeUnit.HOURS, () -> null, ids -> {
+        }, dropped::add, Observable.empty());
+        writeBehind.inc("doc1", "testkey", 5).toBlocking().subscribe();
+        assertTrue(writeBehind.flush().materialize().toBlocking().first().getThrowable() instanceof MongoBulkWriteException);
+        assertEquals(1, dropped.size());
+        assertEquals("doc1", dropped.get(0).getId());
+        assertEquals(new Document("testkey", 5), dropped.get(0).getIncrements());
+        assertSame(writeError, dropped.get(0).getError());
+        assertNull(writeBehind.flush().toBlocking().firstOrDefault(null));
+    }
+
+    @Test(timeout = 1000)
+    public void disableWriteBehindFlushesAndWritesDirectlyTest() {
+        collection.enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        collection.getDocument("doc1").inc("testkey", 5).toBlocking().subscribe();
+        collection.disableWriteBehind().toBlocking().subscribe();
+        assertEquals(5, findInDatabase("doc1").get("testkey"));
+        assertTrue(collection.getDocument("doc1").inc("testkey", 5).toBlocking().first().wasAcknowledged());
+        assertEquals(10, findInDatabase("doc1").get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeBehindIncClearsWriteThroughCacheTest() {
+        collection.enableDocumentCache(1024 * 1024, 1, TimeUnit.HOURS);
+        ExoDocument document = collection.getDocument("doc1").writeThrough(true);
+        document.fetch().toBlocking().first();
+        collection.enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        document.inc("testkey", 5).toBlocking().subscribe();
+        collection.flushWriteBehind().toBlocking().subscribe();
+        assertEquals(5, document.getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    //ordered lanes
+    private MongoCollection delayedCollection(List<Object> sent, CountDownLatch blockDoc1) {
+        return (MongoCollection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("updateOne")) {
+                Document query = (Document) args[0];
+                if (blockDoc1 != null && query.get("_id").equals("doc1"))
+                    blockDoc1.await();
+                Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+                synchronized (sent) {
+                    sent.add(query.get("_id"));
+                }
+            }
+            return method.invoke(collection.getMongoCollection(), args);
+        });
+    }
+
+    @Test(timeout = 5000)
+    public void orderedLanesKeepIssueOrderTest() {
+        ExoCollection ordered = ExoCollection.create(delayedCollection(new ArrayList<>(), null)).enableOrderedLanes(4);
+        ExoDocument document = ordered.getDocument("doc1");
+        List<Observable<UpdateResult>> updates = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            Observable<UpdateResult> update = document.push("values", i).cache();
+            update.subscribe();
+            updates.add(update);
+        }
+        Observable.merge(updates).toBlocking().last();
+        List<Object> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+            expected.add(i);
+        assertEquals(expected, findInDatabase("doc1").get("values"));
+    }
+
+    @Test(timeout = 1000)
+    public void orderedLanesRunDifferentLanesInParallelTest() {
+        CountDownLatch blockDoc1 = new CountDownLatch(1);
+        List<Object> sent = new ArrayList<>();
+        ExoCollection ordered = ExoCollection.create(delayedCollection(sent, blockDoc1)).enableOrderedLanes(4);
+        Observable<UpdateResult> doc1 = ordered.getDocument("doc1").set("state", "A").cache();
+        doc1.subscribe();
+        ordered.getDocument("doc2").set("state", "A").toBlocking().first();
+        assertEquals(Arrays.asList("doc2"), sent);
+        blockDoc1.countDown();
+        doc1.toBlocking().first();
+        assertEquals(Arrays.asList("doc2", "doc1"), sent);
+    }
+
+    @Test(timeout = 1000)
+    public void orderedLanesHoldBackOperationsOfSameDocumentTest() throws InterruptedException {
+        CountDownLatch blockDoc1 = new CountDownLatch(1);
+        List<Object> sent = new ArrayList<>();
+        ExoCollection ordered = ExoCollection.create(delayedCollection(sent, blockDoc1)).enableOrderedLanes(4);
+        Observable<UpdateResult> first = ordered.getDocument("doc1").set("state", "A").cache();
+        first.subscribe();
+        Observable<UpdateResult> second = ordered.getDocument("doc1").set("state", "B").cache();
+        second.subscribe();
+        blockDoc1.countDown();
+        second.toBlocking().first();
+        assertEquals("B", findInDatabase("doc1").get("state"));
+        assertEquals(2, sent.size());
+    }
+
+    @Test(timeout = 1000)
+    public void orderedLanesContinueAfterUnsubscribeTest() {
+        collection.enableOrderedLanes(1);
+        collection.getDocument("doc1").set("state", "A").subscribe().unsubscribe();
+        collection.getDocument("doc1").set("state", "B").toBlocking().first();
+        assertEquals("B", collection.getDocument("doc1").fetch().toBlocking().first().get("state"));
+    }
+
+    @Test(timeout = 5000)
+    public void orderedLanesDrainLongSynchronousQueueTest() {
+        OrderedLanes lanes = new OrderedLanes(1);
+        PublishSubject<Integer> blocker = PublishSubject.create();
+        lanes.run("doc1", blocker).subscribe();
+        AtomicInteger completed = new AtomicInteger();
+        for (int i = 0; i < 100000; i++)
+            lanes.run("doc1", Observable.just(i)).subscribe(value -> completed.incrementAndGet());
+        blocker.onCompleted();
+        assertEquals(100000, completed.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void enableOrderedLanesWithoutLanesThrowsTest() {
+        collection.enableOrderedLanes(0);
+    }
+
+    //versioning
+    @Test(timeout = 1000)
+    public void documentsUseCollectionVersionFieldTest() {
+        collection.versionField("version");
+        assertEquals("version", collection.getDocument("doc1").getVersionField());
+        assertEquals("rev", collection.getDocument("doc1").versionField("rev").getVersionField());
+        collection.getDocument("doc1").set("testkey", 1).toBlocking().subscribe();
+        assertEquals(1, findInDatabase("doc1").get("version"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeBehindFlushIncrementsVersionTest() {
+        collection.versionField("version").enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        collection.getDocument("doc1").inc("testkey", 1).toBlocking().subscribe();
+        collection.getDocument("doc1").inc("testkey", 1).toBlocking().subscribe();
+        collection.flushWriteBehind().toBlocking().subscribe();
+        assertEquals(1, findInDatabase("doc1").get("version"));
+    }
+
+    //changes
+    /**
+     * The collection without ExoData, like the website of an application would change it.
+     */
+    private MongoCollection<Document> external() {
+        return client.getDatabase(DB_NAME).getCollection(COLL_NAME);
+    }
+
+    @Test(timeout = 2000)
+    public void pollingChangesEmitsExternalUpdateTest() throws InterruptedException {
+        collection.versionField("version").enablePollingChanges(20, TimeUnit.MILLISECONDS);
+        ExoDocument document = collection.getDocument("doc1");
+        document.set("testkey", 1).toBlocking().subscribe();
+        BlockingQueue<DocumentChange> changes = new LinkedBlockingQueue<>();
+        Subscription subscription = document.changes().subscribe(changes::add);
+        Thread.sleep(60);
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", 2)).append("$inc", new Document("version", 1)));
+        DocumentChange change = changes.take();
+        subscription.unsubscribe();
+        assertEquals("doc1", change.getId());
+        assertEquals(DocumentChange.Type.UPDATE, change.getType());
+        assertEquals(2, change.getDocument().get("testkey"));
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test(timeout = 2000)
+    public void pollingChangesUpdatesCachedDocumentTest() throws InterruptedException {
+        collection.versionField("version").enablePollingChanges(20, TimeUnit.MILLISECONDS);
+        ExoDocument document = collection.getDocument("doc1");
+        document.fetch().toBlocking().first();
+        BlockingQueue<DocumentChange> changes = new LinkedBlockingQueue<>();
+        document.changes().subscribe(changes::add);
+        Thread.sleep(60);
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", "external")).append("$inc", new Document("version", 1)));
+        changes.take();
+        assertEquals("external", document.getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 2000)
+    public void pollingChangesWithoutVersionFieldComparesDocumentsTest() throws InterruptedException {
+        collection.enablePollingChanges(20, TimeUnit.MILLISECONDS);
+        collection.getDocument("doc1").set("testkey", 1).toBlocking().subscribe();
+        BlockingQueue<DocumentChange> changes = new LinkedBlockingQueue<>();
+        collection.getDocument("doc1").changes().subscribe(changes::add);
+        Thread.sleep(60);
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", 2)));
+        assertEquals(2, changes.take().getDocument().get("testkey"));
+    }
+
+    @Test(timeout = 2000)
+    public void pollingChangesEmitsDeleteAndInsertTest() throws InterruptedException {
+        collection.versionField("version").enablePollingChanges(20, TimeUnit.MILLISECONDS);
+        collection.getDocument("doc1").fetch().toBlocking().first();
+        BlockingQueue<DocumentChange> changes = new LinkedBlockingQueue<>();
+        collection.getDocument("doc1").changes().subscribe(changes::add);
+        Thread.sleep(60);
+        external().deleteOne(new Document("_id", "doc1"));
+        assertEquals(DocumentChange.Type.DELETE, changes.take().getType());
+        external().insertOne(new Document("_id", "doc1").append("version", 5));
+        assertEquals(DocumentChange.Type.INSERT, changes.take().getType());
+    }
+
+    @Test(timeout = 2000)
+    public void changesWithFilterOnlyEmitsMatchingDocumentsTest() throws InterruptedException {
+        collection.versionField("version").enablePollingChanges(20, TimeUnit.MILLISECONDS);
+        external().insertMany(Arrays.asList(new Document("_id", "doc1").append("rank", "admin").append("version", 1),
+                new Document("_id", "doc2").append("rank", "member").append("version", 1)));
+        BlockingQueue<DocumentChange> changes = new LinkedBlockingQueue<>();
+        collection.changes(new Document("rank", "admin")).subscribe(changes::add);
+        Thread.sleep(60);
+        external().updateMany(new Document(), new Document("$inc", new Document("version", 1)));
+        assertEquals("doc1", changes.take().getId());
+        Thread.sleep(60);
+        assertTrue(changes.isEmpty());
+    }
+
+    @Test(timeout = 1000)
+    public void documentCacheAppliesChangesWithoutSubscribersTest() {
+        PublishSubject<DocumentChange> source = PublishSubject.create();
+        collection.enableDocumentCache(1024 * 1024, 1, TimeUnit.HOURS).enableChanges(() -> source);
+        ExoDocument document = collection.getDocument("doc1");
+        document.fetch().toBlocking().first();
+        source.onNext(new DocumentChange("doc1", DocumentChange.Type.UPDATE, null, new Document("$set", new Document("testkey", 3))));
+        assertEquals(3, document.getCachedOrFetch().toBlocking().first().get("testkey"));
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", 4)));
+        source.onNext(new DocumentChange("doc1", DocumentChange.Type.UPDATE, null, null));
+        assertEquals(4, document.getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void deleteChangeClearsCachedDocumentTest() {
+        PublishSubject<DocumentChange> source = PublishSubject.create();
+        collection.enableChanges(() -> source).fetchStrategy(FetchStrategy.FIND);
+        ExoDocument document = collection.getDocument("doc1");
+        external().insertOne(new Document("_id", "doc1"));
+        document.fetch().toBlocking().first();
+        List<DocumentChange> changes = new ArrayList<>();
+        document.changes().subscribe(changes::add);
+        external().deleteOne(new Document("_id", "doc1"));
+        source.onNext(new DocumentChange("doc1", DocumentChange.Type.DELETE, null, null));
+        source.onNext(new DocumentChange("doc2", DocumentChange.Type.DELETE, null, null));
+        assertEquals(1, changes.size());
+        assertNull(document.getCachedOrFetch().toBlocking().firstOrDefault(null));
+    }
+
+    @Test(timeout = 1000)
+    public void disableChangesStopsEmittingTest() {
+        PublishSubject<DocumentChange> source = PublishSubject.create();
+        collection.enableChanges(() -> source);
+        List<DocumentChange> changes = new ArrayList<>();
+        collection.changes(null).subscribe(changes::add);
+        source.onNext(new DocumentChange("doc1", DocumentChange.Type.DELETE, null, null));
+        collection.disableChanges();
+        source.onNext(new DocumentChange("doc1", DocumentChange.Type.DELETE, null, null));
+        assertEquals(1, changes.size());
+        assertFalse(source.hasObservers());
+    }
+
+    @Test(timeout = 2000)
+    public void changeFeedResubscribesAfterSourceErrorTest() throws InterruptedException {
+        PublishSubject<DocumentChange> source = PublishSubject.create();
+        AtomicInteger subscriptions = new AtomicInteger();
+        collection.enableChanges(() -> Observable.defer(() -> subscriptions.incrementAndGet() == 1 ? Observable.error(new IllegalStateException("cursor died")) : source));
+        BlockingQueue<DocumentChange> changes = new LinkedBlockingQueue<>();
+        collection.changes(null).subscribe(changes::add);
+        while (!source.hasObservers())
+            Thread.sleep(10);
+        source.onNext(new DocumentChange("doc1", DocumentChange.Type.DELETE, null, null));
+        assertEquals("doc1", changes.take().getId());
+        assertEquals(2, subscriptions.get());
+    }
+
+    @Test(timeout = 1000)
+    public void changesWithFilterEmitsChangeWhenMatchQueryFailsTest() throws InterruptedException {
+        MongoCollection failingCollection = (MongoCollection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("find"))
+                throw new MongoSocketReadException("connection reset", new ServerAddress());
+            return method.invoke(collection.getMongoCollection(), args);
+        });
+        PublishSubject<DocumentChange> source = PublishSubject.create();
+        ExoCollection failing = ExoCollection.create(failingCollection).enableChanges(() -> source);
+        BlockingQueue<DocumentChange> changes = new LinkedBlockingQueue<>();
+        failing.changes(new Document("rank", "admin")).subscribe(changes::add);
+        source.onNext(new DocumentChange("doc1", DocumentChange.Type.UPDATE, null, null));
+        assertEquals("doc1", changes.take().getId());
+    }
+
+    @Test(timeout = 1000)
+    public void oplogChangeSourceErrorsOnUnauthorizedTest() {
+        MongoCollection<Document> oplog = client.getDatabase("local").getCollection("oplog.rs");
+        @SuppressWarnings("unchecked")
+        MongoCollection<Document> unauthorized = (MongoCollection<Document>) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("find"))
+                throw new MongoCommandException(new BsonDocument("ok", new BsonInt32(0)).append("code", new BsonInt32(13)).append("errmsg", new BsonString("not authorized")), new ServerAddress());
+            return method.invoke(oplog, args);
+        });
+        Throwable error = ChangeSource.oplog(unauthorized, DB_NAME + "." + COLL_NAME).getChanges().materialize().toBlocking().first().getThrowable();
+        assertTrue(error instanceof MongoCommandException);
+    }
+
+    @Test(timeout = 1000, expected = IllegalStateException.class)
+    public void changesWithoutSourceErrorsTest() {
+        collection.getDocument("doc1").changes().toBlocking().first();
+    }
+
+    @Test(timeout = 3000)
+    public void oplogChangeSourceEmitsOplogEntriesTest() throws InterruptedException {
+        MongoCollection<Document> oplog = client.getDatabase("local").getCollection("oplog.rs");
+        String namespace = DB_NAME + '.' + COLL_NAME;
+        oplog.insertOne(new Document("ts", new BsonTimestamp(1, 0)).append("op", "n").append("ns", "").append("o", new Document()));
+        collection.enableDocumentCache(1024 * 1024, 1, TimeUnit.HOURS).enableChanges(ChangeSource.oplog(oplog, namespace));
+        ExoDocument document = collection.getDocument("doc1");
+        document.set("testkey", 1).toBlocking().subscribe();
+        document.fetch().toBlocking().first();
+        BlockingQueue<DocumentChange> changes = new LinkedBlockingQueue<>();
+        collection.changes(null).subscribe(changes::add);
+        Thread.sleep(200);
+        oplog.insertOne(new Document("ts", new BsonTimestamp(2, 0)).append("op", "u").append("ns", "other.collection")
+                .append("o2", new Document("_id", "doc1")).append("o", new Document("$set", new Document("testkey", 5))));
+        oplog.insertOne(new Document("ts", new BsonTimestamp(2, 1)).append("op", "u").append("ns", namespace)
+                .append("o2", new Document("_id", "doc1")).append("o", new Document("$set", new Document("testkey", 2))));
+        oplog.insertOne(new Document("ts", new BsonTimestamp(3, 0)).append("op", "i").append("ns", namespace)
+                .append("o", new Document("_id", "doc2").append("testkey", 3)));
+        DocumentChange update = changes.take();
+        assertEquals(DocumentChange.Type.UPDATE, update.getType());
+        assertEquals(new Document("$set", new Document("testkey", 2)), update.getUpdate());
+        assertEquals(2, document.getCachedOrFetch().toBlocking().first().get("testkey"));
+        DocumentChange insert = changes.take();
+        assertEquals(DocumentChange.Type.INSERT, insert.getType());
+        assertEquals("doc2", insert.getId());
+        collection.disableChanges();
+    }
+
+    //invalidation bus
+    /**
+     * Another node: a collection on the same database with its own document cache.
+     */
+    private ExoCollection peer(InvalidationBus bus) {
+        return ExoCollection.create(client.getDatabase(DB_NAME).getCollection(COLL_NAME))
+                .enableDocumentCache(1024 * 1024, 1, TimeUnit.HOURS)
+                .enableInvalidationBus(bus);
+    }
+
+    @Test(timeout = 1000)
+    public void invalidationBusEvictsPeerCacheTest() {
+        InvalidationBus bus = InvalidationBus.loopback();
+        ExoCollection peer = peer(bus);
+        collection.enableInvalidationBus(bus);
+        peer.getDocument("doc1").fetch().toBlocking().first();
+        collection.getDocument("doc1").set("testkey", 1).toBlocking().subscribe();
+        assertEquals(1, peer.getDocument("doc1").getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void invalidationBusPatchesPeerCacheWithVersionTest() {
+        InvalidationBus bus = InvalidationBus.loopback();
+        ExoCollection peer = peer(bus).versionField("version");
+        collection.enableDocumentCache(1024 * 1024, 1, TimeUnit.HOURS).enableInvalidationBus(bus).versionField("version");
+        collection.getDocument("doc1").writeThrough(true).set("testkey", 1).toBlocking().subscribe();
+        collection.getDocument("doc1").fetch().toBlocking().first();
+        peer.getDocument("doc1").fetch().toBlocking().first();
+        collection.getDocument("doc1").set("testkey", 2).toBlocking().subscribe();
+        //Not in the peer's cache, so the peer did not fetch again
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("other", true)));
+        Document cached = peer.getDocument("doc1").getCachedOrFetch().toBlocking().first();
+        assertEquals(2, cached.get("testkey"));
+        assertEquals(2, cached.get("version"));
+        assertNull(cached.get("other"));
+    }
+
+    @Test(timeout = 1000)
+    public void invalidationBusEvictsPeerWithOtherVersionTest() {
+        InvalidationBus bus = InvalidationBus.loopback();
+        ExoCollection peer = peer(bus).versionField("version");
+        collection.enableDocumentCache(1024 * 1024, 1, TimeUnit.HOURS).enableInvalidationBus(bus).versionField("version");
+        collection.getDocument("doc1").writeThrough(true).set("testkey", 1).toBlocking().subscribe();
+        peer.getDocument("doc1").fetch().toBlocking().first();
+        //The peer missed this change, so it can't apply the next update
+        external().updateOne(new Document("_id", "doc1"), new Document("$inc", new Document("version", 1)));
+        collection.getDocument("doc1").fetch().toBlocking().first();
+        collection.getDocument("doc1").set("testkey", 2).toBlocking().subscribe();
+        assertEquals(3, peer.getDocument("doc1").getCachedOrFetch().toBlocking().first().get("version"));
+    }
+
+    @Test(timeout = 1000)
+    public void invalidationBusPublishesVersionOfDatabaseTest() {
+        InvalidationBus bus = InvalidationBus.loopback();
+        List<Invalidation> published = new ArrayList<>();
+        bus.getInvalidations().subscribe(published::add);
+        collection.enableDocumentCache(1024 * 1024, 1, TimeUnit.HOURS).enableInvalidationBus(bus).versionField("version");
+        ExoDocument document = collection.getDocument("doc1").writeThrough(true);
+        document.set("testkey", 1).toBlocking().subscribe();
+        document.fetch().toBlocking().first();
+        //The cached version is behind, the published version may not be based on it
+        external().updateOne(new Document("_id", "doc1"), new Document("$inc", new Document("version", 1)));
+        document.set("testkey", 2).toBlocking().subscribe();
+        assertEquals(2, published.size());
+        assertEquals(1, published.get(0).getVersion().intValue());
+        assertEquals(3, published.get(1).getVersion().intValue());
+        assertEquals(3, findInDatabase("doc1").get("version"));
+    }
+
+    @Test(timeout = 1000)
+    public void invalidationBusPublishesOnlyIdWithoutVersionFieldTest() {
+        InvalidationBus bus = InvalidationBus.loopback();
+        List<Invalidation> published = new ArrayList<>();
+        bus.getInvalidations().subscribe(published::add);
+        collection.enableDocumentCache(1024 * 1024, 1, TimeUnit.HOURS).enableInvalidationBus(bus);
+        collection.getDocument("doc1").writeThrough(true).set("testkey", 1).toBlocking().subscribe();
+        assertEquals(1, published.size());
+        assertNull(published.get(0).getVersion());
+        assertNull(published.get(0).getUpdate());
+    }
+
+    @Test(timeout = 2000)
+    public void invalidationBusResubscribesAfterErrorTest() throws InterruptedException {
+        PublishSubject<Invalidation> invalidations = PublishSubject.create();
+        AtomicInteger subscriptions = new AtomicInteger();
+        collection.enableDocumentCache(1024 * 1024, 1, TimeUnit.HOURS).enableInvalidationBus(new InvalidationBus() {
+            @Override
+            public void publish(Invalidation invalidation) {
+            }
+
+            @Override
+            public Observable<Invalidation> getInvalidations() {
+                return Observable.defer(() -> subscriptions.incrementAndGet() == 1 ? Observable.error(new IllegalStateException("socket closed")) : invalidations);
+            }
+        });
+        ExoDocument document = collection.getDocument("doc1");
+        document.fetch().toBlocking().first();
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", 2)), new UpdateOptions().upsert(true));
+        while (!invalidations.hasObservers())
+            Thread.sleep(10);
+        invalidations.onNext(new Invalidation("peer", DB_NAME + '.' + COLL_NAME, "doc1", null, null));
+        assertEquals(2, document.getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void invalidationThatFailsToApplyEvictsDocumentTest() {
+        PublishSubject<Invalidation> invalidations = PublishSubject.create();
+        collection.versionField("version").enableDocumentCache(1024 * 1024, 1, TimeUnit.HOURS).enableInvalidationBus(new InvalidationBus() {
+            @Override
+            public void publish(Invalidation invalidation) {
+            }
+
+            @Override
+            public Observable<Invalidation> getInvalidations() {
+                return invalidations;
+            }
+        });
+        external().insertOne(new Document("_id", "doc1").append("version", 1).append("testkey", 1));
+        ExoDocument document = collection.getDocument("doc1");
+        document.fetch().toBlocking().first();
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", 2)).append("$inc", new Document("version", 1)));
+        invalidations.onNext(new Invalidation("peer", DB_NAME + '.' + COLL_NAME, "doc1", 2, new Document("$set", new Document(null, 3))));
+        assertTrue(invalidations.hasObservers());
+        assertEquals(2, collection.getDocument("doc1").getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void versionedWriteWithInvalidationBusReportsCountsOfDatabaseTest() {
+        collection.versionField("version").enableInvalidationBus(InvalidationBus.loopback());
+        UpdateResult upserted = collection.getDocument("doc1").set("testkey", 1).toBlocking().first();
+        assertEquals(0, upserted.getMatchedCount());
+        assertEquals("doc1", upserted.getUpsertedId().asString().getValue());
+        assertEquals(1, findInDatabase("doc1").get("version"));
+        UpdateResult updated = collection.getDocument("doc1").set("testkey", 1).toBlocking().first();
+        assertEquals(1, updated.getMatchedCount());
+        assertEquals(1, updated.getModifiedCount());
+        assertEquals(2, findInDatabase("doc1").get("version"));
+        UpdateResult missing = collection.getDocument("doc2").update(new Document("$set", new Document("testkey", 1)), false).toBlocking().first();
+        assertEquals(0, missing.getMatchedCount());
+        assertNull(missing.getUpsertedId());
+        assertNull(findInDatabase("doc2"));
+    }
+
+    @Test(timeout = 1000)
+    public void invalidationBusIgnoresOwnInvalidationsTest() {
+        InvalidationBus bus = InvalidationBus.loopback();
+        List<Invalidation> published = new ArrayList<>();
+        bus.getInvalidations().subscribe(published::add);
+        collection.enableDocumentCache(1024 * 1024, 1, TimeUnit.HOURS).enableInvalidationBus(bus);
+        ExoDocument document = collection.getDocument("doc1").writeThrough(true);
+        document.fetch().toBlocking().first();
+        document.set("testkey", 1).toBlocking().subscribe();
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", 2)));
+        assertEquals(1, document.getCachedOrFetch().toBlocking().first().get("testkey"));
+        assertEquals(1, published.size());
+        assertEquals(DB_NAME + '.' + COLL_NAME, published.get(0).getCollection());
+        assertEquals("doc1", published.get(0).getId());
+    }
+
+    @Test(timeout = 1000)
+    public void invalidationBusIgnoresFailedConditionalUpdatesTest() {
+        InvalidationBus bus = InvalidationBus.loopback();
+        List<Invalidation> published = new ArrayList<>();
+        bus.getInvalidations().subscribe(published::add);
+        collection.enableInvalidationBus(bus);
+        collection.getDocument("doc1").decIfSufficient("testkey", 10).toBlocking().subscribe();
+        assertTrue(published.isEmpty());
+        collection.disableInvalidationBus();
+        collection.getDocument("doc1").set("testkey", 1).toBlocking().subscribe();
+        assertTrue(published.isEmpty());
+    }
+
+    @Test(timeout = 1000)
+    public void writeBehindFlushEvictsPeerCacheTest() {
+        InvalidationBus bus = InvalidationBus.loopback();
+        ExoCollection peer = peer(bus);
+        collection.enableInvalidationBus(bus).enableWriteBehind(journals.getRoot(), 1, TimeUnit.HOURS);
+        peer.getDocument("doc1").fetch().toBlocking().first();
+        collection.getDocument("doc1").inc("testkey", 1).toBlocking().subscribe();
+        collection.flushWriteBehind().toBlocking().subscribe();
+        assertEquals(1, peer.getDocument("doc1").getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 2000)
+    public void socketInvalidationBusSendsToPeersTest() throws Exception {
+        int port1;
+        int port2;
+        try (DatagramSocket first = new DatagramSocket(0); DatagramSocket second = new DatagramSocket(0)) {
+            port1 = first.getLocalPort();
+            port2 = second.getLocalPort();
+        }
+        InvalidationBus bus1 = InvalidationBus.socket(port1, Collections.singletonList(new InetSocketAddress("127.0.0.1", port2)));
+        InvalidationBus bus2 = InvalidationBus.socket(port2, Collections.singletonList(new InetSocketAddress("127.0.0.1", port1)));
+        try {
+            BlockingQueue<Invalidation> received = new LinkedBlockingQueue<>();
+            bus2.getInvalidations().subscribe(received::add);
+            bus1.publish(new Invalidation("node1", "db.coll", "doc1", 3L, new Document("$set", new Document("testkey", 2))));
+            Invalidation invalidation = received.take();
+            assertEquals("node1", invalidation.getOrigin());
+            assertEquals("db.coll", invalidation.getCollection());
+            assertEquals("doc1", invalidation.getId());
+            assertEquals(3L, invalidation.getVersion());
+            assertEquals(new Document("$set", new Document("testkey", 2)), invalidation.getUpdate());
+        } finally {
+            bus1.close();
+            bus2.close();
+        }
+    }
+
+    //off-heap cache
+    /**
+     * A value that makes a document heavier than the document cache of the off-heap cache tests, so it's evicted (and spilled) as soon as it's cached.
+     */
+    private static String large() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 110; i++)
+            value.append("0123456789");
+        return value.toString();
+    }
+
+    @Test(timeout = 1000)
+    public void offHeapCacheServesEvictedDocumentsTest() {
+        collection.enableDocumentCache(1024, 1, TimeUnit.HOURS).enableOffHeapCache(1024 * 1024);
+        collection.getDocument("doc1").set("testkey", large()).toBlocking().subscribe();
+        collection.getDocument("doc1").fetch().toBlocking().first();
+        //Not seen by the cache, so the cached document is served without reading the database
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", "changed")));
+        assertEquals(large(), collection.getDocument("doc1").getCachedOrFetch().toBlocking().first().get("testkey"));
+        assertEquals(1, collection.getOffHeapCacheStats().getHitCount());
+    }
+
+    @Test(timeout = 1000)
+    public void offHeapCacheEvictsOldestDocumentsOverBudgetTest() {
+        collection.enableDocumentCache(1024, 1, TimeUnit.HOURS).enableOffHeapCache(16 * 1024);
+        for (int i = 0; i < 10; i++) {
+            collection.getDocument("doc" + i).set("testkey", large()).toBlocking().subscribe();
+            collection.getDocument("doc" + i).fetch().toBlocking().first();
+        }
+        assertTrue(collection.getOffHeapCacheStats().getEvictionCount() > 0);
+        assertTrue(collection.getOffHeapCacheStats().getEvictionWeight() > 0);
+        external().updateOne(new Document("_id", "doc0"), new Document("$set", new Document("testkey", "changed")));
+        external().updateOne(new Document("_id", "doc9"), new Document("$set", new Document("testkey", "changed")));
+        assertEquals("changed", collection.getDocument("doc0").getCachedOrFetch().toBlocking().first().get("testkey"));
+        assertEquals(large(), collection.getDocument("doc9").getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void offHeapCacheExpiresDocumentsTest() throws InterruptedException {
+        collection.enableDocumentCache(1024, 50, TimeUnit.MILLISECONDS).enableOffHeapCache(1024 * 1024);
+        collection.getDocument("doc1").set("testkey", large()).toBlocking().subscribe();
+        collection.getDocument("doc1").fetch().toBlocking().first();
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", "changed")));
+        Thread.sleep(100);
+        assertEquals("changed", collection.getDocument("doc1").getCachedOrFetch().toBlocking().first().get("testkey"));
+        assertEquals(0, collection.getOffHeapCacheStats().getHitCount());
+        assertEquals(1, collection.getOffHeapCacheStats().getEvictionCount());
+    }
+
+    @Test(timeout = 1000)
+    public void writeRemovesDocumentFromOffHeapCacheTest() {
+        collection.enableDocumentCache(1024, 1, TimeUnit.HOURS).enableOffHeapCache(1024 * 1024);
+        ExoDocument document = collection.getDocument("doc1");
+        document.set("testkey", large()).toBlocking().subscribe();
+        document.fetch().toBlocking().first();
+        //The document was spilled, but this ExoDocument is still referenced and written through
+        document.set("testkey", "changed").toBlocking().subscribe();
+        assertEquals("changed", collection.getDocument("doc1").getCachedOrFetch().toBlocking().first().get("testkey"));
+        assertEquals(0, collection.getOffHeapCacheStats().getHitCount());
+    }
+
+    @Test(timeout = 1000)
+    public void invalidationRemovesDocumentFromOffHeapCacheTest() {
+        InvalidationBus bus = InvalidationBus.loopback();
+        ExoCollection peer = peer(bus);
+        collection.enableDocumentCache(1024, 1, TimeUnit.HOURS).enableOffHeapCache(1024 * 1024).enableInvalidationBus(bus);
+        collection.getDocument("doc1").set("testkey", large()).toBlocking().subscribe();
+        collection.getDocument("doc1").fetch().toBlocking().first();
+        peer.getDocument("doc1").set("testkey", "changed").toBlocking().subscribe();
+        assertEquals("changed", collection.getDocument("doc1").getCachedOrFetch().toBlocking().first().get("testkey"));
+        assertEquals(0, collection.getOffHeapCacheStats().getHitCount());
+    }
+
+    @Test(timeout = 1000)
+    public void changeRemovesDocumentFromOffHeapCacheTest() {
+        PublishSubject<DocumentChange> source = PublishSubject.create();
+        collection.enableDocumentCache(1024, 1, TimeUnit.HOURS).enableOffHeapCache(1024 * 1024).enableChanges(() -> source);
+        collection.getDocument("doc1").set("testkey", large()).toBlocking().subscribe();
+        collection.getDocument("doc1").fetch().toBlocking().first();
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", "changed")));
+        source.onNext(new DocumentChange("doc1", DocumentChange.Type.UPDATE, null, null));
+        assertEquals("changed", collection.getDocument("doc1").getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void memoryMappedOffHeapCacheDeletesFilesWhenDisabledTest() throws Exception {
+        File directory = journals.newFolder();
+        collection.enableDocumentCache(1024, 1, TimeUnit.HOURS).enableOffHeapCache(1024 * 1024, directory);
+        assertTrue(directory.list().length > 0);
+        collection.getDocument("doc1").set("testkey", large()).toBlocking().subscribe();
+        collection.getDocument("doc1").fetch().toBlocking().first();
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", "changed")));
+        assertEquals(large(), collection.getDocument("doc1").getCachedOrFetch().toBlocking().first().get("testkey"));
+        collection.disableOffHeapCache();
+        assertEquals(0, directory.list().length);
+        assertEquals(0, collection.getOffHeapCacheStats().getHitCount());
+    }
+
+    @Test(timeout = 1000)
+    public void offHeapCacheDoesNotSpillProjectionsTest() {
+        collection.enableDocumentCache(1024, 1, TimeUnit.HOURS).enableOffHeapCache(1024 * 1024);
+        collection.getDocument("doc1").set("testkey", large()).toBlocking().subscribe();
+        collection.getDocument("doc1").getCachedOrFetch(Projections.include("testkey")).toBlocking().first();
+        external().updateOne(new Document("_id", "doc1"), new Document("$set", new Document("testkey", "changed")));
+        assertEquals("changed", collection.getDocument("doc1").getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
 }
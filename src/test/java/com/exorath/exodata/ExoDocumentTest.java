@@ -17,18 +17,34 @@
 package com.exorath.exodata;
 
 import com.exorath.exodata.api.ExoDocument;
+import com.exorath.exodata.api.FetchStrategy;
+import com.exorath.exodata.impl.UpdateCoalescer;
 import com.github.fakemongo.Fongo;
 import com.mongodb.MongoClient;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.conversions.Bson;
 import org.junit.Before;
 import org.junit.Test;
+import rx.Observable;
+import rx.subjects.PublishSubject;
 
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.mongodb.client.model.Projections.*;
 import static org.junit.Assert.*;
@@ -97,6 +113,37 @@ public class ExoDocumentTest {
         assertNotEquals(doc, document.fetch().toBlocking().first());
     }
 
+    @Test(timeout = 1000)
+    public void fetchRawEqualsDocumentTest() {
+        Document doc = new Document("_id", id.toString()).append("testkey", "testvalue").append("testnested", new Document("value1", "impl").append("value2", "def"));
+        collection.insertOne(doc);
+        RawBsonDocument raw = document.fetchRaw().toBlocking().first();
+        assertEquals(new BsonString("testvalue"), raw.get("testkey"));
+        assertEquals(doc, raw.decode(collection.getCodecRegistry().get(Document.class)));
+    }
+
+    @Test(timeout = 1000)
+    public void fetchRawCreatesDocumentTest() {
+        assertEquals(new BsonString(id.toString()), document.fetchRaw().toBlocking().first().get("_id"));
+        assertEquals(1, collection.count());
+    }
+
+    @Test(timeout = 1000)
+    public void fetchRawWithProjectionExcludesFieldTest() {
+        collection.insertOne(new Document("_id", id.toString()).append("testkey", "testvalue").append("otherkey", "othervalue"));
+        RawBsonDocument raw = document.fetchRaw(include("testkey")).toBlocking().first();
+        assertTrue(raw.containsKey("testkey"));
+        assertFalse(raw.containsKey("otherkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void fetchRawIsCachedTest() {
+        collection.insertOne(new Document("_id", id.toString()).append("testkey", "testvalue"));
+        document.fetchRaw().toBlocking().first();
+        collection.updateOne(new Document("_id", id.toString()), new Document("$set", new Document("testkey", "changed")));
+        assertEquals("testvalue", document.getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
     @Test(timeout = 1000)
     public void fetchWithProjectionObservableNotNullTest() {
        assertNotNull(document.fetch());
@@ -266,6 +313,90 @@ public class ExoDocumentTest {
         assertTrue(document.fetch().toBlocking().first().containsKey("persist"));
     }
 
+    @Test(timeout = 1000)
+    public void incIntUpdatesDocumentFetchToIntTest() {
+        document.incInt("testkey", 10).toBlocking().subscribe();
+        document.incInt("testkey", -3).toBlocking().subscribe();
+        assertEquals(7, document.fetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void incLongUpdatesDocumentFetchToLongTest() {
+        document.incLong("testkey", 10L).toBlocking().subscribe();
+        assertEquals(10L, document.fetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void incDoubleUpdatesDocumentFetchToDoubleTest() {
+        document.incDouble("testkey", 2.5).toBlocking().subscribe();
+        assertEquals(2.5, document.fetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void coalescedIncLongsSumUpTest() {
+        document.coalesce(50, TimeUnit.MILLISECONDS, 100);
+        Observable.merge(document.incLong("testkey", 10L), document.incLong("testkey", 20L)).toBlocking().last();
+        assertEquals(30L, document.fetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void getLongReadsCachedDocumentTest() {
+        collection.insertOne(new Document("_id", id.toString()).append("testkey", 10).append("nested", new Document("value", 2.5)));
+        document.fetch().toBlocking().first();
+        assertEquals(10L, document.getLong("testkey"));
+        assertEquals(2L, document.getLong("nested.value"));
+        assertEquals(2.5, document.getDouble("nested.value"), 0);
+        assertEquals(0L, document.getLong("missing"));
+    }
+
+    @Test(timeout = 1000)
+    public void getLongReadsRawFetchTest() {
+        collection.insertOne(new Document("_id", id.toString()).append("testkey", 10L).append("nested", new Document("value", 3)));
+        document.fetchRaw().toBlocking().first();
+        assertEquals(10L, document.getLong("testkey"));
+        assertEquals(3L, document.getLong("nested.value"));
+        assertEquals(0L, document.getLong("nested.missing"));
+    }
+
+    @Test(timeout = 1000)
+    public void getLongFollowsArrayIndicesTest() {
+        Document inserted = new Document("_id", id.toString()).append("values", Arrays.asList(4, new Document("value", 7L)));
+        collection.insertOne(inserted);
+        document.fetchRaw().toBlocking().first();
+        assertEquals(4L, document.getLong("values.0"));
+        assertEquals(7L, document.getLong("values.1.value"));
+        assertEquals(0L, document.getLong("values.2"));
+        document.fetch().toBlocking().first();
+        assertEquals(4L, document.getLong("values.0"));
+        assertEquals(7L, document.getLong("values.1.value"));
+        assertEquals(0L, document.getLong("values.x"));
+    }
+
+    @Test(timeout = 1000)
+    public void getLongFollowsWriteThroughTest() {
+        document.writeThrough(true).fetch().toBlocking().first();
+        document.incLong("testkey", 5L).toBlocking().subscribe();
+        assertEquals(5L, document.getLong("testkey"));
+    }
+
+    @Test(timeout = 1000, expected = IllegalStateException.class)
+    public void getLongWithoutCacheThrowsTest() {
+        document.getLong("testkey");
+    }
+
+    @Test(timeout = 1000, expected = IllegalStateException.class)
+    public void getLongOfUncachedProjectionFieldThrowsTest() {
+        document.getCachedOrFetch(include("otherkey")).toBlocking().first();
+        document.getLong("testkey");
+    }
+
+    @Test(timeout = 1000, expected = IllegalStateException.class)
+    public void getLongOfStringThrowsTest() {
+        collection.insertOne(new Document("_id", id.toString()).append("testkey", "testvalue"));
+        document.fetch().toBlocking().first();
+        document.getLong("testkey");
+    }
+
     @Test(timeout = 1000)
     public void decIfSufficientIntObservableNotNullTest() {
         assertNotNull(document.decIfSufficient("testkey", 123));
@@ -720,6 +851,473 @@ public class ExoDocumentTest {
         assertFalse(document.fetch().toBlocking().first().containsKey("array"));
     }
 
+    @Test(timeout = 1000)
+    public void concurrentFetchesShareDatabaseCallTest() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        MongoCollection blockingCollection = (MongoCollection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("findOneAndUpdate")) {
+                calls.incrementAndGet();
+                latch.await();
+            }
+            return method.invoke(collection, args);
+        });
+        ExoDocument blockingDocument = ExoDocument.create(blockingCollection, id.toString());
+        Observable<Document> first = blockingDocument.getCachedOrFetch().cache();
+        Observable<Document> second = blockingDocument.fetch().cache();
+        first.subscribe();
+        second.subscribe();
+        latch.countDown();
+        assertSame(first.toBlocking().first(), second.toBlocking().first());
+        assertEquals(1, calls.get());
+    }
+
+    @Test(timeout = 1000)
+    public void fetchAfterCompletedFetchDoesNewDatabaseCallTest() {
+        document.fetch().toBlocking().first();
+        collection.updateOne(new Document("_id", id.toString()), new Document("$set", new Document("testkey", "testvalue")));
+        assertEquals("testvalue", document.fetch().toBlocking().first().get("testkey"));
+    }
+
+    //fetchStrategy
+    @Test(timeout = 1000)
+    public void defaultFetchStrategyIsUpsertTest() {
+        assertEquals(FetchStrategy.UPSERT, document.getFetchStrategy());
+    }
+
+    @Test(timeout = 1000)
+    public void findFetchStrategyDoesNotCreateDocumentTest() {
+        document.fetchStrategy(FetchStrategy.FIND);
+        assertNull(document.fetch().toBlocking().firstOrDefault(null));
+        assertEquals(0, collection.count());
+    }
+
+    @Test(timeout = 1000)
+    public void findFetchStrategyFetchesExistingDocumentTest() {
+        Document doc = new Document("_id", id.toString()).append("testkey", "testvalue");
+        collection.insertOne(doc);
+        document.fetchStrategy(FetchStrategy.FIND);
+        assertEquals(doc, document.fetch().toBlocking().first());
+    }
+
+    @Test(timeout = 1000)
+    public void findSecondaryFetchStrategyFetchesExistingDocumentTest() {
+        Document doc = new Document("_id", id.toString()).append("testkey", "testvalue");
+        collection.insertOne(doc);
+        document.fetchStrategy(FetchStrategy.FIND_SECONDARY);
+        assertEquals(doc, document.fetch().toBlocking().first());
+    }
+
+    @Test(timeout = 1000)
+    public void lazyUpsertFetchStrategyCreatesMissingDocumentTest() {
+        document.fetchStrategy(FetchStrategy.LAZY_UPSERT);
+        assertEquals(new Document("_id", id.toString()), document.fetch().toBlocking().first());
+        assertEquals(1, collection.count());
+    }
+
+    @Test(timeout = 1000)
+    public void lazyUpsertFetchStrategyWithProjectionTest() {
+        document.set("key1", "value1").toBlocking().subscribe();
+        document.set("key2", "value2").toBlocking().subscribe();
+        document.fetchStrategy(FetchStrategy.LAZY_UPSERT);
+        assertFalse(document.fetch(include("key1")).toBlocking().first().containsKey("key2"));
+    }
+
+    //coalesce
+    @Test(timeout = 5000)
+    public void coalescerWritesLongQueueOfSynchronousBatchesTest() {
+        PublishSubject<UpdateResult> blocker = PublishSubject.create();
+        AtomicInteger writes = new AtomicInteger();
+        UpdateCoalescer coalescer = new UpdateCoalescer(update -> writes.getAndIncrement() == 0 ? blocker : Observable.just(UpdateResult.acknowledged(1, 1L, null)), 1, TimeUnit.HOURS, 1);
+        AtomicInteger completed = new AtomicInteger();
+        for (int i = 0; i < 100000; i++)
+            coalescer.inc("testkey", 1).doOnCompleted(completed::incrementAndGet).subscribe();
+        blocker.onNext(UpdateResult.acknowledged(1, 1L, null));
+        blocker.onCompleted();
+        assertEquals(100000, completed.get());
+    }
+
+    @Test(timeout = 1000)
+    public void coalescerCompletesUpdatesOfEmptyWriteTest() {
+        UpdateCoalescer coalescer = new UpdateCoalescer(update -> Observable.empty(), 1, TimeUnit.HOURS, 1);
+        assertNull(coalescer.inc("testkey", 1).toBlocking().firstOrDefault(null));
+    }
+
+    @Test(timeout = 1000)
+    public void coalescedIncsSumUpTest() {
+        document.coalesce(50, TimeUnit.MILLISECONDS, 100);
+        Observable.merge(document.inc("testkey", 10), document.inc("testkey", 20), document.inc("testkey", 5)).toBlocking().last();
+        assertEquals(35, document.fetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void coalescedUpdatesShareUpdateResultTest() {
+        document.coalesce(50, TimeUnit.MILLISECONDS, 100);
+        List<UpdateResult> results = Observable.merge(document.inc("testkey", 10), document.set("testkey2", "value"), document.push("array", "value")).toList().toBlocking().first();
+        assertEquals(3, results.size());
+        assertSame(results.get(0), results.get(1));
+        assertSame(results.get(0), results.get(2));
+    }
+
+    @Test(timeout = 1000)
+    public void coalescedSetsKeepLastValueTest() {
+        document.coalesce(50, TimeUnit.MILLISECONDS, 100);
+        Observable.merge(document.set("testkey", "value1"), document.set("testkey", "value2")).toBlocking().last();
+        assertEquals("value2", document.fetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void coalescedPushesAppendInOrderTest() {
+        document.coalesce(50, TimeUnit.MILLISECONDS, 100);
+        Observable.merge(document.push("testkey", "testvalue"), document.push("testkey", "testvalue2")).toBlocking().last();
+        List<String> values = new ArrayList<>();
+        values.add("testvalue");
+        values.add("testvalue2");
+        assertEquals(values, document.fetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void coalesceFlushesWhenMaxUpdatesReachedTest() {
+        document.coalesce(1, TimeUnit.HOURS, 2);
+        Observable.merge(document.inc("testkey", 10), document.inc("testkey", 10)).toBlocking().last();
+        assertEquals(20, document.fetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void coalesceConflictingOperatorsAreNotMergedTest() {
+        document.coalesce(50, TimeUnit.MILLISECONDS, 100);
+        List<UpdateResult> results = Observable.merge(document.set("testkey", 10), document.inc("testkey", 5)).toList().toBlocking().first();
+        assertNotSame(results.get(0), results.get(1));
+        assertEquals(15, document.fetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void updateAfterCoalescedUpdatesWaitsForTheirWriteTest() {
+        List<String> written = Collections.synchronizedList(new ArrayList<>());
+        MongoCollection slowCollection = (MongoCollection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("updateOne")) {
+                String operator = ((Bson) args[1]).toBsonDocument(BsonDocument.class, collection.getCodecRegistry()).keySet().iterator().next();
+                if (operator.equals("$push"))
+                    Thread.sleep(100);
+                written.add(operator);
+            }
+            return method.invoke(collection, args);
+        });
+        ExoDocument slowDocument = ExoDocument.create(slowCollection, id.toString()).coalesce(1, TimeUnit.HOURS, 100);
+        slowDocument.push("testkey", "testvalue").subscribe();
+        slowDocument.pop("testkey", true).toBlocking().subscribe();
+        assertEquals(Arrays.asList("$push", "$pop"), written);
+    }
+
+    @Test(timeout = 1000)
+    public void disableCoalescingFlushesPendingUpdatesTest() throws InterruptedException {
+        document.coalesce(1, TimeUnit.HOURS, 100);
+        AtomicBoolean called = new AtomicBoolean(false);
+        document.inc("testkey", 10).subscribe(result -> called.set(true));
+        document.disableCoalescing();
+        while (!called.get())
+            Thread.sleep(5);
+        assertEquals(10, document.fetch().toBlocking().first().get("testkey"));
+    }
+
+    //writeThrough
+    @Test(timeout = 1000)
+    public void writeThroughIncUpdatesCacheTest() {
+        document.writeThrough(true);
+        document.fetch().toBlocking().first();
+        document.inc("testkey", 10).toBlocking().subscribe();
+        document.inc("testkey", 5).toBlocking().subscribe();
+        assertEquals(15, document.getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeThroughDoesNotModifyEmittedDocumentTest() {
+        document.writeThrough(true);
+        Document before = document.fetch().toBlocking().first();
+        document.set("testkey", "testvalue").toBlocking().subscribe();
+        assertFalse(before.containsKey("testkey"));
+        assertEquals("testvalue", document.getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeThroughDottedSetUpdatesCacheTest() {
+        document.writeThrough(true);
+        document.fetch().toBlocking().first();
+        document.set("nested.key", "testvalue").toBlocking().subscribe();
+        assertEquals("testvalue", document.getCachedOrFetch().toBlocking().first().get("nested", Document.class).get("key"));
+        assertEquals(document.fetch().toBlocking().first(), document.getCachedOrFetch().toBlocking().first());
+    }
+
+    @Test(timeout = 1000)
+    public void writeThroughUpsertCreatesCacheTest() {
+        document.writeThrough(true);
+        document.push("testkey", "testvalue").toBlocking().subscribe();
+        collection.updateOne(new Document("_id", id.toString()), new Document("$set", new Document("external", true)));
+        Document cached = document.getCachedOrFetch().toBlocking().first();
+        assertFalse(cached.containsKey("external"));
+        assertEquals(1, ((List) cached.get("testkey")).size());
+    }
+
+    @Test(timeout = 1000)
+    public void writeThroughSufficientDecIfSufficientUpdatesCacheTest() {
+        document.writeThrough(true);
+        document.inc("testkey", 30).toBlocking().subscribe();
+        document.decIfSufficient("testkey", 10).toBlocking().subscribe();
+        assertEquals(20, document.getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeThroughInsufficientDecIfSufficientDoesNotUpdateCacheTest() {
+        document.writeThrough(true);
+        document.inc("testkey", 5).toBlocking().subscribe();
+        document.decIfSufficient("testkey", 10).toBlocking().subscribe();
+        assertEquals(5, document.getCachedOrFetch().toBlocking().first().get("testkey"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeThroughPopAndRemoveUpdateCacheTest() {
+        document.writeThrough(true);
+        document.push("array", "value1").toBlocking().subscribe();
+        document.push("array", "value2").toBlocking().subscribe();
+        document.set("testkey", "testvalue").toBlocking().subscribe();
+        document.pop("array", true).toBlocking().subscribe();
+        document.remove("testkey").toBlocking().subscribe();
+        assertEquals(document.fetch().toBlocking().first(), document.getCachedOrFetch().toBlocking().first());
+    }
+
+    @Test(timeout = 1000)
+    public void writeThroughAfterProjectedFetchClearsCacheTest() {
+        document.writeThrough(true);
+        document.set("key1", "value1").toBlocking().subscribe();
+        document.fetch(include("key1")).toBlocking().first();
+        document.set("key2", "value2").toBlocking().subscribe();
+        assertTrue(document.getCachedOrFetch().toBlocking().first().containsKey("key2"));
+    }
+
+    //projection aware cache
+    private void setInDatabase(String key, Object value) {
+        collection.updateOne(new Document("_id", id.toString()), new Document("$set", new Document(key, value)));
+    }
+
+    @Test(timeout = 1000)
+    public void projectedFetchesMergeIntoCacheTest() {
+        document.set("key1", "value1").toBlocking().subscribe();
+        document.set("key2", "value2").toBlocking().subscribe();
+        document.set("key3", "value3").toBlocking().subscribe();
+        document.fetch(include("key1")).toBlocking().first();
+        document.fetch(include("key2")).toBlocking().first();
+        assertEquals(new Document("_id", id.toString()).append("key1", "value1").append("key2", "value2"), document.getCachedOrFetch().toBlocking().first());
+    }
+
+    @Test(timeout = 1000)
+    public void projectedFetchMergesIntoFullCacheTest() {
+        document.set("key1", "value1").toBlocking().subscribe();
+        document.set("key2", "value2").toBlocking().subscribe();
+        document.fetch().toBlocking().first();
+        setInDatabase("key1", "newvalue1");
+        setInDatabase("key2", "newvalue2");
+        document.fetch(include("key1")).toBlocking().first();
+        Document cached = document.getCachedOrFetch().toBlocking().first();
+        assertEquals("newvalue1", cached.get("key1"));
+        assertEquals("value2", cached.get("key2"));
+    }
+
+    @Test(timeout = 1000)
+    public void getCachedOrFetchWithProjectionServesCachedFieldsTest() {
+        document.set("key1", "value1").toBlocking().subscribe();
+        document.set("key2", "value2").toBlocking().subscribe();
+        document.fetch(include("key1", "key2")).toBlocking().first();
+        setInDatabase("key1", "newvalue1");
+        assertEquals(new Document("_id", id.toString()).append("key1", "value1"), document.getCachedOrFetch(include("key1")).toBlocking().first());
+    }
+
+    @Test(timeout = 1000)
+    public void getCachedOrFetchWithProjectionOnlyFetchesMissingFieldsTest() {
+        document.set("key1", "value1").toBlocking().subscribe();
+        document.set("key2", "value2").toBlocking().subscribe();
+        document.fetch(include("key1")).toBlocking().first();
+        setInDatabase("key1", "newvalue1");
+        Document projected = document.getCachedOrFetch(include("key1", "key2")).toBlocking().first();
+        assertEquals("value1", projected.get("key1"));
+        assertEquals("value2", projected.get("key2"));
+        setInDatabase("key2", "newvalue2");
+        assertEquals("value2", document.getCachedOrFetch(include("key2")).toBlocking().first().get("key2"));
+    }
+
+    @Test(timeout = 1000)
+    public void getCachedOrFetchWithProjectionCachesMissingFieldsTest() {
+        document.fetch(include("key1")).toBlocking().first();
+        document.set("key1", "value1").toBlocking().subscribe();
+        assertEquals(new Document("_id", id.toString()), document.getCachedOrFetch(include("key1")).toBlocking().first());
+    }
+
+    @Test(timeout = 1000)
+    public void getCachedOrFetchWithDottedProjectionTest() {
+        document.set("nested.key1", "value1").toBlocking().subscribe();
+        document.set("nested.key2", "value2").toBlocking().subscribe();
+        document.fetch(include("nested.key1")).toBlocking().first();
+        setInDatabase("nested.key1", "newvalue1");
+        assertEquals(new Document("key1", "value1"), document.getCachedOrFetch(include("nested.key1")).toBlocking().first().get("nested"));
+        assertEquals(new Document("key1", "newvalue1").append("key2", "value2"), document.getCachedOrFetch(include("nested")).toBlocking().first().get("nested"));
+        setInDatabase("nested.key2", "newvalue2");
+        assertEquals(new Document("key2", "value2"), document.getCachedOrFetch(include("nested.key2")).toBlocking().first().get("nested"));
+    }
+
+    @Test(timeout = 1000)
+    public void getCachedOrFetchProjectsArrayElementsTest() {
+        document.set("key1", "value1").toBlocking().subscribe();
+        setInDatabase("items", Arrays.asList(new Document("name", "sword").append("count", 1), new Document("name", "bow").append("count", 2), 5));
+        document.fetch().toBlocking().first();
+        setInDatabase("items", Collections.emptyList());
+        Document projected = document.getCachedOrFetch(include("items.name")).toBlocking().first();
+        assertEquals(Arrays.asList(new Document("name", "sword"), new Document("name", "bow")), projected.get("items"));
+    }
+
+    @Test(timeout = 1000)
+    public void getCachedOrFetchWithProjectionServedFromFullCacheTest() {
+        document.set("key1", "value1").toBlocking().subscribe();
+        document.fetch().toBlocking().first();
+        setInDatabase("key1", "newvalue1");
+        assertEquals("value1", document.getCachedOrFetch(include("key1")).toBlocking().first().get("key1"));
+    }
+
+    @Test(timeout = 1000)
+    public void exclusionProjectionIsNotCachedTest() {
+        document.set("key1", "value1").toBlocking().subscribe();
+        document.fetch(exclude("key1")).toBlocking().first();
+        assertEquals("value1", document.getCachedOrFetch().toBlocking().first().get("key1"));
+        setInDatabase("key1", "newvalue1");
+        assertEquals("newvalue1", document.getCachedOrFetch(exclude("key2")).toBlocking().first().get("key1"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeThroughUpdatesCoveredFieldsOfProjectedCacheTest() {
+        document.set("key1", 10).toBlocking().subscribe();
+        document.writeThrough(true);
+        document.fetch(include("key1")).toBlocking().first();
+        document.inc("key1", 5).toBlocking().subscribe();
+        setInDatabase("key1", 999);
+        assertEquals(15, document.getCachedOrFetch(include("key1")).toBlocking().first().get("key1"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeThroughOfUncoveredFieldsClearsProjectedCacheTest() {
+        document.set("key1", 10).toBlocking().subscribe();
+        document.writeThrough(true);
+        document.fetch(include("key1")).toBlocking().first();
+        document.set("key2", "value2").toBlocking().subscribe();
+        setInDatabase("key1", 999);
+        assertEquals(999, document.getCachedOrFetch(include("key1")).toBlocking().first().get("key1"));
+        assertEquals("value2", document.getCachedOrFetch(include("key2")).toBlocking().first().get("key2"));
+    }
+
+    //versioning
+    private Document findInDatabase() {
+        return (Document) collection.find(new Document("_id", id.toString())).first();
+    }
+
+    @Test(timeout = 1000)
+    public void updatesIncrementVersionFieldTest() {
+        document.versionField("version");
+        document.set("key", "value").toBlocking().subscribe();
+        document.inc("amount", 5).toBlocking().subscribe();
+        document.push("list", 1).toBlocking().subscribe();
+        document.decIfSufficient("amount", 1).toBlocking().subscribe();
+        assertEquals(4, findInDatabase().get("version"));
+    }
+
+    @Test(timeout = 1000)
+    public void updateOfVersionFieldIsNotIncrementedTwiceTest() {
+        document.versionField("version");
+        document.set("version", 10).toBlocking().subscribe();
+        assertEquals(10, findInDatabase().get("version"));
+    }
+
+    @Test(timeout = 1000)
+    public void writeThroughCachesIncrementedVersionTest() {
+        document.versionField("version").writeThrough(true);
+        document.fetch().toBlocking().first();
+        document.set("key", "value").toBlocking().subscribe();
+        assertEquals(1, document.getCachedOrFetch().toBlocking().first().get("version"));
+    }
+
+    @Test(timeout = 1000)
+    public void withoutVersionFieldVersionIsNotIncrementedTest() {
+        document.set("key", "value").toBlocking().subscribe();
+        assertFalse(findInDatabase().containsKey("version"));
+        assertNull(document.getVersionField());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void compareAndUpdateWithoutVersionFieldThrowsTest() {
+        document.compareAndUpdate(current -> Updates.set("key", "value"));
+    }
+
+    @Test(timeout = 1000)
+    public void compareAndUpdateAppliesUpdateTest() {
+        document.versionField("version");
+        document.set("from", 10).toBlocking().subscribe();
+        UpdateResult result = document.compareAndUpdate(current -> Updates.combine(Updates.inc("from", -3), Updates.set("to", current.getInteger("from") - 7))).toBlocking().first();
+        assertEquals(1, result.getModifiedCount());
+        assertEquals(7, findInDatabase().get("from"));
+        assertEquals(3, findInDatabase().get("to"));
+        assertEquals(2, findInDatabase().get("version"));
+    }
+
+    @Test(timeout = 1000)
+    public void compareAndUpdateRetriesOnConflictTest() {
+        document.versionField("version");
+        document.set("amount", 10).toBlocking().subscribe();
+        document.fetch().toBlocking().first();
+        //Changed by another server, the cached document is outdated
+        collection.updateOne(new Document("_id", id.toString()), new Document("$set", new Document("amount", 20)).append("$inc", new Document("version", 1)));
+        AtomicInteger calls = new AtomicInteger();
+        document.compareAndUpdate(current -> {
+            calls.incrementAndGet();
+            return Updates.set("doubled", current.getInteger("amount") * 2);
+        }).toBlocking().first();
+        assertEquals(2, calls.get());
+        assertEquals(40, findInDatabase().get("doubled"));
+    }
+
+    @Test(timeout = 2000)
+    public void compareAndUpdateGivesUpAfterMaxAttemptsTest() {
+        document.versionField("version");
+        AtomicInteger calls = new AtomicInteger();
+        UpdateResult result = document.compareAndUpdate(current -> {
+            calls.incrementAndGet();
+            collection.updateOne(new Document("_id", id.toString()), new Document("$inc", new Document("version", 1)), new UpdateOptions().upsert(true));
+            return Updates.set("key", "value");
+        }, 3).toBlocking().first();
+        assertEquals(3, calls.get());
+        assertEquals(0, result.getMatchedCount());
+        assertFalse(findInDatabase().containsKey("key"));
+    }
+
+    @Test(timeout = 1000)
+    public void compareAndUpdateWithNullUpdateDoesNothingTest() {
+        document.versionField("version");
+        assertNull(document.compareAndUpdate(current -> null).toBlocking().firstOrDefault(null));
+    }
+
+    @Test(timeout = 1000)
+    public void compareAndUpdateCreatesMissingDocumentTest() {
+        document.versionField("version").fetchStrategy(FetchStrategy.FIND);
+        document.compareAndUpdate(current -> Updates.set("key", "value")).toBlocking().first();
+        assertEquals(new Document("_id", id.toString()).append("key", "value").append("version", 1), findInDatabase());
+    }
+
+    @Test(timeout = 5000)
+    public void concurrentCompareAndUpdatesAreAllAppliedTest() {
+        document.versionField("version");
+        document.set("counter", 0).toBlocking().subscribe();
+        List<Observable<UpdateResult>> updates = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            updates.add(ExoDocument.create(collection, id.toString()).versionField("version")
+                    .compareAndUpdate(current -> Updates.set("counter", current.getInteger("counter") + 1), 100));
+        Observable.merge(updates).toBlocking().last();
+        assertEquals(10, findInDatabase().get("counter"));
+    }
 
     //TODO: Update tests (Not really necessary as all above tests use update indirectly)
 }
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata;
+
+import com.exorath.exodata.api.ExoCollection;
+import com.exorath.exodata.api.ExoTypedDocument;
+import com.exorath.exodata.api.FetchStrategy;
+import com.github.fakemongo.Fongo;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Projections;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecConfigurationException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ExoTypedDocumentTest {
+    private static final String DB_NAME = "testdb";
+    private static final String COLL_NAME = "testcoll";
+    private MongoCollection mongoCollection;
+    private ExoCollection collection;
+
+    @Before
+    public void setup() {
+        mongoCollection = new Fongo("mongo server 1").getMongo().getDatabase(DB_NAME).getCollection(COLL_NAME);
+        collection = ExoCollection.create(mongoCollection);
+    }
+
+    @Test
+    public void fetchCreatesDocumentAndDecodesIdTest() {
+        Profile profile = collection.getDocument("player1", Profile.class).fetch().toBlocking().first();
+        assertEquals("player1", profile.id);
+        assertEquals(0, profile.coins);
+        assertEquals(1, mongoCollection.count());
+    }
+
+    @Test
+    public void fetchDecodesAllFieldTypesTest() {
+        mongoCollection.insertOne(new Document("_id", "player1").append("name", "toon").append("coins", 12L).append("ratio", 1.5).append("banned", true)
+                .append("friends", Arrays.asList("a", "b")).append("stats", new Document("kills", 3).append("deaths", 4))
+                .append("rank", "ADMIN").append("home", new Document("x", 1).append("z", -2)).append("homes", Arrays.asList(new Document("x", 5).append("z", 6)))
+                .append("unknown", "ignored"));
+        Profile profile = collection.getDocument("player1", Profile.class).fetch().toBlocking().first();
+        assertEquals("toon", profile.name);
+        assertEquals(12, profile.coins);
+        assertEquals(1.5, profile.ratio, 0);
+        assertTrue(profile.banned);
+        assertEquals(Arrays.asList("a", "b"), profile.friends);
+        assertEquals(Integer.valueOf(3), profile.stats.get("kills"));
+        assertEquals(Rank.ADMIN, profile.rank);
+        assertEquals(-2, profile.home.z);
+        assertEquals(5, profile.homes.get(0).x);
+    }
+
+    @Test
+    public void fetchConvertsNumbersToFieldTypeTest() {
+        mongoCollection.insertOne(new Document("_id", "player1").append("coins", 1.0).append("ratio", 3));
+        Profile profile = collection.getDocument("player1", Profile.class).fetch().toBlocking().first();
+        assertEquals(1, profile.coins);
+        assertEquals(3.0, profile.ratio, 0);
+    }
+
+    @Test
+    public void fetchWithProjectionOnlyDecodesProjectedFieldsTest() {
+        mongoCollection.insertOne(new Document("_id", "player1").append("name", "toon").append("coins", 5));
+        Profile profile = collection.getDocument("player1", Profile.class).fetch(Projections.include("coins")).toBlocking().first();
+        assertEquals(5, profile.coins);
+        assertNull(profile.name);
+    }
+
+    @Test
+    public void fetchWithFindStrategyEmitsNothingForMissingDocumentTest() {
+        collection.fetchStrategy(FetchStrategy.FIND);
+        assertNull(collection.getDocument("player1", Profile.class).fetch().toBlocking().firstOrDefault(null));
+    }
+
+    @Test
+    public void setEncodesPojoValueTest() {
+        ExoTypedDocument<Profile> document = collection.getDocument("player1", Profile.class);
+        document.set("home", new Location(7, 8)).toBlocking().first();
+        assertEquals(new Document("x", 7).append("z", 8), ((Document) mongoCollection.find().first()).get("home"));
+        assertEquals(8, document.fetch().toBlocking().first().home.z);
+    }
+
+    @Test
+    public void setValueStoresAllFieldsExceptIdTest() {
+        Profile profile = new Profile();
+        profile.id = "other";
+        profile.name = "toon";
+        profile.coins = 20;
+        profile.rank = Rank.MEMBER;
+        collection.getDocument("player1", Profile.class).set(profile).toBlocking().first();
+        Document stored = (Document) mongoCollection.find().first();
+        assertEquals("player1", stored.get("_id"));
+        assertEquals("toon", stored.get("name"));
+        assertEquals(20L, stored.get("coins"));
+        assertEquals("MEMBER", stored.get("rank"));
+        assertFalse(stored.containsKey("friends"));
+    }
+
+    @Test
+    public void incThenFetchTest() {
+        ExoTypedDocument<Profile> document = collection.getDocument("player1", Profile.class);
+        document.inc("coins", 3).toBlocking().first();
+        document.inc("coins", 4L).toBlocking().first();
+        assertEquals(7, document.fetch().toBlocking().first().coins);
+    }
+
+    @Test
+    public void pushEncodesPojoValueTest() {
+        ExoTypedDocument<Profile> document = collection.getDocument("player1", Profile.class);
+        document.push("homes", new Location(1, 2)).toBlocking().first();
+        document.push("homes", new Location(3, 4)).toBlocking().first();
+        List<Location> homes = document.fetch().toBlocking().first().homes;
+        assertEquals(2, homes.size());
+        assertEquals(4, homes.get(1).z);
+    }
+
+    @Test
+    public void removeTest() {
+        ExoTypedDocument<Profile> document = collection.getDocument("player1", Profile.class);
+        document.set("name", "toon").toBlocking().first();
+        document.remove("name").toBlocking().first();
+        assertNull(document.fetch().toBlocking().first().name);
+    }
+
+    @Test
+    public void getCachedOrFetchUsesCachedValueTest() {
+        ExoTypedDocument<Profile> document = collection.getDocument("player1", Profile.class);
+        Profile fetched = document.fetch().toBlocking().first();
+        mongoCollection.updateOne(new Document("_id", "player1"), new Document("$set", new Document("coins", 5)));
+        assertSame(fetched, document.getCachedOrFetch().toBlocking().first());
+    }
+
+    @Test
+    public void untypedFetchClearsCachedValueTest() {
+        ExoTypedDocument<Profile> document = collection.getDocument("player1", Profile.class);
+        document.fetch().toBlocking().first();
+        mongoCollection.updateOne(new Document("_id", "player1"), new Document("$set", new Document("coins", 5)));
+        document.untyped().fetch().toBlocking().first();
+        assertEquals(5, document.getCachedOrFetch().toBlocking().first().coins);
+    }
+
+    @Test
+    public void typedDocumentsShareDocumentCacheTest() {
+        collection.enableDocumentCache(1024 * 1024, 1, TimeUnit.MINUTES);
+        Profile fetched = collection.getDocument("player1", Profile.class).fetch().toBlocking().first();
+        assertSame(fetched, collection.getDocument("player1", Profile.class).getCachedOrFetch().toBlocking().first());
+    }
+
+    @Test
+    public void untypedReturnsDocumentWithSameIdTest() {
+        assertEquals("player1", collection.getDocument("player1", Profile.class).untyped().getId());
+    }
+
+    public enum Rank {
+        MEMBER, ADMIN
+    }
+
+    @Test(expected = CodecConfigurationException.class)
+    public void arrayFieldIsRejectedTest() {
+        collection.getDocument("player1", Inventory.class).fetch().toBlocking().first();
+    }
+
+    public static class Inventory {
+        String[] items;
+    }
+
+    public static class Location {
+        int x;
+        int z;
+
+        private Location() {
+        }
+
+        public Location(int x, int z) {
+            this.x = x;
+            this.z = z;
+        }
+    }
+
+    public static class Entity {
+        String id;
+    }
+
+    public static class Profile extends Entity {
+        String name;
+        long coins;
+        double ratio;
+        boolean banned;
+        Rank rank;
+        List<String> friends;
+        Map<String, Integer> stats = new HashMap<>();
+        Location home;
+        List<Location> homes = new ArrayList<>();
+        transient int notStored = 1;
+    }
+}
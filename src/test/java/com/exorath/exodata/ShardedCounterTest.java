@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Exorath
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package com.exorath.exodata;
+
+import com.exorath.exodata.api.ExoCollection;
+import com.exorath.exodata.api.ShardedCounter;
+import com.github.fakemongo.Fongo;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Test;
+import rx.Observable;
+import rx.observers.TestSubscriber;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class ShardedCounterTest {
+    private static final String DB_NAME = "testdb";
+    private static final String COLL_NAME = "testcoll";
+    private MongoCollection mongoCollection;
+    private ExoCollection collection;
+    private ShardedCounter counter;
+
+    @Before
+    public void setup() {
+        mongoCollection = new Fongo("mongo server 1").getMongo().getDatabase(DB_NAME).getCollection(COLL_NAME);
+        collection = ExoCollection.create(mongoCollection);
+        counter = collection.getShardedCounter("coins", 8);
+    }
+
+    @Test
+    public void getShardedCounterReturnsSameCounterTest() {
+        assertSame(counter, collection.getShardedCounter("coins", 8));
+        assertNotSame(counter, collection.getShardedCounter("coins", 16));
+        assertEquals(8, counter.getShards());
+        assertEquals("coins", counter.getId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroShardsThrowsTest() {
+        collection.getShardedCounter("coins", 0);
+    }
+
+    @Test(timeout = 1000)
+    public void fetchTotalWithoutShardsIsZeroTest() {
+        assertEquals(0L, counter.fetchTotal().toBlocking().first().longValue());
+    }
+
+    @Test(timeout = 1000)
+    public void fetchTotalSumsIncrementsTest() {
+        List<Observable<?>> increments = new ArrayList<>();
+        for (int i = 1; i <= 100; i++)
+            increments.add(counter.inc(i));
+        Observable.merge(increments).toBlocking().subscribe();
+        counter.inc(-50).toBlocking().subscribe();
+        assertEquals(5000L, counter.fetchTotal().toBlocking().first().longValue());
+    }
+
+    @Test(timeout = 1000)
+    public void incrementsAreSpreadOverShardsTest() {
+        for (int i = 0; i < 100; i++)
+            counter.inc(1).toBlocking().subscribe();
+        assertTrue(mongoCollection.count() > 1);
+        assertTrue(mongoCollection.count() <= 8);
+        for (Object shard : mongoCollection.find())
+            assertTrue(((Document) shard).getString("_id").startsWith("coins#"));
+    }
+
+    @Test(timeout = 1000)
+    public void pinnedShardReceivesAllIncrementsTest() {
+        counter.pinShard("server1");
+        for (int i = 0; i < 10; i++)
+            counter.inc(1).toBlocking().subscribe();
+        assertEquals(1, mongoCollection.count());
+        assertEquals(10L, ((Number) ((Document) mongoCollection.find().first()).get("count")).longValue());
+    }
+
+    @Test(timeout = 1000)
+    public void fetchTotalIgnoresOtherCountersTest() {
+        counter.inc(5).toBlocking().subscribe();
+        collection.getShardedCounter("gems", 8).inc(7).toBlocking().subscribe();
+        collection.getDocument("coins").inc("count", 100).toBlocking().subscribe();
+        assertEquals(5L, counter.fetchTotal().toBlocking().first().longValue());
+    }
+
+    @Test(timeout = 1000)
+    public void getCachedTotalOrFetchReturnsLastFetchedTotalTest() {
+        counter.inc(5).toBlocking().subscribe();
+        assertEquals(5L, counter.getCachedTotalOrFetch().toBlocking().first().longValue());
+        counter.inc(5).toBlocking().subscribe();
+        assertEquals(5L, counter.getCachedTotalOrFetch().toBlocking().first().longValue());
+        assertEquals(10L, counter.fetchTotal().toBlocking().first().longValue());
+        assertEquals(10L, counter.getCachedTotalOrFetch().toBlocking().first().longValue());
+    }
+
+    @Test(timeout = 2000)
+    public void enableTotalRefreshRefreshesCachedTotalTest() throws InterruptedException {
+        counter.getCachedTotalOrFetch().toBlocking().first();
+        counter.inc(5).toBlocking().subscribe();
+        counter.enableTotalRefresh(10, TimeUnit.MILLISECONDS);
+        while (counter.getCachedTotalOrFetch().toBlocking().first() != 5L)
+            Thread.sleep(5);
+        counter.disableTotalRefresh();
+    }
+
+    @Test(timeout = 2000)
+    public void failedRefreshMakesCachedTotalStaleTest() throws InterruptedException {
+        AtomicBoolean failing = new AtomicBoolean();
+        MongoCollection failingCollection = (MongoCollection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{MongoCollection.class}, (proxy, method, args) -> {
+            if (method.getName().equals("find") && failing.get())
+                throw new MongoSocketReadException("connection lost", new ServerAddress());
+            return method.invoke(mongoCollection, args);
+        });
+        ShardedCounter failingCounter = ExoCollection.create(failingCollection).getShardedCounter("coins", 8);
+        assertEquals(0L, (long) failingCounter.getCachedTotalOrFetch().toBlocking().first());
+        failing.set(true);
+        failingCounter.enableTotalRefresh(10, TimeUnit.MILLISECONDS);
+        TestSubscriber<Long> cached = new TestSubscriber<>();
+        while (cached.getOnErrorEvents().isEmpty()) {
+            Thread.sleep(5);
+            cached = new TestSubscriber<>();
+            failingCounter.getCachedTotalOrFetch().subscribe(cached);
+            cached.awaitTerminalEvent();
+        }
+        cached.assertError(MongoSocketReadException.class);
+        failing.set(false);
+        assertEquals(0L, (long) failingCounter.getCachedTotalOrFetch().toBlocking().first());
+        failingCounter.disableTotalRefresh();
+    }
+}